@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.HttpClients;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import exception.PiazzaJobException;
+import gateway.controller.util.JobRequestCoalescer;
+import model.job.type.AbortJob;
+import model.request.PiazzaJobRequest;
+import model.response.JobResponse;
+import model.response.PiazzaResponse;
+
+/**
+ * Measures Job submission throughput against a local stub of the Job Manager's /requestJob endpoint, with each request
+ * thread posting its own Job, and with the Jobs sent through the coalescer's senders. The stub spends a fixed time on
+ * each request, standing in for the Job Manager's per-request overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class JobSubmissionBenchmark {
+	@Param({ "0", "2" })
+	private long requestLatencyMillis;
+	@Param({ "0", "2" })
+	private long lingerMillis;
+	@Param({ "100" })
+	private int maxBatch;
+	@Param({ "16", "64" })
+	private int senders;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private HttpServer server;
+	private ExecutorService serverExecutor;
+	private String jobManagerUrl;
+	private RestTemplate restTemplate;
+	private JobRequestCoalescer jobRequestCoalescer;
+	private PiazzaJobRequest request;
+
+	@Setup
+	public void setup() throws IOException {
+		serverExecutor = Executors.newCachedThreadPool();
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+		server.setExecutor(serverExecutor);
+		server.createContext("/requestJob", new StubHandler());
+		server.start();
+		jobManagerUrl = String.format("http://localhost:%s", server.getAddress().getPort());
+
+		restTemplate = new RestTemplate(
+				new HttpComponentsClientHttpRequestFactory(HttpClients.custom().setMaxConnTotal(256).setMaxConnPerRoute(256).build()));
+		jobRequestCoalescer = new JobRequestCoalescer();
+		ReflectionTestUtils.setField(jobRequestCoalescer, "restTemplate", restTemplate);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "enabled", true);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "maxBatch", maxBatch);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "lingerMillis", lingerMillis);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "senders", senders);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "JOBMANAGER_URL", jobManagerUrl);
+		jobRequestCoalescer.init();
+
+		request = new PiazzaJobRequest();
+		request.createdBy = "benchmark";
+		request.jobType = new AbortJob("123456");
+	}
+
+	@TearDown
+	public void teardown() {
+		jobRequestCoalescer.shutdown();
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	@Benchmark
+	public PiazzaResponse oneRequestPerJob() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		return restTemplate.postForEntity(String.format("%s/requestJob?jobId=%s", jobManagerUrl, UUID.randomUUID()),
+				new HttpEntity<PiazzaJobRequest>(request, headers), PiazzaResponse.class).getBody();
+	}
+
+	@Benchmark
+	public PiazzaResponse coalesced() throws PiazzaJobException {
+		return jobRequestCoalescer.send(request, UUID.randomUUID().toString());
+	}
+
+	/**
+	 * Answers /requestJob as the Job Manager would, after the configured delay.
+	 */
+	private class StubHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			objectMapper.readTree(exchange.getRequestBody());
+			JobResponse response = new JobResponse(exchange.getRequestURI().getQuery().substring("jobId=".length()));
+			if (requestLatencyMillis > 0) {
+				try {
+					Thread.sleep(requestLatencyMillis);
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			byte[] bytes = objectMapper.writeValueAsBytes(response);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.UploadCompressor;
+
+/**
+ * Measures the throughput of the upload compression stage, for GeoJSON-like text and for incompressible content. Each
+ * operation compresses 4 MiB, so the score in operations per second multiplied by 4 gives MiB per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadCompressorBenchmark {
+	private static final int CONTENT_SIZE = 4 * 1024 * 1024;
+
+	@Param({ "1", "6" })
+	private int level;
+	@Param({ "geojson", "random" })
+	private String content;
+
+	private UploadCompressor uploadCompressor;
+	private byte[] bytes;
+
+	@Setup
+	public void setup() {
+		uploadCompressor = new UploadCompressor();
+		ReflectionTestUtils.setField(uploadCompressor, "level", level);
+		bytes = new byte[CONTENT_SIZE];
+		Random random = new Random(1);
+		if ("random".equals(content)) {
+			random.nextBytes(bytes);
+			return;
+		}
+		StringBuilder geoJson = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+		while (geoJson.length() < CONTENT_SIZE) {
+			geoJson.append(String.format(
+					"{\"type\":\"Feature\",\"properties\":{\"id\":%s},\"geometry\":{\"type\":\"Point\",\"coordinates\":[%.6f,%.6f]}},",
+					random.nextInt(100000), random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+		}
+		System.arraycopy(geoJson.toString().getBytes(), 0, bytes, 0, CONTENT_SIZE);
+	}
+
+	@Benchmark
+	public long compress() throws IOException {
+		CountingOutputStream output = new CountingOutputStream();
+		uploadCompressor.compress(new ByteArrayInputStream(bytes), output);
+		return output.count;
+	}
+
+	/**
+	 * Discards the compressed bytes, so that only the compression is measured.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int value) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			count += length;
+		}
+	}
+}
@@ -30,15 +30,26 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeaderElementIterator;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AnonymousQueue;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.Binding.DestinationType;
 import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
 import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.boot.web.support.SpringBootServletInitializer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -54,13 +65,28 @@ import org.springframework.security.config.annotation.web.builders.WebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3EncryptionClient;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.CryptoConfiguration;
+import com.amazonaws.services.s3.model.KMSEncryptionMaterialsProvider;
+
 import gateway.auth.ExtendedRequestDetails;
 import gateway.auth.PiazzaBasicAuthenticationEntryPoint;
 import gateway.auth.PiazzaBasicAuthenticationProvider;
+import gateway.controller.util.BoundedExecutor;
+import gateway.controller.util.IdempotencyFilter;
+import gateway.controller.util.IdempotencyStore;
+import gateway.controller.util.JobStatusView;
 import io.swagger.annotations.Api;
 import messaging.job.JobMessageFactory;
 import springfox.documentation.builders.ApiInfoBuilder;
@@ -89,6 +115,20 @@ public class Application extends SpringBootServletInitializer {
 	private int httpMaxRoute;
 	@Value("${SPACE}")
 	private String SPACE;
+	@Value("${s3.use.kms}")
+	private Boolean USE_KMS;
+	@Value("${vcap.services.pz-blobstore.credentials.access_key_id:}")
+	private String AMAZONS3_ACCESS_KEY;
+	@Value("${vcap.services.pz-blobstore.credentials.secret_access_key:}")
+	private String AMAZONS3_PRIVATE_KEY;
+	@Value("${vcap.services.pz-blobstore.credentials.encryption_key:}")
+	private String S3_KMS_CMK_ID;
+	@Value("${s3.endpoint:}")
+	private String S3_ENDPOINT;
+	@Value("${upload.batch.parallelism}")
+	private int uploadBatchParallelism;
+	@Value("${job.batch.parallelism}")
+	private int jobBatchParallelism;
 
 	@Override
 	protected SpringApplicationBuilder configure(SpringApplicationBuilder builder) {
@@ -105,6 +145,73 @@ public class Application extends SpringBootServletInitializer {
 				false);
 	}
 
+	@Bean
+	@ConditionalOnProperty(value = "job.request.messaging.enabled", havingValue = "true")
+	public Queue requestJobsQueue() {
+		return new Queue(String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.REQUEST_JOB_TOPIC_NAME, SPACE), true,
+				false, false);
+	}
+
+	@Bean
+	@ConditionalOnProperty(value = "job.status.view.enabled", havingValue = "true")
+	public Queue jobEventsQueue() {
+		// A queue of this Gateway instance only, removed when it disconnects, so that the Job Manager still consumes
+		// every event from its own queues
+		return new AnonymousQueue();
+	}
+
+	@Bean
+	@ConditionalOnProperty(value = "job.status.view.enabled", havingValue = "true")
+	public Binding createJobEventsBinding() {
+		return new Binding(jobEventsQueue().getName(), DestinationType.QUEUE, JobMessageFactory.PIAZZA_EXCHANGE_NAME,
+				String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.CREATE_JOB_TOPIC_NAME, SPACE), null);
+	}
+
+	@Bean
+	@ConditionalOnProperty(value = "job.status.view.enabled", havingValue = "true")
+	public Binding updateJobEventsBinding() {
+		return new Binding(jobEventsQueue().getName(), DestinationType.QUEUE, JobMessageFactory.PIAZZA_EXCHANGE_NAME,
+				String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.UPDATE_JOB_TOPIC_NAME, SPACE), null);
+	}
+
+	@Bean
+	@ConditionalOnProperty(value = "job.status.view.enabled", havingValue = "true")
+	public SimpleMessageListenerContainer jobEventsListener(ConnectionFactory connectionFactory, JobStatusView jobStatusView) {
+		SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
+		container.setQueues(jobEventsQueue());
+		container.setMessageListener(jobStatusView);
+		// Events only update an in-memory view, so they are not worth redelivering
+		container.setAcknowledgeMode(AcknowledgeMode.NONE);
+		return container;
+	}
+
+	@Bean
+	@ConditionalOnProperty(value = "job.request.messaging.enabled", havingValue = "true")
+	public static BeanPostProcessor jobRequestConnectionFactoryConfigurer(@Value("${job.request.channels}") final int channels,
+			@Value("${job.request.confirm.timeout.ms}") final long confirmTimeoutMillis) {
+		// Publishing Job Requests needs publisher confirms and returns, and a bounded channel cache sized for the concurrent
+		// publishers. These are only applied when publishing is enabled; otherwise the Boot defaults are kept.
+		return new BeanPostProcessor() {
+			@Override
+			public Object postProcessBeforeInitialization(Object bean, String beanName) {
+				if (bean instanceof CachingConnectionFactory) {
+					CachingConnectionFactory connectionFactory = (CachingConnectionFactory) bean;
+					connectionFactory.setPublisherConfirms(true);
+					connectionFactory.setPublisherReturns(true);
+					connectionFactory.setChannelCacheSize(channels);
+					// Publishers wait this long for a free channel, rather than opening channels without limit
+					connectionFactory.setChannelCheckoutTimeout(confirmTimeoutMillis);
+				}
+				return bean;
+			}
+
+			@Override
+			public Object postProcessAfterInitialization(Object bean, String beanName) {
+				return bean;
+			}
+		};
+	}
+
 	@Bean
 	public Jackson2ObjectMapperBuilder jacksonBuilder() {
 		Jackson2ObjectMapperBuilder builder = new Jackson2ObjectMapperBuilder();
@@ -135,6 +242,70 @@ public class Application extends SpringBootServletInitializer {
 		return restTemplate;
 	}
 
+	@Bean
+	public AmazonS3 s3Client() {
+		// Connect to S3 Bucket. Only apply credentials if they are present.
+		AmazonS3Client client;
+		if ((AMAZONS3_ACCESS_KEY.isEmpty()) && (AMAZONS3_PRIVATE_KEY.isEmpty())) {
+			client = new AmazonS3Client();
+		} else {
+			BasicAWSCredentials credentials = new BasicAWSCredentials(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY);
+			if (USE_KMS.booleanValue()) {
+				// Set up encryption using the KMS CMK Key
+				KMSEncryptionMaterialsProvider materialProvider = new KMSEncryptionMaterialsProvider(S3_KMS_CMK_ID);
+				return new AmazonS3EncryptionClient(credentials, materialProvider,
+						new CryptoConfiguration().withKmsRegion(Regions.US_EAST_1)).withRegion(Region.getRegion(Regions.US_EAST_1));
+			}
+			// No KMS.
+			client = new AmazonS3Client(credentials);
+		}
+		if (!S3_ENDPOINT.isEmpty()) {
+			// An S3-compatible store, such as a local stand-in for testing. These generally require path-style bucket URLs.
+			client.setEndpoint(S3_ENDPOINT);
+			client.setS3ClientOptions(S3ClientOptions.builder().setPathStyleAccess(true).build());
+		}
+		return client;
+	}
+
+	@Bean
+	public BoundedExecutor blobWriteExecutor() {
+		// Writes the files of batch uploads to the blob store
+		return new BoundedExecutor("blob-write", uploadBatchParallelism);
+	}
+
+	@Bean
+	public BoundedExecutor jobSubmitExecutor() {
+		// Sends the Jobs of batch requests to the Job Manager, over the pooled connections of the RestTemplate
+		return new BoundedExecutor("job-submit", jobBatchParallelism);
+	}
+
+	@Bean
+	public FilterRegistrationBean metadataEtagFilter() {
+		// Adds an ETag from a hash of the response body to GET requests for metadata, and answers a matching
+		// If-None-Match with 304 Not Modified. The body is buffered to hash it, so file downloads under /file are not
+		// included, and neither are requests other than GET, whose responses are not given an ETag anyway.
+		FilterRegistrationBean registration = new FilterRegistrationBean(new ShallowEtagHeaderFilter() {
+			@Override
+			protected boolean shouldNotFilter(HttpServletRequest request) {
+				return !HttpMethod.GET.name().equals(request.getMethod()) && !HttpMethod.HEAD.name().equals(request.getMethod());
+			}
+		});
+		registration.addUrlPatterns("/data/*", "/service/*", "/deployment/*");
+		return registration;
+	}
+
+	@Bean
+	public FilterRegistrationBean idempotencyFilter(IdempotencyStore idempotencyStore) {
+		// Answers a repeated Job-creating POST that carries the same Idempotency-Key with the original response. This runs
+		// after the Spring Security filter chain, so that the user is authenticated and keys are scoped to the user. Only
+		// POSTs are handled, so /data/upload/* covers the commit of an upload but not its chunks.
+		FilterRegistrationBean registration = new FilterRegistrationBean(new IdempotencyFilter(idempotencyStore));
+		registration.addUrlPatterns("/job", "/job/batch", "/data", "/data/file", "/data/file/batch", "/data/url", "/data/upload/*",
+				"/deployment");
+		registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER + 1);
+		return registration;
+	}
+
 	@Bean
 	public Docket gatewayApi() {
 		return new Docket(DocumentationType.SWAGGER_2).useDefaultResponseMessages(false).ignoredParameterTypes(Principal.class)
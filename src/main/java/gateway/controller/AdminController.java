@@ -42,6 +42,23 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
 
+import gateway.controller.util.ContentIndex;
+import gateway.controller.util.FileCache;
+import gateway.controller.util.FileMetadataCache;
+import gateway.controller.util.FileRedirector;
+import gateway.controller.util.IdempotencyStore;
+import gateway.controller.util.JobOutbox;
+import gateway.controller.util.JobRequestCoalescer;
+import gateway.controller.util.JobStatusBulkStreamer;
+import gateway.controller.util.JobStatusCache;
+import gateway.controller.util.JobStatusStream;
+import gateway.controller.util.JobStatusView;
+import gateway.controller.util.JobStatusWatcher;
+import gateway.controller.util.JobRequestPublisher;
+import gateway.controller.util.RemoteFileFetcher;
+import gateway.controller.util.ServiceAvailabilityCache;
+import gateway.controller.util.UploadCompressor;
+import gateway.controller.util.UuidPool;
 import gateway.controller.util.GatewayUtil;
 import gateway.controller.util.PiazzaRestController;
 import io.swagger.annotations.Api;
@@ -73,6 +90,40 @@ public class AdminController extends PiazzaRestController {
 	private HttpServletRequest request;
 	@Autowired
 	private GatewayUtil gatewayUtil;
+	@Autowired
+	private ContentIndex contentIndex;
+	@Autowired
+	private RemoteFileFetcher remoteFileFetcher;
+	@Autowired
+	private FileCache fileCache;
+	@Autowired
+	private FileMetadataCache fileMetadataCache;
+	@Autowired
+	private FileRedirector fileRedirector;
+	@Autowired
+	private UploadCompressor uploadCompressor;
+	@Autowired
+	private UuidPool uuidPool;
+	@Autowired
+	private JobRequestPublisher jobRequestPublisher;
+	@Autowired
+	private JobOutbox jobOutbox;
+	@Autowired
+	private JobRequestCoalescer jobRequestCoalescer;
+	@Autowired
+	private IdempotencyStore idempotencyStore;
+	@Autowired
+	private JobStatusCache jobStatusCache;
+	@Autowired
+	private JobStatusWatcher jobStatusWatcher;
+	@Autowired
+	private JobStatusStream jobStatusStream;
+	@Autowired
+	private JobStatusBulkStreamer jobStatusBulkStreamer;
+	@Autowired
+	private ServiceAvailabilityCache serviceAvailabilityCache;
+	@Autowired
+	private JobStatusView jobStatusView;
 	@Value("${SPACE}")
 	private String SPACE;
 	@Value("${ingest.url}")
@@ -162,6 +213,26 @@ public class AdminController extends PiazzaRestController {
 		stats.put("ServiceController", SERVICECONTROLLER_URL);
 		stats.put("Security", SECURITY_URL);
 		stats.put("Release", RELEASE_URL);
+		// Write the upload metrics
+		stats.put("UploadDeduplication", contentIndex.getStats());
+		stats.put("UrlFetch", remoteFileFetcher.getStats());
+		stats.put("UploadCompression", uploadCompressor.getStats());
+		// Write the download metrics
+		stats.put("FileCache", fileCache.getStats());
+		stats.put("FileMetadataCache", fileMetadataCache.getStats());
+		stats.put("FileRedirect", fileRedirector.getStats());
+		// Write the Job metrics
+		stats.put("UuidPool", uuidPool.getStats());
+		stats.put("JobRequestPublisher", jobRequestPublisher.getStats());
+		stats.put("JobOutbox", jobOutbox.getStats());
+		stats.put("JobCoalescing", jobRequestCoalescer.getStats());
+		stats.put("Idempotency", idempotencyStore.getStats());
+		stats.put("JobStatusCache", jobStatusCache.getStats());
+		stats.put("JobStatusWatch", jobStatusWatcher.getStats());
+		stats.put("JobStatusStream", jobStatusStream.getStats());
+		stats.put("JobStatusBulk", jobStatusBulkStreamer.getStats());
+		stats.put("ServiceAvailabilityCache", serviceAvailabilityCache.getStats());
+		stats.put("JobStatusView", jobStatusView.getStats());
 		// Return
 		return new ResponseEntity<Map<String, Object>>(stats, HttpStatus.OK);
 	}
@@ -15,14 +15,24 @@
  **/
 package gateway.controller;
 
+import java.net.URL;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -41,18 +51,30 @@ import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
 
 import com.amazonaws.AmazonClientException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import exception.InvalidInputException;
+import gateway.controller.util.BoundedExecutor;
+import gateway.controller.util.FileBundleStreamer;
+import gateway.controller.util.FileCache;
+import gateway.controller.util.FileMetadataCache;
+import gateway.controller.util.FileRedirector;
+import gateway.controller.util.FileStreamer;
 import gateway.controller.util.GatewayUtil;
 import gateway.controller.util.PiazzaRestController;
+import gateway.controller.util.RemoteFileFetcher;
+import gateway.controller.util.UploadCompressor;
+import gateway.controller.util.UploadSession;
+import gateway.controller.util.UploadSessionManager;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
+import model.data.DataResource;
 import model.data.FileRepresentation;
 import model.job.metadata.ResourceMetadata;
 import model.job.type.IngestJob;
@@ -80,6 +102,25 @@ public class DataController extends PiazzaRestController {
 	@Autowired
 	private GatewayUtil gatewayUtil;
 	@Autowired
+	private UploadSessionManager uploadSessionManager;
+	@Autowired
+	@Qualifier("blobWriteExecutor")
+	private BoundedExecutor blobWriteExecutor;
+	@Autowired
+	private RemoteFileFetcher remoteFileFetcher;
+	@Autowired
+	private FileStreamer fileStreamer;
+	@Autowired
+	private FileCache fileCache;
+	@Autowired
+	private FileMetadataCache fileMetadataCache;
+	@Autowired
+	private FileRedirector fileRedirector;
+	@Autowired
+	private FileBundleStreamer fileBundleStreamer;
+	@Autowired
+	private UploadCompressor uploadCompressor;
+	@Autowired
 	private PiazzaLogger logger;
 	@Value("${ingest.url}")
 	private String INGEST_URL;
@@ -87,6 +128,10 @@ public class DataController extends PiazzaRestController {
 	private String ACCESS_URL;
 	@Value("${SPACE}")
 	private String SPACE;
+	@Value("${upload.batch.max.files}")
+	private int batchMaxFiles;
+	@Value("${file.bundle.max.files}")
+	private int bundleMaxFiles;
 
 	private static final String DEFAULT_PAGE_SIZE = "10";
 	private static final String DEFAULT_PAGE = "0";
@@ -322,12 +367,7 @@ public class DataController extends PiazzaRestController {
 
 			// Validate the Job inputs to ensure we are able to process the file
 			// and attach it to the job metadata.
-			if (job.getHost() == false) {
-				throw new InvalidInputException("Host parameter must be set to true when loading a file.");
-			} else if (job.getData().getDataType() instanceof FileRepresentation == false) {
-				throw new InvalidInputException("The uploaded file cannot be attached to the specified Data Type: "
-						+ job.getData().getDataType().getClass().getName());
-			}
+			validateFileIngestJob(job);
 			// Send the file to S3.
 			String jobId = gatewayUtil.getUuid();
 			job = gatewayUtil.pushS3File(jobId, job, file);
@@ -364,6 +404,407 @@ public class DataController extends PiazzaRestController {
 		}
 	}
 
+	/**
+	 * Process a request to Load a Data file that is fetched by the Gateway from a remote HTTP(S) URL. The file is
+	 * streamed directly from the URL into S3, and then loaded in the same manner as ingestDataFile().
+	 * 
+	 * @param job
+	 *            The ingest job, describing the data to be ingested
+	 * @param url
+	 *            The URL of the file
+	 * @param sha256
+	 *            The optional hex-encoded SHA-256 checksum that the fetched file must match
+	 * @param user
+	 *            The user submitting the request
+	 * @return The response containing the Job Id, or containing the appropriate ErrorResponse
+	 */
+	@RequestMapping(value = "/data/url", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Load a Data File from a URL into Piazza", notes = "Loads a Data file that is fetched from an HTTP or HTTPS URL directly into Piazza, without the file passing through the client. This functions the same as the /data/file endpoint, but a URL is specified instead of a file.", tags = "Data")
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The Id of the Job created to handle the Loading of the Data.", response = JobResponse.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class),
+			@ApiResponse(code = 503, message = "Too many files are currently being fetched", response = ErrorResponse.class) })
+	public ResponseEntity<PiazzaResponse> ingestDataUrl(
+			@ApiParam(name = "data", value = "The description, location, and metadata for the Data to be loaded into Piazza. This is the identical model to the LoadJob as specified in the body of the /data request.", required = true) @Valid @RequestBody IngestJob job,
+			@ApiParam(value = "The HTTP or HTTPS URL of the file to be loaded.", required = true) @RequestParam(value = "url") String url,
+			@ApiParam(value = "The hex-encoded SHA-256 checksum of the file. If specified, the file is rejected if it does not match.", required = false) @RequestParam(value = "sha256", required = false) String sha256,
+			Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			logger.log(String.format("User %s requested Data Load Job of type %s from URL: %s", userName,
+					job.getData().getDataType().getClass().getName(), url), Severity.INFORMATIONAL, new AuditElement(dn, "requestLoadUrl", url));
+			// Ensure the user isn't trying to hack a dataId into their request.
+			job.getData().setDataId(null);
+			validateFileIngestJob(job);
+			// Fetch the file into S3.
+			String jobId = gatewayUtil.getUuid();
+			job = remoteFileFetcher.fetchS3File(jobId, job, url, sha256);
+			// Create the Request to send to the message bus
+			PiazzaJobRequest request = new PiazzaJobRequest();
+			request.jobType = job;
+			request.createdBy = userName;
+			jobId = gatewayUtil.sendJobRequest(request, jobId);
+
+			// Return the Job Id of the newly created Job
+			ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(new JobResponse(jobId), HttpStatus.CREATED);
+			logger.log(String.format("User %s successfully Loaded URL %s for Job %s", userName, url, jobId), Severity.INFORMATIONAL,
+					new AuditElement(dn, "successLoadUrl", jobId));
+			return response;
+		} catch (RejectedExecutionException rejectedException) {
+			LOG.info("Rejected URL Load for user {}: {}", gatewayUtil.getPrincipalName(user), rejectedException.getMessage());
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(rejectedException.getMessage(), GATEWAY),
+					HttpStatus.SERVICE_UNAVAILABLE);
+		} catch (AmazonClientException amazonException) {
+			String systemError = String.format("Error Loading Data URL for user %s with error: %s", gatewayUtil.getPrincipalName(user),
+					amazonException.getMessage());
+			String userError = "There was an issue pushing the file to Piazza S3 Bucket. Please contact a Piazza administrator for details.";
+			LOG.error(systemError, amazonException);
+			logger.log(systemError, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(userError, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
+		} catch (InvalidInputException invalidInputException) {
+			String error = String.format("Invalid Inputs for Loading Data URL for user %s: %s", gatewayUtil.getPrincipalName(user),
+					invalidInputException.getMessage());
+			LOG.error(error, invalidInputException);
+			logger.log(error, Severity.INFORMATIONAL);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.BAD_REQUEST);
+		} catch (Exception exception) {
+			String error = String.format("Error Loading Data URL for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOG.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Process a batch of Data Load requests, each with its own file. The files are written to S3 concurrently, and a Job
+	 * is created for each file that is loaded successfully.
+	 * 
+	 * @param request
+	 *            The multipart request. This contains one "data" part for each "file" part, in the same order; each
+	 *            "data" part is the ingest job for the corresponding file, as in the /data/file endpoint.
+	 * @param user
+	 *            The user submitting the request
+	 * @return The list of responses, in the order of the files. Each is either the Job Id for the file, or the error
+	 *         for that file.
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/data/file/batch", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Load a Batch of Data Files into Piazza", notes = "Loads several local user Data files into Piazza in a single multipart request. Each `file` part is paired, in order, with a `data` part, which is the identical model to the /data/file endpoint. The response lists the Job Id or error for each file, in order.", tags = "Data")
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The Ids of the Jobs created to handle the Loading of each file.", response = JobResponse.class, responseContainer = "List"),
+			@ApiResponse(code = 207, message = "Some of the files could not be loaded. The errors are listed in place of the Job Ids for those files.", response = PiazzaResponse.class, responseContainer = "List"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity ingestDataFileBatch(MultipartHttpServletRequest request, Principal user) {
+		try {
+			final String userName = gatewayUtil.getPrincipalName(user);
+			final String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			// Read the raw parameter values, so that the JSON is not split at commas
+			String[] data = request.getParameterValues("data");
+			List<MultipartFile> files = request.getFiles("file");
+			if ((data == null) || files.isEmpty()) {
+				throw new InvalidInputException("At least one pair of `data` and `file` parts must be specified.");
+			} else if (data.length != files.size()) {
+				throw new InvalidInputException(String.format("Each file requires a data part. Received %s data parts for %s files.",
+						data.length, files.size()));
+			} else if (files.size() > batchMaxFiles) {
+				throw new InvalidInputException(String.format("A batch may contain at most %s files.", batchMaxFiles));
+			}
+			logger.log(String.format("User %s requested Batch Data Load of %s files", userName, files.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestLoadFileBatch", Integer.toString(files.size())));
+
+			// Write each file and create its Job concurrently
+			List<Callable<PiazzaResponse>> tasks = new ArrayList<Callable<PiazzaResponse>>();
+			for (int i = 0; i < files.size(); i++) {
+				final String jobData = data[i];
+				final MultipartFile file = files.get(i);
+				tasks.add(new Callable<PiazzaResponse>() {
+					@Override
+					public PiazzaResponse call() {
+						return ingestBatchFile(jobData, file, userName, dn);
+					}
+				});
+			}
+			List<PiazzaResponse> responses = blobWriteExecutor.invokeAll(tasks);
+
+			boolean allCreated = true;
+			for (PiazzaResponse response : responses) {
+				allCreated &= response instanceof JobResponse;
+			}
+			return new ResponseEntity<List<PiazzaResponse>>(responses, allCreated ? HttpStatus.CREATED : HttpStatus.MULTI_STATUS);
+		} catch (InvalidInputException invalidInputException) {
+			String error = String.format("Invalid Inputs for Loading Data File Batch for user %s: %s", gatewayUtil.getPrincipalName(user),
+					invalidInputException.getMessage());
+			LOG.error(error, invalidInputException);
+			logger.log(error, Severity.INFORMATIONAL);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.BAD_REQUEST);
+		} catch (Exception exception) {
+			String error = String.format("Error Loading Data File Batch for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOG.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Starts a resumable upload of a large data file. The file is then sent in numbered chunks to the
+	 * uploadDataFilePart() endpoint, which may be sent in parallel, out of order, or retried. Once all chunks have been
+	 * received, the commitDataFileUpload() endpoint creates the Ingest Job, exactly as ingestDataFile() would.
+	 * 
+	 * @param job
+	 *            The ingest job, describing the data to be ingested
+	 * @param fileName
+	 *            The name of the file being uploaded
+	 * @param user
+	 *            The user submitting the request
+	 * @return The upload session, containing the uploadId to use for the subsequent requests; or the appropriate
+	 *         ErrorResponse
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/data/upload", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Start a Resumable Data File Upload", notes = "Starts a resumable upload of a large Data file. The file is then sent as numbered chunks, which can be sent in parallel and retried, and then committed to Load the Data into Piazza. The upload is held by a single Gateway instance, and is lost if that instance restarts.", tags = "Data")
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The upload session. The uploadId is used to send the chunks of the file, and to commit the upload.", response = UploadSession.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity createDataFileUpload(
+			@ApiParam(name = "data", value = "The description, location, and metadata for the Data to be loaded into Piazza. This is the identical model to the LoadJob as specified in the body of the /data request.", required = true) @Valid @RequestBody IngestJob job,
+			@ApiParam(value = "The name of the file being uploaded.", required = true) @RequestParam(value = "fileName") String fileName,
+			Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			logger.log(String.format("User %s requested Resumable Upload of type %s with file: %s", userName,
+					job.getData().getDataType().getClass().getName(), fileName), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestCreateUpload", fileName));
+			// Ensure the user isn't trying to hack a dataId into their request.
+			job.getData().setDataId(null);
+			validateFileIngestJob(job);
+			UploadSession session = uploadSessionManager.createSession(job, fileName, userName);
+			logger.log(String.format("User %s created Resumable Upload %s", userName, session.getUploadId()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "successCreateUpload", session.getUploadId()));
+			return new ResponseEntity<UploadSession>(session, HttpStatus.CREATED);
+		} catch (Exception exception) {
+			return getUploadErrorResponse("Creating Resumable Upload", null, exception, user);
+		}
+	}
+
+	/**
+	 * Starts a direct upload of a data file. Rather than sending the file through the Gateway, the client sends the file
+	 * with an HTTP PUT to the pre-signed uploadUrl in the response, and then calls commitDataFileUpload() to verify the
+	 * file and create the Ingest Job.
+	 * 
+	 * @param job
+	 *            The ingest job, describing the data to be ingested
+	 * @param fileName
+	 *            The name of the file being uploaded
+	 * @param fileSize
+	 *            The exact size of the file, in bytes
+	 * @param user
+	 *            The user submitting the request
+	 * @return The upload session, containing the uploadUrl and the uploadId to commit with; or the appropriate
+	 *         ErrorResponse
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/data/upload/direct", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Start a Direct Data File Upload", notes = "Issues a pre-signed URL that the Data file is sent to with an HTTP PUT, directly to the Piazza S3 Bucket. The upload is then committed to Load the Data into Piazza.", tags = "Data")
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The upload session. The file is sent to the uploadUrl, and the uploadId is used to commit the upload.", response = UploadSession.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity createDirectDataFileUpload(
+			@ApiParam(name = "data", value = "The description, location, and metadata for the Data to be loaded into Piazza. This is the identical model to the LoadJob as specified in the body of the /data request.", required = true) @Valid @RequestBody IngestJob job,
+			@ApiParam(value = "The name of the file being uploaded.", required = true) @RequestParam(value = "fileName") String fileName,
+			@ApiParam(value = "The exact size of the file being uploaded, in bytes.", required = true) @RequestParam(value = "fileSize") Long fileSize,
+			Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			logger.log(String.format("User %s requested Direct Upload of type %s with file: %s", userName,
+					job.getData().getDataType().getClass().getName(), fileName), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestCreateDirectUpload", fileName));
+			// Ensure the user isn't trying to hack a dataId into their request.
+			job.getData().setDataId(null);
+			validateFileIngestJob(job);
+			UploadSession session = uploadSessionManager.createDirectSession(job, fileName, fileSize, userName);
+			logger.log(String.format("User %s created Direct Upload %s", userName, session.getUploadId()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "successCreateDirectUpload", session.getUploadId()));
+			return new ResponseEntity<UploadSession>(session, HttpStatus.CREATED);
+		} catch (Exception exception) {
+			return getUploadErrorResponse("Creating Direct Upload", null, exception, user);
+		}
+	}
+
+	/**
+	 * Receives a single chunk of a resumable upload. The bytes of the chunk are the raw body of the request, and the
+	 * Content-Length must be specified. Every chunk other than the last must be at least 5 MB.
+	 * 
+	 * @param uploadId
+	 *            The Id of the upload session
+	 * @param partNumber
+	 *            The number of this chunk, starting at 1. Chunks are assembled in ascending order.
+	 * @param request
+	 *            The request, whose body contains the bytes of the chunk
+	 * @param user
+	 *            The user submitting the request
+	 * @return The upload session, listing the chunks received so far; or the appropriate ErrorResponse
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/data/upload/{uploadId}/{partNumber}", method = RequestMethod.PUT, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Upload a Chunk of a Resumable Data File Upload", notes = "Sends the bytes of one numbered chunk of the file as the body of the request. Chunks can be sent in parallel, in any order, and can be retried.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "The upload session, listing all chunks received.", response = UploadSession.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity uploadDataFilePart(
+			@ApiParam(value = "The Id of the upload.", required = true) @PathVariable(value = "uploadId") String uploadId,
+			@ApiParam(value = "The number of the chunk, from 1 to 10000.", required = true) @PathVariable(value = "partNumber") Integer partNumber,
+			HttpServletRequest request, Principal user) {
+		try {
+			UploadSession session = uploadSessionManager.getSession(uploadId, gatewayUtil.getPrincipalName(user));
+			if (session == null) {
+				return getUploadNotFoundResponse(uploadId);
+			}
+			uploadSessionManager.uploadPart(session, partNumber, request.getInputStream(), request.getContentLengthLong());
+			return new ResponseEntity<UploadSession>(session, HttpStatus.OK);
+		} catch (Exception exception) {
+			return getUploadErrorResponse("Uploading Chunk for Resumable Upload", uploadId, exception, user);
+		}
+	}
+
+	/**
+	 * Gets the state of a resumable upload, including which chunks have been received.
+	 * 
+	 * @param uploadId
+	 *            The Id of the upload session
+	 * @param user
+	 *            The user submitting the request
+	 * @return The upload session, or the appropriate ErrorResponse
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/data/upload/{uploadId}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Get Resumable Data File Upload", notes = "Gets the state of a resumable upload, including the numbers and sizes of all chunks received so far.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "The upload session, listing all chunks received.", response = UploadSession.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class) })
+	public ResponseEntity getDataFileUpload(
+			@ApiParam(value = "The Id of the upload.", required = true) @PathVariable(value = "uploadId") String uploadId, Principal user) {
+		UploadSession session = uploadSessionManager.getSession(uploadId, gatewayUtil.getPrincipalName(user));
+		if (session == null) {
+			return getUploadNotFoundResponse(uploadId);
+		}
+		return new ResponseEntity<UploadSession>(session, HttpStatus.OK);
+	}
+
+	/**
+	 * Commits a resumable upload once all chunks have been received. This assembles the file in S3 and creates the
+	 * Ingest Job for the file, in the same manner as ingestDataFile(). The Job Id is the same as the uploadId. For a
+	 * direct upload, this verifies that the client has written the file, with the declared size, to the upload URL.
+	 * 
+	 * @param uploadId
+	 *            The Id of the upload session
+	 * @param user
+	 *            The user submitting the request
+	 * @return The response containing the Job Id, or containing the appropriate ErrorResponse
+	 */
+	@RequestMapping(value = "/data/upload/{uploadId}", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Commit a Resumable or Direct Data File Upload", notes = "Assembles the chunks of a resumable upload into the Data file, or verifies the file sent to the uploadUrl of a direct upload, and Loads the file into Piazza. This functions the same as the /data/file endpoint.", tags = "Data")
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The Id of the Job created to handle the Loading of the Data.", response = JobResponse.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	@SuppressWarnings("unchecked")
+	public ResponseEntity<PiazzaResponse> commitDataFileUpload(
+			@ApiParam(value = "The Id of the upload.", required = true) @PathVariable(value = "uploadId") String uploadId, Principal user) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			logger.log(String.format("User %s requested Commit of Resumable Upload %s", userName, uploadId), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestCommitUpload", uploadId));
+			UploadSession session = uploadSessionManager.getSession(uploadId, userName);
+			if (session == null) {
+				return getUploadNotFoundResponse(uploadId);
+			}
+			IngestJob job = uploadSessionManager.completeSession(session);
+			// Create the Request to send to the Job Manager, under the Job Id reserved for the upload
+			PiazzaJobRequest request = new PiazzaJobRequest();
+			request.jobType = job;
+			request.createdBy = userName;
+			String jobId;
+			try {
+				jobId = gatewayUtil.sendJobRequest(request, session.getUploadId());
+			} catch (Exception exception) {
+				// The file is stored. Keep the session so that the client can retry the commit.
+				uploadSessionManager.reopenSession(session);
+				throw exception;
+			}
+			uploadSessionManager.finishSession(session);
+
+			// Return the Job Id of the newly created Job
+			ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(new JobResponse(jobId), HttpStatus.CREATED);
+			logger.log(String.format("User %s successfully Loaded File %s for Job %s", userName, session.getFileName(), jobId),
+					Severity.INFORMATIONAL, new AuditElement(dn, "successLoadFile", jobId));
+			return response;
+		} catch (Exception exception) {
+			return getUploadErrorResponse("Committing Resumable Upload", uploadId, exception, user);
+		}
+	}
+
+	/**
+	 * Aborts a resumable upload, discarding all chunks received.
+	 * 
+	 * @param uploadId
+	 *            The Id of the upload session
+	 * @param user
+	 *            The user submitting the request
+	 * @return 200 OK if aborted, error response if not.
+	 */
+	@RequestMapping(value = "/data/upload/{uploadId}", method = RequestMethod.DELETE, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Abort a Resumable Data File Upload", notes = "Aborts a resumable upload and discards all chunks that have been received.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "Message indicating confirmation of abort", response = SuccessResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	@SuppressWarnings("unchecked")
+	public ResponseEntity<PiazzaResponse> abortDataFileUpload(
+			@ApiParam(value = "The Id of the upload.", required = true) @PathVariable(value = "uploadId") String uploadId, Principal user) {
+		try {
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			UploadSession session = uploadSessionManager.getSession(uploadId, userName);
+			if (session == null) {
+				return getUploadNotFoundResponse(uploadId);
+			}
+			uploadSessionManager.abortSession(session);
+			logger.log(String.format("User %s aborted Resumable Upload %s", userName, uploadId), Severity.INFORMATIONAL,
+					new AuditElement(dn, "abortUpload", uploadId));
+			return new ResponseEntity<PiazzaResponse>(new SuccessResponse(String.format("Upload %s aborted.", uploadId), GATEWAY),
+					HttpStatus.OK);
+		} catch (Exception exception) {
+			return getUploadErrorResponse("Aborting Resumable Upload", uploadId, exception, user);
+		}
+	}
+
 	/**
 	 * Gets the metadata for a Data Resource
 	 * 
@@ -393,9 +834,11 @@ public class DataController extends PiazzaRestController {
 					new AuditElement(dn, "requestGetData", dataId));
 			// Proxy the request to Pz-Access
 			try {
-				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(restTemplate
-						.getForEntity(String.format(URL_FORMAT, ACCESS_URL, "data", dataId), DataResourceResponse.class).getBody(),
-						HttpStatus.OK);
+				DataResourceResponse metadata = restTemplate
+						.getForEntity(String.format(URL_FORMAT, ACCESS_URL, "data", dataId), DataResourceResponse.class).getBody();
+				// A download of the file commonly follows, and can reuse the metadata
+				fileMetadataCache.put(metadata.data);
+				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(metadata, HttpStatus.OK);
 				logger.log(String.format("User %s successfully got Resource Metadata for Data %s", userName, dataId),
 						Severity.INFORMATIONAL, new AuditElement(dn, "successGetData", dataId));
 				return response;
@@ -442,6 +885,9 @@ public class DataController extends PiazzaRestController {
 				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(restTemplate
 						.exchange(String.format(URL_FORMAT, INGEST_URL, "data", dataId), HttpMethod.DELETE, null, SuccessResponse.class)
 						.getBody(), HttpStatus.OK);
+				// The file can no longer be downloaded
+				fileCache.invalidate(dataId);
+				fileMetadataCache.invalidate(dataId);
 				logger.log(String.format("User %s successfully deleted Data Id %s", userName, dataId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "successDeleteData", dataId));
 				return response;
@@ -509,27 +955,35 @@ public class DataController extends PiazzaRestController {
 	}
 
 	/**
-	 * Downloads the bytes of a file that is stored within Piazza.
+	 * Downloads the bytes of a file that is stored within Piazza. The file is streamed from Access to the client as it
+	 * is read, rather than being held in memory. Range requests are supported, including multiple ranges.
 	 * 
 	 * @see http://pz-swagger/#!/Data/get_file_dataId
 	 * 
 	 * @param dataId
 	 *            The Id of the Data to download
+	 * @param request
+	 *            The servlet request, whose Range and If-Range headers select the bytes to download
+	 * @param response
+	 *            The servlet response that the bytes of the file are written to
 	 * @param user
 	 *            The user submitting the request
-	 * @return The bytes of the file as a download, or an Error if the file cannot be retrieved.
+	 * @return Null if the file was written to the response, or an Error if the file cannot be retrieved.
 	 */
 	@SuppressWarnings("rawtypes")
 	@RequestMapping(value = "/file/{dataId}", method = RequestMethod.GET)
-	@ApiOperation(value = "Download Data File", notes = "Gets the Bytes of Data loaded into Piazza. Only works for Data that is stored internally by Piazza.", tags = "Data")
+	@ApiOperation(value = "Download Data File", notes = "Gets the Bytes of Data loaded into Piazza. Only works for Data that is stored internally by Piazza. The Range and If-Range headers may be used to download only parts of the file. If redirects are enabled, files held in S3 are downloaded from a short-lived pre-signed URL instead.", tags = "Data")
 	@ApiResponses(value = { @ApiResponse(code = 200, message = "The downloaded data file, byte array.", response = Byte[].class),
+			@ApiResponse(code = 302, message = "Redirect to a pre-signed URL for the data file."),
+			@ApiResponse(code = 206, message = "The requested ranges of the data file. Multiple ranges are returned as multipart/byteranges.", response = Byte[].class),
 			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
 			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
+			@ApiResponse(code = 416, message = "None of the requested ranges are within the file", response = ErrorResponse.class),
 			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
 	public ResponseEntity getFile(
 			@ApiParam(value = "The Id of the Data to download.", required = true) @PathVariable(value = "dataId") String dataId,
 			@ApiParam(value = "Specify the name of the file that the user wishes to retrieve the data as. This will set the content-disposition header.") @RequestParam(value = "fileName", required = false) String fileName,
-			Principal user) {
+			HttpServletRequest request, HttpServletResponse response, Principal user) {
 		try {
 			// Log the request
 			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
@@ -545,13 +999,45 @@ public class DataController extends PiazzaRestController {
 
 			// Proxy the request to Ingest
 			try {
+				// The metadata request is authorized the same way as the download itself. The metadata and codec are usually
+				// already cached, and files that were stored compressed are decoded whether or not compression is enabled.
+				DataResource data = fileMetadataCache.getData(dataId);
+				String codec = uploadCompressor.getCodec(data);
+				// Compressed files are only redirected for clients that accept the codec
+				URL redirectUrl = ((codec == null) || UploadCompressor.isAccepted(request, codec))
+						? fileRedirector.getRedirectUrl(data, fileName) : null;
+				if (redirectUrl != null) {
+					HttpHeaders headers = new HttpHeaders();
+					headers.setLocation(redirectUrl.toURI());
+					headers.setCacheControl("no-store");
+					logger.log(String.format("User %s was redirected to download file for Data %s", gatewayUtil.getPrincipalName(user),
+							dataId), Severity.INFORMATIONAL, new AuditElement(dn, "redirectDownloadFile", dataId));
+					return new ResponseEntity<PiazzaResponse>(headers, HttpStatus.FOUND);
+				}
+				if (codec != null) {
+					// Access would return the compressed bytes as they are stored
+					long bytes = uploadCompressor.streamFile(data, fileName, request, response);
+					logger.log(String.format("User %s successfully downloaded compressed file for Data %s (%s bytes)",
+							gatewayUtil.getPrincipalName(user), dataId, bytes), Severity.INFORMATIONAL,
+							new AuditElement(dn, "successDownloadFile", dataId));
+					return null;
+				}
+				// Not redirected; stream the file through the Gateway
 				// Stream the bytes back
-				ResponseEntity<byte[]> response = restTemplate.getForEntity(url, byte[].class);
-				logger.log(String.format("User %s successfully downloaded file download for Data %s", gatewayUtil.getPrincipalName(user),
-						dataId), Severity.INFORMATIONAL, new AuditElement(dn, "successDownloadFile", dataId));
-				return response;
+				long bytes = fileStreamer.streamFile(url, dataId, fileName, request, response);
+				logger.log(String.format("User %s successfully downloaded file download for Data %s (%s bytes)",
+						gatewayUtil.getPrincipalName(user), dataId, bytes), Severity.INFORMATIONAL,
+						new AuditElement(dn, "successDownloadFile", dataId));
+				return null;
 			} catch (HttpClientErrorException | HttpServerErrorException hee) {
 				LOG.error("Error Downloading File.", hee);
+				if ((hee.getStatusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE) && (hee.getResponseHeaders() != null)) {
+					// Tell the client the actual size of the file
+					String contentRange = hee.getResponseHeaders().getFirst(HttpHeaders.CONTENT_RANGE);
+					if (contentRange != null) {
+						response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange);
+					}
+				}
 				return new ResponseEntity<PiazzaResponse>(gatewayUtil.getErrorResponse(hee.getResponseBodyAsString()), hee.getStatusCode());
 			}
 		} catch (Exception exception) {
@@ -559,7 +1045,188 @@ public class DataController extends PiazzaRestController {
 					exception.getMessage());
 			LOG.error(error, exception);
 			logger.log(error, Severity.INFORMATIONAL);
+			if (response.isCommitted()) {
+				// Part of the file has already been sent, so an error body can no longer be returned.
+				return null;
+			}
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Downloads the files of several Data items as a single ZIP archive. The archive is streamed to the client as the
+	 * files are read from Access, rather than being held in memory.
+	 * 
+	 * @see http://pz-swagger/#!/Data/get_file_bundle
+	 * 
+	 * @param dataIds
+	 *            The Ids of the Data to download
+	 * @param fileName
+	 *            The name of the archive
+	 * @param response
+	 *            The servlet response that the archive is written to
+	 * @param user
+	 *            The user submitting the request
+	 * @return Null if the archive was written to the response, or an Error if the request is invalid.
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = "/file/bundle", method = RequestMethod.GET)
+	@ApiOperation(value = "Download Data Files as a ZIP Archive", notes = "Gets the files of several Data items loaded into Piazza as a single ZIP archive. Only works for Data that is stored internally by Piazza. Files that cannot be read are replaced in the archive by a text entry describing the error.", tags = "Data")
+	@ApiResponses(value = { @ApiResponse(code = 200, message = "The ZIP archive, byte array.", response = Byte[].class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity getFileBundle(
+			@ApiParam(value = "The Ids of the Data to download.", required = true) @RequestParam(value = "dataId", required = true) List<String> dataIds,
+			@ApiParam(value = "The name of the archive. This will set the content-disposition header.") @RequestParam(value = "fileName", required = false) String fileName,
+			HttpServletResponse response, Principal user) {
+		try {
+			// Log the request
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			List<String> uniqueIds = new ArrayList<String>(new LinkedHashSet<String>(dataIds));
+			if (uniqueIds.isEmpty()) {
+				throw new InvalidInputException("At least one Data Id must be specified.");
+			} else if (uniqueIds.size() > bundleMaxFiles) {
+				throw new InvalidInputException(String.format("A bundle may contain at most %s files.", bundleMaxFiles));
+			}
+			logger.log(String.format("User %s requested bundle download of %s files", gatewayUtil.getPrincipalName(user), uniqueIds.size()),
+					Severity.INFORMATIONAL, new AuditElement(dn, "requestDownloadFileBundle", String.join(",", uniqueIds)));
+
+			List<String> urls = new ArrayList<String>();
+			for (String dataId : uniqueIds) {
+				urls.add(String.format("%s/file/%s.json", ACCESS_URL, dataId));
+			}
+			String archiveName = ((fileName != null) && (fileName.isEmpty() == false)) ? fileName : "bundle.zip";
+			response.setContentType("application/zip");
+			response.setHeader(HttpHeaders.CONTENT_DISPOSITION, FileStreamer.getContentDisposition(archiveName));
+			long bytes = fileBundleStreamer.streamBundle(uniqueIds, urls, response.getOutputStream());
+			logger.log(String.format("User %s successfully downloaded bundle of %s files (%s bytes)", gatewayUtil.getPrincipalName(user),
+					uniqueIds.size(), bytes), Severity.INFORMATIONAL, new AuditElement(dn, "successDownloadFileBundle", archiveName));
+			return null;
+		} catch (InvalidInputException invalidInputException) {
+			String error = String.format("Invalid Inputs for Bundle Download for user %s: %s", gatewayUtil.getPrincipalName(user),
+					invalidInputException.getMessage());
+			LOG.error(error, invalidInputException);
+			logger.log(error, Severity.INFORMATIONAL);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.BAD_REQUEST);
+		} catch (Exception exception) {
+			String error = String.format("Error downloading file bundle by user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOG.error(error, exception);
+			logger.log(error, Severity.INFORMATIONAL);
+			if (response.isCommitted()) {
+				// Part of the archive has already been sent, so an error body can no longer be returned.
+				return null;
+			}
 			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
 		}
 	}
+
+	/**
+	 * Loads a single file of a batch request. Failures are returned as an ErrorResponse for the file, so that they do
+	 * not affect the other files in the batch.
+	 * 
+	 * @param data
+	 *            The JSON ingest job for the file
+	 * @param file
+	 *            The file bytes
+	 * @param userName
+	 *            The user submitting the request
+	 * @param dn
+	 *            The distinguished name of the user, for auditing
+	 * @return The JobResponse for the created Job, or the ErrorResponse
+	 */
+	private PiazzaResponse ingestBatchFile(String data, MultipartFile file, String userName, String dn) {
+		try {
+			IngestJob job;
+			try {
+				job = new ObjectMapper().readValue(data, IngestJob.class);
+			} catch (Exception exception) {
+				throw new InvalidInputException(String.format("Incorrect JSON passed through the `data` parameter. Error: %s",
+						exception.getMessage()));
+			}
+			// Ensure the user isn't trying to hack a dataId into their request.
+			job.getData().setDataId(null);
+			validateFileIngestJob(job);
+			// Send the file to S3.
+			String jobId = gatewayUtil.getUuid();
+			job = gatewayUtil.pushS3File(jobId, job, file);
+			// Create the Request to send to the message bus
+			PiazzaJobRequest request = new PiazzaJobRequest();
+			request.jobType = job;
+			request.createdBy = userName;
+			jobId = gatewayUtil.sendJobRequest(request, jobId);
+			logger.log(String.format("User %s successfully Loaded File %s for Job %s", userName, file.getOriginalFilename(), jobId),
+					Severity.INFORMATIONAL, new AuditElement(dn, "successLoadFile", jobId));
+			return new JobResponse(jobId);
+		} catch (AmazonClientException amazonException) {
+			String systemError = String.format("Error Loading Data File %s for user %s with error: %s", file.getOriginalFilename(),
+					userName, amazonException.getMessage());
+			LOG.error(systemError, amazonException);
+			logger.log(systemError, Severity.ERROR);
+			return new ErrorResponse(String.format(
+					"There was an issue pushing the file %s to Piazza S3 Bucket. Please contact a Piazza administrator for details.",
+					file.getOriginalFilename()), GATEWAY);
+		} catch (Exception exception) {
+			String error = String.format("Error Loading Data File %s for user %s: %s", file.getOriginalFilename(), userName,
+					exception.getMessage());
+			LOG.error(error, exception);
+			logger.log(error, exception instanceof InvalidInputException ? Severity.INFORMATIONAL : Severity.ERROR);
+			return new ErrorResponse(error, GATEWAY);
+		}
+	}
+
+	/**
+	 * Validates that an Ingest Job is able to have an uploaded file attached to it.
+	 * 
+	 * @param job
+	 *            The ingest job
+	 */
+	private void validateFileIngestJob(IngestJob job) throws InvalidInputException {
+		if (job.getHost() == false) {
+			throw new InvalidInputException("Host parameter must be set to true when loading a file.");
+		} else if (job.getData().getDataType() instanceof FileRepresentation == false) {
+			throw new InvalidInputException(
+					"The uploaded file cannot be attached to the specified Data Type: " + job.getData().getDataType().getClass().getName());
+		}
+	}
+
+	/**
+	 * Gets the response for an upload session that does not exist, or does not belong to the requesting user.
+	 */
+	@SuppressWarnings("rawtypes")
+	private ResponseEntity getUploadNotFoundResponse(String uploadId) {
+		return new ResponseEntity<PiazzaResponse>(new ErrorResponse(String.format("Upload %s was not found.", uploadId), GATEWAY),
+				HttpStatus.NOT_FOUND);
+	}
+
+	/**
+	 * Logs and forms the appropriate error response for a failure in one of the resumable upload endpoints.
+	 * 
+	 * @param action
+	 *            Description of the action that failed
+	 * @param uploadId
+	 *            The Id of the upload, if known
+	 * @param exception
+	 *            The exception that occurred
+	 * @param user
+	 *            The user submitting the request
+	 * @return The ErrorResponse
+	 */
+	@SuppressWarnings("rawtypes")
+	private ResponseEntity getUploadErrorResponse(String action, String uploadId, Exception exception, Principal user) {
+		String error = String.format("Error %s %s for user %s: %s", action, uploadId != null ? uploadId : "", gatewayUtil.getPrincipalName(user),
+				exception.getMessage());
+		LOG.error(error, exception);
+		if (exception instanceof InvalidInputException) {
+			logger.log(error, Severity.INFORMATIONAL);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.BAD_REQUEST);
+		} else if (exception instanceof AmazonClientException) {
+			logger.log(error, Severity.ERROR);
+			String userError = "There was an issue pushing the file to Piazza S3 Bucket. Please contact a Piazza administrator for details.";
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(userError, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+		logger.log(error, Severity.ERROR);
+		return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
+	}
 }
@@ -15,15 +15,29 @@
  **/
 package gateway.controller;
 
+import java.io.IOException;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -42,11 +56,20 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import gateway.controller.util.BoundedExecutor;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.JobStatusBulkStreamer;
+import gateway.controller.util.JobStatusCache;
+import gateway.controller.util.JobStatusStream;
+import gateway.controller.util.JobStatusView;
+import gateway.controller.util.JobStatusWatcher;
 import gateway.controller.util.PiazzaRestController;
+import gateway.controller.util.ServiceAvailabilityCache;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -95,14 +118,40 @@ public class JobController extends PiazzaRestController {
 	private Queue abortJobsQueue;
 	@Autowired
 	private ObjectMapper mapper;
+	@Autowired
+	@Qualifier("jobSubmitExecutor")
+	private BoundedExecutor jobSubmitExecutor;
+	@Autowired
+	private JobStatusCache jobStatusCache;
+	@Autowired
+	private JobStatusView jobStatusView;
+	@Autowired
+	private JobStatusWatcher jobStatusWatcher;
+	@Autowired
+	private JobStatusStream jobStatusStream;
+	@Autowired
+	private JobStatusBulkStreamer jobStatusBulkStreamer;
+	@Autowired
+	private Validator validator;
+	@Autowired
+	private ServiceAvailabilityCache serviceAvailabilityCache;
 
 	@Value("${jobmanager.url}")
 	private String JOBMANAGER_URL;
 	@Value("${SPACE}")
 	private String SPACE;
+	@Value("${job.batch.max.jobs}")
+	private int batchMaxJobs;
+	@Value("${job.status.watch.max.timeout.seconds}")
+	private long watchMaxTimeoutSeconds;
+	@Value("${job.status.stream.max.jobs}")
+	private int streamMaxJobs;
+	@Value("${job.status.bulk.max.jobs}")
+	private int bulkMaxJobs;
 
 	private final static Logger LOG = LoggerFactory.getLogger(JobController.class);
 	private static final String GATEWAY = "Gateway";
+	private static final String OFFLINE_SERVICE_ERROR = "Cannot Execute Service with Service Availability set as Offline.";
 
 	/**
 	 * Returns the Status of a Job.
@@ -123,18 +172,28 @@ public class JobController extends PiazzaRestController {
 			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
 			@ApiResponse(code = 500, message = "Internal Error", response = JobErrorResponse.class) })
 	public ResponseEntity<PiazzaResponse> getJobStatus(
-			@ApiParam(value = "Id of the Job to Fetch", required = true) @PathVariable(value = "jobId") String jobId, Principal user) {
+			@ApiParam(value = "Id of the Job to Fetch", required = true) @PathVariable(value = "jobId") final String jobId, Principal user) {
 		try {
 			// Log the request
 			String userName = gatewayUtil.getPrincipalName(user);
 			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
 			logger.log(String.format("User %s requested Job Status for %s.", userName, jobId), Severity.INFORMATIONAL,
 					new AuditElement(dn, "requestFetchJob", jobId));
-			// Proxy the request to the Job Manager
+			// Answer from the Job events if they hold the finished Job. Otherwise proxy the request to the Job Manager, unless the
+			// status was fetched very recently.
 			try {
-				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(restTemplate
-						.getForEntity(String.format("%s/%s/%s", JOBMANAGER_URL, "job", jobId), JobStatusResponse.class).getBody(),
-						HttpStatus.OK);
+				JobStatusResponse status = jobStatusView.getStatus(jobId);
+				if (status == null) {
+					status = jobStatusCache.getStatus(jobId, new Callable<JobStatusResponse>() {
+						@Override
+						public JobStatusResponse call() {
+							return restTemplate
+									.getForEntity(String.format("%s/%s/%s", JOBMANAGER_URL, "job", jobId), JobStatusResponse.class)
+									.getBody();
+						}
+					});
+				}
+				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(status, HttpStatus.OK);
 				logger.log(String.format("User %s fetched Job Status for %s.", userName, jobId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeFetchJob", jobId));
 				return response;
@@ -150,6 +209,206 @@ public class JobController extends PiazzaRestController {
 		}
 	}
 
+	/**
+	 * Waits for the Status of a Job to change. The request is held, without holding a request thread, until the Status
+	 * differs from the Status the client last saw or the timeout expires. In either case the current Status is returned.
+	 * 
+	 * @param jobId
+	 *            The Id of the Job.
+	 * @param waitFor
+	 *            What to wait for. Only "change" is supported.
+	 * @param lastStatus
+	 *            The Status the client last saw. If not specified, the Status at the time of the request is used.
+	 * @param timeout
+	 *            How long to wait, in seconds, optionally followed by "s"
+	 * @param user
+	 *            User information
+	 * @return Contains Job Status, or an appropriate Error.
+	 */
+	@RequestMapping(value = "/job/{jobId}", method = RequestMethod.GET, params = "waitFor", produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Wait for Job Status", notes = "Waits for the Status of a Piazza Job to change, and then returns the new Status. If the Status does not change before the timeout, the current Status is returned.", tags = "Job")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "The Status of the Job, once it has changed or the timeout has expired.", response = JobStatusResponse.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 404, message = "Not Found", response = ErrorResponse.class),
+			@ApiResponse(code = 503, message = "Too many clients are waiting", response = ErrorResponse.class) })
+	public DeferredResult<ResponseEntity<PiazzaResponse>> waitForJobStatus(
+			@ApiParam(value = "Id of the Job to Fetch", required = true) @PathVariable(value = "jobId") String jobId,
+			@ApiParam(value = "What to wait for. Only \"change\" is supported.", required = true) @RequestParam(value = "waitFor") String waitFor,
+			@ApiParam(value = "The Status last seen by the client. Defaults to the Status at the time of the request.") @RequestParam(value = "lastStatus", required = false) String lastStatus,
+			@ApiParam(value = "How long to wait, in seconds, such as 30s.") @RequestParam(value = "timeout", required = false, defaultValue = "30s") String timeout,
+			Principal user) {
+		String userName = gatewayUtil.getPrincipalName(user);
+		String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+		logger.log(String.format("User %s requested to wait on Job Status for %s.", userName, jobId), Severity.INFORMATIONAL,
+				new AuditElement(dn, "requestWaitJob", jobId));
+		long timeoutSeconds;
+		try {
+			timeoutSeconds = Long.parseLong(timeout.endsWith("s") ? timeout.substring(0, timeout.length() - 1) : timeout);
+		} catch (NumberFormatException exception) {
+			timeoutSeconds = -1;
+		}
+		if (!"change".equals(waitFor) || (timeoutSeconds <= 0)) {
+			DeferredResult<ResponseEntity<PiazzaResponse>> result = new DeferredResult<ResponseEntity<PiazzaResponse>>();
+			result.setResult(new ResponseEntity<PiazzaResponse>(
+					new ErrorResponse("waitFor must be \"change\", and timeout must be a positive number of seconds.", GATEWAY),
+					HttpStatus.BAD_REQUEST));
+			return result;
+		}
+		return jobStatusWatcher.watch(jobId, lastStatus, TimeUnit.SECONDS.toMillis(Math.min(timeoutSeconds, watchMaxTimeoutSeconds)));
+	}
+
+	/**
+	 * Streams the Status of a set of Jobs as Server-Sent Events. The current Status of each Job is sent first, and then
+	 * each change to it, as "status" events. A Job is no longer followed once it is finished, and the stream is closed
+	 * when no Jobs are left to follow.
+	 * 
+	 * @param jobIds
+	 *            The Ids of the Jobs to follow
+	 * @param mine
+	 *            True to also follow the Jobs the user submits while the stream is open. The stream then stays open
+	 *            until the client closes it.
+	 * @param user
+	 *            User information
+	 * @param response
+	 *            The response, whose Status is set if the stream cannot be opened
+	 * @return The stream of Job Status events, or a stream holding a single "error" event.
+	 */
+	@RequestMapping(value = "/job/stream", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	@ApiOperation(value = "Stream Job Status", notes = "Opens a Server-Sent Events stream of the Status of a set of Piazza Jobs, and optionally of the Jobs the user submits while the stream is open. Each Status change is sent as a status event.", tags = "Job")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "A stream of status events, each holding the Status of a Job.", response = JobStatusResponse.class),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 503, message = "Too many clients are streaming", response = ErrorResponse.class) })
+	public SseEmitter streamJobStatus(
+			@ApiParam(value = "Comma-separated Ids of the Jobs to follow") @RequestParam(value = "jobIds", required = false) List<String> jobIds,
+			@ApiParam(value = "Also follow the Jobs submitted by the user while the stream is open") @RequestParam(value = "mine", required = false, defaultValue = "false") boolean mine,
+			Principal user, HttpServletResponse response) {
+		String userName = gatewayUtil.getPrincipalName(user);
+		String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+		List<String> followed = jobIds != null ? jobIds : Collections.<String> emptyList();
+		logger.log(String.format("User %s requested a Job Status stream for %s Jobs.", userName, followed.size()), Severity.INFORMATIONAL,
+				new AuditElement(dn, "requestStreamJobs", ""));
+		if (followed.isEmpty() && !mine) {
+			return rejectStream(response, HttpStatus.BAD_REQUEST, "Specify the jobIds to follow, or mine=true.");
+		}
+		if (followed.size() > streamMaxJobs) {
+			return rejectStream(response, HttpStatus.BAD_REQUEST,
+					String.format("A stream may follow at most %s Jobs, but %s were requested.", streamMaxJobs, followed.size()));
+		}
+		SseEmitter emitter = jobStatusStream.subscribe(userName, followed, mine);
+		if (emitter == null) {
+			return rejectStream(response, HttpStatus.SERVICE_UNAVAILABLE, "Too many clients are streaming Job Status. Please try again later.");
+		}
+		return emitter;
+	}
+
+	/**
+	 * Returns the Status of many Jobs in a single request.
+	 * 
+	 * @param jobIds
+	 *            The Ids of the Jobs
+	 * @param user
+	 *            User information
+	 * @param response
+	 *            The response, which the Statuses are streamed to
+	 * @return Null once the Statuses have been streamed, or an appropriate Error.
+	 */
+	@RequestMapping(value = "/job/status", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Get Status of many Jobs", notes = "Gets the Status of several Piazza Jobs. The response maps each Job Id to its Status, or to the error encountered fetching it.", tags = "Job")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "The Status, or error, of each Job, under the data property, keyed by Job Id.", response = JobStatusResponse.class, responseContainer = "Map"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity getJobStatuses(
+			@ApiParam(value = "The Ids of the Jobs.", required = true) @RequestParam(value = "jobId", required = true) List<String> jobIds,
+			Principal user, HttpServletResponse response) {
+		return streamJobStatuses(jobIds, user, response);
+	}
+
+	/**
+	 * Returns the Status of many Jobs in a single request, for lists of Job Ids too long for a query string.
+	 * 
+	 * @param jobIds
+	 *            The Ids of the Jobs
+	 * @param user
+	 *            User information
+	 * @param response
+	 *            The response, which the Statuses are streamed to
+	 * @return Null once the Statuses have been streamed, or an appropriate Error.
+	 */
+	@RequestMapping(value = "/job/status", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ApiOperation(value = "Query Status of many Jobs", notes = "Gets the Status of each Job in the list of Job Ids in the body. The response maps each Job Id to its Status, or to the error encountered fetching it.", tags = "Job")
+	@ApiResponses(value = {
+			@ApiResponse(code = 200, message = "The Status, or error, of each Job, under the data property, keyed by Job Id.", response = JobStatusResponse.class, responseContainer = "Map"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity queryJobStatuses(
+			@ApiParam(value = "The Ids of the Jobs.", required = true, name = "body") @RequestBody List<String> jobIds, Principal user,
+			HttpServletResponse response) {
+		return streamJobStatuses(jobIds, user, response);
+	}
+
+	/**
+	 * Streams the Status of each Job to the response. The Statuses are written as they are fetched, so once the first
+	 * has been written an error can no longer be returned in its place.
+	 */
+	private ResponseEntity streamJobStatuses(List<String> jobIds, Principal user, HttpServletResponse response) {
+		try {
+			// Log the request
+			String userName = gatewayUtil.getPrincipalName(user);
+			String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			List<String> uniqueIds = new ArrayList<String>(
+					jobIds != null ? new LinkedHashSet<String>(jobIds) : new LinkedHashSet<String>());
+			if (uniqueIds.isEmpty()) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse("At least one Job Id must be specified.", GATEWAY),
+						HttpStatus.BAD_REQUEST);
+			} else if (uniqueIds.size() > bulkMaxJobs) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("The Status of at most %s Jobs may be requested at once.", bulkMaxJobs), GATEWAY),
+						HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested Job Status for %s Jobs.", userName, uniqueIds.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestBulkJobStatus", String.join(",", uniqueIds)));
+
+			response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+			int failed = jobStatusBulkStreamer.streamStatuses(uniqueIds, response.getOutputStream());
+			logger.log(String.format("User %s received Job Status for %s Jobs, %s of which failed.", userName, uniqueIds.size(), failed),
+					Severity.INFORMATIONAL, new AuditElement(dn, "completeBulkJobStatus", Integer.toString(uniqueIds.size())));
+			return null;
+		} catch (Exception exception) {
+			String error = String.format("Error fetching Job Status of %s Jobs by user %s: %s", jobIds != null ? jobIds.size() : 0,
+					gatewayUtil.getPrincipalName(user), exception.getMessage());
+			LOG.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			if (response.isCommitted()) {
+				// Part of the response has already been sent, so an error body can no longer be returned.
+				return null;
+			}
+			response.resetBuffer();
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Answers a Job Status stream request that cannot be served with a single error event.
+	 */
+	private SseEmitter rejectStream(HttpServletResponse response, HttpStatus status, String message) {
+		response.setStatus(status.value());
+		SseEmitter emitter = new SseEmitter();
+		try {
+			emitter.send(SseEmitter.event().name("error").data(new ErrorResponse(message, GATEWAY), MediaType.APPLICATION_JSON));
+			emitter.complete();
+		} catch (IOException exception) {
+			emitter.completeWithError(exception);
+		}
+		return emitter;
+	}
+
 	/**
 	 * Cancels a running Job, specified by it's Job Id.
 	 * 
@@ -197,6 +456,7 @@ public class JobController extends PiazzaRestController {
 				// Send the message through the Event Bus to abort the job.
 				rabbitTemplate.convertAndSend(JobMessageFactory.PIAZZA_EXCHANGE_NAME, abortJobsQueue.getName(),
 						mapper.writeValueAsString(request));
+				jobStatusCache.invalidate(jobId);
 				logger.log(String.format("User %s cancelled Job %s", userName, jobId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeJobCancelRequest", jobId));
 			} catch (HttpClientErrorException | HttpServerErrorException hee) {
@@ -254,6 +514,7 @@ public class JobController extends PiazzaRestController {
 				ResponseEntity<PiazzaResponse> response = new ResponseEntity<PiazzaResponse>(
 						restTemplate.postForEntity(String.format("%s/%s", JOBMANAGER_URL, "repeat"), entity, JobResponse.class).getBody(),
 						HttpStatus.CREATED);
+				jobStatusCache.invalidate(jobId);
 				logger.log(String.format("User %s Repeated Job %s", userName, jobId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeRepeatJob", jobId));
 				return response;
@@ -301,20 +562,8 @@ public class JobController extends PiazzaRestController {
 					Severity.INFORMATIONAL, new AuditElement(dn, "requestExecuteService", job.data.getServiceId()));
 
 			// Check that Service is not offline or unavailable
-			try {
-				Service service = ((ServiceResponse) serviceController.getService(job.data.getServiceId(), user).getBody()).data;
-				if ((service != null) && (service.getResourceMetadata() != null)
-						&& ResourceMetadata.STATUS_TYPE.OFFLINE.toString().equals(service.getResourceMetadata().getAvailability())) {
-					return new ResponseEntity<PiazzaResponse>(
-							new ErrorResponse("Cannot Execute Service with Service Availability set as Offline.", GATEWAY),
-							HttpStatus.BAD_REQUEST);
-				}
-			} catch (Exception exception) {
-				String error = String.format(
-						"Attempted to check Service Availability for %s but received an error %s. Continued with Job Request.",
-						job.getData().getServiceId(), exception.getMessage());
-				logger.log(error, Severity.WARNING);
-				LOG.error(error, exception);
+			if (isServiceOffline(job.data.getServiceId(), user)) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse(OFFLINE_SERVICE_ERROR, GATEWAY), HttpStatus.BAD_REQUEST);
 			}
 
 			// Create the Request to send to the Job Manager.
@@ -336,4 +585,163 @@ public class JobController extends PiazzaRestController {
 			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
 		}
 	}
+
+	/**
+	 * Executes a batch of jobs with the Piazza service controller. The availability of each distinct Service is checked
+	 * once, and the Job requests are then sent to the Job Manager concurrently. The Job Ids are returned immediately, in
+	 * the same order as the jobs in the request.
+	 * 
+	 * @param jobs
+	 *            The jobs to execute
+	 * @param user
+	 *            The user executing the Jobs
+	 * @return The Job Id or error for each job, in order
+	 */
+	@SuppressWarnings("rawtypes")
+	@RequestMapping(value = { "/job/batch" }, method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+	@ResponseStatus(HttpStatus.CREATED)
+	@ApiOperation(value = "Executes a Batch of registered Services", notes = "Creates a Piazza Job for each execution of a registered service in the request. Each item is the identical model to the /job endpoint. The response lists the Job Id or error for each item, in order.", tags = {
+			"Job", "Service" })
+	@ApiResponses(value = {
+			@ApiResponse(code = 201, message = "The Job Ids for the executions of the Services.", response = JobResponse.class, responseContainer = "List"),
+			@ApiResponse(code = 207, message = "Some of the Jobs could not be created. The errors are listed in place of the Job Ids for those items.", response = PiazzaResponse.class, responseContainer = "List"),
+			@ApiResponse(code = 400, message = "Bad Request", response = ErrorResponse.class),
+			@ApiResponse(code = 401, message = "Unauthorized", response = ErrorResponse.class),
+			@ApiResponse(code = 500, message = "Internal Error", response = ErrorResponse.class) })
+	public ResponseEntity executeServiceBatch(
+			@ApiParam(value = "The Payloads that describe the Services to be executed, and the inputs for those services.", required = true, name = "body") @RequestBody List<ExecuteServiceJob> jobs,
+			Principal user) {
+		try {
+			// Log the request
+			final String userName = gatewayUtil.getPrincipalName(user);
+			final String dn = gatewayUtil.getDistinguishedName(SecurityContextHolder.getContext().getAuthentication());
+			if ((jobs == null) || jobs.isEmpty()) {
+				return new ResponseEntity<PiazzaResponse>(new ErrorResponse("At least one Job must be specified.", GATEWAY),
+						HttpStatus.BAD_REQUEST);
+			} else if (jobs.size() > batchMaxJobs) {
+				return new ResponseEntity<PiazzaResponse>(
+						new ErrorResponse(String.format("A batch may contain at most %s Jobs.", batchMaxJobs), GATEWAY),
+						HttpStatus.BAD_REQUEST);
+			}
+			logger.log(String.format("User %s requested Batch Execute of %s Jobs.", userName, jobs.size()), Severity.INFORMATIONAL,
+					new AuditElement(dn, "requestExecuteServiceBatch", Integer.toString(jobs.size())));
+
+			// Validate each Job as POST /job does, and check the availability of each Service once
+			List<String> invalidJobs = new ArrayList<String>();
+			Map<String, Boolean> offlineServices = new HashMap<String, Boolean>();
+			for (ExecuteServiceJob job : jobs) {
+				String invalid = getValidationErrors(job);
+				invalidJobs.add(invalid);
+				if ((invalid == null) && !offlineServices.containsKey(job.data.getServiceId())) {
+					offlineServices.put(job.data.getServiceId(), isServiceOffline(job.data.getServiceId(), user));
+				}
+			}
+
+			// Send the Job requests concurrently
+			List<Callable<PiazzaResponse>> tasks = new ArrayList<Callable<PiazzaResponse>>();
+			for (int i = 0; i < jobs.size(); i++) {
+				final ExecuteServiceJob job = jobs.get(i);
+				final String invalid = invalidJobs.get(i);
+				final boolean offline = (invalid == null) && offlineServices.get(job.data.getServiceId());
+				tasks.add(new Callable<PiazzaResponse>() {
+					@Override
+					public PiazzaResponse call() {
+						if (invalid != null) {
+							return new ErrorResponse(invalid, GATEWAY);
+						} else if (offline) {
+							return new ErrorResponse(OFFLINE_SERVICE_ERROR, GATEWAY);
+						}
+						return submitExecuteJob(job, userName, dn);
+					}
+				});
+			}
+			List<PiazzaResponse> responses = jobSubmitExecutor.invokeAll(tasks);
+
+			boolean allCreated = true;
+			for (PiazzaResponse response : responses) {
+				allCreated &= response instanceof JobResponse;
+			}
+			return new ResponseEntity<List<PiazzaResponse>>(responses, allCreated ? HttpStatus.CREATED : HttpStatus.MULTI_STATUS);
+		} catch (Exception exception) {
+			String error = String.format("Error Executing Batch for user %s: %s", gatewayUtil.getPrincipalName(user),
+					exception.getMessage());
+			LOG.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ResponseEntity<PiazzaResponse>(new ErrorResponse(error, GATEWAY), HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Applies the bean validation that the @Valid annotation applies to a single Job on POST /job.
+	 * 
+	 * @param job
+	 *            The Job of a batch
+	 * @return The validation errors of the Job, or null if the Job is valid
+	 */
+	private String getValidationErrors(ExecuteServiceJob job) {
+		if ((job == null) || (job.data == null)) {
+			return "The Job must specify the Service to execute.";
+		}
+		Set<ConstraintViolation<ExecuteServiceJob>> violations = validator.validate(job);
+		if ((violations == null) || violations.isEmpty()) {
+			return null;
+		}
+		List<String> errors = new ArrayList<String>();
+		for (ConstraintViolation<ExecuteServiceJob> violation : violations) {
+			errors.add(String.format("%s %s", violation.getPropertyPath(), violation.getMessage()));
+		}
+		Collections.sort(errors);
+		return String.format("Invalid Job: %s", String.join("; ", errors));
+	}
+
+	/**
+	 * Sends a single Job request of a batch to the Job Manager.
+	 * 
+	 * @return The Job Id, or an Error describing why the Job could not be created
+	 */
+	private PiazzaResponse submitExecuteJob(ExecuteServiceJob job, String userName, String dn) {
+		try {
+			PiazzaJobRequest request = new PiazzaJobRequest();
+			request.jobType = job;
+			request.createdBy = userName;
+			String jobId = gatewayUtil.sendJobRequest(request, job.getJobId());
+			logger.log(String.format("User %s Sent Execute Job for Service %s under Job ID %s.", userName, job.data.getServiceId(), jobId),
+					Severity.INFORMATIONAL, new AuditElement(dn, "completeExecuteServiceJob", jobId));
+			return new JobResponse(jobId);
+		} catch (Exception exception) {
+			String error = String.format("Error Executing for user %s for Service %s: %s", userName, job.data.getServiceId(),
+					exception.getMessage());
+			LOG.error(error, exception);
+			logger.log(error, Severity.ERROR);
+			return new ErrorResponse(error, GATEWAY);
+		}
+	}
+
+	/**
+	 * Checks if a Service has its availability set as Offline. If the Service cannot be read, it is not treated as
+	 * Offline, and the Job request continues.
+	 * 
+	 * @param serviceId
+	 *            The Id of the Service
+	 * @param user
+	 *            The user executing the Job
+	 * @return true if Jobs must not be executed for the Service
+	 */
+	private boolean isServiceOffline(String serviceId, Principal user) {
+		try {
+			if (serviceAvailabilityCache.isEnabled()) {
+				return serviceAvailabilityCache.isOffline(serviceId);
+			}
+			Service service = ((ServiceResponse) serviceController.getService(serviceId, user).getBody()).data;
+			return (service != null) && (service.getResourceMetadata() != null)
+					&& ResourceMetadata.STATUS_TYPE.OFFLINE.toString().equals(service.getResourceMetadata().getAvailability());
+		} catch (Exception exception) {
+			String error = String.format(
+					"Attempted to check Service Availability for %s but received an error %s. Continued with Job Request.", serviceId,
+					exception.getMessage());
+			logger.log(error, Severity.WARNING);
+			LOG.error(error, exception);
+			return false;
+		}
+	}
 }
\ No newline at end of file
@@ -49,6 +49,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import gateway.controller.util.GatewayUtil;
 import gateway.controller.util.PiazzaRestController;
+import gateway.controller.util.ServiceAvailabilityCache;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -84,6 +85,8 @@ public class ServiceController extends PiazzaRestController {
 	private GatewayUtil gatewayUtil;
 	@Autowired
 	private PiazzaLogger logger;
+	@Autowired
+	private ServiceAvailabilityCache serviceAvailabilityCache;
 	@Value("${servicecontroller.url}")
 	private String SERVICECONTROLLER_URL;
 
@@ -247,6 +250,7 @@ public class ServiceController extends PiazzaRestController {
 						restTemplate.exchange(url, HttpMethod.DELETE, null, SuccessResponse.class).getBody(), HttpStatus.OK);
 				logger.log(String.format("User %s has Deleted Service %s", userName, serviceId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeServiceDelete", serviceId));
+				serviceAvailabilityCache.invalidate(serviceId);
 				return response;
 			} catch (HttpClientErrorException | HttpServerErrorException hee) {
 				LOG.error("Error Deleting Service", hee);
@@ -304,6 +308,7 @@ public class ServiceController extends PiazzaRestController {
 						HttpStatus.OK);
 				logger.log(String.format("User %s has Updated Service %s", userName, serviceId), Severity.INFORMATIONAL,
 						new AuditElement(dn, "completeUpdateService", serviceId));
+				serviceAvailabilityCache.invalidate(serviceId);
 				return response;
 			} catch (HttpClientErrorException | HttpServerErrorException hee) {
 				LOG.error("Error Updating Service", hee);
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+/**
+ * Shared, bounded pool of threads that batch requests fan their work out to, so that the items of a batch are
+ * processed concurrently while the total number of concurrent tasks across all requests to this Gateway instance stays
+ * within the size of the pool. Each kind of work has its own pool, defined as a bean by the Application: one for
+ * writing files to the blob store, and one for sending Job requests to the Job Manager.
+ */
+public class BoundedExecutor {
+	private final String name;
+	private final int parallelism;
+
+	private ExecutorService executor;
+
+	/**
+	 * @param name
+	 *            The name of the pool, used to name its threads
+	 * @param parallelism
+	 *            The number of threads in the pool
+	 */
+	public BoundedExecutor(String name, int parallelism) {
+		this.name = name;
+		this.parallelism = parallelism;
+	}
+
+	@PostConstruct
+	public void init() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("%s-%s", name, threadCount.incrementAndGet()));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Runs all of the tasks on the pool and waits for them to complete.
+	 * 
+	 * @param tasks
+	 *            The tasks to run. Tasks are expected to handle their own failures and return a result describing them.
+	 * @return The results of the tasks, in the same order as the tasks
+	 */
+	public <T> List<T> invokeAll(List<Callable<T>> tasks) throws InterruptedException, ExecutionException {
+		List<T> results = new ArrayList<T>(tasks.size());
+		for (Future<T> future : executor.invokeAll(tasks)) {
+			results.add(future.get());
+		}
+		return results;
+	}
+}
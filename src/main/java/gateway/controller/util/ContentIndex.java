@@ -0,0 +1,284 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Index of uploaded file content, mapping the SHA-256 digest of a file's bytes to the blob store object that already
+ * holds those bytes. This allows a repeated upload of an identical file to be copied from the existing S3 object within
+ * the bucket, rather than written again by the Gateway. The copy gives each Data item its own object, so that deleting
+ * one Data item does not delete the content of another.
+ * 
+ * The index is held in memory and backed by an append-only journal on local disk. The journal is replayed (and
+ * compacted) on startup, so the index survives restarts of the Gateway.
+ * 
+ * The journal must be on a disk that survives a restart of the Gateway, so upload.dedup.index.path has no default.
+ * Deduplication stays disabled if it is not set.
+ */
+@Component
+public class ContentIndex {
+	@Value("${upload.dedup.enabled}")
+	private boolean enabled;
+	@Value("${upload.dedup.index.path}")
+	private String indexPath;
+
+	private static final Logger LOG = LoggerFactory.getLogger(ContentIndex.class);
+	private static final String DELIMITER = "\t";
+	private static final String TOMBSTONE = "-";
+
+	private final Map<String, IndexEntry> entries = new ConcurrentHashMap<String, IndexEntry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private BufferedWriter journal;
+
+	/**
+	 * Replays the journal from disk, if one exists, and opens it for appending.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		if (indexPath.trim().isEmpty()) {
+			LOG.error("upload.dedup.index.path must be set to a file on a persistent disk to use the upload Content Index. "
+					+ "Deduplication is disabled.");
+			enabled = false;
+			return;
+		}
+		try {
+			Path path = Paths.get(indexPath).toAbsolutePath().normalize();
+			if (path.startsWith(Paths.get(System.getProperty("java.io.tmpdir")).toAbsolutePath().normalize())) {
+				LOG.warn("The upload Content Index at {} is in the temporary directory. Uploads stored before a restart are not "
+						+ "deduplicated against if the directory does not survive it.", path);
+			}
+			if (path.getParent() != null) {
+				Files.createDirectories(path.getParent());
+			}
+			if (Files.exists(path)) {
+				replay(path);
+				compact(path);
+			}
+			journal = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			LOG.info("Loaded {} entries into the upload Content Index from {}", entries.size(), indexPath);
+		} catch (IOException exception) {
+			// The Gateway can run without deduplication; uploads will simply always be written.
+			LOG.error(String.format("Could not open the upload Content Index at %s. Deduplication is disabled.", indexPath), exception);
+			entries.clear();
+			enabled = false;
+		}
+	}
+
+	/**
+	 * Closes the journal file.
+	 */
+	@PreDestroy
+	public synchronized void close() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException exception) {
+				LOG.error("Error closing the upload Content Index journal.", exception);
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * @return True if uploads should be deduplicated against this index
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Gets the blob store location that already holds content with the specified digest.
+	 * 
+	 * @param hash
+	 *            The hex-encoded SHA-256 digest of the content
+	 * @return The existing location, or null if the content has not been seen before
+	 */
+	public IndexEntry lookup(String hash) {
+		return entries.get(hash);
+	}
+
+	/**
+	 * Records that content with the specified digest is now stored at the specified location.
+	 * 
+	 * @param hash
+	 *            The hex-encoded SHA-256 digest of the content
+	 * @param bucketName
+	 *            The S3 bucket holding the content
+	 * @param fileKey
+	 *            The S3 key holding the content
+	 * @param fileSize
+	 *            The size of the content, in bytes
+	 */
+	public synchronized void register(String hash, String bucketName, String fileKey, long fileSize) {
+		if ((fileKey.indexOf('\n') != -1) || (fileKey.indexOf('\r') != -1)) {
+			// Cannot be represented as a single journal line
+			return;
+		}
+		IndexEntry entry = new IndexEntry(bucketName, fileKey, fileSize);
+		entries.put(hash, entry);
+		append(String.join(DELIMITER, hash, Long.toString(fileSize), bucketName, fileKey));
+	}
+
+	/**
+	 * Removes the digest from the index. Used when the referenced object is found to no longer exist.
+	 * 
+	 * @param hash
+	 *            The hex-encoded SHA-256 digest of the content
+	 */
+	public synchronized void remove(String hash) {
+		if (entries.remove(hash) != null) {
+			append(String.join(DELIMITER, hash, TOMBSTONE));
+		}
+	}
+
+	/**
+	 * Records an upload that was satisfied by existing content, and therefore did not need to be written.
+	 * 
+	 * @param fileSize
+	 *            The number of bytes that did not need to be written
+	 */
+	public void recordHit(long fileSize) {
+		hits.incrementAndGet();
+		bytesSaved.addAndGet(fileSize);
+	}
+
+	/**
+	 * Records an upload whose content had not been seen before.
+	 */
+	public void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * @return Deduplication statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("enabled", enabled);
+		stats.put("entries", entries.size());
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("bytesSaved", bytesSaved.get());
+		return stats;
+	}
+
+	/**
+	 * Appends a single line to the journal. Callers must hold the lock on this object.
+	 */
+	private void append(String line) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.write(line);
+			journal.newLine();
+			journal.flush();
+		} catch (IOException exception) {
+			LOG.error("Error writing to the upload Content Index journal.", exception);
+		}
+	}
+
+	/**
+	 * Loads the journal into memory. Later lines override earlier ones.
+	 */
+	private void replay(Path path) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(DELIMITER, 4);
+				if ((fields.length == 2) && TOMBSTONE.equals(fields[1])) {
+					entries.remove(fields[0]);
+				} else if (fields.length == 4) {
+					try {
+						entries.put(fields[0], new IndexEntry(fields[2], fields[3], Long.parseLong(fields[1])));
+					} catch (NumberFormatException exception) {
+						LOG.warn("Skipping malformed upload Content Index entry: {}", line);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the journal so that it contains only the live entries.
+	 */
+	private void compact(Path path) throws IOException {
+		File temp = File.createTempFile("content-index", ".tmp", path.toAbsolutePath().getParent().toFile());
+		try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, IndexEntry> entry : entries.entrySet()) {
+				IndexEntry value = entry.getValue();
+				writer.write(String.join(DELIMITER, entry.getKey(), Long.toString(value.getFileSize()), value.getBucketName(),
+						value.getFileKey()));
+				writer.newLine();
+			}
+		}
+		Files.move(temp.toPath(), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * The blob store location of a piece of indexed content.
+	 */
+	public static class IndexEntry {
+		private final String bucketName;
+		private final String fileKey;
+		private final long fileSize;
+
+		public IndexEntry(String bucketName, String fileKey, long fileSize) {
+			this.bucketName = bucketName;
+			this.fileKey = fileKey;
+			this.fileSize = fileSize;
+		}
+
+		public String getBucketName() {
+			return bucketName;
+		}
+
+		public String getFileKey() {
+			return fileKey;
+		}
+
+		public long getFileSize() {
+			return fileSize;
+		}
+	}
+}
@@ -0,0 +1,494 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Streams several data files to the client as a single ZIP archive.
+ * 
+ * While one file is written to the archive, the next few are already being fetched from the upstream component on a
+ * shared, bounded pool of threads, each into a fixed-size buffer, so the archive does not stall between files. Memory
+ * use per bundle is bounded by the read-ahead and buffer size, regardless of the size of the files.
+ * 
+ * A bundle never waits for the pool: a file is only fetched ahead if a pool thread is free at the time, and is
+ * otherwise fetched by the request thread when its turn comes. A bundle therefore holds at most the read-ahead number
+ * of pool threads, and other bundles carry on without read-ahead while the pool is busy. A fetch waiting for its buffer
+ * to be read gives up once the client has read nothing from the archive for the idle timeout, so a client that stops
+ * reading does not hold pool threads indefinitely. If the client does read again, the file is fetched again.
+ */
+@Component
+public class FileBundleStreamer {
+	@Autowired
+	private RestTemplate restTemplate;
+	@Autowired
+	private FileMetadataCache fileMetadataCache;
+	@Autowired
+	private UploadCompressor uploadCompressor;
+
+	@Value("${file.bundle.parallelism}")
+	private int parallelism;
+	@Value("${file.bundle.read.ahead}")
+	private int readAhead;
+	@Value("${file.bundle.buffer.bytes}")
+	private int bufferBytes;
+	@Value("${file.bundle.idle.timeout.ms}")
+	private long idleTimeoutMillis;
+
+	/** Extensions of formats that are already compressed, and are not compressed again in the archive */
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(
+			Arrays.asList("zip", "gz", "tgz", "bz2", "xz", "7z", "kmz", "jpg", "jpeg", "jp2", "png", "gif", "webp"));
+	private static final Pattern FILE_NAME_PATTERN = Pattern.compile("filename=\"?([^\";]+)\"?");
+
+	private ExecutorService executor;
+	/** One permit for each pool thread, so that fetches are only handed to the pool when a thread is free */
+	private Semaphore fetchPermits;
+
+	@PostConstruct
+	public void init() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		fetchPermits = new Semaphore(parallelism);
+		executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("file-bundle-%s", threadCount.incrementAndGet()));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes the files to the output as a ZIP archive. Files that could not be fetched are written as a text entry
+	 * describing the error, since the response has already been started by then.
+	 * 
+	 * @param dataIds
+	 *            The Ids of the Data to bundle, in the order they are written to the archive
+	 * @param urls
+	 *            The upstream URL of each file
+	 * @param output
+	 *            The stream to write the archive to. This is not closed.
+	 * @return The number of file bytes written to the archive
+	 * @throws IOException
+	 *             If the archive could not be written, or a file failed partway through. The archive is incomplete.
+	 */
+	public long streamBundle(List<String> dataIds, List<String> urls, OutputStream output) throws IOException, InterruptedException {
+		Deque<BundleItem> pending = new ArrayDeque<BundleItem>();
+		Set<String> entryNames = new HashSet<String>();
+		ProgressOutputStream progress = new ProgressOutputStream(output);
+		ZipOutputStream zip = new ZipOutputStream(progress);
+		BundleItem item = null;
+		long total = 0;
+		int next = 0;
+		try {
+			while ((next < dataIds.size()) || !pending.isEmpty()) {
+				// Keep the read-ahead window full
+				while ((next < dataIds.size()) && (pending.size() < readAhead)) {
+					pending.add(submit(dataIds.get(next), urls.get(next), progress));
+					next++;
+				}
+				item = pending.remove();
+				if (item.future == null) {
+					// No pool thread was free to fetch it ahead
+					total += fetchInto(item, zip, entryNames);
+					item = null;
+					continue;
+				}
+				item.ready.await();
+				if ((item.error != null) && (item.fileName != null)) {
+					// Failed partway, before any of it was written to the archive, as when the client was too slow to
+					// read it in time. Fetch it again.
+					total += fetchInto(item, zip, entryNames);
+					item = null;
+					continue;
+				}
+				if (item.error != null) {
+					writeError(item, zip, entryNames);
+					item = null;
+					continue;
+				}
+				String name = getEntryName(item.fileName, item.dataId, entryNames);
+				zip.setLevel(isCompressed(name) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+				zip.putNextEntry(new ZipEntry(name));
+				total += FileStreamer.copy(item.pipe.getInputStream(), zip);
+				item.done.await();
+				if (item.error != null) {
+					throw new IOException(String.format("File for Data %s could not be read: %s", item.dataId, item.error));
+				}
+				zip.closeEntry();
+				item = null;
+			}
+			zip.finish();
+			zip.flush();
+			return total;
+		} finally {
+			// Release the fetches that are still in flight, if the archive was not completed
+			if (item != null) {
+				item.cancel();
+			}
+			for (BundleItem remaining : pending) {
+				remaining.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Starts fetching a file into a bounded buffer, if a pool thread is free to do so.
+	 */
+	private BundleItem submit(String dataId, final String url, ProgressOutputStream progress) {
+		final BundleItem item = new BundleItem(dataId, url);
+		if (!fetchPermits.tryAcquire()) {
+			return item;
+		}
+		item.pipe = new Pipe(bufferBytes, progress, idleTimeoutMillis);
+		try {
+			item.future = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						fetch(item);
+					} finally {
+						fetchPermits.release();
+					}
+				}
+			});
+		} catch (RuntimeException exception) {
+			// The pool is shut down
+			fetchPermits.release();
+			throw exception;
+		}
+		return item;
+	}
+
+	/**
+	 * Fetches a file into the buffer of its item, on a pool thread.
+	 */
+	private void fetch(final BundleItem item) {
+		final OutputStream pipe = item.pipe.getOutputStream();
+		try {
+			// Access returns files that were stored compressed as they are stored
+			final String codec = uploadCompressor.getCodec(fileMetadataCache.getData(item.dataId));
+			restTemplate.execute(item.url, HttpMethod.GET, null, new ResponseExtractor<Void>() {
+				@Override
+				public Void extractData(ClientHttpResponse upstream) throws IOException {
+					item.fileName = getFileName(upstream.getHeaders(), item.dataId);
+					item.ready.countDown();
+					FileStreamer.copy(codec != null ? UploadCompressor.decode(upstream.getBody(), codec) : upstream.getBody(), pipe);
+					return null;
+				}
+			});
+		} catch (Exception exception) {
+			item.error = describe(exception);
+		} finally {
+			item.pipe.closeWriter();
+			item.ready.countDown();
+			item.done.countDown();
+		}
+	}
+
+	/**
+	 * Fetches a file straight into the archive, on the request thread.
+	 * 
+	 * @return The number of file bytes written to the archive
+	 */
+	private long fetchInto(final BundleItem item, final ZipOutputStream zip, final Set<String> entryNames) throws IOException {
+		final long[] written = new long[1];
+		final boolean[] started = new boolean[1];
+		try {
+			final String codec = uploadCompressor.getCodec(fileMetadataCache.getData(item.dataId));
+			restTemplate.execute(item.url, HttpMethod.GET, null, new ResponseExtractor<Void>() {
+				@Override
+				public Void extractData(ClientHttpResponse upstream) throws IOException {
+					String name = getEntryName(getFileName(upstream.getHeaders(), item.dataId), item.dataId, entryNames);
+					zip.setLevel(isCompressed(name) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+					started[0] = true;
+					zip.putNextEntry(new ZipEntry(name));
+					written[0] = FileStreamer.copy(codec != null ? UploadCompressor.decode(upstream.getBody(), codec) : upstream.getBody(),
+							zip);
+					zip.closeEntry();
+					return null;
+				}
+			});
+		} catch (Exception exception) {
+			if (started[0]) {
+				throw new IOException(String.format("File for Data %s could not be read: %s", item.dataId, describe(exception)),
+						exception);
+			}
+			item.error = describe(exception);
+			writeError(item, zip, entryNames);
+		}
+		return written[0];
+	}
+
+	/**
+	 * Writes a text entry describing why a file could not be fetched.
+	 */
+	private static void writeError(BundleItem item, ZipOutputStream zip, Set<String> entryNames) throws IOException {
+		String name = getEntryName(String.format("%s.error.txt", item.dataId), item.dataId, entryNames);
+		zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(item.error.getBytes(StandardCharsets.UTF_8));
+		zip.closeEntry();
+	}
+
+	private static String describe(Exception exception) {
+		if (exception instanceof HttpStatusCodeException) {
+			HttpStatusCodeException statusException = (HttpStatusCodeException) exception;
+			return String.format("%s %s", statusException.getStatusCode(), statusException.getResponseBodyAsString());
+		}
+		return exception.getMessage() != null ? exception.getMessage() : exception.getClass().getSimpleName();
+	}
+
+	/**
+	 * Gets the name of the downloaded file from the upstream content-disposition header, without any path.
+	 */
+	private static String getFileName(HttpHeaders headers, String dataId) {
+		String disposition = headers.getFirst(HttpHeaders.CONTENT_DISPOSITION);
+		if (disposition != null) {
+			Matcher matcher = FILE_NAME_PATTERN.matcher(disposition);
+			if (matcher.find()) {
+				String fileName = matcher.group(1).trim();
+				fileName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+				if (!fileName.isEmpty() && !".".equals(fileName) && !"..".equals(fileName)) {
+					return fileName;
+				}
+			}
+		}
+		return dataId;
+	}
+
+	/**
+	 * Gets a unique entry name, prefixing the Data Id to names that are already used in the archive.
+	 */
+	private static String getEntryName(String fileName, String dataId, Set<String> entryNames) {
+		String name = entryNames.contains(fileName) ? String.format("%s-%s", dataId, fileName) : fileName;
+		entryNames.add(name);
+		return name;
+	}
+
+	private static boolean isCompressed(String fileName) {
+		int extension = fileName.lastIndexOf('.');
+		return (extension >= 0) && COMPRESSED_EXTENSIONS.contains(fileName.substring(extension + 1).toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * A file being fetched for the archive.
+	 */
+	private static class BundleItem {
+		private final String dataId;
+		private final String url;
+		/** Released once the file name is known, or the fetch has failed */
+		private final CountDownLatch ready = new CountDownLatch(1);
+		/** Released once the fetch has finished */
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile String fileName;
+		private volatile String error;
+		/** The buffer and fetch of a file fetched ahead on the pool, or null if it is fetched by the request thread */
+		private Pipe pipe;
+		private Future<?> future;
+
+		BundleItem(String dataId, String url) {
+			this.dataId = dataId;
+			this.url = url;
+		}
+
+		void cancel() {
+			if (future != null) {
+				future.cancel(true);
+				pipe.closeReader();
+			}
+		}
+	}
+
+	/**
+	 * The output to the client, recording when the client last accepted data.
+	 */
+	private static class ProgressOutputStream extends FilterOutputStream {
+		private volatile long lastWrite = System.currentTimeMillis();
+
+		ProgressOutputStream(OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			out.write(value);
+			lastWrite = System.currentTimeMillis();
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			lastWrite = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Fixed-size buffer between a fetch on the pool and the request thread writing the archive. Unlike a
+	 * PipedOutputStream, a write waiting for space fails once the client has accepted nothing for the idle timeout.
+	 */
+	private static class Pipe {
+		private final byte[] buffer;
+		private final ProgressOutputStream progress;
+		private final long idleTimeoutMillis;
+		private int start;
+		private int count;
+		private boolean writerClosed;
+		private boolean readerClosed;
+
+		Pipe(int size, ProgressOutputStream progress, long idleTimeoutMillis) {
+			this.buffer = new byte[size];
+			this.progress = progress;
+			this.idleTimeoutMillis = idleTimeoutMillis;
+		}
+
+		synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				while ((count == buffer.length) && !readerClosed) {
+					long idle = System.currentTimeMillis() - progress.lastWrite;
+					if (idle >= idleTimeoutMillis) {
+						throw new IOException(String.format("The client has not read from the archive for %s ms.", idle));
+					}
+					try {
+						wait(Math.min(idleTimeoutMillis - idle, 1000));
+					} catch (InterruptedException exception) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the archive to be read.");
+					}
+				}
+				if (readerClosed) {
+					throw new IOException("The archive is no longer being written.");
+				}
+				int end = (start + count) % buffer.length;
+				int chunk = Math.min(length, Math.min(buffer.length - count, buffer.length - end));
+				System.arraycopy(bytes, offset, buffer, end, chunk);
+				count += chunk;
+				offset += chunk;
+				length -= chunk;
+				notifyAll();
+			}
+		}
+
+		synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			while ((count == 0) && !writerClosed && !readerClosed) {
+				try {
+					wait();
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the file to be fetched.");
+				}
+			}
+			if (readerClosed) {
+				throw new IOException("The archive is no longer being written.");
+			}
+			if (count == 0) {
+				return -1;
+			}
+			int chunk = Math.min(length, Math.min(count, buffer.length - start));
+			System.arraycopy(buffer, start, bytes, offset, chunk);
+			start = (start + chunk) % buffer.length;
+			count -= chunk;
+			notifyAll();
+			return chunk;
+		}
+
+		synchronized void closeWriter() {
+			writerClosed = true;
+			notifyAll();
+		}
+
+		synchronized void closeReader() {
+			readerClosed = true;
+			notifyAll();
+		}
+
+		InputStream getInputStream() {
+			return new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] single = new byte[1];
+					return Pipe.this.read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] bytes, int offset, int length) throws IOException {
+					return Pipe.this.read(bytes, offset, length);
+				}
+			};
+		}
+
+		OutputStream getOutputStream() {
+			return new OutputStream() {
+				@Override
+				public void write(int value) throws IOException {
+					Pipe.this.write(new byte[] { (byte) value }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] bytes, int offset, int length) throws IOException {
+					Pipe.this.write(bytes, offset, length);
+				}
+			};
+		}
+	}
+}
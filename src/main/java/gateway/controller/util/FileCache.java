@@ -0,0 +1,512 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+/**
+ * Local disk cache of downloaded file bytes, so that popular files do not have to be fetched from Access for every
+ * download. The cache is bounded by its total size on disk, and evicts the least recently used files first.
+ * 
+ * Files are added to the cache as they are streamed to a client. Cache hits are handed to Tomcat to send with
+ * sendfile, so the bytes go from the file to the socket without being copied through the heap. If the container does
+ * not support sendfile, the file is copied to the response instead. The index of the cache is held in memory, so the
+ * cache directory is cleared on startup.
+ * 
+ * Each Gateway instance has its own cache, and deleting Data only invalidates the cache of the instance that handled
+ * the delete. Entries therefore expire after the configured time to live, which bounds how long other instances can
+ * serve the file of deleted Data.
+ */
+@Component
+public class FileCache {
+	@Value("${file.cache.enabled}")
+	private boolean enabled;
+	@Value("${file.cache.path}")
+	private String cachePath;
+	@Value("${file.cache.max.bytes}")
+	private long maxBytes;
+	@Value("${file.cache.max.entry.bytes}")
+	private long maxEntryBytes;
+	@Value("${file.cache.ttl.seconds}")
+	private long ttlSeconds;
+
+	private static final Logger LOG = LoggerFactory.getLogger(FileCache.class);
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	/**
+	 * Tomcat opens a file for sendfile after the request has been handled, so a file handed to it is not deleted until
+	 * this long afterwards
+	 */
+	private static final long SENDFILE_GRACE_SECONDS = 30;
+
+	/** Entries in access order, so that the first entry is the least recently used */
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+	private long size = 0;
+	/** Incremented on every invalidation, so that downloads that started before an invalidation are not cached */
+	private final AtomicLong generation = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong bytesServed = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private Path directory;
+	private ScheduledExecutorService deleteExecutor;
+
+	/**
+	 * Creates the cache directory, removing any files left from a previous run.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		try {
+			directory = Paths.get(cachePath);
+			Files.createDirectories(directory);
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+				for (Path file : files) {
+					Files.deleteIfExists(file);
+				}
+			}
+		} catch (IOException exception) {
+			LOG.error(String.format("Could not create the file cache at %s. The file cache is disabled.", cachePath), exception);
+			enabled = false;
+			return;
+		}
+		deleteExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "file-cache-delete");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (deleteExecutor != null) {
+			deleteExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Gets the cached file for a download.
+	 * 
+	 * @param dataId
+	 *            The Id of the Data
+	 * @param fileName
+	 *            The file name requested for the download, which is part of the cached response headers
+	 * @return The cached file, or null if the file is not cached or its time to live has passed
+	 */
+	public CacheEntry lookup(String dataId, String fileName) {
+		if (!enabled) {
+			return null;
+		}
+		CacheEntry entry;
+		synchronized (this) {
+			String key = getKey(dataId, fileName);
+			entry = entries.get(key);
+			if ((entry != null) && (System.currentTimeMillis() - entry.createdAt >= TimeUnit.SECONDS.toMillis(ttlSeconds))) {
+				entries.remove(key);
+				delete(entry);
+				expirations.incrementAndGet();
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Writes a cached file to the client. A single range is served from the cache; requests for multiple ranges or
+	 * with an If-Range condition are left to the upstream component. A matching If-None-Match is answered with 304 Not
+	 * Modified.
+	 * 
+	 * If the container supports sendfile, the file is only named in the request attributes, and the container sends it
+	 * once the request has been handled.
+	 * 
+	 * @param entry
+	 *            The cached file
+	 * @param request
+	 *            The client request
+	 * @param response
+	 *            The response to write the file to
+	 * @return The number of bytes written, or -1 if the request could not be served from the cache and nothing has been
+	 *         written
+	 */
+	public long serve(CacheEntry entry, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (FileStreamer.isNotModified(request, entry.headers.get(HttpHeaders.ETAG))) {
+			response.setStatus(HttpStatus.NOT_MODIFIED.value());
+			for (String header : new String[] { HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED }) {
+				if (entry.headers.containsKey(header)) {
+					response.setHeader(header, entry.headers.get(header));
+				}
+			}
+			hits.incrementAndGet();
+			return 0;
+		}
+		long start = 0;
+		long count = entry.size;
+		String range = request.getHeader(HttpHeaders.RANGE);
+		if (range != null) {
+			if (request.getHeader(HttpHeaders.IF_RANGE) != null) {
+				return -1;
+			}
+			try {
+				List<HttpRange> ranges = HttpRange.parseRanges(range);
+				if (ranges.size() != 1) {
+					return -1;
+				}
+				start = ranges.get(0).getRangeStart(entry.size);
+				long end = ranges.get(0).getRangeEnd(entry.size);
+				if ((start >= entry.size) || (start > end)) {
+					return -1;
+				}
+				count = end - start + 1;
+			} catch (IllegalArgumentException exception) {
+				return -1;
+			}
+		}
+
+		if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+			synchronized (this) {
+				if (!Files.exists(entry.path)) {
+					// Evicted since the lookup
+					return -1;
+				}
+				entry.sendfileAt = System.currentTimeMillis();
+			}
+			setHeaders(entry, range != null, start, count, response);
+			request.setAttribute(SENDFILE_FILENAME, entry.path.toAbsolutePath().toString());
+			request.setAttribute(SENDFILE_START, Long.valueOf(start));
+			request.setAttribute(SENDFILE_END, Long.valueOf(start + count));
+			hits.incrementAndGet();
+			bytesServed.addAndGet(count);
+			return count;
+		}
+
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(entry.path, StandardOpenOption.READ);
+		} catch (NoSuchFileException exception) {
+			// Evicted since the lookup
+			return -1;
+		}
+		try {
+			setHeaders(entry, range != null, start, count, response);
+			WritableByteChannel output = Channels.newChannel(response.getOutputStream());
+			long position = start;
+			long remaining = count;
+			while (remaining > 0) {
+				long transferred = channel.transferTo(position, remaining, output);
+				if (transferred <= 0) {
+					throw new IOException(String.format("Cached file %s ended unexpectedly.", entry.path));
+				}
+				position += transferred;
+				remaining -= transferred;
+			}
+			response.getOutputStream().flush();
+		} finally {
+			channel.close();
+		}
+		hits.incrementAndGet();
+		bytesServed.addAndGet(count);
+		return count;
+	}
+
+	/**
+	 * Starts adding a file to the cache as it is downloaded. The bytes are written to the returned entry as they are
+	 * sent to the client, and the entry is committed to the cache once the whole file has been received.
+	 * 
+	 * @param dataId
+	 *            The Id of the Data
+	 * @param fileName
+	 *            The file name requested for the download
+	 * @param headers
+	 *            The headers of the full upstream response
+	 * @return The entry to write the file to, or null if the file should not be cached
+	 */
+	public PendingEntry begin(String dataId, String fileName, HttpHeaders headers) {
+		long contentLength = headers.getContentLength();
+		if (!enabled || (contentLength < 0) || (contentLength > maxEntryBytes) || (contentLength > maxBytes)) {
+			return null;
+		}
+		try {
+			Map<String, String> cachedHeaders = new HashMap<String, String>();
+			for (String header : new String[] { HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_DISPOSITION, HttpHeaders.ETAG,
+					HttpHeaders.LAST_MODIFIED }) {
+				if (headers.getFirst(header) != null) {
+					cachedHeaders.put(header, headers.getFirst(header));
+				}
+			}
+			Path path = Files.createTempFile(directory, "file", ".cache");
+			return new PendingEntry(dataId, getKey(dataId, fileName), path, contentLength, cachedHeaders, generation.get());
+		} catch (IOException exception) {
+			LOG.error("Could not create a file cache entry.", exception);
+			return null;
+		}
+	}
+
+	/**
+	 * Removes all cached files for the Data. Called when the Data is deleted.
+	 * 
+	 * @param dataId
+	 *            The Id of the Data
+	 */
+	public void invalidate(String dataId) {
+		if (!enabled) {
+			return;
+		}
+		generation.incrementAndGet();
+		synchronized (this) {
+			Iterator<CacheEntry> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				CacheEntry entry = iterator.next();
+				if (entry.dataId.equals(dataId)) {
+					iterator.remove();
+					delete(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Cache statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		long hitCount = hits.get();
+		long missCount = misses.get();
+		stats.put("enabled", enabled);
+		stats.put("hits", hitCount);
+		stats.put("misses", missCount);
+		stats.put("hitRatio", (hitCount + missCount) > 0 ? (double) hitCount / (hitCount + missCount) : 0.0);
+		stats.put("bytesServed", bytesServed.get());
+		stats.put("evictions", evictions.get());
+		stats.put("expirations", expirations.get());
+		synchronized (this) {
+			stats.put("entries", entries.size());
+			stats.put("bytes", size);
+		}
+		return stats;
+	}
+
+	/**
+	 * Adds a fully written file to the cache, evicting the least recently used files to make room.
+	 */
+	private synchronized void add(PendingEntry pending) {
+		CacheEntry entry = new CacheEntry(pending.dataId, pending.path, pending.expectedSize, pending.headers);
+		CacheEntry previous = entries.put(pending.key, entry);
+		if (previous != null) {
+			delete(previous);
+		}
+		size += entry.size;
+		Iterator<CacheEntry> iterator = entries.values().iterator();
+		while ((size > maxBytes) && iterator.hasNext()) {
+			CacheEntry eldest = iterator.next();
+			if (eldest == entry) {
+				continue;
+			}
+			iterator.remove();
+			delete(eldest);
+			evictions.incrementAndGet();
+		}
+	}
+
+	private static void setHeaders(CacheEntry entry, boolean partial, long start, long count, HttpServletResponse response) {
+		if (partial) {
+			response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+			response.setHeader(HttpHeaders.CONTENT_RANGE, String.format("bytes %s-%s/%s", start, start + count - 1, entry.size));
+		} else {
+			response.setStatus(HttpStatus.OK.value());
+		}
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(count));
+		for (Map.Entry<String, String> header : entry.headers.entrySet()) {
+			response.setHeader(header.getKey(), header.getValue());
+		}
+	}
+
+	/**
+	 * Deletes the file of an entry that has been removed from the index. A file that was recently handed to the
+	 * container for sendfile is deleted later, once the container has opened it. Callers must hold the lock on this
+	 * object.
+	 */
+	private void delete(final CacheEntry entry) {
+		size -= entry.size;
+		if ((deleteExecutor != null)
+				&& (System.currentTimeMillis() - entry.sendfileAt < TimeUnit.SECONDS.toMillis(SENDFILE_GRACE_SECONDS))) {
+			deleteExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					deleteFile(entry.path);
+				}
+			}, SENDFILE_GRACE_SECONDS, TimeUnit.SECONDS);
+		} else {
+			deleteFile(entry.path);
+		}
+	}
+
+	private static void deleteFile(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException exception) {
+			LOG.error(String.format("Could not delete cached file %s", path), exception);
+		}
+	}
+
+	private static String getKey(String dataId, String fileName) {
+		return (fileName != null) ? String.format("%s/%s", dataId, fileName) : dataId;
+	}
+
+	/**
+	 * A file held in the cache, along with the response headers to serve it with.
+	 */
+	public static class CacheEntry {
+		private final String dataId;
+		private final Path path;
+		private final long size;
+		private final Map<String, String> headers;
+		private final long createdAt = System.currentTimeMillis();
+		/** When the file was last handed to the container for sendfile */
+		private volatile long sendfileAt = 0;
+
+		CacheEntry(String dataId, Path path, long size, Map<String, String> headers) {
+			this.dataId = dataId;
+			this.path = path;
+			this.size = size;
+			this.headers = headers;
+		}
+
+		public long getSize() {
+			return size;
+		}
+	}
+
+	/**
+	 * A file that is being written to the cache as it is downloaded. Either commit() or discard() must be called.
+	 */
+	public class PendingEntry extends OutputStream {
+		private final String dataId;
+		private final String key;
+		private final Path path;
+		private final long expectedSize;
+		private final Map<String, String> headers;
+		private final long startGeneration;
+		private final OutputStream output;
+		private long written = 0;
+		private boolean done = false;
+
+		PendingEntry(String dataId, String key, Path path, long expectedSize, Map<String, String> headers, long startGeneration)
+				throws IOException {
+			this.dataId = dataId;
+			this.key = key;
+			this.path = path;
+			this.expectedSize = expectedSize;
+			this.headers = headers;
+			this.startGeneration = startGeneration;
+			this.output = Files.newOutputStream(path);
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			output.write(value);
+			written++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			output.write(bytes, offset, length);
+			written += length;
+		}
+
+		/**
+		 * Adds the file to the cache if it was received completely, and no invalidation happened while it was written.
+		 */
+		public void commit() {
+			if (done) {
+				return;
+			}
+			try {
+				output.close();
+			} catch (IOException exception) {
+				LOG.error("Could not write the file cache entry.", exception);
+				discard();
+				return;
+			}
+			if ((written != expectedSize) || (generation.get() != startGeneration)) {
+				discard();
+				return;
+			}
+			done = true;
+			add(this);
+		}
+
+		/**
+		 * Abandons the entry, deleting what has been written.
+		 */
+		public void discard() {
+			if (done) {
+				return;
+			}
+			done = true;
+			try {
+				output.close();
+				Files.deleteIfExists(path);
+			} catch (IOException exception) {
+				LOG.error(String.format("Could not delete the file cache entry %s", path), exception);
+			}
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import model.data.DataResource;
+import model.data.FileRepresentation;
+import model.response.DataResourceResponse;
+
+/**
+ * Short-lived cache of the metadata of file Data, so that deciding how to serve a download does not cost a request to
+ * Access each time. Metadata is remembered when it is read through GET /data/{dataId}, which clients commonly do just
+ * before downloading the file, and when a download has to fetch it.
+ * 
+ * Only the location of the file is used from the cached metadata, and it does not change once the Data is created.
+ * Entries expire so that Data deleted through other Gateway instances is noticed; deletes through this Gateway remove
+ * the entry at once.
+ */
+@Component
+public class FileMetadataCache {
+	@Autowired
+	private RestTemplate restTemplate;
+
+	@Value("${access.url}")
+	private String ACCESS_URL;
+	@Value("${file.metadata.cache.ttl.ms}")
+	private long ttlMillis;
+	@Value("${file.metadata.cache.max.entries}")
+	private int maxEntries;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Gets the metadata of a Data item, from the cache if it holds a current copy, or otherwise from Access.
+	 * 
+	 * @param dataId
+	 *            The Id of the Data
+	 * @return The Data
+	 */
+	public DataResource getData(String dataId) {
+		Entry entry = entries.get(dataId);
+		if ((entry != null) && (entry.expiresAt > System.currentTimeMillis())) {
+			hits.incrementAndGet();
+			return entry.data;
+		}
+		misses.incrementAndGet();
+		DataResource data = restTemplate
+				.getForEntity(String.format("%s/%s/%s", ACCESS_URL, "data", dataId), DataResourceResponse.class).getBody().data;
+		put(data);
+		return data;
+	}
+
+	/**
+	 * Remembers the metadata of a Data item that has been read from Access. Data that is not a file is not cached.
+	 * 
+	 * @param data
+	 *            The Data
+	 */
+	public void put(DataResource data) {
+		if ((ttlMillis <= 0) || (data == null) || (data.getDataId() == null) || !(data.getDataType() instanceof FileRepresentation)) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if ((entries.size() >= maxEntries) && (purgeExpired(now) >= maxEntries)) {
+			// Full of current entries; the next download will fetch the metadata again
+			return;
+		}
+		entries.put(data.getDataId(), new Entry(data, now + ttlMillis));
+	}
+
+	/**
+	 * Removes the cached metadata of a Data item, after it has been deleted through this Gateway.
+	 * 
+	 * @param dataId
+	 *            The Id of the Data
+	 */
+	public void invalidate(String dataId) {
+		if (entries.remove(dataId) != null) {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return Cache statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("entries", entries.size());
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("invalidations", invalidations.get());
+		return stats;
+	}
+
+	/**
+	 * Removes expired entries.
+	 * 
+	 * @return The number of entries remaining
+	 */
+	private int purgeExpired(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().expiresAt <= now) {
+				iterator.remove();
+			}
+		}
+		return entries.size();
+	}
+
+	/**
+	 * The metadata of a Data item, and when it stops being served
+	 */
+	private static class Entry {
+		private final DataResource data;
+		private final long expiresAt;
+
+		private Entry(DataResource data, long expiresAt) {
+			this.data = data;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.net.URL;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.ResponseHeaderOverrides;
+
+import model.data.DataResource;
+import model.data.FileRepresentation;
+import model.data.location.FileLocation;
+import model.data.location.S3FileStore;
+
+/**
+ * Issues short-lived pre-signed GET URLs for Piazza-hosted files, so that downloads can be redirected to S3 instead of
+ * being proxied through the Gateway.
+ * 
+ * Only files held in the Piazza bucket are redirected. Files in other locations, and all files when KMS encryption is
+ * in use, must still be proxied, since S3 would return the encrypted bytes to the client.
+ */
+@Component
+public class FileRedirector {
+	@Autowired
+	private AmazonS3 s3Client;
+
+	@Value("${vcap.services.pz-blobstore.credentials.bucket}")
+	private String AMAZONS3_BUCKET_NAME;
+	@Value("${s3.use.kms}")
+	private Boolean USE_KMS;
+	@Value("${file.redirect.enabled}")
+	private boolean enabled;
+	@Value("${file.redirect.url.seconds}")
+	private int urlSeconds;
+
+	private static final Logger LOG = LoggerFactory.getLogger(FileRedirector.class);
+
+	private final AtomicLong redirects = new AtomicLong();
+
+	/**
+	 * @return true if downloads may be redirected, and the Data metadata should be looked up for them
+	 */
+	public boolean isEnabled() {
+		return enabled && !USE_KMS.booleanValue();
+	}
+
+	/**
+	 * Gets a pre-signed URL that the client can download the file from directly.
+	 * 
+	 * @param data
+	 *            The Data to download
+	 * @param fileName
+	 *            The file name requested for the download, if any. This is returned by S3 in the content-disposition
+	 *            header.
+	 * @return The pre-signed URL, or null if the file must be proxied through the Gateway
+	 */
+	public URL getRedirectUrl(DataResource data, String fileName) {
+		if (!isEnabled() || (data == null) || !(data.getDataType() instanceof FileRepresentation)) {
+			return null;
+		}
+		FileLocation location = ((FileRepresentation) data.getDataType()).getLocation();
+		if (!(location instanceof S3FileStore)) {
+			return null;
+		}
+		S3FileStore fileStore = (S3FileStore) location;
+		if (!AMAZONS3_BUCKET_NAME.equals(fileStore.getBucketName())) {
+			// Not a Piazza-hosted file. The Gateway credentials may not be able to sign for it.
+			return null;
+		}
+
+		GeneratePresignedUrlRequest request = new GeneratePresignedUrlRequest(AMAZONS3_BUCKET_NAME, fileStore.getFileName(),
+				HttpMethod.GET).withExpiration(new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(urlSeconds)));
+		if ((fileName != null) && (fileName.isEmpty() == false)) {
+			request.setResponseHeaders(new ResponseHeaderOverrides().withContentDisposition(FileStreamer.getContentDisposition(fileName)));
+		}
+		try {
+			URL url = s3Client.generatePresignedUrl(request);
+			redirects.incrementAndGet();
+			return url;
+		} catch (AmazonClientException exception) {
+			LOG.error(String.format("Could not sign a download URL for Data %s. The file will be proxied.", data.getDataId()), exception);
+			return null;
+		}
+	}
+
+	/**
+	 * @return Redirect statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("enabled", isEnabled());
+		stats.put("redirects", redirects.get());
+		return stats;
+	}
+}
@@ -0,0 +1,420 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Streams files from internal Piazza components to the client. The bytes are copied from the upstream response to the
+ * servlet response through a fixed-size buffer as they arrive, so the memory used for a download does not depend on the
+ * size of the file.
+ * 
+ * Range requests are supported. The Range and If-Range headers are passed upstream, so that a component that supports
+ * ranges only sends the requested bytes. If the upstream component ignores the range and returns the whole file, the
+ * requested ranges are cut from the stream here, so that the client still only receives the bytes it asked for.
+ * 
+ * When the local file cache is enabled, cached files are served without contacting the upstream component, and full
+ * downloads are added to the cache as they are streamed.
+ */
+@Component
+public class FileStreamer {
+	@Autowired
+	private RestTemplate restTemplate;
+	@Autowired
+	private FileCache fileCache;
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+	/** Headers of the upstream response that are passed through to the client */
+	private static final String[] FORWARDED_HEADERS = { HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_LENGTH,
+			HttpHeaders.CONTENT_DISPOSITION, HttpHeaders.CONTENT_RANGE, HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED };
+	/** Headers of a full upstream response that still apply to a range of it */
+	private static final String[] PARTIAL_FORWARDED_HEADERS = { HttpHeaders.CONTENT_TYPE, HttpHeaders.CONTENT_DISPOSITION,
+			HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED };
+	/** Headers of the client request that are passed through to the upstream component */
+	private static final String[] REQUEST_HEADERS = { HttpHeaders.RANGE, HttpHeaders.IF_RANGE, HttpHeaders.IF_NONE_MATCH,
+			HttpHeaders.IF_MODIFIED_SINCE };
+	/** Headers of the upstream response that are sent with a 304 Not Modified */
+	private static final String[] NOT_MODIFIED_HEADERS = { HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED };
+	private static final String BYTES = "bytes";
+	private static final String CRLF = "\r\n";
+
+	/**
+	 * Streams the file at the upstream URL to the servlet response. Once this returns, the response has been written
+	 * and committed, or a cached file has been handed to the container to send.
+	 * 
+	 * @param url
+	 *            The upstream URL of the file
+	 * @param dataId
+	 *            The Id of the Data, used to cache the file
+	 * @param fileName
+	 *            The file name requested for the download, if any
+	 * @param request
+	 *            The client request, whose Range, If-Range and If-None-Match headers are honored
+	 * @param response
+	 *            The servlet response to write the file to
+	 * @return The number of bytes written
+	 * @throws RestClientException
+	 *             If the upstream request fails. If the upstream component returned an error status, the response has
+	 *             not yet been written, and the error can still be returned to the client.
+	 */
+	public long streamFile(String url, final String dataId, final String fileName, final HttpServletRequest request,
+			final HttpServletResponse response) throws RestClientException, IOException {
+		FileCache.CacheEntry cached = fileCache.lookup(dataId, fileName);
+		if (cached != null) {
+			long served = fileCache.serve(cached, request, response);
+			if (served >= 0) {
+				return served;
+			}
+		}
+		final String range = request.getHeader(HttpHeaders.RANGE);
+		return restTemplate.execute(url, HttpMethod.GET, new RequestCallback() {
+			@Override
+			public void doWithRequest(ClientHttpRequest upstreamRequest) throws IOException {
+				for (String header : REQUEST_HEADERS) {
+					String value = request.getHeader(header);
+					if (value != null) {
+						upstreamRequest.getHeaders().set(header, value);
+					}
+				}
+			}
+		}, new ResponseExtractor<Long>() {
+			@Override
+			public Long extractData(ClientHttpResponse upstream) throws IOException {
+				response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES);
+				if ((upstream.getStatusCode() == HttpStatus.OK) && isNotModified(request, upstream.getHeaders().getETag())) {
+					// The upstream component ignored the validator
+					response.setStatus(HttpStatus.NOT_MODIFIED.value());
+					copyHeaders(upstream.getHeaders(), NOT_MODIFIED_HEADERS, response);
+					return 0L;
+				}
+				if ((range != null) && (upstream.getStatusCode() == HttpStatus.OK)) {
+					// The upstream component ignored the range
+					return writeRanges(upstream, range, request.getHeader(HttpHeaders.IF_RANGE), response);
+				}
+				if (upstream.getStatusCode() == HttpStatus.OK) {
+					return writeAll(upstream, response, fileCache.begin(dataId, fileName, upstream.getHeaders()));
+				}
+				return writeAll(upstream, response, null);
+			}
+		});
+	}
+
+	/**
+	 * Passes the upstream response through to the client as-is.
+	 * 
+	 * @param cacheEntry
+	 *            If not null, the bytes are also written to this file cache entry
+	 */
+	private static long writeAll(ClientHttpResponse upstream, HttpServletResponse response, FileCache.PendingEntry cacheEntry)
+			throws IOException {
+		response.setStatus(upstream.getRawStatusCode());
+		copyHeaders(upstream.getHeaders(), FORWARDED_HEADERS, response);
+		if (cacheEntry == null) {
+			return copy(upstream.getBody(), response.getOutputStream());
+		}
+		try {
+			InputStream input = upstream.getBody();
+			OutputStream output = response.getOutputStream();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long total = 0;
+			int read;
+			while ((read = input.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+				total += read;
+				if (cacheEntry != null) {
+					try {
+						cacheEntry.write(buffer, 0, read);
+					} catch (IOException exception) {
+						// The download continues without being cached
+						cacheEntry.discard();
+						cacheEntry = null;
+					}
+				}
+			}
+			output.flush();
+			if (cacheEntry != null) {
+				cacheEntry.commit();
+			}
+			return total;
+		} finally {
+			if (cacheEntry != null) {
+				cacheEntry.discard();
+			}
+		}
+	}
+
+	/**
+	 * Writes the requested ranges of a full upstream response to the client as 206 Partial Content. The whole file is
+	 * written instead if the range cannot be applied: the range is malformed, the size of the file is not known, or the
+	 * If-Range validator does not match the file.
+	 */
+	private static long writeRanges(ClientHttpResponse upstream, String range, String ifRange, HttpServletResponse response)
+			throws IOException {
+		HttpHeaders headers = upstream.getHeaders();
+		long length = headers.getContentLength();
+		List<long[]> bounds;
+		try {
+			bounds = getBounds(HttpRange.parseRanges(range), length);
+		} catch (IllegalArgumentException exception) {
+			// Malformed ranges are ignored
+			return writeAll(upstream, response, null);
+		}
+		if ((length < 0) || !isIfRangeMatch(ifRange, headers)) {
+			return writeAll(upstream, response, null);
+		}
+		if (bounds.isEmpty()) {
+			response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+			response.setHeader(HttpHeaders.CONTENT_RANGE, String.format("%s */%s", BYTES, length));
+			return 0;
+		}
+
+		response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+		copyHeaders(headers, PARTIAL_FORWARDED_HEADERS, response);
+		String contentType = headers.getFirst(HttpHeaders.CONTENT_TYPE);
+		InputStream input = upstream.getBody();
+		OutputStream output = response.getOutputStream();
+		long position = 0;
+		long total = 0;
+		if (bounds.size() == 1) {
+			long[] single = bounds.get(0);
+			response.setHeader(HttpHeaders.CONTENT_RANGE, String.format("%s %s-%s/%s", BYTES, single[0], single[1], length));
+			response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(single[1] - single[0] + 1));
+			skip(input, single[0]);
+			total = copyRange(input, output, single[1] - single[0] + 1);
+		} else {
+			String boundary = UUID.randomUUID().toString();
+			response.setContentType(String.format("multipart/byteranges; boundary=%s", boundary));
+			for (long[] part : bounds) {
+				StringBuilder partHeader = new StringBuilder();
+				partHeader.append("--").append(boundary).append(CRLF);
+				if (contentType != null) {
+					partHeader.append(HttpHeaders.CONTENT_TYPE).append(": ").append(contentType).append(CRLF);
+				}
+				partHeader.append(HttpHeaders.CONTENT_RANGE).append(": ")
+						.append(String.format("%s %s-%s/%s", BYTES, part[0], part[1], length)).append(CRLF).append(CRLF);
+				output.write(partHeader.toString().getBytes(StandardCharsets.US_ASCII));
+				skip(input, part[0] - position);
+				total += copyRange(input, output, part[1] - part[0] + 1);
+				position = part[1] + 1;
+				output.write(CRLF.getBytes(StandardCharsets.US_ASCII));
+			}
+			output.write(String.format("--%s--%s", boundary, CRLF).getBytes(StandardCharsets.US_ASCII));
+		}
+		output.flush();
+		return total;
+	}
+
+	/**
+	 * Resolves the ranges against the length of the file, dropping unsatisfiable ranges. The ranges are sorted and
+	 * overlapping or adjacent ranges are merged, so that they can be cut from the file in a single pass.
+	 * 
+	 * @return The inclusive start and end offsets of each range
+	 */
+	private static List<long[]> getBounds(List<HttpRange> ranges, long length) {
+		List<long[]> bounds = new ArrayList<long[]>();
+		if (length < 0) {
+			return bounds;
+		}
+		for (HttpRange range : ranges) {
+			long start;
+			long end;
+			try {
+				start = range.getRangeStart(length);
+				end = range.getRangeEnd(length);
+			} catch (IllegalArgumentException exception) {
+				// Not satisfiable for this length
+				continue;
+			}
+			if ((start < length) && (start <= end)) {
+				bounds.add(new long[] { start, end });
+			}
+		}
+		Collections.sort(bounds, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] first, long[] second) {
+				return Long.compare(first[0], second[0]);
+			}
+		});
+		List<long[]> merged = new ArrayList<long[]>();
+		for (long[] bound : bounds) {
+			long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+			if ((last != null) && (bound[0] <= last[1] + 1)) {
+				last[1] = Math.max(last[1], bound[1]);
+			} else {
+				merged.add(bound);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Checks the If-None-Match header of the client request against the ETag of the file, using the weak comparison
+	 * that applies to If-None-Match.
+	 * 
+	 * @param request
+	 *            The client request
+	 * @param eTag
+	 *            The ETag of the file, if known
+	 * @return true if the client already has the file, and 304 Not Modified should be returned
+	 */
+	public static boolean isNotModified(HttpServletRequest request, String eTag) {
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if ((ifNoneMatch == null) || (eTag == null)) {
+			return false;
+		}
+		String opaqueTag = getOpaqueTag(eTag);
+		for (String candidate : ifNoneMatch.split(",")) {
+			String tag = candidate.trim();
+			if ("*".equals(tag) || getOpaqueTag(tag).equals(opaqueTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getOpaqueTag(String eTag) {
+		return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+	}
+
+	/**
+	 * Determines if the ranges should be applied. Per RFC 7233, the validator of an If-Range header must be a strong
+	 * match for the ETag of the file, or an exact match for its Last-Modified date.
+	 * 
+	 * @param ifRange
+	 *            The If-Range header of the client request, if any
+	 * @param headers
+	 *            The headers of the full upstream response
+	 * @return true if there is no If-Range condition, or it matches the file
+	 */
+	private static boolean isIfRangeMatch(String ifRange, HttpHeaders headers) {
+		if (ifRange == null) {
+			return true;
+		}
+		String eTag = headers.getETag();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return (eTag != null) && !eTag.startsWith("W/") && eTag.equals(ifRange);
+		}
+		return ifRange.equals(headers.getFirst(HttpHeaders.LAST_MODIFIED));
+	}
+
+	private static void skip(InputStream input, long count) throws IOException {
+		long remaining = count;
+		while (remaining > 0) {
+			long skipped = input.skip(remaining);
+			if (skipped <= 0) {
+				if (input.read() == -1) {
+					throw new IOException("The file ended before the requested range.");
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	/**
+	 * Copies exactly the specified number of bytes through a fixed-size buffer.
+	 */
+	private static long copyRange(InputStream input, OutputStream output, long count) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remaining = count;
+		while (remaining > 0) {
+			int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read == -1) {
+				throw new IOException("The file ended before the requested range.");
+			}
+			output.write(buffer, 0, read);
+			remaining -= read;
+		}
+		return count;
+	}
+
+	/**
+	 * Copies the specified headers of the upstream response to the servlet response.
+	 */
+	private static void copyHeaders(HttpHeaders headers, String[] names, HttpServletResponse response) {
+		for (String header : names) {
+			String value = headers.getFirst(header);
+			if (value != null) {
+				response.setHeader(header, value);
+			}
+		}
+	}
+
+	/**
+	 * Formats the content-disposition header that downloads a file under the given name. The name is quoted, with any
+	 * characters that cannot be quoted safely replaced, and is also given in full in the RFC 6266 filename* form.
+	 * 
+	 * @param fileName
+	 *            The name to download the file as
+	 * @return The header value
+	 */
+	public static String getContentDisposition(String fileName) {
+		StringBuilder quoted = new StringBuilder();
+		for (char character : fileName.toCharArray()) {
+			boolean unsafe = (character < 0x20) || (character > 0x7e) || (character == '"') || (character == '\\');
+			quoted.append(unsafe ? '_' : character);
+		}
+		try {
+			String encoded = URLEncoder.encode(fileName, StandardCharsets.UTF_8.name()).replace("+", "%20").replace("*", "%2A");
+			return String.format("attachment; filename=\"%s\"; filename*=UTF-8''%s", quoted, encoded);
+		} catch (UnsupportedEncodingException exception) {
+			throw new IllegalStateException(exception);
+		}
+	}
+
+	/**
+	 * Copies the stream through a fixed-size buffer.
+	 * 
+	 * @return The number of bytes copied
+	 */
+	public static long copy(InputStream input, OutputStream output) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long total = 0;
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			output.write(buffer, 0, read);
+			total += read;
+		}
+		output.flush();
+		return total;
+	}
+}
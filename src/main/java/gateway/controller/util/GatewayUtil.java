@@ -16,33 +16,32 @@
 package gateway.controller.util;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 
-import javax.annotation.PostConstruct;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.AmazonS3EncryptionClient;
-import com.amazonaws.services.s3.model.CryptoConfiguration;
-import com.amazonaws.services.s3.model.KMSEncryptionMaterialsProvider;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -59,7 +58,6 @@ import model.response.ErrorResponse;
 import model.response.JobResponse;
 import model.response.PiazzaResponse;
 import util.PiazzaLogger;
-import util.UUIDFactory;
 
 /**
  * Utility class that defines common procedures for handling requests, responses, and brokered end points to internal
@@ -73,66 +71,75 @@ public class GatewayUtil {
 	@Autowired
 	private ObjectMapper objectMapper;
 	@Autowired
-	private UUIDFactory uuidFactory;
+	private UuidPool uuidPool;
+	@Autowired
+	private LocalUuidGenerator localUuidGenerator;
+	@Autowired
+	private JobRequestPublisher jobRequestPublisher;
+	@Autowired
+	private JobOutbox jobOutbox;
+	@Autowired
+	private JobRequestCoalescer jobRequestCoalescer;
+	@Autowired
+	private JobStatusStream jobStatusStream;
 	@Autowired
 	private PiazzaLogger logger;
 	@Autowired
 	private RestTemplate restTemplate;
+	@Autowired
+	private ContentIndex contentIndex;
+	@Autowired
+	private AmazonS3 s3Client;
+	@Autowired
+	private UploadCompressor uploadCompressor;
 
 	@Value("${s3.domain}")
 	private String AMAZONS3_DOMAIN;
-	@Value("${s3.use.kms}")
-	private Boolean USE_KMS;
-	@Value("${vcap.services.pz-blobstore.credentials.access_key_id:}")
-	private String AMAZONS3_ACCESS_KEY;
-	@Value("${vcap.services.pz-blobstore.credentials.secret_access_key:}")
-	private String AMAZONS3_PRIVATE_KEY;
 	@Value("${vcap.services.pz-blobstore.credentials.bucket}")
 	private String AMAZONS3_BUCKET_NAME;
 	@Value("${jobmanager.url}")
 	private String JOBMANAGER_URL;
-	@Value("${vcap.services.pz-blobstore.credentials.encryption_key:}")
-	private String S3_KMS_CMK_ID;
 
 	private final static Logger LOG = LoggerFactory.getLogger(GatewayUtil.class);
-	private AmazonS3 s3Client;
-
-	/**
-	 * Initializing the components
-	 */
-	@PostConstruct
-	public void init() {
-		// Connect to S3 Bucket. Only apply credentials if they are present.
-		if ((AMAZONS3_ACCESS_KEY.isEmpty()) && (AMAZONS3_PRIVATE_KEY.isEmpty())) {
-			s3Client = new AmazonS3Client();
-		} else {
-			BasicAWSCredentials credentials = new BasicAWSCredentials(AMAZONS3_ACCESS_KEY, AMAZONS3_PRIVATE_KEY);
-			if (USE_KMS.booleanValue()) {
-				// Set up encryption using the KMS CMK Key
-				KMSEncryptionMaterialsProvider materialProvider = new KMSEncryptionMaterialsProvider(S3_KMS_CMK_ID);
-				s3Client = new AmazonS3EncryptionClient(credentials, materialProvider,
-						new CryptoConfiguration().withKmsRegion(Regions.US_EAST_1)).withRegion(Region.getRegion(Regions.US_EAST_1));
-			} else {
-				// No KMS.
-				s3Client = new AmazonS3Client(credentials);
-			}
-		}
-	}
+	private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+	/** The largest object S3 can copy in a single request */
+	private static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
 
 	/**
 	 * Sends a Job Request to the Job Manager. This will generate a Job Id and return it once the Job Manager has
-	 * indexed the Job into its database.
+	 * indexed the Job into its database. If the outbox is enabled and the Job Manager cannot be reached, the Job Id is
+	 * returned once the request is stored in the outbox, to be delivered when the Job Manager is available.
 	 * 
 	 * @param request
 	 *            The Job Request
 	 * @return The Job Id
 	 */
 	public String sendJobRequest(PiazzaJobRequest request, String jobId) throws PiazzaJobException {
+		String submittedJobId = forwardJobRequest(request, jobId);
+		// Follow the new Job on the Job Status streams of the user that submitted it
+		jobStatusStream.jobSubmitted(request.createdBy, submittedJobId);
+		return submittedJobId;
+	}
+
+	private String forwardJobRequest(PiazzaJobRequest request, String jobId) throws PiazzaJobException {
 
 		// Generate a Job Id
 		final String finalJobId = jobId == null ? getUuid() : jobId;
 
 		try {
+			if (jobRequestPublisher.isEnabled()) {
+				// Publish the request to the Job Manager's queue, and return once the broker has stored it
+				logger.log(
+						String.format("Publishing Job %s for user %s with Type %s", finalJobId, request.createdBy,
+								request.jobType.getClass().getSimpleName()),
+						Severity.INFORMATIONAL, new AuditElement(request.createdBy, "requestJob", finalJobId));
+				jobRequestPublisher.publish(request, finalJobId);
+				return finalJobId;
+			}
+			if (jobOutbox.isEnabled() && jobOutbox.hasPending()) {
+				// Queue behind the requests that are already waiting, so the Job Manager receives them in order
+				return appendToOutbox(request, finalJobId);
+			}
 			// Send the message to Job Manager
 			HttpHeaders headers = new HttpHeaders();
 			headers.setContentType(MediaType.APPLICATION_JSON);
@@ -142,14 +149,30 @@ public class GatewayUtil {
 					String.format("Forwarding Job %s for user %s with Type %s", finalJobId, request.createdBy,
 							request.jobType.getClass().getSimpleName()),
 					Severity.INFORMATIONAL, new AuditElement(request.createdBy, "requestJob", finalJobId));
-			ResponseEntity<PiazzaResponse> jobResponse = restTemplate
-					.postForEntity(String.format("%s/%s?jobId=%s", JOBMANAGER_URL, "requestJob", finalJobId), entity, PiazzaResponse.class);
+			PiazzaResponse jobResponse;
+			try {
+				if (jobRequestCoalescer.isEnabled()) {
+					// Sent to the Job Manager by the coalescer's senders, together with other concurrent requests
+					jobResponse = jobRequestCoalescer.send(request, finalJobId);
+				} else {
+					jobResponse = restTemplate.postForEntity(String.format("%s/%s?jobId=%s", JOBMANAGER_URL, "requestJob", finalJobId),
+							entity, PiazzaResponse.class).getBody();
+				}
+			} catch (ResourceAccessException | HttpServerErrorException unavailable) {
+				// Other server errors are how the Job Manager reports a request it could not process, which sending it again
+				// would not change
+				if (!jobOutbox.isEnabled() || !JobOutbox.isUnavailable(unavailable)) {
+					throw unavailable;
+				}
+				LOG.warn(String.format("Job Manager unavailable. Holding Job %s in the outbox.", finalJobId), unavailable);
+				return appendToOutbox(request, finalJobId);
+			}
 			// Check if the response was an error.
-			if (jobResponse.getBody() instanceof ErrorResponse) {
-				throw new PiazzaJobException(((ErrorResponse) jobResponse.getBody()).message);
+			if (jobResponse instanceof ErrorResponse) {
+				throw new PiazzaJobException(((ErrorResponse) jobResponse).message);
 			}
 			// Return the Job Id from the response.
-			return ((JobResponse) jobResponse.getBody()).data.getJobId();
+			return ((JobResponse) jobResponse).data.getJobId();
 		} catch (Exception exception) {
 			String error = String.format("Error with Job Manager when Requesting New Piazza Job: %s", exception.getMessage());
 			LOG.error(error, exception);
@@ -161,13 +184,29 @@ public class GatewayUtil {
 	}
 
 	/**
-	 * Gets a UUID from the Piazza UUID Factory.
+	 * Stores the Job Request in the outbox for later delivery to the Job Manager.
+	 * 
+	 * @return The Job Id
+	 */
+	private String appendToOutbox(PiazzaJobRequest request, String jobId) throws IOException {
+		jobOutbox.append(request, jobId);
+		logger.log(String.format("Held Job %s for user %s in the outbox", jobId, request.createdBy), Severity.INFORMATIONAL,
+				new AuditElement(request.createdBy, "outboxJob", jobId));
+		return jobId;
+	}
+
+	/**
+	 * Gets a UUID from the Piazza UUID Factory, by way of the pool of prefetched UUIDs. If local generation is enabled,
+	 * the UUID is instead created within the Gateway.
 	 * 
 	 * @return UUID
 	 */
 	public String getUuid() throws PiazzaJobException {
 		try {
-			return uuidFactory.getUUID();
+			if (localUuidGenerator.isEnabled()) {
+				return localUuidGenerator.getUuid();
+			}
+			return uuidPool.take();
 		} catch (Exception exception) {
 			String error = String.format("Could not connect to UUID Service for UUID: %s", exception.getMessage());
 			LOG.error(error, exception);
@@ -208,6 +247,10 @@ public class GatewayUtil {
 	 * of the job to reference the new S3 location of the file. This push will encrypt the file locally and push the
 	 * encrypted bytes - This process uses KMS encryption.
 	 * 
+	 * If upload deduplication is enabled, the SHA-256 digest of the file is computed first. If identical content has
+	 * already been pushed to the bucket, then the existing S3 file is copied to the key for this job within S3, and the
+	 * file is not written again. Data items never share an S3 file, so deleting one does not affect the others.
+	 * 
 	 * @param jobId
 	 *            The Id of the Job, used for generating a unique S3 bucket file name.
 	 * @param job
@@ -218,12 +261,49 @@ public class GatewayUtil {
 	 */
 	public IngestJob pushS3File(String jobId, IngestJob job, MultipartFile file)
 			throws AmazonServiceException, AmazonClientException, IOException {
+		// The key corresponds with the S3 file name.
+		String fileKey = String.format("%s-%s", jobId, file.getOriginalFilename());
+		String hash = null;
+		if (contentIndex.isEnabled()) {
+			hash = computeSha256(file);
+			ContentIndex.IndexEntry existing = contentIndex.lookup(hash);
+			if ((existing != null) && !(AMAZONS3_BUCKET_NAME.equals(existing.getBucketName()) && (existing.getFileSize() == file.getSize())
+					&& s3Client.doesObjectExist(existing.getBucketName(), existing.getFileKey()))) {
+				// The indexed object is gone, or was stored elsewhere. Drop the stale entry.
+				contentIndex.remove(hash);
+				existing = null;
+			}
+			if ((existing != null) && (file.getSize() <= MAX_COPY_SIZE)) {
+				// Identical content is already stored. Copy it within the bucket instead of writing the bytes again. Each
+				// Data item gets its own object, since its object is deleted along with it.
+				s3Client.copyObject(AMAZONS3_BUCKET_NAME, existing.getFileKey(), AMAZONS3_BUCKET_NAME, fileKey);
+				contentIndex.recordHit(file.getSize());
+				FileLocation fileLocation = new S3FileStore(AMAZONS3_BUCKET_NAME, fileKey, file.getSize(), AMAZONS3_DOMAIN);
+				((FileRepresentation) job.getData().getDataType()).setLocation(fileLocation);
+				logger.log(String.format("S3 File for Job %s Copied from existing %s:%s to %s", jobId, AMAZONS3_BUCKET_NAME,
+						existing.getFileKey(), fileKey), Severity.INFORMATIONAL, new AuditElement(jobId, "dedupS3File", fileKey));
+				return job;
+			}
+			contentIndex.recordMiss();
+		}
 		// The content length must be specified.
 		ObjectMetadata metadata = new ObjectMetadata();
 		metadata.setContentLength(file.getSize());
-		// Send the file to S3. The key corresponds with the S3 file name.
-		String fileKey = String.format("%s-%s", jobId, file.getOriginalFilename());
-		s3Client.putObject(AMAZONS3_BUCKET_NAME, fileKey, file.getInputStream(), metadata);
+		// Send the file to S3.
+		Path compressed = uploadCompressor.shouldCompress(file.getOriginalFilename())
+				? uploadCompressor.compressToFile(file.getInputStream(), file.getSize(), metadata) : null;
+		if (compressed != null) {
+			try (InputStream inputStream = Files.newInputStream(compressed)) {
+				s3Client.putObject(AMAZONS3_BUCKET_NAME, fileKey, inputStream, metadata);
+			} finally {
+				Files.deleteIfExists(compressed);
+			}
+		} else {
+			s3Client.putObject(AMAZONS3_BUCKET_NAME, fileKey, file.getInputStream(), metadata);
+		}
+		if (hash != null) {
+			contentIndex.register(hash, AMAZONS3_BUCKET_NAME, fileKey, file.getSize());
+		}
 		// Note the S3 file path in the Ingest Job.
 		// Attach the file to the FileLocation object
 		FileLocation fileLocation = new S3FileStore(AMAZONS3_BUCKET_NAME, fileKey, file.getSize(), AMAZONS3_DOMAIN);
@@ -233,6 +313,46 @@ public class GatewayUtil {
 		return job;
 	}
 
+	/**
+	 * Computes the SHA-256 digest of an uploaded file by streaming through its bytes with a fixed size buffer. The file
+	 * is never held in memory in its entirety.
+	 * 
+	 * @param file
+	 *            The uploaded file
+	 * @return The hex-encoded digest
+	 */
+	public String computeSha256(MultipartFile file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException exception) {
+			throw new IOException("SHA-256 is not supported by this JVM.", exception);
+		}
+		byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+		try (InputStream inputStream = new DigestInputStream(file.getInputStream(), digest)) {
+			while (inputStream.read(buffer) != -1) {
+				// Reading updates the digest
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Hex-encodes the bytes of a digest.
+	 * 
+	 * @param bytes
+	 *            The digest bytes
+	 * @return Lower-case hex string
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte value : bytes) {
+			hex.append(Character.forDigit((value >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(value & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
 	/**
 	 * Validates Pagination Inputs for List requests
 	 * 
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.security.Principal;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.util.IdempotencyStore.Claim;
+import gateway.controller.util.IdempotencyStore.StoredResponse;
+import model.response.ErrorResponse;
+
+/**
+ * Applies Idempotency-Key headers to the POST requests that create Jobs. The first request with a key is processed
+ * normally and its response is recorded; a repeat of the request with the same key, by the same user, receives the
+ * recorded response instead of creating another Job.
+ */
+public class IdempotencyFilter extends OncePerRequestFilter {
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+	private static final int MAX_KEY_LENGTH = 255;
+	private static final String GATEWAY = "Gateway";
+
+	private final IdempotencyStore idempotencyStore;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	public IdempotencyFilter(IdempotencyStore idempotencyStore) {
+		this.idempotencyStore = idempotencyStore;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		String key = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+		if (!"POST".equals(request.getMethod()) || (key == null) || key.isEmpty()) {
+			filterChain.doFilter(request, response);
+			return;
+		}
+		if (key.length() > MAX_KEY_LENGTH) {
+			writeError(response, HttpStatus.BAD_REQUEST,
+					String.format("The %s header may not be longer than %s characters.", IDEMPOTENCY_KEY_HEADER, MAX_KEY_LENGTH));
+			return;
+		}
+		Principal principal = request.getUserPrincipal();
+		String target = String.format("%s %s", request.getMethod(), request.getRequestURI());
+		Claim claim = idempotencyStore.claim(principal != null ? principal.getName() : "UNAUTHENTICATED", key, target);
+
+		if (!claim.isNew()) {
+			replay(claim, target, response);
+			return;
+		}
+
+		// Process the request, keeping a copy of the response to answer any repeats with
+		ContentCachingResponseWrapper responseWrapper = new ContentCachingResponseWrapper(response);
+		StoredResponse stored = null;
+		try {
+			filterChain.doFilter(request, responseWrapper);
+			stored = new StoredResponse(responseWrapper.getStatusCode(), responseWrapper.getContentType(),
+					responseWrapper.getContentAsByteArray());
+		} finally {
+			idempotencyStore.complete(claim, stored);
+			responseWrapper.copyBodyToResponse();
+		}
+	}
+
+	/**
+	 * Answers a repeated request with the response to the original.
+	 */
+	private void replay(Claim claim, String target, HttpServletResponse response) throws IOException {
+		if (!claim.matches(target)) {
+			writeError(response, HttpStatus.UNPROCESSABLE_ENTITY,
+					String.format("The %s was already used for a different request.", IDEMPOTENCY_KEY_HEADER));
+			return;
+		}
+		StoredResponse stored;
+		try {
+			stored = idempotencyStore.await(claim);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			stored = null;
+		}
+		if (stored == null) {
+			writeError(response, HttpStatus.CONFLICT, String
+					.format("The original request with this %s did not complete. Please try again.", IDEMPOTENCY_KEY_HEADER));
+			return;
+		}
+		response.setStatus(stored.getStatus());
+		if (stored.getContentType() != null) {
+			response.setContentType(stored.getContentType());
+		}
+		response.setHeader(REPLAYED_HEADER, "true");
+		response.setContentLength(stored.getBody().length);
+		response.getOutputStream().write(stored.getBody());
+	}
+
+	private void writeError(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+		byte[] body = objectMapper.writeValueAsBytes(new ErrorResponse(message, GATEWAY));
+		response.setStatus(status.value());
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded store of the responses to Job-creating requests that carried an Idempotency-Key header, keyed by the user and
+ * the key. A repeated request is answered with the stored response rather than creating a second Job, and a repeat that
+ * arrives while the first request is still running waits for its response.
+ * 
+ * Only successful responses are kept, for the configured time after they complete. A failed request releases its key
+ * so that the client can retry it. When the store is full, the oldest completed keys are dropped first. Keys held by
+ * requests that are still running are never dropped, since a repeat would then create a second Job; the store may hold
+ * more than the maximum while that many requests are running at once.
+ */
+@Component
+public class IdempotencyStore {
+	@Value("${idempotency.ttl.minutes}")
+	private long ttlMinutes;
+	@Value("${idempotency.max.entries}")
+	private int maxEntries;
+	@Value("${idempotency.wait.seconds}")
+	private long waitSeconds;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final AtomicLong claims = new AtomicLong();
+	private final AtomicLong replays = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong mismatches = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Claims the key for a new request, or finds the request that already holds it.
+	 * 
+	 * @param user
+	 *            The user making the request
+	 * @param key
+	 *            The value of the Idempotency-Key header
+	 * @param target
+	 *            The method and path of the request. A key may only be reused for the same target.
+	 * @return The claim. If the claim is not new, the caller should answer with {@link #await(Claim)} instead of
+	 *         processing the request.
+	 */
+	public Claim claim(String user, String key, String target) {
+		String id = String.format("%s\n%s", user, key);
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			purgeExpired(now);
+			Entry entry = entries.get(id);
+			if ((entry != null) && (entry.expiresAt > now)) {
+				if (!entry.target.equals(target)) {
+					mismatches.incrementAndGet();
+				} else if (entry.response.isDone()) {
+					replays.incrementAndGet();
+				} else {
+					waits.incrementAndGet();
+				}
+				return new Claim(id, entry, false);
+			}
+			if (entries.size() >= maxEntries) {
+				evictCompleted(entries.size() - maxEntries + 1);
+			}
+			entry = new Entry(target);
+			entries.put(id, entry);
+			claims.incrementAndGet();
+			return new Claim(id, entry, true);
+		}
+	}
+
+	/**
+	 * Records the response to a claimed request, and releases any requests waiting on it.
+	 * 
+	 * @param claim
+	 *            The new claim made for the request
+	 * @param response
+	 *            The response, or null if the request failed without one
+	 */
+	public void complete(Claim claim, StoredResponse response) {
+		boolean keep = (response != null) && (response.getStatus() >= 200) && (response.getStatus() < 300);
+		synchronized (entries) {
+			if (keep) {
+				claim.entry.expiresAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(ttlMinutes);
+			} else if (entries.get(claim.id) == claim.entry) {
+				entries.remove(claim.id);
+			}
+		}
+		claim.entry.response.complete(response);
+	}
+
+	/**
+	 * Waits for the response to the request that holds the key.
+	 * 
+	 * @param claim
+	 *            A claim that was not new
+	 * @return The response to the original request, or null if it ended without a response or did not finish within
+	 *         the wait time
+	 */
+	public StoredResponse await(Claim claim) throws InterruptedException {
+		try {
+			return claim.entry.response.get(waitSeconds, TimeUnit.SECONDS);
+		} catch (ExecutionException | TimeoutException exception) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		synchronized (entries) {
+			stats.put("entries", entries.size());
+		}
+		stats.put("claims", claims.get());
+		stats.put("replays", replays.get());
+		stats.put("waits", waits.get());
+		stats.put("mismatches", mismatches.get());
+		stats.put("evictions", evictions.get());
+		return stats;
+	}
+
+	/**
+	 * Removes expired entries from the front of the store. Completed entries expire in roughly the order they were
+	 * added, so this stops at the first completed entry that has not expired. In-flight entries are passed over.
+	 */
+	private void purgeExpired(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.expiresAt <= now) {
+				iterator.remove();
+			} else if (entry.response.isDone()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes the oldest completed entries to make room, leaving the keys of in-flight requests in place.
+	 * 
+	 * @param count
+	 *            The number of entries to remove
+	 */
+	private void evictCompleted(int count) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		int evicted = 0;
+		while ((evicted < count) && iterator.hasNext()) {
+			if (iterator.next().response.isDone()) {
+				iterator.remove();
+				evicted++;
+			}
+		}
+		evictions.addAndGet(evicted);
+	}
+
+	/**
+	 * A key held by a request
+	 */
+	private static class Entry {
+		private final String target;
+		private final CompletableFuture<StoredResponse> response = new CompletableFuture<StoredResponse>();
+		/** In-flight requests do not expire */
+		private volatile long expiresAt = Long.MAX_VALUE;
+
+		private Entry(String target) {
+			this.target = target;
+		}
+	}
+
+	/**
+	 * The result of claiming a key for a request
+	 */
+	public static class Claim {
+		private final String id;
+		private final Entry entry;
+		private final boolean isNew;
+
+		private Claim(String id, Entry entry, boolean isNew) {
+			this.id = id;
+			this.entry = entry;
+			this.isNew = isNew;
+		}
+
+		/**
+		 * @return True if this request holds the key and should be processed
+		 */
+		public boolean isNew() {
+			return isNew;
+		}
+
+		/**
+		 * @param target
+		 *            The method and path of the current request
+		 * @return True if the key is held by a request to the same target
+		 */
+		public boolean matches(String target) {
+			return entry.target.equals(target);
+		}
+	}
+
+	/**
+	 * The status, content type and body of a response
+	 */
+	public static class StoredResponse {
+		private final int status;
+		private final String contentType;
+		private final byte[] body;
+
+		public StoredResponse(int status, String contentType, byte[] body) {
+			this.status = status;
+			this.contentType = contentType;
+			this.body = body;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+	}
+}
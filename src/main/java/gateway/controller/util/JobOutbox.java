@@ -0,0 +1,592 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import model.logger.AuditElement;
+import model.logger.Severity;
+import model.request.PiazzaJobRequest;
+import model.response.ErrorResponse;
+import model.response.PiazzaResponse;
+import util.PiazzaLogger;
+
+/**
+ * Local write-ahead outbox for Job Requests that cannot be delivered to the Job Manager. The request is written to an
+ * append-only journal on local disk and the caller is given its Job Id. A background dispatcher then sends the journaled
+ * requests to the Job Manager in the order they were accepted, backing off while the Job Manager is unavailable.
+ * 
+ * Appends are made durable in groups: a single writer thread writes every record that is waiting and then forces the
+ * journal to disk once for all of them, so the cost of the sync is shared by concurrent requests. Each record carries
+ * the Job Id assigned when the request was accepted, so a request that is sent again after a restart creates the same
+ * Job rather than a new one. The dispatcher's position is checkpointed next to the journal, and the journal is emptied
+ * once every record in it has been delivered.
+ * 
+ * A request is retried for as long as the Job Manager cannot be reached or answers that it is unavailable. Any other
+ * failure counts towards the maximum attempts for the request, after which it is given up on and logged as failed, as
+ * a request the Job Manager rejects is, so that one bad request does not hold back the requests behind it.
+ * 
+ * The journal must be on a disk that survives a restart of the Gateway, so job.outbox.path has no default. The outbox
+ * stays disabled if it is not set.
+ */
+@Component
+public class JobOutbox {
+	@Autowired
+	private ObjectMapper objectMapper;
+	@Autowired
+	private RestTemplate restTemplate;
+	@Autowired
+	private PiazzaLogger logger;
+
+	@Value("${job.outbox.enabled}")
+	private boolean enabled;
+	@Value("${job.outbox.path}")
+	private String outboxPath;
+	@Value("${job.outbox.retry.initial.ms}")
+	private long retryInitialMillis;
+	@Value("${job.outbox.retry.max.ms}")
+	private long retryMaxMillis;
+	@Value("${job.outbox.append.timeout.ms}")
+	private long appendTimeoutMillis;
+	@Value("${job.outbox.max.attempts}")
+	private int maxAttempts;
+	@Value("${jobmanager.url}")
+	private String JOBMANAGER_URL;
+
+	private static final Logger LOG = LoggerFactory.getLogger(JobOutbox.class);
+	private static final String JOURNAL_FILE = "requests.journal";
+	private static final String OFFSET_FILE = "requests.offset";
+	/** Record length and CRC32 of the record */
+	private static final int RECORD_HEADER_BYTES = 8;
+	private static final String FIELD_DELIMITER = "\n";
+
+	private final BlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<PendingWrite>();
+	/** Held while the journal is written or emptied */
+	private final ReentrantLock journalLock = new ReentrantLock();
+	private final Object appended = new Object();
+	private final AtomicInteger pendingEntries = new AtomicInteger();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong abandoned = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+	private Path journalPath;
+	private Path offsetPath;
+	private FileChannel journal;
+	/** The end of the records that have been forced to disk */
+	private volatile long durableEnd;
+	/** The start of the first record that has not been delivered */
+	private volatile long dispatchOffset;
+	private Thread writer;
+	private Thread dispatcher;
+	private volatile boolean stopped;
+
+	/**
+	 * Recovers the journal from disk, if one exists, and starts delivering any requests left in it.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		if (outboxPath.trim().isEmpty()) {
+			LOG.error("job.outbox.path must be set to a persistent directory to use the Job outbox. The outbox is disabled.");
+			enabled = false;
+			return;
+		}
+		try {
+			Path directory = Paths.get(outboxPath).toAbsolutePath().normalize();
+			if (directory.startsWith(Paths.get(System.getProperty("java.io.tmpdir")).toAbsolutePath().normalize())) {
+				LOG.warn("The Job outbox at {} is in the temporary directory. Requests held in it are lost if the directory does "
+						+ "not survive a restart.", directory);
+			}
+			Files.createDirectories(directory);
+			journalPath = directory.resolve(JOURNAL_FILE);
+			offsetPath = directory.resolve(OFFSET_FILE);
+			journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			recover();
+			LOG.info("Recovered {} undelivered Job Requests from the outbox at {}", pendingEntries.get(), outboxPath);
+		} catch (IOException exception) {
+			// Without the outbox, requests fail immediately while the Job Manager is unavailable, as they otherwise would.
+			LOG.error(String.format("Could not open the Job outbox at %s. The outbox is disabled.", outboxPath), exception);
+			enabled = false;
+			return;
+		}
+		writer = startThread("job-outbox-writer", new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		});
+		dispatcher = startThread("job-outbox-dispatcher", new Runnable() {
+			@Override
+			public void run() {
+				dispatchLoop();
+			}
+		});
+	}
+
+	/**
+	 * Stops the background threads and closes the journal. Undelivered requests are sent after the next start.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		stopped = true;
+		for (Thread thread : new Thread[] { writer, dispatcher }) {
+			if (thread != null) {
+				thread.interrupt();
+				try {
+					thread.join(1000);
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		PendingWrite write;
+		while ((write = writeQueue.poll()) != null) {
+			write.future.completeExceptionally(new IOException("The Job outbox is shutting down."));
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException exception) {
+				LOG.error("Error closing the Job outbox journal.", exception);
+			}
+		}
+	}
+
+	/**
+	 * @return True if requests may be held in the outbox while the Job Manager is unavailable
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return True if there are accepted requests that have not yet been delivered. New requests should be added behind
+	 *         them, so that the Job Manager receives requests in the order they were accepted.
+	 */
+	public boolean hasPending() {
+		return pendingEntries.get() > 0;
+	}
+
+	/**
+	 * Determines if a failed request to the Job Manager failed because the Job Manager is unavailable, so that the
+	 * request can be held in the outbox and sent again later.
+	 * 
+	 * @param exception
+	 *            The failure of the request
+	 * @return True if the Job Manager could not be reached, or answered that it is unavailable
+	 */
+	public static boolean isUnavailable(RestClientException exception) {
+		return (exception instanceof ResourceAccessException) || ((exception instanceof HttpServerErrorException)
+				&& HttpStatus.SERVICE_UNAVAILABLE.equals(((HttpServerErrorException) exception).getStatusCode()));
+	}
+
+	/**
+	 * Adds the request to the outbox, and waits until it has been written durably to disk. If the write does not
+	 * complete within the append timeout, it is withdrawn and the request is not accepted.
+	 * 
+	 * @param request
+	 *            The Job Request
+	 * @param jobId
+	 *            The Id assigned to the Job
+	 */
+	public void append(PiazzaJobRequest request, String jobId) throws IOException {
+		if (stopped) {
+			throw new IOException("The Job outbox is shutting down.");
+		}
+		String record = String.join(FIELD_DELIMITER, jobId, request.createdBy, objectMapper.writeValueAsString(request));
+		PendingWrite write = new PendingWrite(encode(record.getBytes(StandardCharsets.UTF_8)));
+		writeQueue.add(write);
+		try {
+			write.future.get(appendTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException exception) {
+			timedOut.incrementAndGet();
+			if (write.claimed.compareAndSet(false, true)) {
+				throw new IOException(String.format("Timed out writing Job %s to the outbox. The Job was not accepted.", jobId));
+			}
+			// The writer has already taken the record, and is waiting on the disk
+			throw new IOException(String.format("Timed out writing Job %s to the outbox. The Job may still be delivered.", jobId));
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new IOException(String.format("Interrupted while writing Job %s to the outbox.", jobId));
+		} catch (ExecutionException exception) {
+			throw new IOException(String.format("Could not write Job %s to the outbox.", jobId), exception.getCause());
+		}
+		accepted.incrementAndGet();
+	}
+
+	/**
+	 * @return Outbox statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		long syncCount = syncs.get();
+		stats.put("enabled", enabled);
+		stats.put("pending", pendingEntries.get());
+		stats.put("journalBytes", durableEnd);
+		stats.put("accepted", accepted.get());
+		stats.put("dispatched", dispatched.get());
+		stats.put("rejected", rejected.get());
+		stats.put("retries", retries.get());
+		stats.put("abandoned", abandoned.get());
+		stats.put("timedOut", timedOut.get());
+		stats.put("syncs", syncCount);
+		stats.put("averageSyncBatch", syncCount > 0 ? (double) accepted.get() / syncCount : 0);
+		return stats;
+	}
+
+	/**
+	 * Writes every waiting record, then forces them to disk together.
+	 */
+	private void writeLoop() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				batch.add(writeQueue.take());
+			} catch (InterruptedException exception) {
+				break;
+			}
+			writeQueue.drainTo(batch);
+			Iterator<PendingWrite> iterator = batch.iterator();
+			while (iterator.hasNext()) {
+				if (!iterator.next().claimed.compareAndSet(false, true)) {
+					// Withdrawn by a request that timed out waiting
+					iterator.remove();
+				}
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+			IOException failure = null;
+			journalLock.lock();
+			try {
+				long position = durableEnd;
+				for (PendingWrite write : batch) {
+					while (write.record.hasRemaining()) {
+						position += journal.write(write.record, position);
+					}
+				}
+				journal.force(false);
+				syncs.incrementAndGet();
+				durableEnd = position;
+				pendingEntries.addAndGet(batch.size());
+			} catch (IOException exception) {
+				failure = exception;
+				discardPartialWrite();
+			} finally {
+				journalLock.unlock();
+			}
+			for (PendingWrite write : batch) {
+				if (failure == null) {
+					write.future.complete(null);
+				} else {
+					write.future.completeExceptionally(failure);
+				}
+			}
+			batch.clear();
+			synchronized (appended) {
+				appended.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Delivers journaled requests in order. A request is retried with increasing delays until the Job Manager accepts
+	 * or rejects it, or until it has failed the maximum number of times for reasons other than the Job Manager being
+	 * unavailable.
+	 */
+	private void dispatchLoop() {
+		long backoff = retryInitialMillis;
+		int failures = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				if (dispatchOffset >= durableEnd) {
+					emptyIfDelivered();
+					synchronized (appended) {
+						if (dispatchOffset >= durableEnd) {
+							appended.wait(1000);
+						}
+					}
+					continue;
+				}
+				ByteBuffer record = read(dispatchOffset);
+				String contents = new String(record.array(), StandardCharsets.UTF_8);
+				try {
+					if (dispatch(contents)) {
+						dispatched.incrementAndGet();
+					} else {
+						rejected.incrementAndGet();
+					}
+				} catch (RestClientException exception) {
+					if (isUnavailable(exception) || (++failures < maxAttempts)) {
+						throw exception;
+					}
+					LOG.error(String.format("Giving up on a Job Request from the outbox after %s failed attempts.", failures),
+							exception);
+					logFailure(contents);
+					abandoned.incrementAndGet();
+				}
+				dispatchOffset += RECORD_HEADER_BYTES + record.capacity();
+				writeOffset(dispatchOffset);
+				pendingEntries.decrementAndGet();
+				backoff = retryInitialMillis;
+				failures = 0;
+			} catch (InterruptedException exception) {
+				break;
+			} catch (Exception exception) {
+				// Try the same request again later
+				retries.incrementAndGet();
+				LOG.warn(String.format("Could not deliver a Job Request from the outbox. Retrying in %s ms.", backoff), exception);
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					break;
+				}
+				backoff = Math.min(backoff * 2, retryMaxMillis);
+			}
+		}
+	}
+
+	/**
+	 * Sends a journaled request to the Job Manager.
+	 * 
+	 * @return True if the Job Manager accepted the request, false if it rejected it
+	 */
+	private boolean dispatch(String record) {
+		String[] fields = record.split(FIELD_DELIMITER, 3);
+		String jobId = fields[0];
+		String createdBy = fields[1];
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		try {
+			ResponseEntity<PiazzaResponse> jobResponse = restTemplate.postForEntity(
+					String.format("%s/%s?jobId=%s", JOBMANAGER_URL, "requestJob", jobId), new HttpEntity<String>(fields[2], headers),
+					PiazzaResponse.class);
+			if (!(jobResponse.getBody() instanceof ErrorResponse)) {
+				logger.log(String.format("Delivered Job %s for user %s from the outbox", jobId, createdBy), Severity.INFORMATIONAL,
+						new AuditElement(createdBy, "requestJob", jobId));
+				return true;
+			}
+			LOG.error("Job Manager rejected Job {} from the outbox: {}", jobId, ((ErrorResponse) jobResponse.getBody()).message);
+		} catch (HttpClientErrorException exception) {
+			// Sending the request again would not change the outcome
+			LOG.error("Job Manager rejected Job {} from the outbox: {}", jobId, exception.getResponseBodyAsString());
+		}
+		logFailure(record);
+		return false;
+	}
+
+	/**
+	 * Logs that a journaled request will not be delivered.
+	 */
+	private void logFailure(String record) {
+		String[] fields = record.split(FIELD_DELIMITER, 3);
+		logger.log(String.format("Job Request from the outbox failed for Job %s", fields[0]), Severity.ERROR,
+				new AuditElement(fields[1], "failedRequestJob", fields[0]));
+	}
+
+	/**
+	 * Empties the journal if every record in it has been delivered, so that it does not grow without bound.
+	 */
+	private void emptyIfDelivered() throws IOException {
+		if (durableEnd == 0) {
+			return;
+		}
+		journalLock.lock();
+		try {
+			if (dispatchOffset == durableEnd) {
+				writeOffset(0);
+				journal.truncate(0);
+				journal.force(false);
+				durableEnd = 0;
+				dispatchOffset = 0;
+			}
+		} finally {
+			journalLock.unlock();
+		}
+	}
+
+	/**
+	 * Finds the end of the complete records in the journal, dropping any record that was only partly written when the
+	 * Gateway stopped, and counts the records that were not yet delivered.
+	 */
+	private void recover() throws IOException {
+		long offset = 0;
+		if (Files.exists(offsetPath)) {
+			try {
+				offset = Long.parseLong(new String(Files.readAllBytes(offsetPath), StandardCharsets.UTF_8).trim());
+			} catch (NumberFormatException exception) {
+				// Deliver everything again; the Job Ids do not change
+				LOG.warn("Ignoring an unreadable Job outbox checkpoint.");
+			}
+		}
+		long position = 0;
+		int undelivered = 0;
+		ByteBuffer record;
+		while ((record = read(position)) != null) {
+			if (position >= offset) {
+				undelivered++;
+			}
+			position += RECORD_HEADER_BYTES + record.capacity();
+		}
+		if (position < journal.size()) {
+			LOG.warn("Discarding {} bytes of incomplete records from the end of the Job outbox.", journal.size() - position);
+			journal.truncate(position);
+		}
+		durableEnd = position;
+		dispatchOffset = offset <= position ? offset : position;
+		pendingEntries.set(undelivered);
+	}
+
+	/**
+	 * Reads the record at the specified position.
+	 * 
+	 * @return The contents of the record, or null if there is no complete record at the position
+	 */
+	private ByteBuffer read(long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		if (!readFully(header, position)) {
+			return null;
+		}
+		header.flip();
+		int length = header.getInt();
+		int checksum = header.getInt();
+		if ((length <= 0) || (length > journal.size() - position - RECORD_HEADER_BYTES)) {
+			return null;
+		}
+		ByteBuffer record = ByteBuffer.allocate(length);
+		if (!readFully(record, position + RECORD_HEADER_BYTES) || (checksum(record.array()) != checksum)) {
+			return null;
+		}
+		return record;
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (journal.read(buffer, position + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drops whatever part of a failed batch reached the journal, so that the next batch is written after the last
+	 * complete record.
+	 */
+	private void discardPartialWrite() {
+		try {
+			journal.truncate(durableEnd);
+		} catch (IOException exception) {
+			LOG.error("Could not discard a failed write from the Job outbox journal.", exception);
+		}
+	}
+
+	/**
+	 * Records the position of the first undelivered request. This is not forced to disk; after a crash, requests since
+	 * the last checkpoint are sent again under the same Job Ids.
+	 */
+	private void writeOffset(long offset) throws IOException {
+		Path temp = offsetPath.resolveSibling(OFFSET_FILE + ".tmp");
+		Files.write(temp, Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, offsetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static ByteBuffer encode(byte[] record) {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + record.length);
+		buffer.putInt(record.length);
+		buffer.putInt(checksum(record));
+		buffer.put(record);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+
+	private static Thread startThread(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * A record waiting to be written to the journal
+	 */
+	private static class PendingWrite {
+		private final ByteBuffer record;
+		private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		/** Set by the writer when it takes the record, or by the request when it withdraws it */
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		private PendingWrite(ByteBuffer record) {
+			this.record = record;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import exception.PiazzaJobException;
+import model.request.PiazzaJobRequest;
+import model.response.PiazzaResponse;
+
+/**
+ * Coalesces concurrent Job Requests into batches, and sends each batch to the Job Manager from a fixed pool of sender
+ * threads. A request waits at most the linger time for others to join it, and a batch is handed off as soon as it
+ * reaches the maximum size, so a lone request is delayed only by the linger time.
+ * 
+ * The Job Manager accepts one Job per request, so the Jobs of a batch are fanned out over the senders, each posting to
+ * /requestJob over the pooled connections of the RestTemplate. However many request threads are submitting Jobs, the
+ * Job Manager then sees at most one connection per sender, each kept alive and reused. Each caller receives the
+ * response for its own Job, or the error that failed it.
+ */
+@Component
+public class JobRequestCoalescer {
+	@Autowired
+	private RestTemplate restTemplate;
+
+	@Value("${job.coalesce.enabled}")
+	private boolean enabled;
+	@Value("${job.coalesce.max.batch}")
+	private int maxBatch;
+	@Value("${job.coalesce.linger.ms}")
+	private long lingerMillis;
+	@Value("${job.coalesce.senders}")
+	private int senders;
+	@Value("${jobmanager.url}")
+	private String JOBMANAGER_URL;
+
+	private final BlockingQueue<PendingJob> queue = new LinkedBlockingQueue<PendingJob>();
+	private final AtomicLong jobs = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong fullBatches = new AtomicLong();
+	private final AtomicLong failedJobs = new AtomicLong();
+	private final AtomicLong sendNanos = new AtomicLong();
+	private Thread collector;
+	private ExecutorService senderExecutor;
+	private volatile boolean stopped;
+
+	/**
+	 * Starts collecting requests into batches.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		senderExecutor = Executors.newFixedThreadPool(senders, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("job-coalesce-send-%s", threadCount.incrementAndGet()));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		collector = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				collect();
+			}
+		}, "job-coalesce-collect");
+		collector.setDaemon(true);
+		collector.start();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		stopped = true;
+		if (collector != null) {
+			collector.interrupt();
+		}
+		if (senderExecutor != null) {
+			// Jobs already handed to the senders are still sent, so that their callers are answered
+			senderExecutor.shutdown();
+		}
+		PendingJob job;
+		while ((job = queue.poll()) != null) {
+			job.future.completeExceptionally(new IllegalStateException("The Gateway is shutting down."));
+		}
+	}
+
+	/**
+	 * @return True if Job Requests should be sent through the coalescer
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sends the Job Request as part of the next batch, and waits for the Job Manager's response to it.
+	 * 
+	 * @param request
+	 *            The Job Request
+	 * @param jobId
+	 *            The Id of the Job
+	 * @return The Job Manager's response for this Job
+	 */
+	public PiazzaResponse send(PiazzaJobRequest request, String jobId) throws PiazzaJobException {
+		PendingJob job = new PendingJob(jobId, request);
+		queue.add(job);
+		if (stopped && queue.remove(job)) {
+			// Not collected before the shutdown emptied the queue
+			throw new PiazzaJobException("The Gateway is shutting down.");
+		}
+		try {
+			return job.future.get();
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new PiazzaJobException(String.format("Interrupted while sending Job %s.", jobId));
+		} catch (ExecutionException exception) {
+			if (exception.getCause() instanceof RuntimeException) {
+				// Surface the original failure, so that callers can tell an unavailable Job Manager from other errors
+				throw (RuntimeException) exception.getCause();
+			}
+			throw new PiazzaJobException(exception.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * @return Coalescing statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		long batchCount = batches.get();
+		long jobCount = jobs.get();
+		stats.put("enabled", enabled);
+		stats.put("queued", queue.size());
+		stats.put("jobs", jobCount);
+		stats.put("batches", batchCount);
+		stats.put("fullBatches", fullBatches.get());
+		stats.put("failedJobs", failedJobs.get());
+		stats.put("averageBatchSize", batchCount > 0 ? (double) jobCount / batchCount : 0);
+		stats.put("averageSendMillis", jobCount > 0 ? TimeUnit.NANOSECONDS.toMillis(sendNanos.get() / jobCount) : 0);
+		return stats;
+	}
+
+	/**
+	 * Gathers waiting requests into batches, and fans the Jobs of each batch out to the senders.
+	 */
+	private void collect() {
+		while (!Thread.currentThread().isInterrupted()) {
+			List<PendingJob> batch = new ArrayList<PendingJob>(maxBatch);
+			try {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+				while (batch.size() < maxBatch) {
+					queue.drainTo(batch, maxBatch - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if ((batch.size() >= maxBatch) || (remaining <= 0)) {
+						break;
+					}
+					PendingJob job = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (job == null) {
+						break;
+					}
+					batch.add(job);
+				}
+				batches.incrementAndGet();
+				if (batch.size() >= maxBatch) {
+					fullBatches.incrementAndGet();
+				}
+				for (int i = 0; i < batch.size(); i++) {
+					final PendingJob job = batch.get(i);
+					senderExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							sendJob(job);
+						}
+					});
+					// Handed to a sender, which now completes it
+					batch.set(i, null);
+				}
+			} catch (InterruptedException exception) {
+				failAll(batch, new IllegalStateException("The Gateway is shutting down."));
+				break;
+			} catch (RuntimeException exception) {
+				// The sender pool is shut down
+				failAll(batch, exception);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Sends one Job to the Job Manager, and completes it with the response.
+	 */
+	private void sendJob(PendingJob job) {
+		long start = System.nanoTime();
+		PiazzaResponse response = null;
+		Exception failure = null;
+		try {
+			HttpHeaders headers = new HttpHeaders();
+			headers.setContentType(MediaType.APPLICATION_JSON);
+			response = restTemplate.postForEntity(String.format("%s/%s?jobId=%s", JOBMANAGER_URL, "requestJob", job.jobId),
+					new HttpEntity<PiazzaJobRequest>(job.request, headers), PiazzaResponse.class).getBody();
+		} catch (Exception exception) {
+			// The caller logs the failure
+			failure = exception;
+			failedJobs.incrementAndGet();
+		}
+		jobs.incrementAndGet();
+		sendNanos.addAndGet(System.nanoTime() - start);
+		if (failure == null) {
+			job.future.complete(response);
+		} else {
+			job.future.completeExceptionally(failure);
+		}
+	}
+
+	private static void failAll(List<PendingJob> batch, Exception exception) {
+		for (PendingJob job : batch) {
+			if (job != null) {
+				job.future.completeExceptionally(exception);
+			}
+		}
+	}
+
+	/**
+	 * A Job waiting for its batch to be sent
+	 */
+	private static class PendingJob {
+		private final String jobId;
+		private final PiazzaJobRequest request;
+		private final CompletableFuture<PiazzaResponse> future = new CompletableFuture<PiazzaResponse>();
+
+		private PendingJob(String jobId, PiazzaJobRequest request) {
+			this.jobId = jobId;
+			this.request = request;
+		}
+	}
+}
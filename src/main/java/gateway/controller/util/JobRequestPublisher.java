@@ -0,0 +1,206 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.core.RabbitTemplate.ConfirmCallback;
+import org.springframework.amqp.rabbit.core.RabbitTemplate.ReturnCallback;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import exception.PiazzaJobException;
+import messaging.job.JobMessageFactory;
+import model.request.PiazzaJobRequest;
+
+/**
+ * Publishes Job Requests to the Job Manager over the message broker, as an alternative to posting each request to the
+ * Job Manager over HTTP. A request is complete once the broker has confirmed that the message is stored on the queue;
+ * the Job Manager then indexes the Job from the queue on its own time.
+ * 
+ * Publishers do not wait for one another. Each publish takes a channel from the connection factory's channel cache,
+ * sends, and returns it, while the broker acknowledges the outstanding messages on each channel in batches. The
+ * confirms are matched back to the waiting requests by Job Id.
+ */
+@Component
+public class JobRequestPublisher implements ConfirmCallback, ReturnCallback {
+	@Autowired
+	private ConnectionFactory connectionFactory;
+	@Autowired
+	@Qualifier("requestJobsQueue")
+	private ObjectProvider<Queue> requestJobsQueueProvider;
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Value("${job.request.messaging.enabled}")
+	private boolean enabled;
+	@Value("${job.request.confirm.timeout.ms}")
+	private long confirmTimeoutMillis;
+
+	/** The header carrying the Job Id of the request */
+	public static final String JOB_ID_HEADER = "jobId";
+
+	private RabbitTemplate template;
+	private Queue requestJobsQueue;
+	private final Map<String, PendingConfirm> pending = new ConcurrentHashMap<String, PendingConfirm>();
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong confirmed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong returned = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong confirmNanos = new AtomicLong();
+
+	/**
+	 * Creates the template used for Job Requests. This is separate from the shared template, since a template only
+	 * holds a single confirm callback. The queue is only declared on the broker when publishing is enabled.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		requestJobsQueue = requestJobsQueueProvider.getObject();
+		template = new RabbitTemplate(connectionFactory);
+		template.setMandatory(true);
+		template.setConfirmCallback(this);
+		template.setReturnCallback(this);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Publishes the Job Request, and waits for the broker to confirm it.
+	 * 
+	 * @param request
+	 *            The Job Request
+	 * @param jobId
+	 *            The Id of the Job
+	 */
+	public void publish(PiazzaJobRequest request, String jobId) throws PiazzaJobException {
+		PendingConfirm confirm = new PendingConfirm();
+		pending.put(jobId, confirm);
+		try {
+			MessageProperties properties = new MessageProperties();
+			properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+			properties.setMessageId(jobId);
+			properties.setHeader(JOB_ID_HEADER, jobId);
+			Message message = new Message(objectMapper.writeValueAsBytes(request), properties);
+			template.send(JobMessageFactory.PIAZZA_EXCHANGE_NAME, requestJobsQueue.getName(), message, new CorrelationData(jobId));
+			published.incrementAndGet();
+			confirm.future.get(confirmTimeoutMillis, TimeUnit.MILLISECONDS);
+			confirmNanos.addAndGet(System.nanoTime() - confirm.start);
+		} catch (TimeoutException exception) {
+			// The message may still reach the queue. The Job Manager ignores a second request for the same Job Id.
+			timedOut.incrementAndGet();
+			throw new PiazzaJobException(String.format("The message broker did not confirm Job %s within %s ms.", jobId,
+					confirmTimeoutMillis));
+		} catch (ExecutionException exception) {
+			throw new PiazzaJobException(exception.getCause().getMessage());
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new PiazzaJobException(String.format("Interrupted while publishing Job %s.", jobId));
+		} catch (Exception exception) {
+			throw new PiazzaJobException(String.format("Could not publish Job %s: %s", jobId, exception.getMessage()));
+		} finally {
+			pending.remove(jobId);
+		}
+	}
+
+	/**
+	 * Called by the broker connection when a message is acknowledged or rejected. A single acknowledgement may cover
+	 * several messages on the same channel, in which case this is called once for each.
+	 */
+	@Override
+	public void confirm(CorrelationData correlationData, boolean ack, String cause) {
+		PendingConfirm confirm = correlationData == null ? null : pending.get(correlationData.getId());
+		if (confirm == null) {
+			return;
+		}
+		if (!ack) {
+			rejected.incrementAndGet();
+			confirm.future.completeExceptionally(
+					new IllegalStateException(String.format("The message broker rejected Job %s: %s", correlationData.getId(), cause)));
+		} else if (confirm.returnReason != null) {
+			// A message that could not be routed to the queue is still acknowledged, after it is returned
+			confirm.future.completeExceptionally(new IllegalStateException(confirm.returnReason));
+		} else {
+			confirmed.incrementAndGet();
+			confirm.future.complete(null);
+		}
+	}
+
+	/**
+	 * Called by the broker connection when a message could not be routed to the queue.
+	 */
+	@Override
+	public void returnedMessage(Message message, int replyCode, String replyText, String exchange, String routingKey) {
+		returned.incrementAndGet();
+		PendingConfirm confirm = pending.get(message.getMessageProperties().getMessageId());
+		if (confirm != null) {
+			confirm.returnReason = String.format("The message broker could not route the Job to %s: %s %s", routingKey, replyCode,
+					replyText);
+		}
+	}
+
+	/**
+	 * @return Publishing statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		long confirmCount = confirmed.get();
+		stats.put("enabled", enabled);
+		stats.put("published", published.get());
+		stats.put("confirmed", confirmCount);
+		stats.put("rejected", rejected.get());
+		stats.put("returned", returned.get());
+		stats.put("timedOut", timedOut.get());
+		stats.put("pending", pending.size());
+		stats.put("averageConfirmMicros",
+				confirmCount > 0 ? TimeUnit.NANOSECONDS.toMicros(confirmNanos.get() / confirmCount) : 0);
+		return stats;
+	}
+
+	/**
+	 * A published message that is waiting on the broker
+	 */
+	private static class PendingConfirm {
+		private final long start = System.nanoTime();
+		private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		private volatile String returnReason;
+	}
+}
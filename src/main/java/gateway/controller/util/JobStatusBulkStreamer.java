@@ -0,0 +1,224 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import model.response.ErrorResponse;
+import model.response.JobStatusResponse;
+import model.response.PiazzaResponse;
+
+/**
+ * Streams the Status of many Jobs to the client as a single JSON object, mapping each Job Id to its Status or to the
+ * error encountered fetching it.
+ * 
+ * Finished Jobs held by the Job events view are answered from it, as for a single Job Status. Other Statuses are
+ * fetched from the Job Manager on a shared, bounded pool of threads. Each request keeps a limited number of fetches in
+ * flight, and each Status is written as soon as it arrives, so the response is never held in memory as a whole and one
+ * large request cannot take every fetch thread.
+ */
+@Component
+public class JobStatusBulkStreamer {
+	@Autowired
+	private RestTemplate restTemplate;
+	@Autowired
+	private ObjectMapper objectMapper;
+	@Autowired
+	private JobStatusCache jobStatusCache;
+	@Autowired
+	private JobStatusView jobStatusView;
+	@Autowired
+	private GatewayUtil gatewayUtil;
+
+	@Value("${job.status.bulk.parallelism}")
+	private int parallelism;
+	@Value("${job.status.bulk.fan.out}")
+	private int fanOut;
+	@Value("${jobmanager.url}")
+	private String JOBMANAGER_URL;
+
+	private static final String GATEWAY = "Gateway";
+	/** How many Statuses are written between flushes of the response */
+	private static final int FLUSH_INTERVAL = 50;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong statuses = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private ExecutorService executor;
+
+	@PostConstruct
+	public void init() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("job-status-bulk-%s", threadCount.incrementAndGet()));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes the Status of each Job to the output, as {"data": {"jobId": JobStatusResponse or ErrorResponse, ...}}.
+	 * Entries are written in the order the Statuses arrive.
+	 * 
+	 * @param jobIds
+	 *            The Ids of the Jobs, without duplicates
+	 * @param output
+	 *            The stream to write to. This is not closed.
+	 * @return The number of Jobs whose Status could not be fetched
+	 * @throws IOException
+	 *             If the response could not be written. The response is incomplete.
+	 */
+	public int streamStatuses(List<String> jobIds, OutputStream output) throws IOException, InterruptedException {
+		requests.incrementAndGet();
+		CompletionService<StatusEntry> completion = new ExecutorCompletionService<StatusEntry>(executor);
+		List<Future<StatusEntry>> inFlight = new ArrayList<Future<StatusEntry>>();
+		JsonGenerator generator = objectMapper.getFactory().createGenerator(output);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		int failed = 0;
+		int next = 0;
+		try {
+			generator.writeStartObject();
+			generator.writeObjectFieldStart("data");
+			for (int written = 0; written < jobIds.size(); written++) {
+				// Keep the fan-out window full
+				while ((next < jobIds.size()) && (next - written < fanOut)) {
+					inFlight.add(completion.submit(fetch(jobIds.get(next))));
+					next++;
+				}
+				StatusEntry entry = getEntry(completion.take());
+				if (entry.response instanceof ErrorResponse) {
+					failed++;
+				}
+				generator.writeObjectField(entry.jobId, entry.response);
+				if ((written + 1) % FLUSH_INTERVAL == 0) {
+					generator.flush();
+				}
+			}
+			generator.writeEndObject();
+			generator.writeEndObject();
+			generator.flush();
+			statuses.addAndGet(jobIds.size());
+			errors.addAndGet(failed);
+			return failed;
+		} finally {
+			// Stop fetching if the response was not completed
+			for (Future<StatusEntry> future : inFlight) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @return Bulk Status statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("requests", requests.get());
+		stats.put("statuses", statuses.get());
+		stats.put("errors", errors.get());
+		return stats;
+	}
+
+	/**
+	 * Fetches the Status of a single Job, from the Job events if they hold the finished Job. Failures are returned as an
+	 * ErrorResponse for the Job, so that they do not affect the other Jobs in the request.
+	 */
+	private Callable<StatusEntry> fetch(final String jobId) {
+		return new Callable<StatusEntry>() {
+			@Override
+			public StatusEntry call() {
+				try {
+					JobStatusResponse status = jobStatusView.getStatus(jobId);
+					if (status == null) {
+						status = jobStatusCache.getStatus(jobId, new Callable<JobStatusResponse>() {
+							@Override
+							public JobStatusResponse call() {
+								return restTemplate
+										.getForEntity(String.format("%s/%s/%s", JOBMANAGER_URL, "job", jobId), JobStatusResponse.class)
+										.getBody();
+							}
+						});
+					}
+					return new StatusEntry(jobId, status);
+				} catch (HttpStatusCodeException exception) {
+					return new StatusEntry(jobId, gatewayUtil.getErrorResponse(exception.getResponseBodyAsString()));
+				} catch (Exception exception) {
+					String error = String.format("Error fetching Job Status for Job %s: %s", jobId, exception.getMessage());
+					return new StatusEntry(jobId, new ErrorResponse(error, GATEWAY));
+				}
+			}
+		};
+	}
+
+	private static StatusEntry getEntry(Future<StatusEntry> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException exception) {
+			// Fetches return their errors, so this is not expected
+			throw new IllegalStateException(exception.getCause());
+		}
+	}
+
+	/**
+	 * The Status, or error, of one Job
+	 */
+	private static class StatusEntry {
+		private final String jobId;
+		private final PiazzaResponse response;
+
+		private StatusEntry(String jobId, PiazzaResponse response) {
+			this.jobId = jobId;
+			this.response = response;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import model.response.JobStatusResponse;
+import model.status.StatusUpdate;
+
+/**
+ * Short-lived cache of Job Status responses from the Job Manager, so that clients polling a Job in a tight loop do not
+ * each cause a request to the Job Manager.
+ * 
+ * Concurrent requests for the status of the same Job share a single request to the Job Manager. A status is kept for
+ * the short TTL while the Job is still running, and for the much longer terminal TTL once the Job has finished, since
+ * its status will no longer change. Entries are removed when this Gateway aborts or repeats the Job.
+ */
+@Component
+public class JobStatusCache {
+	@Value("${job.status.cache.enabled}")
+	private boolean enabled;
+	@Value("${job.status.cache.ttl.ms}")
+	private long ttlMillis;
+	@Value("${job.status.cache.terminal.ttl.ms}")
+	private long terminalTtlMillis;
+	@Value("${job.status.cache.max.entries}")
+	private int maxEntries;
+
+	private static final List<String> TERMINAL_STATUSES = Arrays.asList(StatusUpdate.STATUS_SUCCESS, StatusUpdate.STATUS_ERROR,
+			StatusUpdate.STATUS_CANCELLED);
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Gets the status of a Job, from the cache if it holds a current status, or otherwise by fetching it.
+	 * 
+	 * @param jobId
+	 *            The Id of the Job
+	 * @param fetch
+	 *            Fetches the status from the Job Manager. Failures are passed on to every caller waiting on the fetch,
+	 *            and are not cached.
+	 * @return The status of the Job
+	 */
+	public JobStatusResponse getStatus(String jobId, Callable<JobStatusResponse> fetch) throws Exception {
+		if (!enabled) {
+			return fetch.call();
+		}
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(jobId);
+		if ((entry != null) && (entry.expiresAt > now)) {
+			if (entry.status.isDone()) {
+				hits.incrementAndGet();
+			} else {
+				coalesced.incrementAndGet();
+			}
+			return await(entry);
+		}
+		if ((entries.size() >= maxEntries) && (purgeExpired(now) >= maxEntries)) {
+			// Full of current entries. Fetch without caching, rather than evict statuses that are in use.
+			misses.incrementAndGet();
+			return fetch.call();
+		}
+
+		// Claim the fetch, unless another request has just done so
+		Entry claim = new Entry();
+		Entry current;
+		if (entry == null) {
+			current = entries.putIfAbsent(jobId, claim);
+		} else {
+			current = entries.replace(jobId, entry, claim) ? null : entries.get(jobId);
+		}
+		if (current != null) {
+			coalesced.incrementAndGet();
+			return await(current);
+		}
+		misses.incrementAndGet();
+		try {
+			JobStatusResponse status = fetch.call();
+			claim.expiresAt = System.currentTimeMillis() + (isTerminal(status) ? terminalTtlMillis : ttlMillis);
+			claim.status.complete(status);
+			return status;
+		} catch (Exception exception) {
+			entries.remove(jobId, claim);
+			claim.status.completeExceptionally(exception);
+			throw exception;
+		}
+	}
+
+	/**
+	 * Removes the cached status of a Job, after a change made through this Gateway. A fetch that is in progress is not
+	 * cached when it completes.
+	 * 
+	 * @param jobId
+	 *            The Id of the Job
+	 */
+	public void invalidate(String jobId) {
+		if (entries.remove(jobId) != null) {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return Cache statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("enabled", enabled);
+		stats.put("entries", entries.size());
+		stats.put("hits", hits.get());
+		stats.put("coalesced", coalesced.get());
+		stats.put("misses", misses.get());
+		stats.put("invalidations", invalidations.get());
+		return stats;
+	}
+
+	private static boolean isTerminal(JobStatusResponse status) {
+		return (status != null) && (status.data != null) && TERMINAL_STATUSES.contains(status.data.status);
+	}
+
+	private static JobStatusResponse await(Entry entry) throws Exception {
+		try {
+			return entry.status.get();
+		} catch (ExecutionException exception) {
+			if (exception.getCause() instanceof Exception) {
+				throw (Exception) exception.getCause();
+			}
+			throw exception;
+		}
+	}
+
+	/**
+	 * Removes expired entries.
+	 * 
+	 * @return The number of entries remaining
+	 */
+	private int purgeExpired(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().expiresAt <= now) {
+				iterator.remove();
+			}
+		}
+		return entries.size();
+	}
+
+	/**
+	 * The status of a Job, or the fetch of it that is in progress
+	 */
+	private static class Entry {
+		private final CompletableFuture<JobStatusResponse> status = new CompletableFuture<JobStatusResponse>();
+		/** Entries do not expire while the fetch is in progress */
+		private volatile long expiresAt = Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,505 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+
+import model.response.ErrorResponse;
+import model.response.JobStatusResponse;
+import model.status.StatusUpdate;
+
+/**
+ * Pushes Job Status transitions to clients over Server-Sent Events.
+ * 
+ * A client subscribes to a set of Jobs, to the Jobs it submits while subscribed, or both. Each subscriber receives the
+ * current Status of each of its Jobs, and then an event each time that Status changes. Once a Job reaches a terminal
+ * Status it is dropped from the subscription, and a subscription with no Jobs left is closed.
+ * 
+ * Updates enter through {@link #publish(JobStatusResponse)}. By default the Job Manager is polled for every subscribed
+ * Job on an interval, once per Job no matter how many clients follow it. Polling may be disabled when another source,
+ * such as a consumer of Job update messages, calls {@link #publish(JobStatusResponse)} instead.
+ * 
+ * Events are buffered per subscriber in a bounded queue and written by a small pool of sender threads, so that many
+ * connections share a few threads. A subscriber whose buffer fills up is disconnected, and may reconnect to receive
+ * the current Status again. Heartbeat comments keep idle connections open through proxies.
+ */
+@Component
+public class JobStatusStream {
+	@Autowired
+	private RestTemplate restTemplate;
+	@Autowired
+	private JobStatusCache jobStatusCache;
+	@Autowired
+	private GatewayUtil gatewayUtil;
+
+	@Value("${job.status.stream.poll.enabled}")
+	private boolean pollEnabled;
+	@Value("${job.status.stream.poll.interval.ms}")
+	private long pollIntervalMillis;
+	@Value("${job.status.stream.poll.parallelism}")
+	private int pollParallelism;
+	@Value("${job.status.stream.senders}")
+	private int senders;
+	@Value("${job.status.stream.buffer.size}")
+	private int bufferSize;
+	@Value("${job.status.stream.heartbeat.seconds}")
+	private long heartbeatSeconds;
+	@Value("${job.status.stream.max.subscribers}")
+	private int maxSubscribers;
+	@Value("${job.status.stream.timeout.minutes}")
+	private long timeoutMinutes;
+	@Value("${jobmanager.url}")
+	private String JOBMANAGER_URL;
+
+	private static final Logger LOG = LoggerFactory.getLogger(JobStatusStream.class);
+	private static final List<String> TERMINAL_STATUSES = Arrays.asList(StatusUpdate.STATUS_SUCCESS, StatusUpdate.STATUS_ERROR,
+			StatusUpdate.STATUS_CANCELLED);
+	/** The last sent Status of a Job for which no Status has been sent yet */
+	private static final String NOT_SENT = "";
+
+	/** Subscribers by the Jobs they follow */
+	private final Map<String, Set<Subscriber>> jobSubscribers = new ConcurrentHashMap<String, Set<Subscriber>>();
+	/** Subscribers following their own Jobs, by user */
+	private final Map<String, Set<Subscriber>> userSubscribers = new ConcurrentHashMap<String, Set<Subscriber>>();
+	/** Guards changes to the subscriber indexes */
+	private final Object indexLock = new Object();
+	private final AtomicInteger subscriberCount = new AtomicInteger();
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+	private final AtomicLong polls = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+	private ExecutorService senderExecutor;
+	private ExecutorService fetchExecutor;
+
+	/**
+	 * Starts the sender threads, the heartbeat, and the polling of the Job Manager if enabled.
+	 */
+	@PostConstruct
+	public void init() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(namedThreads("job-status-stream", false));
+		senderExecutor = Executors.newFixedThreadPool(senders, namedThreads("job-status-stream-send", true));
+		fetchExecutor = Executors.newFixedThreadPool(pollParallelism, namedThreads("job-status-stream-fetch", true));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				heartbeat();
+			}
+		}, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+		if (pollEnabled) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					poll();
+				}
+			}, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (fetchExecutor != null) {
+			fetchExecutor.shutdownNow();
+		}
+		if (senderExecutor != null) {
+			senderExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Subscribes a client to Job Status events.
+	 * 
+	 * @param user
+	 *            The name of the subscribing user
+	 * @param jobIds
+	 *            The Ids of the Jobs to follow
+	 * @param own
+	 *            True to also follow the Jobs the user submits while subscribed
+	 * @return The event stream, or null if the maximum number of subscribers has been reached
+	 */
+	public SseEmitter subscribe(String user, Collection<String> jobIds, boolean own) {
+		if (subscriberCount.incrementAndGet() > maxSubscribers) {
+			subscriberCount.decrementAndGet();
+			return null;
+		}
+		final Subscriber subscriber = new Subscriber(user, own, new SseEmitter(TimeUnit.MINUTES.toMillis(timeoutMinutes)));
+		synchronized (indexLock) {
+			for (String jobId : jobIds) {
+				addJob(subscriber, jobId);
+			}
+			if (own) {
+				Set<Subscriber> subscribers = userSubscribers.get(user);
+				if (subscribers == null) {
+					subscribers = ConcurrentHashMap.newKeySet();
+					userSubscribers.put(user, subscribers);
+				}
+				subscribers.add(subscriber);
+			}
+		}
+		Runnable remove = new Runnable() {
+			@Override
+			public void run() {
+				remove(subscriber);
+			}
+		};
+		subscriber.emitter.onCompletion(remove);
+		subscriber.emitter.onTimeout(remove);
+		// Send the current Status of each Job without waiting for the next update
+		for (String jobId : jobIds) {
+			fetchLater(jobId);
+		}
+		return subscriber.emitter;
+	}
+
+	/**
+	 * Adds a newly submitted Job to the subscriptions of the user that follow their own Jobs.
+	 * 
+	 * @param user
+	 *            The user that submitted the Job
+	 * @param jobId
+	 *            The Id of the Job
+	 */
+	public void jobSubmitted(String user, String jobId) {
+		if ((user == null) || (jobId == null) || !userSubscribers.containsKey(user)) {
+			return;
+		}
+		synchronized (indexLock) {
+			Set<Subscriber> subscribers = userSubscribers.get(user);
+			if (subscribers != null) {
+				for (Subscriber subscriber : subscribers) {
+					addJob(subscriber, jobId);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delivers the Status of a Job to the subscribers following it, if the Status differs from the one last sent to
+	 * them.
+	 * 
+	 * @param status
+	 *            The current Status of the Job
+	 */
+	public void publish(JobStatusResponse status) {
+		if ((status == null) || (status.data == null) || (status.data.status == null)) {
+			return;
+		}
+		String jobId = status.data.jobId;
+		String current = status.data.status;
+		Set<Subscriber> subscribers = jobSubscribers.get(jobId);
+		if (subscribers == null) {
+			return;
+		}
+		boolean terminal = TERMINAL_STATUSES.contains(current);
+		for (Subscriber subscriber : subscribers) {
+			String last = subscriber.jobs.get(jobId);
+			// Only one of several concurrent updates with the same Status is sent
+			if ((last != null) && !last.equals(current) && subscriber.jobs.replace(jobId, last, current)) {
+				published.incrementAndGet();
+				enqueue(subscriber, SseEmitter.event().name("status").data(status, MediaType.APPLICATION_JSON));
+			}
+			if (terminal) {
+				// A finished Job will not change again
+				removeJob(subscriber, jobId, null);
+			}
+		}
+	}
+
+	/**
+	 * @return Stream statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("subscribers", subscriberCount.get());
+		stats.put("jobs", jobSubscribers.size());
+		stats.put("published", published.get());
+		stats.put("sent", sent.get());
+		stats.put("overflows", overflows.get());
+		stats.put("polls", polls.get());
+		return stats;
+	}
+
+	/**
+	 * Fetches the Status of every subscribed Job once, and publishes it.
+	 */
+	private void poll() {
+		polls.incrementAndGet();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final String jobId : jobSubscribers.keySet()) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					fetch(jobId);
+					return null;
+				}
+			});
+		}
+		try {
+			fetchExecutor.invokeAll(tasks);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void fetchLater(final String jobId) {
+		fetchExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				fetch(jobId);
+			}
+		});
+	}
+
+	private void fetch(final String jobId) {
+		JobStatusResponse status;
+		try {
+			status = jobStatusCache.getStatus(jobId, new Callable<JobStatusResponse>() {
+				@Override
+				public JobStatusResponse call() {
+					return restTemplate.getForEntity(String.format("%s/%s/%s", JOBMANAGER_URL, "job", jobId), JobStatusResponse.class)
+							.getBody();
+				}
+			});
+		} catch (HttpClientErrorException exception) {
+			// The Job does not exist, or may not be read. Tell its subscribers, and stop following it.
+			ErrorResponse error = gatewayUtil.getErrorResponse(exception.getResponseBodyAsString());
+			error = new ErrorResponse(String.format("Job %s: %s", jobId, error.message), error.origin);
+			Set<Subscriber> subscribers = jobSubscribers.get(jobId);
+			if (subscribers != null) {
+				for (Subscriber subscriber : subscribers) {
+					removeJob(subscriber, jobId, SseEmitter.event().name("error").data(error, MediaType.APPLICATION_JSON));
+				}
+			}
+			return;
+		} catch (Exception exception) {
+			// Try again on the next poll
+			LOG.warn(String.format("Could not fetch the status of streamed Job %s", jobId), exception);
+			return;
+		}
+		publish(status);
+	}
+
+	private void heartbeat() {
+		// A subscriber may follow several Jobs, but receives one heartbeat
+		Set<Subscriber> subscribers = new HashSet<Subscriber>();
+		for (Set<Subscriber> jobSubscriberSet : jobSubscribers.values()) {
+			subscribers.addAll(jobSubscriberSet);
+		}
+		for (Set<Subscriber> userSubscriberSet : userSubscribers.values()) {
+			subscribers.addAll(userSubscriberSet);
+		}
+		for (Subscriber subscriber : subscribers) {
+			// A subscriber with events waiting does not need a heartbeat, so a full buffer is not an overflow here
+			if (subscriber.buffer.isEmpty() && subscriber.buffer.offer(SseEmitter.event().comment("heartbeat"))) {
+				schedule(subscriber);
+			}
+		}
+	}
+
+	private void addJob(Subscriber subscriber, String jobId) {
+		synchronized (indexLock) {
+			if (subscriber.closed.get() || (subscriber.jobs.putIfAbsent(jobId, NOT_SENT) != null)) {
+				return;
+			}
+			Set<Subscriber> subscribers = jobSubscribers.get(jobId);
+			if (subscribers == null) {
+				subscribers = ConcurrentHashMap.newKeySet();
+				jobSubscribers.put(jobId, subscribers);
+			}
+			subscribers.add(subscriber);
+		}
+	}
+
+	/**
+	 * Stops following a Job, after sending a last event about it if one is given.
+	 */
+	private void removeJob(Subscriber subscriber, String jobId, SseEventBuilder lastEvent) {
+		synchronized (indexLock) {
+			if (subscriber.jobs.remove(jobId) == null) {
+				return;
+			}
+			if (lastEvent != null) {
+				enqueue(subscriber, lastEvent);
+			}
+			unindex(subscriber, jobId);
+			if (subscriber.jobs.isEmpty() && !subscriber.own) {
+				// Nothing left to follow. Close once the remaining events are sent.
+				subscriber.finished = true;
+			}
+		}
+		schedule(subscriber);
+	}
+
+	private void unindex(Subscriber subscriber, String jobId) {
+		Set<Subscriber> subscribers = jobSubscribers.get(jobId);
+		if (subscribers != null) {
+			subscribers.remove(subscriber);
+			if (subscribers.isEmpty()) {
+				jobSubscribers.remove(jobId);
+			}
+		}
+	}
+
+	private void remove(Subscriber subscriber) {
+		if (!subscriber.closed.compareAndSet(false, true)) {
+			return;
+		}
+		synchronized (indexLock) {
+			for (String jobId : subscriber.jobs.keySet()) {
+				unindex(subscriber, jobId);
+			}
+			Set<Subscriber> subscribers = userSubscribers.get(subscriber.user);
+			if (subscribers != null) {
+				subscribers.remove(subscriber);
+				if (subscribers.isEmpty()) {
+					userSubscribers.remove(subscriber.user);
+				}
+			}
+		}
+		subscriberCount.decrementAndGet();
+	}
+
+	private void close(Subscriber subscriber) {
+		remove(subscriber);
+		try {
+			subscriber.emitter.complete();
+		} catch (Exception exception) {
+			LOG.debug("Could not complete Job Status stream", exception);
+		}
+	}
+
+	private void enqueue(Subscriber subscriber, SseEventBuilder event) {
+		if (subscriber.closed.get()) {
+			return;
+		}
+		if (!subscriber.buffer.offer(event)) {
+			// The client is not keeping up. It may reconnect to receive the current Status of its Jobs.
+			overflows.incrementAndGet();
+			LOG.warn(String.format("Closing Job Status stream for %s, which fell %s events behind", subscriber.user, bufferSize));
+			close(subscriber);
+			return;
+		}
+		schedule(subscriber);
+	}
+
+	private void schedule(final Subscriber subscriber) {
+		if (subscriber.draining.compareAndSet(false, true)) {
+			senderExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain(subscriber);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes the buffered events of a subscriber. Only one sender drains a subscriber at a time, and it yields after a
+	 * buffer's worth of events so that one busy subscriber cannot hold a sender thread.
+	 */
+	private void drain(Subscriber subscriber) {
+		try {
+			SseEventBuilder event;
+			for (int count = 0; (count < bufferSize) && ((event = subscriber.buffer.poll()) != null); count++) {
+				subscriber.emitter.send(event);
+				sent.incrementAndGet();
+			}
+		} catch (IOException | IllegalStateException exception) {
+			// The client has gone away
+			LOG.debug("Could not send to Job Status stream", exception);
+			close(subscriber);
+			return;
+		}
+		if (subscriber.finished && subscriber.buffer.isEmpty()) {
+			close(subscriber);
+			return;
+		}
+		subscriber.draining.set(false);
+		if (!subscriber.buffer.isEmpty() && !subscriber.closed.get()) {
+			schedule(subscriber);
+		}
+	}
+
+	private static ThreadFactory namedThreads(final String name, final boolean numbered) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, numbered ? String.format("%s-%s", name, threadCount.incrementAndGet()) : name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * A client connection, with the Jobs it follows and the events waiting to be written to it
+	 */
+	private class Subscriber {
+		private final String user;
+		private final boolean own;
+		private final SseEmitter emitter;
+		/** The Status last sent for each followed Job */
+		private final Map<String, String> jobs = new ConcurrentHashMap<String, String>();
+		private final BlockingQueue<SseEventBuilder> buffer = new ArrayBlockingQueue<SseEventBuilder>(bufferSize);
+		private final AtomicBoolean draining = new AtomicBoolean();
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private volatile boolean finished;
+
+		private Subscriber(String user, boolean own, SseEmitter emitter) {
+			this.user = user;
+			this.own = own;
+			this.emitter = emitter;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import messaging.job.JobMessageFactory;
+import model.job.Job;
+import model.response.JobStatusResponse;
+import model.status.StatusUpdate;
+
+/**
+ * In-memory view of the Status of recent Jobs, built from the Job lifecycle events that the Job Manager publishes to
+ * the message broker, so that Job Status requests can be answered without a request to the Job Manager.
+ * 
+ * A Job enters the view when its Create-Job event is received, and each Update-Job event is applied to it. Updates for
+ * Jobs that are not in the view are ignored, since the Status of such a Job is not known in full. The view holds at
+ * most the maximum number of Jobs, and a Job that has not been updated within the maximum age is no longer served.
+ * 
+ * Only Jobs that have finished are served from the view. A finished Status does not change, whereas a Running Status
+ * would go stale without notice if the event that ends it is missed, for example while the consumer of the events is
+ * being restarted. The Status of unfinished Jobs is requested from the Job Manager instead.
+ * 
+ * Events are received on a queue of this Gateway instance that is bound to the Job topics, so the Job Manager's own
+ * queues are not consumed. Events published while the connection to the broker is down are lost, so the view is
+ * cleared when the connection closes, and only Jobs created after it is restored are served from it.
+ */
+@Component
+public class JobStatusView implements MessageListener {
+	@Autowired
+	private ObjectMapper objectMapper;
+	@Autowired
+	private ConnectionFactory connectionFactory;
+	@Autowired
+	private JobStatusStream jobStatusStream;
+
+	@Value("${job.status.view.enabled}")
+	private boolean enabled;
+	@Value("${job.status.view.max.entries}")
+	private int maxEntries;
+	@Value("${job.status.view.max.age.minutes}")
+	private long maxAgeMinutes;
+	@Value("${SPACE}")
+	private String SPACE;
+
+	private static final Logger LOG = LoggerFactory.getLogger(JobStatusView.class);
+	private static final List<String> TERMINAL_STATUSES = Arrays.asList(StatusUpdate.STATUS_SUCCESS, StatusUpdate.STATUS_ERROR,
+			StatusUpdate.STATUS_CANCELLED);
+
+	/** Jobs in order of their last update, oldest first */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong updated = new AtomicLong();
+	private final AtomicLong untracked = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+	private final AtomicLong resets = new AtomicLong();
+	/** True while the connection the events are received on is open */
+	private volatile boolean live;
+
+	/**
+	 * Watches the connection to the broker, so that the view is only served while no events can have been missed.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		connectionFactory.addConnectionListener(new ConnectionListener() {
+			@Override
+			public void onCreate(Connection connection) {
+				live = true;
+			}
+
+			@Override
+			public void onClose(Connection connection) {
+				live = false;
+				clear();
+			}
+		});
+	}
+
+	/**
+	 * @return True if Job lifecycle events are consumed into the view
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Gets the Status of a Job from the view.
+	 * 
+	 * @param jobId
+	 *            The Id of the Job
+	 * @return The Status of the Job, or null if the view does not hold a finished Status for the Job
+	 */
+	public JobStatusResponse getStatus(String jobId) {
+		if (!enabled || !live) {
+			return null;
+		}
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(jobId);
+			if ((entry != null) && isExpired(entry, System.currentTimeMillis())) {
+				entries.remove(jobId);
+				entry = null;
+			}
+		}
+		if ((entry == null) || !TERMINAL_STATUSES.contains(entry.job.getStatus())) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.status;
+	}
+
+	/**
+	 * Applies a Create-Job or Update-Job event to the view.
+	 */
+	@Override
+	public void onMessage(Message message) {
+		live = true;
+		String routingKey = message.getMessageProperties().getReceivedRoutingKey();
+		try {
+			JsonNode event = objectMapper.readTree(message.getBody());
+			String jobId = event.path("jobId").asText(null);
+			if (jobId == null) {
+				invalid.incrementAndGet();
+				return;
+			}
+			JobStatusResponse status;
+			if (String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.CREATE_JOB_TOPIC_NAME, SPACE).equals(routingKey)) {
+				status = create(jobId, objectMapper.treeToValue(event, Job.class));
+			} else if (String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.UPDATE_JOB_TOPIC_NAME, SPACE).equals(routingKey)) {
+				status = update(jobId, objectMapper.treeToValue(event, StatusUpdate.class));
+			} else {
+				invalid.incrementAndGet();
+				return;
+			}
+			if (status != null) {
+				// Push the change to clients streaming the Status of the Job
+				jobStatusStream.publish(status);
+			}
+		} catch (Exception exception) {
+			invalid.incrementAndGet();
+			LOG.warn(String.format("Could not apply Job event with routing key %s", routingKey), exception);
+		}
+	}
+
+	/**
+	 * @return View statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("enabled", enabled);
+		stats.put("live", live);
+		synchronized (entries) {
+			stats.put("entries", entries.size());
+		}
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("created", created.get());
+		stats.put("updated", updated.get());
+		stats.put("untracked", untracked.get());
+		stats.put("invalid", invalid.get());
+		stats.put("resets", resets.get());
+		return stats;
+	}
+
+	private JobStatusResponse create(String jobId, Job job) {
+		job.setJobId(jobId);
+		Entry entry = new Entry(job);
+		synchronized (entries) {
+			// A repeated Create-Job event does not undo the updates already applied
+			if (entries.containsKey(jobId)) {
+				return null;
+			}
+			put(jobId, entry);
+		}
+		created.incrementAndGet();
+		return entry.status;
+	}
+
+	private JobStatusResponse update(String jobId, StatusUpdate update) {
+		synchronized (entries) {
+			Entry entry = entries.get(jobId);
+			if (entry == null) {
+				untracked.incrementAndGet();
+				return null;
+			}
+			Job job = entry.job;
+			if (TERMINAL_STATUSES.contains(job.getStatus()) && !TERMINAL_STATUSES.contains(update.getStatus())) {
+				// A late update does not reopen a finished Job
+				return null;
+			}
+			if (update.getStatus() != null) {
+				job.setStatus(update.getStatus());
+			}
+			if (update.getProgress() != null) {
+				job.setProgress(update.getProgress());
+			}
+			if (update.getResult() != null) {
+				job.setResult(update.getResult());
+			}
+			Entry updatedEntry = new Entry(job);
+			// Move the Job to the end of the update order
+			entries.remove(jobId);
+			put(jobId, updatedEntry);
+			updated.incrementAndGet();
+			return updatedEntry.status;
+		}
+	}
+
+	/**
+	 * Adds an entry, removing the entries that are too old or beyond the maximum number.
+	 */
+	private void put(String jobId, Entry entry) {
+		entries.put(jobId, entry);
+		long now = System.currentTimeMillis();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry oldest = iterator.next();
+			if ((entries.size() <= maxEntries) && !isExpired(oldest, now)) {
+				break;
+			}
+			iterator.remove();
+		}
+	}
+
+	private void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+		resets.incrementAndGet();
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		return now - entry.updatedAt > TimeUnit.MINUTES.toMillis(maxAgeMinutes);
+	}
+
+	/**
+	 * The state of a Job, and the Status response for it as of its last update
+	 */
+	private static class Entry {
+		private final Job job;
+		private final JobStatusResponse status;
+		private final long updatedAt = System.currentTimeMillis();
+
+		private Entry(Job job) {
+			this.job = job;
+			this.status = new JobStatusResponse(job);
+		}
+	}
+}
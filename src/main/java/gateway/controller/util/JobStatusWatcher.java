@@ -0,0 +1,309 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import model.response.ErrorResponse;
+import model.response.JobStatusResponse;
+import model.response.PiazzaResponse;
+import model.status.StatusUpdate;
+
+/**
+ * Watches the status of Jobs on behalf of clients that are waiting for the status to change, without holding a request
+ * thread for each waiting client.
+ * 
+ * A single background check runs at a fixed interval. On each check, the status of every Job that has at least one
+ * waiter is fetched once, no matter how many clients are waiting on it, and the fetches for different Jobs run in
+ * parallel. A waiter is answered as soon as the status differs from the status it last saw, or when its timeout
+ * expires, in which case it receives the latest known status.
+ */
+@Component
+public class JobStatusWatcher {
+	@Autowired
+	private RestTemplate restTemplate;
+	@Autowired
+	private JobStatusCache jobStatusCache;
+	@Autowired
+	private GatewayUtil gatewayUtil;
+
+	@Value("${job.status.watch.interval.ms}")
+	private long intervalMillis;
+	@Value("${job.status.watch.parallelism}")
+	private int parallelism;
+	@Value("${job.status.watch.max.waiters}")
+	private int maxWaiters;
+	@Value("${jobmanager.url}")
+	private String JOBMANAGER_URL;
+
+	private static final Logger LOG = LoggerFactory.getLogger(JobStatusWatcher.class);
+	private static final String GATEWAY = "Gateway";
+	private static final List<String> TERMINAL_STATUSES = Arrays.asList(StatusUpdate.STATUS_SUCCESS, StatusUpdate.STATUS_ERROR,
+			StatusUpdate.STATUS_CANCELLED);
+
+	private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+	private final AtomicInteger waiterCount = new AtomicInteger();
+	private final AtomicLong changed = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong checks = new AtomicLong();
+	private final AtomicLong fetches = new AtomicLong();
+	private ScheduledExecutorService scheduler;
+	private ExecutorService fetchExecutor;
+
+	/**
+	 * Starts the periodic status checks.
+	 */
+	@PostConstruct
+	public void init() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "job-status-watch");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final AtomicInteger threadCount = new AtomicInteger();
+		fetchExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("job-status-fetch-%s", threadCount.incrementAndGet()));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkAll();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		if (fetchExecutor != null) {
+			fetchExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for the status of a Job to change.
+	 * 
+	 * @param jobId
+	 *            The Id of the Job
+	 * @param lastStatus
+	 *            The status the client last saw. If null, the status at the time of the first check is used.
+	 * @param timeoutMillis
+	 *            How long to wait for a change before answering with the latest known status
+	 * @return The result, which is set when the status changes or the timeout expires
+	 */
+	public DeferredResult<ResponseEntity<PiazzaResponse>> watch(String jobId, String lastStatus, long timeoutMillis) {
+		final DeferredResult<ResponseEntity<PiazzaResponse>> result = new DeferredResult<ResponseEntity<PiazzaResponse>>(timeoutMillis);
+		if (waiterCount.incrementAndGet() > maxWaiters) {
+			waiterCount.decrementAndGet();
+			result.setResult(new ResponseEntity<PiazzaResponse>(
+					new ErrorResponse("Too many clients are waiting on Job Status. Please try again later.", GATEWAY),
+					HttpStatus.SERVICE_UNAVAILABLE));
+			return result;
+		}
+		final Waiter waiter = new Waiter(result, lastStatus);
+		final Watch watch = addWaiter(jobId, waiter);
+		result.onTimeout(new Runnable() {
+			@Override
+			public void run() {
+				timedOut.incrementAndGet();
+				JobStatusResponse latest = watch.latest;
+				if (latest != null) {
+					result.setResult(new ResponseEntity<PiazzaResponse>(latest, HttpStatus.OK));
+				} else {
+					result.setResult(new ResponseEntity<PiazzaResponse>(
+							new ErrorResponse("The Job Status could not be fetched before the timeout.", GATEWAY), HttpStatus.GATEWAY_TIMEOUT));
+				}
+			}
+		});
+		result.onCompletion(new Runnable() {
+			@Override
+			public void run() {
+				waiterCount.decrementAndGet();
+				watch.waiters.remove(waiter);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return Watch statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("waiters", waiterCount.get());
+		stats.put("jobs", watches.size());
+		stats.put("changed", changed.get());
+		stats.put("timedOut", timedOut.get());
+		stats.put("checks", checks.get());
+		stats.put("fetches", fetches.get());
+		return stats;
+	}
+
+	/**
+	 * Fetches the status of every watched Job once, and answers the waiters whose Jobs have changed.
+	 */
+	private void checkAll() {
+		checks.incrementAndGet();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		Iterator<Map.Entry<String, Watch>> iterator = watches.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final Map.Entry<String, Watch> entry = iterator.next();
+			Watch watch = entry.getValue();
+			synchronized (watch) {
+				if (watch.waiters.isEmpty()) {
+					watch.removed = true;
+					iterator.remove();
+					continue;
+				}
+			}
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					check(entry.getKey(), entry.getValue());
+					return null;
+				}
+			});
+		}
+		try {
+			fetchExecutor.invokeAll(tasks);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void check(final String jobId, Watch watch) {
+		JobStatusResponse status;
+		try {
+			fetches.incrementAndGet();
+			status = jobStatusCache.getStatus(jobId, new Callable<JobStatusResponse>() {
+				@Override
+				public JobStatusResponse call() {
+					return restTemplate.getForEntity(String.format("%s/%s/%s", JOBMANAGER_URL, "job", jobId), JobStatusResponse.class)
+							.getBody();
+				}
+			});
+		} catch (HttpClientErrorException exception) {
+			// The Job does not exist, or may not be read. Waiting longer will not change that.
+			ResponseEntity<PiazzaResponse> error = new ResponseEntity<PiazzaResponse>(
+					gatewayUtil.getErrorResponse(exception.getResponseBodyAsString()), exception.getStatusCode());
+			for (Waiter waiter : watch.waiters) {
+				waiter.result.setResult(error);
+			}
+			return;
+		} catch (Exception exception) {
+			// Try again on the next check
+			LOG.warn(String.format("Could not check the status of watched Job %s", jobId), exception);
+			return;
+		}
+		watch.latest = status;
+		String current = status.data != null ? status.data.status : null;
+		boolean terminal = TERMINAL_STATUSES.contains(current);
+		for (Waiter waiter : watch.waiters) {
+			if (waiter.lastStatus == null) {
+				waiter.lastStatus = current;
+			}
+			if (terminal || !Objects.equals(waiter.lastStatus, current)) {
+				// A finished Job will not change again, so there is nothing more to wait for
+				if (waiter.result.setResult(new ResponseEntity<PiazzaResponse>(status, HttpStatus.OK))) {
+					changed.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private Watch addWaiter(String jobId, Waiter waiter) {
+		while (true) {
+			Watch watch = watches.get(jobId);
+			if (watch == null) {
+				Watch created = new Watch();
+				watch = watches.putIfAbsent(jobId, created);
+				if (watch == null) {
+					watch = created;
+				}
+			}
+			synchronized (watch) {
+				if (!watch.removed) {
+					watch.waiters.add(waiter);
+					return watch;
+				}
+			}
+			// The watch was removed as empty just before this waiter joined it. Join its replacement.
+		}
+	}
+
+	/**
+	 * The waiters on one Job, and the latest status fetched for it
+	 */
+	private static class Watch {
+		private final List<Waiter> waiters = new CopyOnWriteArrayList<Waiter>();
+		private volatile JobStatusResponse latest;
+		/** Set once the watch is removed, after which no waiter may join it */
+		private boolean removed;
+	}
+
+	/**
+	 * A client waiting for the status of a Job to change
+	 */
+	private static class Waiter {
+		private final DeferredResult<ResponseEntity<PiazzaResponse>> result;
+		private volatile String lastStatus;
+
+		private Waiter(DeferredResult<ResponseEntity<PiazzaResponse>> result, String lastStatus) {
+			this.result = result;
+			this.lastStatus = lastStatus;
+		}
+	}
+}
@@ -0,0 +1,675 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import exception.InvalidInputException;
+import model.data.FileRepresentation;
+import model.data.location.FileLocation;
+import model.data.location.S3FileStore;
+import model.job.type.IngestJob;
+import model.logger.AuditElement;
+import model.logger.Severity;
+import util.PiazzaLogger;
+
+/**
+ * Fetches a file from a remote HTTP(S) URL and streams it directly into the S3 bucket, so that the file never passes
+ * through the client or the local disk of the Gateway.
+ * 
+ * The source is read through a fixed-size part buffer, and each full buffer is written to S3 as one part of a multipart
+ * upload. Large sources that accept byte ranges are fetched as several ranged GETs in parallel, using a sliding window
+ * so that the parts are still digested in order and at most a fixed number of part buffers are held at once. The number
+ * of concurrent fetches and the total rate at which bytes are read from sources are both limited.
+ * 
+ * Since the URL is chosen by the user, sources are fetched with a client of their own rather than the one used for
+ * other Piazza components. Only hosts on the configured allowlist are fetched from, if one is set. The host is resolved
+ * before connecting, and loopback, link-local, private and other internal addresses are refused, so that the Gateway
+ * cannot be used to reach internal services. Redirects are not followed, and the hostnames of HTTPS sources are verified.
+ */
+@Component
+public class RemoteFileFetcher {
+	@Autowired
+	private AmazonS3 s3Client;
+	@Autowired
+	private ContentIndex contentIndex;
+	@Autowired
+	private PiazzaLogger logger;
+
+	@Value("${s3.domain}")
+	private String AMAZONS3_DOMAIN;
+	@Value("${vcap.services.pz-blobstore.credentials.bucket}")
+	private String AMAZONS3_BUCKET_NAME;
+	@Value("${s3.use.kms}")
+	private Boolean USE_KMS;
+	@Value("${upload.fetch.enabled}")
+	private boolean enabled;
+	@Value("${upload.fetch.max.concurrent}")
+	private int maxConcurrent;
+	@Value("${upload.fetch.max.bytes.per.second}")
+	private long maxBytesPerSecond;
+	@Value("${upload.fetch.part.size}")
+	private int partSize;
+	@Value("${upload.fetch.parallel.ranges}")
+	private int parallelRanges;
+	@Value("${upload.fetch.parallel.threshold}")
+	private long parallelThreshold;
+	@Value("${upload.fetch.allowed.hosts}")
+	private String allowedHosts;
+	@Value("${upload.fetch.allow.private.addresses}")
+	private boolean allowPrivateAddresses;
+	@Value("${upload.fetch.connect.timeout.ms}")
+	private int connectTimeoutMillis;
+	@Value("${upload.fetch.read.timeout.ms}")
+	private int readTimeoutMillis;
+
+	private static final Logger LOG = LoggerFactory.getLogger(RemoteFileFetcher.class);
+	/** Bytes read from the source at a time, for rate limiting */
+	private static final int READ_SIZE = 64 * 1024;
+	private static final String DEFAULT_FILE_NAME = "file";
+
+	private Semaphore permits;
+	private ExecutorService rangeExecutor;
+	private RestTemplate restTemplate;
+	private List<String> hostAllowlist;
+	private final Object rateLock = new Object();
+	private long nextReadNanos = 0;
+	private final AtomicLong fetches = new AtomicLong();
+	private final AtomicLong rangedFetches = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong bytesFetched = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		permits = new Semaphore(maxConcurrent);
+		final AtomicInteger threadCount = new AtomicInteger();
+		int maxConnections = Math.max(1, maxConcurrent * parallelRanges);
+		rangeExecutor = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, String.format("fetch-range-%s", threadCount.incrementAndGet()));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		hostAllowlist = new ArrayList<String>();
+		for (String host : allowedHosts.split(",")) {
+			if (!host.trim().isEmpty()) {
+				hostAllowlist.add(host.trim().toLowerCase(Locale.ROOT));
+			}
+		}
+		restTemplate = createRestTemplate(maxConnections);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (rangeExecutor != null) {
+			rangeExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Fetches the file at the source URL into the S3 bucket, and attaches the S3 file to the Ingest Job.
+	 * 
+	 * @param jobId
+	 *            The Id of the Job, used for generating a unique S3 bucket file name.
+	 * @param job
+	 *            The ingest job, containing the DataResource metadata
+	 * @param sourceUrl
+	 *            The HTTP or HTTPS URL of the file
+	 * @param expectedSha256
+	 *            The hex-encoded SHA-256 digest the file must have, or null to not verify the file
+	 * @return The modified job, with the location of the S3 file added to the metadata
+	 * @throws RejectedExecutionException
+	 *             If the maximum number of concurrent fetches are already in progress
+	 */
+	public IngestJob fetchS3File(String jobId, IngestJob job, String sourceUrl, String expectedSha256)
+			throws InvalidInputException, IOException, InterruptedException {
+		if (!enabled) {
+			throw new InvalidInputException("Loading files from a URL is not enabled.");
+		}
+		URI uri = validateUrl(sourceUrl);
+		if (!permits.tryAcquire()) {
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("Too many files are currently being fetched. Please retry later.");
+		}
+		try {
+			String fileKey = String.format("%s-%s", jobId, getFileName(uri));
+			MessageDigest digest = createDigest();
+			long fileSize;
+			try {
+				HttpHeaders headers = getRangeableHeaders(sourceUrl);
+				if (headers != null) {
+					rangedFetches.incrementAndGet();
+					fileSize = fetchRanges(sourceUrl, headers, fileKey, digest);
+				} else {
+					fileSize = fetchSequential(sourceUrl, fileKey, digest);
+				}
+			} catch (HttpStatusCodeException exception) {
+				if (exception.getStatusCode().is3xxRedirection()) {
+					throw new InvalidInputException(String.format(
+							"The source URL %s returned a redirect, which is not followed. Specify the URL the file is redirected to.",
+							sourceUrl));
+				}
+				throw new InvalidInputException(String.format("The source URL %s returned %s %s.", sourceUrl,
+						exception.getStatusCode().value(), exception.getStatusText()));
+			}
+			fetches.incrementAndGet();
+
+			// Verify the checksum of the bytes that were stored
+			String hash = GatewayUtil.toHex(digest.digest());
+			if ((expectedSha256 != null) && !expectedSha256.isEmpty() && !expectedSha256.equalsIgnoreCase(hash)) {
+				s3Client.deleteObject(AMAZONS3_BUCKET_NAME, fileKey);
+				throw new InvalidInputException(
+						String.format("The SHA-256 checksum of the fetched file %s does not match the expected checksum %s.", hash,
+								expectedSha256));
+			}
+			if (contentIndex.isEnabled()) {
+				// Later uploads of the same content can reference this file.
+				contentIndex.register(hash, AMAZONS3_BUCKET_NAME, fileKey, fileSize);
+			}
+
+			FileLocation fileLocation = new S3FileStore(AMAZONS3_BUCKET_NAME, fileKey, fileSize, AMAZONS3_DOMAIN);
+			((FileRepresentation) job.getData().getDataType()).setLocation(fileLocation);
+			logger.log(String.format("S3 File for Job %s Fetched from %s to %s:%s (%s bytes)", jobId, sourceUrl, AMAZONS3_BUCKET_NAME,
+					fileKey, fileSize), Severity.INFORMATIONAL, new AuditElement(jobId, "fetchS3File", fileKey));
+			return job;
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return Fetch statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("enabled", enabled);
+		stats.put("active", (permits != null) ? maxConcurrent - permits.availablePermits() : 0);
+		stats.put("fetches", fetches.get());
+		stats.put("rangedFetches", rangedFetches.get());
+		stats.put("rejected", rejected.get());
+		stats.put("bytesFetched", bytesFetched.get());
+		return stats;
+	}
+
+	/**
+	 * Fetches the source with a single GET, writing each full part buffer to S3 as it is read.
+	 */
+	private long fetchSequential(String sourceUrl, final String fileKey, final MessageDigest digest) {
+		return restTemplate.execute(sourceUrl, HttpMethod.GET, null, new ResponseExtractor<Long>() {
+			@Override
+			public Long extractData(ClientHttpResponse response) throws IOException {
+				long fileSize = writeStream(response.getBody(), fileKey, digest);
+				long contentLength = response.getHeaders().getContentLength();
+				if ((contentLength >= 0) && (contentLength != fileSize)) {
+					s3Client.deleteObject(AMAZONS3_BUCKET_NAME, fileKey);
+					throw new IOException(String.format("Received %s bytes from the source, but %s were expected.", fileSize, contentLength));
+				}
+				return fileSize;
+			}
+		});
+	}
+
+	/**
+	 * Writes the stream to S3. A stream that fits in a single part buffer is written as a single object; otherwise, each
+	 * full buffer is written as one part of a multipart upload.
+	 * 
+	 * @return The number of bytes written
+	 */
+	private long writeStream(InputStream stream, String fileKey, MessageDigest digest) throws IOException {
+		PushbackInputStream input = new PushbackInputStream(stream, 1);
+		byte[] buffer = new byte[partSize];
+		int length = readFully(input, buffer, buffer.length);
+		digest.update(buffer, 0, length);
+		boolean last = isAtEnd(input);
+		if (last) {
+			ObjectMetadata metadata = new ObjectMetadata();
+			metadata.setContentLength(length);
+			s3Client.putObject(AMAZONS3_BUCKET_NAME, fileKey, new ByteArrayInputStream(buffer, 0, length), metadata);
+			return length;
+		}
+
+		String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey))
+				.getUploadId();
+		try {
+			List<PartETag> partETags = new ArrayList<PartETag>();
+			long fileSize = length;
+			int partNumber = 1;
+			while (true) {
+				partETags.add(uploadPart(fileKey, uploadId, partNumber, buffer, length, last));
+				if (last) {
+					break;
+				}
+				if (++partNumber > UploadSessionManager.MAX_PART_NUMBER) {
+					throw new IOException("The source file is too large to be fetched with the configured part size.");
+				}
+				length = readFully(input, buffer, buffer.length);
+				digest.update(buffer, 0, length);
+				fileSize += length;
+				last = isAtEnd(input);
+			}
+			s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey, uploadId, partETags));
+			return fileSize;
+		} catch (IOException | RuntimeException exception) {
+			abortQuietly(fileKey, uploadId);
+			throw exception;
+		}
+	}
+
+	/**
+	 * Fetches the source as several ranged GETs in parallel. At most the configured number of ranges are in flight at a
+	 * time. Completed ranges are digested in order, and a new range is started as each is digested.
+	 * 
+	 * @return The number of bytes written
+	 */
+	private long fetchRanges(String sourceUrl, HttpHeaders headers, String fileKey, MessageDigest digest)
+			throws IOException, InterruptedException {
+		long contentLength = headers.getContentLength();
+		String eTag = headers.getETag();
+		int rangeCount = (int) ((contentLength + partSize - 1) / partSize);
+		if (rangeCount > UploadSessionManager.MAX_PART_NUMBER) {
+			throw new IOException("The source file is too large to be fetched with the configured part size.");
+		}
+		String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey))
+				.getUploadId();
+		Deque<Future<FetchedRange>> window = new ArrayDeque<Future<FetchedRange>>();
+		try {
+			List<PartETag> partETags = new ArrayList<PartETag>();
+			int nextRange = 0;
+			while ((nextRange < rangeCount) && (window.size() < parallelRanges)) {
+				window.add(submitRange(sourceUrl, eTag, fileKey, uploadId, nextRange++, contentLength));
+			}
+			while (!window.isEmpty()) {
+				FetchedRange range = window.poll().get();
+				digest.update(range.buffer, 0, range.buffer.length);
+				partETags.add(range.partETag);
+				if (nextRange < rangeCount) {
+					window.add(submitRange(sourceUrl, eTag, fileKey, uploadId, nextRange++, contentLength));
+				}
+			}
+			s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey, uploadId, partETags));
+			return contentLength;
+		} catch (ExecutionException exception) {
+			cancelAll(window);
+			abortQuietly(fileKey, uploadId);
+			if (exception.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) exception.getCause();
+			}
+			throw new IOException(exception.getCause().getMessage(), exception.getCause());
+		} catch (IOException | InterruptedException | RuntimeException exception) {
+			cancelAll(window);
+			abortQuietly(fileKey, uploadId);
+			throw exception;
+		}
+	}
+
+	/**
+	 * Starts the fetch of a single range, which is written to S3 as its own part.
+	 */
+	private Future<FetchedRange> submitRange(final String sourceUrl, final String eTag, final String fileKey, final String uploadId,
+			final int index, long contentLength) {
+		final long start = (long) index * partSize;
+		final long end = Math.min(start + partSize, contentLength) - 1;
+		return rangeExecutor.submit(new Callable<FetchedRange>() {
+			@Override
+			public FetchedRange call() {
+				return restTemplate.execute(sourceUrl, HttpMethod.GET, new RequestCallback() {
+					@Override
+					public void doWithRequest(ClientHttpRequest request) throws IOException {
+						request.getHeaders().set(HttpHeaders.RANGE, String.format("bytes=%s-%s", start, end));
+						if ((eTag != null) && !eTag.startsWith("W/")) {
+							// Fail rather than mixing the bytes of two versions of the source
+							request.getHeaders().setIfMatch(eTag);
+						}
+					}
+				}, new ResponseExtractor<FetchedRange>() {
+					@Override
+					public FetchedRange extractData(ClientHttpResponse response) throws IOException {
+						if (response.getStatusCode() != HttpStatus.PARTIAL_CONTENT) {
+							throw new IOException(String.format("The source did not honor the range request for bytes %s-%s.", start, end));
+						}
+						byte[] buffer = new byte[(int) (end - start + 1)];
+						if (readFully(response.getBody(), buffer, buffer.length) != buffer.length) {
+							throw new IOException(String.format("The source ended before the end of bytes %s-%s.", start, end));
+						}
+						return new FetchedRange(buffer, uploadPart(fileKey, uploadId, index + 1, buffer, buffer.length, false));
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Gets the headers of the source, if it is large enough to fetch in parallel ranges and the server accepts byte
+	 * ranges.
+	 * 
+	 * @return The headers, or null if the source should be fetched with a single GET
+	 */
+	private HttpHeaders getRangeableHeaders(String sourceUrl) {
+		if ((parallelRanges <= 1) || USE_KMS.booleanValue()) {
+			// The encryption client requires parts to be written in order
+			return null;
+		}
+		try {
+			HttpHeaders headers = restTemplate.headForHeaders(sourceUrl);
+			if ((headers.getContentLength() >= parallelThreshold) && "bytes".equalsIgnoreCase(headers.getFirst(HttpHeaders.ACCEPT_RANGES))) {
+				return headers;
+			}
+		} catch (RestClientException exception) {
+			// Not all servers support HEAD. Fall back to a single GET.
+			LOG.info("Could not read the headers of {}, fetching with a single request: {}", sourceUrl, exception.getMessage());
+		}
+		return null;
+	}
+
+	private PartETag uploadPart(String fileKey, String uploadId, int partNumber, byte[] buffer, int length, boolean last) {
+		UploadPartRequest request = new UploadPartRequest().withBucketName(AMAZONS3_BUCKET_NAME).withKey(fileKey).withUploadId(uploadId)
+				.withPartNumber(partNumber).withInputStream(new ByteArrayInputStream(buffer, 0, length)).withPartSize(length)
+				.withLastPart(last);
+		return s3Client.uploadPart(request).getPartETag();
+	}
+
+	/**
+	 * Reads from the stream until the buffer holds the requested number of bytes, or the stream ends. Reads are
+	 * throttled to the configured byte rate.
+	 * 
+	 * @return The number of bytes read
+	 */
+	private int readFully(InputStream input, byte[] buffer, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int read = input.read(buffer, total, Math.min(READ_SIZE, length - total));
+			if (read == -1) {
+				break;
+			}
+			total += read;
+			throttle(read);
+		}
+		bytesFetched.addAndGet(total);
+		return total;
+	}
+
+	/**
+	 * Blocks as needed so that the bytes read by all fetches stay within the configured rate.
+	 */
+	private void throttle(int bytes) throws IOException {
+		if (maxBytesPerSecond <= 0) {
+			return;
+		}
+		long delay;
+		synchronized (rateLock) {
+			long now = System.nanoTime();
+			long start = Math.max(now, nextReadNanos);
+			nextReadNanos = start + (bytes * TimeUnit.SECONDS.toNanos(1)) / maxBytesPerSecond;
+			delay = start - now;
+		}
+		if (delay > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while fetching the file.", exception);
+			}
+		}
+	}
+
+	private static boolean isAtEnd(PushbackInputStream input) throws IOException {
+		int next = input.read();
+		if (next == -1) {
+			return true;
+		}
+		input.unread(next);
+		return false;
+	}
+
+	private void abortQuietly(String fileKey, String uploadId) {
+		try {
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey, uploadId));
+		} catch (RuntimeException exception) {
+			LOG.error(String.format("Could not abort the multipart upload of %s", fileKey), exception);
+		}
+	}
+
+	private static void cancelAll(Deque<Future<FetchedRange>> window) {
+		for (Future<FetchedRange> future : window) {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Creates the client that sources are fetched with. Its connections are only made to addresses that pass
+	 * checkAddresses(), which is applied again as each connection is made, so a host cannot pass validation and then
+	 * resolve to an internal address. Redirects are returned as errors rather than followed.
+	 */
+	private RestTemplate createRestTemplate(int maxConnections) {
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeoutMillis).setSocketTimeout(readTimeoutMillis)
+				.setConnectionRequestTimeout(connectTimeoutMillis).setRedirectsEnabled(false).build();
+		HttpClient httpClient = HttpClients.custom().setMaxConnTotal(maxConnections).setMaxConnPerRoute(maxConnections)
+				.setDefaultRequestConfig(requestConfig).disableRedirectHandling().setDnsResolver(new DnsResolver() {
+					@Override
+					public InetAddress[] resolve(String host) throws UnknownHostException {
+						InetAddress[] addresses = SystemDefaultDnsResolver.INSTANCE.resolve(host);
+						String error = checkAddresses(host, addresses);
+						if (error != null) {
+							throw new UnknownHostException(error);
+						}
+						return addresses;
+					}
+				}).build();
+		RestTemplate template = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
+		template.setErrorHandler(new DefaultResponseErrorHandler() {
+			@Override
+			public boolean hasError(ClientHttpResponse response) throws IOException {
+				return super.hasError(response) || response.getStatusCode().is3xxRedirection();
+			}
+
+			@Override
+			public void handleError(ClientHttpResponse response) throws IOException {
+				if (response.getStatusCode().is3xxRedirection()) {
+					throw new HttpClientErrorException(response.getStatusCode(), response.getStatusText());
+				}
+				super.handleError(response);
+			}
+		});
+		return template;
+	}
+
+	/**
+	 * Ensures the source URL is an HTTP or HTTPS URL for an allowed host that does not resolve to an internal address.
+	 */
+	private URI validateUrl(String sourceUrl) throws InvalidInputException {
+		URI uri;
+		try {
+			uri = new URI(sourceUrl);
+		} catch (URISyntaxException | NullPointerException exception) {
+			throw new InvalidInputException(String.format("The source URL %s is not valid.", sourceUrl));
+		}
+		if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+			throw new InvalidInputException("The source URL must be an HTTP or HTTPS URL.");
+		}
+		String host = uri.getHost();
+		if ((host == null) || host.isEmpty()) {
+			throw new InvalidInputException(String.format("The source URL %s is not valid.", sourceUrl));
+		}
+		if (!isAllowedHost(host)) {
+			throw new InvalidInputException(String.format("Files cannot be loaded from the host %s.", host));
+		}
+		String error;
+		try {
+			error = checkAddresses(host, InetAddress.getAllByName(host));
+		} catch (UnknownHostException exception) {
+			throw new InvalidInputException(String.format("The host %s of the source URL could not be resolved.", host));
+		}
+		if (error != null) {
+			throw new InvalidInputException(error);
+		}
+		return uri;
+	}
+
+	/**
+	 * Checks the host against the allowlist. An entry starting with a dot allows every subdomain of that domain. An
+	 * empty allowlist allows every host.
+	 */
+	private boolean isAllowedHost(String host) {
+		if (hostAllowlist.isEmpty()) {
+			return true;
+		}
+		String name = host.toLowerCase(Locale.ROOT);
+		for (String allowed : hostAllowlist) {
+			if (allowed.startsWith(".") ? name.endsWith(allowed) : name.equals(allowed)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return A description of why the host may not be connected to, or null if all of its addresses are public
+	 */
+	private String checkAddresses(String host, InetAddress[] addresses) {
+		if (allowPrivateAddresses) {
+			return null;
+		}
+		for (InetAddress address : addresses) {
+			if (isInternalAddress(address)) {
+				return String.format("Files cannot be loaded from the host %s, since it resolves to the internal address %s.", host,
+						address.getHostAddress());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Determines if the address is a loopback, link-local, private, shared or otherwise non-public address.
+	 */
+	private static boolean isInternalAddress(InetAddress address) {
+		if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isSiteLocalAddress()
+				|| address.isMulticastAddress()) {
+			return true;
+		}
+		byte[] bytes = address.getAddress();
+		if (address instanceof Inet4Address) {
+			int first = bytes[0] & 0xFF;
+			int second = bytes[1] & 0xFF;
+			// 0.0.0.0/8, carrier-grade NAT 100.64.0.0/10, and 198.18.0.0/15
+			return (first == 0) || ((first == 100) && (second >= 64) && (second < 128)) || ((first == 198) && ((second & 0xFE) == 18));
+		}
+		if (address instanceof Inet6Address) {
+			// Unique local addresses, fc00::/7
+			return (bytes[0] & 0xFE) == 0xFC;
+		}
+		return false;
+	}
+
+	/**
+	 * Derives the name of the stored file from the last segment of the URL path.
+	 */
+	private static String getFileName(URI uri) {
+		String path = uri.getPath();
+		if ((path == null) || path.isEmpty() || path.endsWith("/")) {
+			return DEFAULT_FILE_NAME;
+		}
+		String fileName = path.substring(path.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9._-]", "_");
+		return fileName.isEmpty() ? DEFAULT_FILE_NAME : fileName;
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException exception) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(exception);
+		}
+	}
+
+	/**
+	 * A range of the source that has been written to S3, held until it has been digested.
+	 */
+	private static class FetchedRange {
+		private final byte[] buffer;
+		private final PartETag partETag;
+
+		FetchedRange(byte[] buffer, PartETag partETag) {
+			this.buffer = buffer;
+			this.partETag = partETag;
+		}
+	}
+}
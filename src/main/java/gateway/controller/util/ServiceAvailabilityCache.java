@@ -0,0 +1,272 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import model.job.metadata.ResourceMetadata;
+import model.response.ServiceResponse;
+import model.service.metadata.Service;
+
+/**
+ * Cache of the availability of registered Services, so that executing a Service does not require a request to the
+ * Service Controller each time just to check that the Service is not Offline.
+ * 
+ * An availability is served from the cache for the short TTL. After that it is still served, while it is refreshed in
+ * the background, until it is older than the maximum staleness, at which point the next execution fetches it again.
+ * A Service that is executed often is therefore refreshed in the background and never fetched on the request path.
+ * Concurrent fetches of the same Service share a single request. Entries are removed when the Service is updated or
+ * deleted through this Gateway.
+ * 
+ * Invalidation is local to this Gateway instance. When a Service is taken Offline through another instance, or
+ * directly in the Service Controller, this instance may keep executing it for up to the maximum staleness, so that is
+ * kept short by default.
+ */
+@Component
+public class ServiceAvailabilityCache {
+	@Autowired
+	private RestTemplate restTemplate;
+
+	@Value("${service.availability.cache.enabled}")
+	private boolean enabled;
+	@Value("${service.availability.cache.ttl.ms}")
+	private long ttlMillis;
+	@Value("${service.availability.cache.max.stale.ms}")
+	private long maxStaleMillis;
+	@Value("${service.availability.cache.max.entries}")
+	private int maxEntries;
+	@Value("${servicecontroller.url}")
+	private String SERVICECONTROLLER_URL;
+
+	private static final Logger LOG = LoggerFactory.getLogger(ServiceAvailabilityCache.class);
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private ExecutorService refresher;
+
+	@PostConstruct
+	public void init() {
+		refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "service-availability-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return True if availability checks should be served by this cache
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Determines if a Service is Offline, from the cache if it holds a recent enough availability, or otherwise by
+	 * fetching the Service from the Service Controller.
+	 * 
+	 * @param serviceId
+	 *            The Id of the Service
+	 * @return True if the availability of the Service is Offline
+	 * @throws Exception
+	 *             If the Service could not be fetched. Failures are passed on to every caller waiting on the fetch, and
+	 *             are not cached.
+	 */
+	public boolean isOffline(String serviceId) throws Exception {
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(serviceId);
+		if (entry != null) {
+			if (!entry.offline.isDone()) {
+				coalesced.incrementAndGet();
+				return await(entry);
+			}
+			long age = now - entry.fetchedAt;
+			if (age <= maxStaleMillis) {
+				if (age > ttlMillis) {
+					refreshLater(serviceId, entry);
+				}
+				hits.incrementAndGet();
+				return await(entry);
+			}
+		}
+		if ((entries.size() >= maxEntries) && (purgeStale(now) >= maxEntries)) {
+			// Full of recent entries. Fetch without caching, rather than evict availabilities that are in use.
+			misses.incrementAndGet();
+			return fetch(serviceId);
+		}
+
+		// Claim the fetch, unless another request has just done so
+		Entry claim = new Entry();
+		Entry current;
+		if (entry == null) {
+			current = entries.putIfAbsent(serviceId, claim);
+		} else {
+			current = entries.replace(serviceId, entry, claim) ? null : entries.get(serviceId);
+		}
+		if (current != null) {
+			coalesced.incrementAndGet();
+			return await(current);
+		}
+		misses.incrementAndGet();
+		try {
+			boolean offline = fetch(serviceId);
+			claim.fetchedAt = System.currentTimeMillis();
+			claim.offline.complete(offline);
+			return offline;
+		} catch (Exception exception) {
+			entries.remove(serviceId, claim);
+			claim.offline.completeExceptionally(exception);
+			throw exception;
+		}
+	}
+
+	/**
+	 * Removes the cached availability of a Service, after it has been updated or deleted through this Gateway. A fetch
+	 * or refresh that is in progress is not cached when it completes.
+	 * 
+	 * @param serviceId
+	 *            The Id of the Service
+	 */
+	public void invalidate(String serviceId) {
+		if (entries.remove(serviceId) != null) {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return Cache statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("enabled", enabled);
+		stats.put("entries", entries.size());
+		stats.put("hits", hits.get());
+		stats.put("coalesced", coalesced.get());
+		stats.put("misses", misses.get());
+		stats.put("refreshes", refreshes.get());
+		stats.put("invalidations", invalidations.get());
+		return stats;
+	}
+
+	/**
+	 * Fetches the availability in the background, while the current one continues to be served. Only one refresh of
+	 * an entry runs at a time.
+	 */
+	private void refreshLater(final String serviceId, final Entry entry) {
+		if (!entry.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			refresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Entry refreshed = new Entry();
+						boolean offline = fetch(serviceId);
+						refreshed.fetchedAt = System.currentTimeMillis();
+						refreshed.offline.complete(offline);
+						// Not cached if the Service was invalidated while the refresh was in progress
+						entries.replace(serviceId, entry, refreshed);
+						refreshes.incrementAndGet();
+					} catch (Exception exception) {
+						// The current availability is served until it is too stale, and then fetched on the request path
+						LOG.warn(String.format("Could not refresh the availability of Service %s", serviceId), exception);
+						entry.refreshing.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException exception) {
+			entry.refreshing.set(false);
+		}
+	}
+
+	private boolean fetch(String serviceId) {
+		Service service = restTemplate
+				.getForEntity(String.format("%s/%s/%s", SERVICECONTROLLER_URL, "service", serviceId), ServiceResponse.class).getBody().data;
+		return (service != null) && (service.getResourceMetadata() != null)
+				&& ResourceMetadata.STATUS_TYPE.OFFLINE.toString().equals(service.getResourceMetadata().getAvailability());
+	}
+
+	private static boolean await(Entry entry) throws Exception {
+		try {
+			return entry.offline.get();
+		} catch (ExecutionException exception) {
+			if (exception.getCause() instanceof Exception) {
+				throw (Exception) exception.getCause();
+			}
+			throw exception;
+		}
+	}
+
+	/**
+	 * Removes entries that are too stale to be served.
+	 * 
+	 * @return The number of entries remaining
+	 */
+	private int purgeStale(long now) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.offline.isDone() && (now - entry.fetchedAt > maxStaleMillis)) {
+				iterator.remove();
+			}
+		}
+		return entries.size();
+	}
+
+	/**
+	 * The availability of a Service, or the fetch of it that is in progress
+	 */
+	private static class Entry {
+		private final CompletableFuture<Boolean> offline = new CompletableFuture<Boolean>();
+		private volatile long fetchedAt;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+	}
+}
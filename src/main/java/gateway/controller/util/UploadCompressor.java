@@ -0,0 +1,309 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import model.data.DataResource;
+import model.data.FileRepresentation;
+import model.data.location.FileLocation;
+import model.data.location.S3FileStore;
+
+/**
+ * Compresses uploaded files of compressible types before they are written to S3, and decompresses them again when they
+ * are downloaded through the Gateway.
+ * 
+ * The codec is recorded in the object metadata, both as the standard Content-Encoding and as Piazza user metadata
+ * along with the original length. Clients that accept the codec receive the stored bytes as they are. Other clients
+ * receive the file decompressed.
+ * 
+ * The enabled flag only controls the compression of new uploads. Downloads are always decoded by the codec recorded
+ * on the stored object, so that files compressed while the flag was on can still be read after it is turned off. The
+ * codec of an object never changes, so it is remembered by key rather than looked up on every download.
+ * 
+ * Other components that read hosted files from S3 directly must also honor the codec, so this should only be enabled
+ * once they do.
+ */
+@Component
+public class UploadCompressor {
+	@Autowired
+	private AmazonS3 s3Client;
+
+	@Value("${vcap.services.pz-blobstore.credentials.bucket}")
+	private String AMAZONS3_BUCKET_NAME;
+	@Value("${upload.compression.enabled}")
+	private boolean enabled;
+	@Value("${upload.compression.extensions}")
+	private String extensions;
+	@Value("${upload.compression.level}")
+	private int level;
+	@Value("${upload.compression.min.ratio}")
+	private double minRatio;
+	@Value("${upload.compression.codec.cache.entries}")
+	private int codecCacheEntries;
+
+	public static final String CODEC_GZIP = "gzip";
+	/** User metadata keys for the codec and the length of the file before compression */
+	public static final String CODEC_METADATA = "pz-codec";
+	public static final String ORIGINAL_LENGTH_METADATA = "pz-original-length";
+
+	private Set<String> compressedExtensions = new HashSet<String>();
+	/** The codec of each stored object that has been downloaded, by key. Null values mark uncompressed objects. */
+	private Map<String, String> codecs = new HashMap<String, String>();
+	private final AtomicLong filesCompressed = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		compressedExtensions = new HashSet<String>();
+		for (String extension : Arrays.asList(extensions.split(","))) {
+			if (!extension.trim().isEmpty()) {
+				compressedExtensions.add(extension.trim().toLowerCase(Locale.ENGLISH));
+			}
+		}
+		codecs = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > codecCacheEntries;
+			}
+		});
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param fileName
+	 *            The name of the uploaded file
+	 * @return true if the file is of a type that should be compressed before it is stored
+	 */
+	public boolean shouldCompress(String fileName) {
+		if (!enabled || (fileName == null)) {
+			return false;
+		}
+		int extension = fileName.lastIndexOf('.');
+		return (extension >= 0) && compressedExtensions.contains(fileName.substring(extension + 1).toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Compresses the stream into the output.
+	 * 
+	 * @param input
+	 *            The file to compress. This is not closed.
+	 * @param output
+	 *            The stream to write the compressed bytes to. This is not closed.
+	 * @return The number of bytes read from the input
+	 */
+	public long compress(InputStream input, OutputStream output) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(output, FileStreamer.BUFFER_SIZE) {
+			{
+				def.setLevel(level);
+			}
+		};
+		long length = FileStreamer.copy(input, gzip);
+		gzip.finish();
+		return length;
+	}
+
+	/**
+	 * Compresses an uploaded file into a temporary file, ready to be written to S3.
+	 * 
+	 * @param input
+	 *            The uploaded file. This is closed.
+	 * @param originalLength
+	 *            The length of the uploaded file
+	 * @param metadata
+	 *            The metadata of the S3 object, which is updated with the codec and compressed length
+	 * @return The temporary file holding the compressed bytes, which the caller must delete. Null if the file did not
+	 *         compress well enough to be worth storing compressed.
+	 */
+	public Path compressToFile(InputStream input, long originalLength, ObjectMetadata metadata) throws IOException {
+		Path compressed = Files.createTempFile("pz-upload", ".gz");
+		try {
+			try (InputStream source = input; OutputStream output = Files.newOutputStream(compressed)) {
+				compress(source, output);
+			}
+			long compressedLength = Files.size(compressed);
+			if (compressedLength > originalLength * minRatio) {
+				Files.delete(compressed);
+				return null;
+			}
+			metadata.setContentLength(compressedLength);
+			metadata.setContentEncoding(CODEC_GZIP);
+			metadata.addUserMetadata(CODEC_METADATA, CODEC_GZIP);
+			metadata.addUserMetadata(ORIGINAL_LENGTH_METADATA, Long.toString(originalLength));
+			filesCompressed.incrementAndGet();
+			bytesIn.addAndGet(originalLength);
+			bytesOut.addAndGet(compressedLength);
+			return compressed;
+		} catch (IOException exception) {
+			Files.deleteIfExists(compressed);
+			throw exception;
+		}
+	}
+
+	/**
+	 * Gets the codec that a hosted file was stored with. This does not depend on whether compression is enabled.
+	 * 
+	 * @param data
+	 *            The Data to download
+	 * @return The codec, or null if the file is stored as it was uploaded, or is not held in the Piazza bucket
+	 */
+	public String getCodec(DataResource data) {
+		S3FileStore fileStore = getFileStore(data);
+		if (fileStore == null) {
+			return null;
+		}
+		String key = fileStore.getFileName();
+		synchronized (codecs) {
+			if (codecs.containsKey(key)) {
+				return codecs.get(key);
+			}
+		}
+		String codec = s3Client.getObjectMetadata(AMAZONS3_BUCKET_NAME, key).getUserMetaDataOf(CODEC_METADATA);
+		codecs.put(key, codec);
+		return codec;
+	}
+
+	/**
+	 * Wraps the stored bytes of a file in a stream that decodes them.
+	 * 
+	 * @param input
+	 *            The stored bytes
+	 * @param codec
+	 *            The codec the file was stored with
+	 * @return The decoded stream
+	 */
+	public static InputStream decode(InputStream input, String codec) throws IOException {
+		if (!CODEC_GZIP.equalsIgnoreCase(codec)) {
+			throw new IOException(String.format("Unsupported codec %s", codec));
+		}
+		return new GZIPInputStream(input, FileStreamer.BUFFER_SIZE);
+	}
+
+	/**
+	 * Checks if the client accepts the codec as a content-coding, so that the stored bytes can be sent to it as-is.
+	 */
+	public static boolean isAccepted(HttpServletRequest request, String codec) {
+		String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase(codec)) {
+				// A quality of zero means the coding is not acceptable
+				return (parts.length < 2) || !parts[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Streams a compressed hosted file from S3 to the client. The stored bytes are sent with a Content-Encoding if the
+	 * client accepts the codec; otherwise they are decompressed as they are sent. Ranges are not supported for
+	 * compressed files, and the whole file is always returned.
+	 * 
+	 * @param data
+	 *            The Data to download
+	 * @param fileName
+	 *            The file name requested for the download, if any
+	 * @return The number of bytes written
+	 */
+	public long streamFile(DataResource data, String fileName, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		S3FileStore fileStore = getFileStore(data);
+		try (S3Object object = s3Client.getObject(AMAZONS3_BUCKET_NAME, fileStore.getFileName())) {
+			ObjectMetadata metadata = object.getObjectMetadata();
+			String codec = metadata.getUserMetaDataOf(CODEC_METADATA);
+			response.setStatus(HttpStatus.OK.value());
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+			response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+			response.setHeader(HttpHeaders.CONTENT_DISPOSITION, FileStreamer.getContentDisposition(
+					((fileName != null) && (fileName.isEmpty() == false)) ? fileName : fileStore.getFileName()));
+			if (isAccepted(request, codec)) {
+				response.setHeader(HttpHeaders.CONTENT_ENCODING, codec);
+				response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(metadata.getContentLength()));
+				return FileStreamer.copy(object.getObjectContent(), response.getOutputStream());
+			}
+			String originalLength = metadata.getUserMetaDataOf(ORIGINAL_LENGTH_METADATA);
+			if (originalLength != null) {
+				response.setHeader(HttpHeaders.CONTENT_LENGTH, originalLength);
+			}
+			return FileStreamer.copy(decode(object.getObjectContent(), codec), response.getOutputStream());
+		}
+	}
+
+	/**
+	 * @return Compression statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		long in = bytesIn.get();
+		stats.put("enabled", enabled);
+		stats.put("codecsCached", codecs.size());
+		stats.put("filesCompressed", filesCompressed.get());
+		stats.put("bytesIn", in);
+		stats.put("bytesOut", bytesOut.get());
+		stats.put("ratio", in > 0 ? (double) bytesOut.get() / in : 1.0);
+		return stats;
+	}
+
+	private S3FileStore getFileStore(DataResource data) {
+		if ((data == null) || !(data.getDataType() instanceof FileRepresentation)) {
+			return null;
+		}
+		FileLocation location = ((FileRepresentation) data.getDataType()).getLocation();
+		if (!(location instanceof S3FileStore) || !AMAZONS3_BUCKET_NAME.equals(((S3FileStore) location).getBucketName())) {
+			return null;
+		}
+		return (S3FileStore) location;
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.amazonaws.services.s3.model.PartETag;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import model.job.type.IngestJob;
+
+/**
+ * State of a single resumable file upload. The file is written to S3 as a multipart upload, where each numbered chunk
+ * sent by the client becomes one part of the S3 object. Chunks may arrive in any order, and may be retried.
+ * 
+ * Alternatively, a direct upload session holds a pre-signed URL that the client uses to send the whole file to S3
+ * itself, without the bytes passing through the Gateway.
+ * 
+ * The public getters are serialized as the response to the upload endpoints; internal state is ignored.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class UploadSession {
+	private final String uploadId;
+	private final String fileName;
+	private final String createdBy;
+	private final IngestJob job;
+	private final String fileKey;
+	private final String s3UploadId;
+	private final Map<Integer, PartETag> partETags = new ConcurrentSkipListMap<Integer, PartETag>();
+	private final Map<Integer, Long> partSizes = new ConcurrentSkipListMap<Integer, Long>();
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	/** Held shared while a part is written, and exclusively while the session is closed */
+	private final ReadWriteLock partLock = new ReentrantReadWriteLock();
+	private volatile boolean assembled;
+	private volatile long lastActivity = System.currentTimeMillis();
+	private String uploadUrl;
+	private String uploadKey;
+	private Date uploadUrlExpiration;
+	private Long expectedSize;
+
+	public UploadSession(String uploadId, String fileName, String createdBy, IngestJob job, String fileKey, String s3UploadId) {
+		this.uploadId = uploadId;
+		this.fileName = fileName;
+		this.createdBy = createdBy;
+		this.job = job;
+		this.fileKey = fileKey;
+		this.s3UploadId = s3UploadId;
+	}
+
+	/**
+	 * @return The Id of the upload. This is also the Job Id reserved for the Ingest Job that is created on commit.
+	 */
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getCreatedBy() {
+		return createdBy;
+	}
+
+	/**
+	 * @return Map of the part numbers received so far to their size in bytes, in part order
+	 */
+	public Map<Integer, Long> getReceivedParts() {
+		return new TreeMap<Integer, Long>(partSizes);
+	}
+
+	/**
+	 * @return The total number of bytes received so far
+	 */
+	public long getReceivedBytes() {
+		long total = 0;
+		for (Long size : partSizes.values()) {
+			total += size;
+		}
+		return total;
+	}
+
+	/**
+	 * @return For a direct upload, the pre-signed URL that the file must be sent to with an HTTP PUT. Null otherwise.
+	 */
+	public String getUploadUrl() {
+		return uploadUrl;
+	}
+
+	/**
+	 * @return For a direct upload, the time after which the upload URL will no longer be accepted. Null otherwise.
+	 */
+	public Date getUploadUrlExpiration() {
+		return uploadUrlExpiration;
+	}
+
+	/**
+	 * @return For a direct upload, the size in bytes that the uploaded file must have. Null otherwise.
+	 */
+	public Long getExpectedSize() {
+		return expectedSize;
+	}
+
+	/**
+	 * @return True if the client sends the file directly to S3 via the upload URL, rather than in chunks through the
+	 *         Gateway
+	 */
+	@JsonIgnore
+	public boolean isDirectUpload() {
+		return uploadUrl != null;
+	}
+
+	/**
+	 * Makes this a direct upload session, where the client sends the file to S3 with the pre-signed URL.
+	 * 
+	 * @param uploadUrl
+	 *            The pre-signed PUT URL for the upload key
+	 * @param uploadKey
+	 *            The S3 key the client writes the file to. The file is copied from here to the file key on commit.
+	 * @param uploadUrlExpiration
+	 *            When the URL expires
+	 * @param expectedSize
+	 *            The size in bytes the client declared for the file
+	 */
+	public void setDirectUpload(String uploadUrl, String uploadKey, Date uploadUrlExpiration, long expectedSize) {
+		this.uploadUrl = uploadUrl;
+		this.uploadKey = uploadKey;
+		this.uploadUrlExpiration = uploadUrlExpiration;
+		this.expectedSize = expectedSize;
+	}
+
+	@JsonIgnore
+	public IngestJob getJob() {
+		return job;
+	}
+
+	@JsonIgnore
+	public String getFileKey() {
+		return fileKey;
+	}
+
+	/**
+	 * @return For a direct upload, the S3 key that the client writes the file to with the upload URL. Null otherwise.
+	 */
+	@JsonIgnore
+	public String getUploadKey() {
+		return uploadKey;
+	}
+
+	@JsonIgnore
+	public String getS3UploadId() {
+		return s3UploadId;
+	}
+
+	/**
+	 * @return The S3 part ETags received so far, ordered by part number, as required to complete the upload
+	 */
+	@JsonIgnore
+	public List<PartETag> getPartETags() {
+		return new ArrayList<PartETag>(partETags.values());
+	}
+
+	@JsonIgnore
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/**
+	 * Records a part that has been written to S3. A retried part replaces the previous attempt.
+	 * 
+	 * @param partETag
+	 *            The ETag returned by S3 for the part
+	 * @param size
+	 *            The size of the part in bytes
+	 */
+	public void addPart(PartETag partETag, long size) {
+		partETags.put(partETag.getPartNumber(), partETag);
+		partSizes.put(partETag.getPartNumber(), size);
+		touch();
+	}
+
+	/**
+	 * Marks the session as in use, deferring its expiry.
+	 */
+	public void touch() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Starts writing a part to the session. Any number of parts may be written at once. If this returns true, then
+	 * endPart() must be called once the part is written.
+	 * 
+	 * @return True if the session accepts parts, false if it is closed or its file has been assembled
+	 */
+	public boolean beginPart() {
+		partLock.readLock().lock();
+		if (closed.get() || assembled) {
+			partLock.readLock().unlock();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finishes writing a part that was started with beginPart().
+	 */
+	public void endPart() {
+		partLock.readLock().unlock();
+	}
+
+	/**
+	 * Closes the session for further parts. Only the first caller will succeed, so that a session can only be
+	 * committed or aborted once. This waits for the parts being written to finish, so that no part is added once the
+	 * session is closed.
+	 * 
+	 * @return True if this call closed the session, false if it had already been closed
+	 */
+	public boolean close() {
+		partLock.writeLock().lock();
+		try {
+			return closed.compareAndSet(false, true);
+		} finally {
+			partLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Re-opens a closed session. Used when committing the upload fails in a way that the client can retry.
+	 */
+	public void reopen() {
+		closed.set(false);
+		touch();
+	}
+
+	@JsonIgnore
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * @return True if the file of the session has been assembled in S3. No further parts are accepted, and committing
+	 *         the session again does not assemble the file again.
+	 */
+	@JsonIgnore
+	public boolean isAssembled() {
+		return assembled;
+	}
+
+	/**
+	 * Records that the file of the session has been assembled in S3.
+	 */
+	public void setAssembled() {
+		assembled = true;
+	}
+}
@@ -0,0 +1,459 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import exception.InvalidInputException;
+import exception.PiazzaJobException;
+import model.data.FileRepresentation;
+import model.data.location.FileLocation;
+import model.data.location.S3FileStore;
+import model.job.type.IngestJob;
+import model.logger.AuditElement;
+import model.logger.Severity;
+import util.PiazzaLogger;
+
+/**
+ * Manages resumable, chunked uploads of large data files. Each upload session maps onto an S3 multipart upload: every
+ * chunk the client sends is written directly as one S3 part, so committing the session only asks S3 to stitch the parts
+ * together and no bytes are copied again.
+ * 
+ * A session may instead be a direct upload, where the Gateway only issues a pre-signed PUT URL for an upload key and
+ * the client sends the file to S3 itself. Committing such a session verifies the object that the client wrote, and
+ * copies exactly that version of it to the file key, which the URL cannot write to. Writes made with the URL after
+ * the commit therefore do not change the loaded file.
+ * 
+ * Sessions are held in memory by the Gateway instance that created them, so every request for a session must be routed
+ * to that instance, and the open sessions of an instance are lost when it restarts. The S3 multipart uploads of lost
+ * sessions must be cleaned up by a lifecycle rule on the bucket. Sessions that see no activity for the configured time
+ * are aborted, releasing the parts held by S3.
+ * 
+ * A committed session is kept until its Ingest Job has been accepted, so that the commit can be retried if sending the
+ * Job fails.
+ */
+@Component
+public class UploadSessionManager {
+	@Autowired
+	private AmazonS3 s3Client;
+	@Autowired
+	private GatewayUtil gatewayUtil;
+	@Autowired
+	private PiazzaLogger logger;
+
+	@Value("${s3.domain}")
+	private String AMAZONS3_DOMAIN;
+	@Value("${vcap.services.pz-blobstore.credentials.bucket}")
+	private String AMAZONS3_BUCKET_NAME;
+	@Value("${s3.use.kms}")
+	private Boolean USE_KMS;
+	@Value("${upload.session.timeout.minutes}")
+	private int sessionTimeoutMinutes;
+	@Value("${upload.presigned.url.minutes}")
+	private int presignedUrlMinutes;
+
+	/** S3 part number limits */
+	public static final int MAX_PART_NUMBER = 10000;
+	/** S3 requires every part, other than the last, to be at least this large */
+	public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+	/** The largest object S3 can copy in a single request */
+	public static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+	/** The size of each part when an object larger than that is copied in parts */
+	public static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+	/** Prefix of the S3 keys that direct uploads are written to, before they are copied to their file key */
+	public static final String UPLOAD_KEY_PREFIX = "uploads/";
+
+	private static final Logger LOG = LoggerFactory.getLogger(UploadSessionManager.class);
+	private static final String FILE_CHANGED = "The uploaded file was changed while it was being verified. Commit the upload again.";
+
+	private final Map<String, UploadSession> sessions = new ConcurrentHashMap<String, UploadSession>();
+	private ScheduledExecutorService expiryExecutor;
+
+	/**
+	 * Starts the periodic expiry of idle sessions.
+	 */
+	@PostConstruct
+	public void init() {
+		expiryExecutor = Executors.newSingleThreadScheduledExecutor();
+		expiryExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				expireSessions();
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (expiryExecutor != null) {
+			expiryExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates a new upload session for a file. This reserves the Job Id for the eventual Ingest Job, and initiates the
+	 * multipart upload in S3.
+	 * 
+	 * @param job
+	 *            The validated Ingest Job describing the file
+	 * @param fileName
+	 *            The name of the file being uploaded
+	 * @param userName
+	 *            The user creating the upload
+	 * @return The new session
+	 */
+	public UploadSession createSession(IngestJob job, String fileName, String userName) throws InvalidInputException, PiazzaJobException {
+		if (USE_KMS.booleanValue()) {
+			// The client-side encryption client requires parts to be sent sequentially, which defeats the purpose.
+			throw new InvalidInputException("Resumable uploads are not supported when KMS encryption is enabled. Use /data/file instead.");
+		}
+		if ((fileName == null) || fileName.isEmpty()) {
+			throw new InvalidInputException("The fileName parameter must be specified.");
+		}
+		String jobId = gatewayUtil.getUuid();
+		String fileKey = String.format("%s-%s", jobId, fileName);
+		String s3UploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(AMAZONS3_BUCKET_NAME, fileKey))
+				.getUploadId();
+		UploadSession session = new UploadSession(jobId, fileName, userName, job, fileKey, s3UploadId);
+		sessions.put(jobId, session);
+		logger.log(String.format("Created resumable upload %s for user %s to %s:%s", jobId, userName, AMAZONS3_BUCKET_NAME, fileKey),
+				Severity.INFORMATIONAL, new AuditElement(userName, "createUploadSession", jobId));
+		return session;
+	}
+
+	/**
+	 * Creates a new direct upload session for a file. This reserves the Job Id for the eventual Ingest Job, and issues
+	 * a pre-signed URL that allows the client to PUT the file to its S3 key without further credentials.
+	 * 
+	 * @param job
+	 *            The validated Ingest Job describing the file
+	 * @param fileName
+	 *            The name of the file being uploaded
+	 * @param fileSize
+	 *            The size of the file in bytes. The upload is only accepted if the stored object has this size.
+	 * @param userName
+	 *            The user creating the upload
+	 * @return The new session, containing the upload URL
+	 */
+	public UploadSession createDirectSession(IngestJob job, String fileName, long fileSize, String userName)
+			throws InvalidInputException, PiazzaJobException {
+		if (USE_KMS.booleanValue()) {
+			// Objects written through a pre-signed URL would bypass the client-side encryption.
+			throw new InvalidInputException("Direct uploads are not supported when KMS encryption is enabled. Use /data/file instead.");
+		}
+		if ((fileName == null) || fileName.isEmpty()) {
+			throw new InvalidInputException("The fileName parameter must be specified.");
+		}
+		if (fileSize <= 0) {
+			throw new InvalidInputException("The fileSize parameter must be greater than zero.");
+		}
+		String jobId = gatewayUtil.getUuid();
+		String fileKey = String.format("%s-%s", jobId, fileName);
+		String uploadKey = String.format("%s%s", UPLOAD_KEY_PREFIX, fileKey);
+		Date expiration = new Date(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(presignedUrlMinutes));
+		URL uploadUrl = s3Client.generatePresignedUrl(
+				new GeneratePresignedUrlRequest(AMAZONS3_BUCKET_NAME, uploadKey, HttpMethod.PUT).withExpiration(expiration));
+		UploadSession session = new UploadSession(jobId, fileName, userName, job, fileKey, null);
+		session.setDirectUpload(uploadUrl.toString(), uploadKey, expiration, fileSize);
+		sessions.put(jobId, session);
+		logger.log(String.format("Created direct upload %s for user %s to %s:%s", jobId, userName, AMAZONS3_BUCKET_NAME, fileKey),
+				Severity.INFORMATIONAL, new AuditElement(userName, "createDirectUploadSession", jobId));
+		return session;
+	}
+
+	/**
+	 * Gets an open upload session.
+	 * 
+	 * @param uploadId
+	 *            The Id of the upload
+	 * @param userName
+	 *            The user requesting the session. Only the user who created a session may access it.
+	 * @return The session, or null if no such session exists for the user
+	 */
+	public UploadSession getSession(String uploadId, String userName) {
+		UploadSession session = sessions.get(uploadId);
+		if ((session == null) || !session.getCreatedBy().equals(userName)) {
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Writes a single chunk of the file to S3 as a part of the multipart upload. Parts may be written concurrently and
+	 * in any order. Writing the same part number again replaces the previous part.
+	 * 
+	 * @param session
+	 *            The upload session
+	 * @param partNumber
+	 *            The number of the part, from 1 to 10000. Parts are assembled in ascending order.
+	 * @param inputStream
+	 *            The bytes of the part
+	 * @param partSize
+	 *            The exact number of bytes in the part
+	 * @return The updated session
+	 */
+	public UploadSession uploadPart(UploadSession session, int partNumber, InputStream inputStream, long partSize)
+			throws InvalidInputException {
+		if ((partNumber < 1) || (partNumber > MAX_PART_NUMBER)) {
+			throw new InvalidInputException(String.format("Part number must be between 1 and %s.", MAX_PART_NUMBER));
+		}
+		if (partSize <= 0) {
+			throw new InvalidInputException("The part must not be empty, and its Content-Length must be specified.");
+		}
+		if (session.isDirectUpload()) {
+			throw new InvalidInputException(String.format("Upload %s is a direct upload. Send the file to its uploadUrl.", session.getUploadId()));
+		}
+		if (!session.beginPart()) {
+			throw new InvalidInputException(String.format("Upload %s has already been committed or aborted.", session.getUploadId()));
+		}
+		try {
+			session.touch();
+			UploadPartRequest request = new UploadPartRequest().withBucketName(AMAZONS3_BUCKET_NAME).withKey(session.getFileKey())
+					.withUploadId(session.getS3UploadId()).withPartNumber(partNumber).withInputStream(inputStream).withPartSize(partSize);
+			PartETag partETag = s3Client.uploadPart(request).getPartETag();
+			session.addPart(partETag, partSize);
+		} finally {
+			session.endPart();
+		}
+		return session;
+	}
+
+	/**
+	 * Completes the multipart upload in S3 and attaches the resulting S3 file to the Ingest Job of the session. The
+	 * session remains closed until either finishSession() is called once the Ingest Job has been accepted, or
+	 * reopenSession() is called so that the client can retry the commit. The file is only assembled once.
+	 * 
+	 * @param session
+	 *            The upload session. All parts from 1 through N must have been received.
+	 * @return The Ingest Job, with the location of the S3 file added to the metadata
+	 */
+	public IngestJob completeSession(UploadSession session) throws InvalidInputException {
+		if (!session.close()) {
+			throw new InvalidInputException(String.format("Upload %s has already been committed or aborted.", session.getUploadId()));
+		}
+		if (!session.isAssembled()) {
+			try {
+				if (session.isDirectUpload()) {
+					copyDirectUpload(session);
+				} else {
+					validateParts(session);
+					List<PartETag> partETags = session.getPartETags();
+					s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(AMAZONS3_BUCKET_NAME, session.getFileKey(),
+							session.getS3UploadId(), partETags));
+				}
+			} catch (InvalidInputException | AmazonClientException exception) {
+				// Allow the client to upload the missing parts, or retry the commit.
+				session.reopen();
+				throw exception;
+			}
+			session.setAssembled();
+		}
+
+		long fileSize = session.isDirectUpload() ? session.getExpectedSize() : session.getReceivedBytes();
+		IngestJob job = session.getJob();
+		FileLocation fileLocation = new S3FileStore(AMAZONS3_BUCKET_NAME, session.getFileKey(), fileSize, AMAZONS3_DOMAIN);
+		((FileRepresentation) job.getData().getDataType()).setLocation(fileLocation);
+		logger.log(String.format("S3 File for Job %s Persisted to %s:%s %s", session.getUploadId(), AMAZONS3_BUCKET_NAME,
+				session.getFileKey(),
+				session.isDirectUpload() ? "directly by the client" : String.format("from %s parts", session.getReceivedParts().size())),
+				Severity.INFORMATIONAL,
+				new AuditElement(session.getUploadId(), "persistS3File", session.getFileKey()));
+		return job;
+	}
+
+	/**
+	 * Removes a committed session, once the Ingest Job for its file has been accepted.
+	 * 
+	 * @param session
+	 *            The upload session
+	 */
+	public void finishSession(UploadSession session) {
+		sessions.remove(session.getUploadId());
+	}
+
+	/**
+	 * Re-opens a committed session whose Ingest Job could not be sent, so that the client can retry the commit. The
+	 * assembled file is kept, and is deleted if the session is aborted or expires instead.
+	 * 
+	 * @param session
+	 *            The upload session
+	 */
+	public void reopenSession(UploadSession session) {
+		session.reopen();
+	}
+
+	/**
+	 * Aborts the upload, discarding all parts received so far.
+	 * 
+	 * @param session
+	 *            The upload session
+	 */
+	public void abortSession(UploadSession session) throws InvalidInputException {
+		if (!session.close()) {
+			throw new InvalidInputException(String.format("Upload %s has already been committed or aborted.", session.getUploadId()));
+		}
+		sessions.remove(session.getUploadId());
+		if (session.isAssembled()) {
+			s3Client.deleteObject(AMAZONS3_BUCKET_NAME, session.getFileKey());
+		} else if (session.isDirectUpload()) {
+			// Remove anything the client may have already written with the URL
+			s3Client.deleteObject(AMAZONS3_BUCKET_NAME, session.getUploadKey());
+		} else {
+			s3Client.abortMultipartUpload(
+					new AbortMultipartUploadRequest(AMAZONS3_BUCKET_NAME, session.getFileKey(), session.getS3UploadId()));
+		}
+	}
+
+	/**
+	 * @return The number of sessions currently open
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	/**
+	 * Ensures the parts form a contiguous sequence starting at 1, and that all but the last meet the S3 minimum size.
+	 */
+	private void validateParts(UploadSession session) throws InvalidInputException {
+		Map<Integer, Long> parts = session.getReceivedParts();
+		if (parts.isEmpty()) {
+			throw new InvalidInputException("No parts have been uploaded.");
+		}
+		int expected = 1;
+		for (Map.Entry<Integer, Long> part : parts.entrySet()) {
+			if (part.getKey() != expected) {
+				throw new InvalidInputException(String.format("Part %s has not been uploaded.", expected));
+			}
+			if ((expected < parts.size()) && (part.getValue() < MIN_PART_SIZE)) {
+				throw new InvalidInputException(
+						String.format("Part %s is smaller than the minimum of %s bytes. Only the last part may be smaller.", expected,
+								MIN_PART_SIZE));
+			}
+			expected++;
+		}
+	}
+
+	/**
+	 * Ensures the client has written the object for a direct upload, and that it has the size the client declared. The
+	 * verified version of the object is then copied to the file key, and the upload key is deleted.
+	 */
+	private void copyDirectUpload(UploadSession session) throws InvalidInputException {
+		if (!s3Client.doesObjectExist(AMAZONS3_BUCKET_NAME, session.getUploadKey())) {
+			throw new InvalidInputException("The file has not been uploaded to the uploadUrl.");
+		}
+		ObjectMetadata metadata = s3Client.getObjectMetadata(AMAZONS3_BUCKET_NAME, session.getUploadKey());
+		if (metadata.getContentLength() != session.getExpectedSize()) {
+			throw new InvalidInputException(String.format("The uploaded file is %s bytes, but %s bytes were declared.",
+					metadata.getContentLength(), session.getExpectedSize()));
+		}
+		// Only copy the version that was verified, in case the client writes to the URL again in the meantime
+		if (metadata.getContentLength() > MAX_COPY_SIZE) {
+			copyInParts(session, metadata.getContentLength(), metadata.getETag());
+		} else {
+			CopyObjectRequest request = new CopyObjectRequest(AMAZONS3_BUCKET_NAME, session.getUploadKey(), AMAZONS3_BUCKET_NAME,
+					session.getFileKey()).withMatchingETagConstraint(metadata.getETag());
+			if (s3Client.copyObject(request) == null) {
+				throw new InvalidInputException(FILE_CHANGED);
+			}
+		}
+		s3Client.deleteObject(AMAZONS3_BUCKET_NAME, session.getUploadKey());
+	}
+
+	/**
+	 * Copies a direct upload that is too large to copy in a single request as a multipart upload to the file key, each
+	 * part copied from the verified version of the uploaded object. The multipart upload is aborted if any part fails.
+	 */
+	private void copyInParts(UploadSession session, long size, String eTag) throws InvalidInputException {
+		String copyUploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(AMAZONS3_BUCKET_NAME, session.getFileKey()))
+				.getUploadId();
+		try {
+			List<PartETag> partETags = new ArrayList<PartETag>();
+			int partNumber = 1;
+			for (long position = 0; position < size; position += COPY_PART_SIZE) {
+				CopyPartRequest request = new CopyPartRequest().withSourceBucketName(AMAZONS3_BUCKET_NAME)
+						.withSourceKey(session.getUploadKey()).withDestinationBucketName(AMAZONS3_BUCKET_NAME)
+						.withDestinationKey(session.getFileKey()).withUploadId(copyUploadId).withPartNumber(partNumber++)
+						.withFirstByte(position).withLastByte(Math.min(position + COPY_PART_SIZE, size) - 1)
+						.withMatchingETagConstraint(eTag);
+				CopyPartResult result = s3Client.copyPart(request);
+				if (result == null) {
+					throw new InvalidInputException(FILE_CHANGED);
+				}
+				partETags.add(result.getPartETag());
+			}
+			s3Client.completeMultipartUpload(
+					new CompleteMultipartUploadRequest(AMAZONS3_BUCKET_NAME, session.getFileKey(), copyUploadId, partETags));
+		} catch (InvalidInputException | AmazonClientException exception) {
+			try {
+				s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(AMAZONS3_BUCKET_NAME, session.getFileKey(), copyUploadId));
+			} catch (AmazonClientException abortException) {
+				LOG.error(String.format("Error aborting the copy of direct upload %s", session.getUploadId()), abortException);
+			}
+			throw exception;
+		}
+	}
+
+	/**
+	 * Aborts any sessions that have been idle for longer than the configured timeout.
+	 */
+	private void expireSessions() {
+		long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(sessionTimeoutMinutes);
+		for (UploadSession session : sessions.values()) {
+			// A direct upload is not idle while the client may still be using its URL
+			boolean urlValid = session.isDirectUpload() && session.getUploadUrlExpiration().after(new Date());
+			if ((session.getLastActivity() < cutoff) && !urlValid && !session.isClosed()) {
+				try {
+					abortSession(session);
+					LOG.info("Expired idle upload session {} for user {}", session.getUploadId(), session.getCreatedBy());
+				} catch (Exception exception) {
+					LOG.error(String.format("Error expiring upload session %s", session.getUploadId()), exception);
+				}
+			}
+		}
+	}
+}
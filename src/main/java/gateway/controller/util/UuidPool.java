@@ -0,0 +1,186 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.controller.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import util.UUIDFactory;
+
+/**
+ * Pool of UUIDs fetched ahead of time from the UUID Factory, so that requests that need a new Id do not wait on the
+ * UUID Factory.
+ * 
+ * A background thread tops the pool up to the high watermark whenever it falls below the low watermark. If the pool is
+ * empty when an Id is needed, the Id is fetched from the UUID Factory directly, as it would be without the pool.
+ */
+@Component
+public class UuidPool {
+	@Autowired
+	private UUIDFactory uuidFactory;
+
+	@Value("${uuid.pool.enabled}")
+	private boolean enabled;
+	@Value("${uuid.pool.low.watermark}")
+	private int lowWatermark;
+	@Value("${uuid.pool.high.watermark}")
+	private int highWatermark;
+
+	private static final Logger LOG = LoggerFactory.getLogger(UuidPool.class);
+
+	private final Queue<String> pool = new ConcurrentLinkedQueue<String>();
+	/** Tracked separately, since the size of the queue is not a constant-time operation */
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicBoolean refilling = new AtomicBoolean();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refills = new AtomicLong();
+	private final AtomicLong refillFailures = new AtomicLong();
+	private final AtomicLong fetched = new AtomicLong();
+	private final AtomicLong fetchNanos = new AtomicLong();
+	private final AtomicLong lastRefillMillis = new AtomicLong();
+	private ExecutorService refillExecutor;
+
+	/**
+	 * Starts filling the pool.
+	 */
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		refillExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "uuid-pool-refill");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		requestRefill();
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (refillExecutor != null) {
+			refillExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Gets a new UUID. This does not block on the UUID Factory unless the pool is empty.
+	 * 
+	 * @return The UUID
+	 */
+	public String take() {
+		if (!enabled) {
+			return uuidFactory.getUUID();
+		}
+		String uuid = pool.poll();
+		if (uuid != null) {
+			hits.incrementAndGet();
+			if (depth.decrementAndGet() < lowWatermark) {
+				requestRefill();
+			}
+			return uuid;
+		}
+		// The pool ran dry. Fetch directly, and make sure a refill is under way for the requests that follow.
+		misses.incrementAndGet();
+		requestRefill();
+		return uuidFactory.getUUID();
+	}
+
+	/**
+	 * @return Pool statistics for reporting on the administrative endpoints
+	 */
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		long fetchCount = fetched.get();
+		stats.put("enabled", enabled);
+		stats.put("depth", depth.get());
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("refills", refills.get());
+		stats.put("refillFailures", refillFailures.get());
+		stats.put("lastRefillMillis", lastRefillMillis.get());
+		stats.put("averageFetchMicros", fetchCount > 0 ? TimeUnit.NANOSECONDS.toMicros(fetchNanos.get() / fetchCount) : 0);
+		return stats;
+	}
+
+	/**
+	 * Starts a refill on the background thread, unless one is already running.
+	 */
+	private void requestRefill() {
+		if ((refillExecutor != null) && refilling.compareAndSet(false, true)) {
+			try {
+				refillExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							refill();
+						} finally {
+							refilling.set(false);
+						}
+					}
+				});
+			} catch (RuntimeException exception) {
+				// Shutting down
+				refilling.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Fetches UUIDs until the pool reaches the high watermark.
+	 */
+	private void refill() {
+		long start = System.nanoTime();
+		try {
+			while ((depth.get() < highWatermark) && !Thread.currentThread().isInterrupted()) {
+				long fetchStart = System.nanoTime();
+				String uuid = uuidFactory.getUUID();
+				fetchNanos.addAndGet(System.nanoTime() - fetchStart);
+				fetched.incrementAndGet();
+				pool.offer(uuid);
+				depth.incrementAndGet();
+			}
+			refills.incrementAndGet();
+		} catch (Exception exception) {
+			// Requests fall back to fetching directly until the next refill succeeds
+			refillFailures.incrementAndGet();
+			LOG.error("Could not refill the UUID pool.", exception);
+		}
+		lastRefillMillis.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+}
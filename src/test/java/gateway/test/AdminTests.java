@@ -20,10 +20,28 @@ import static org.junit.Assert.assertTrue;
 import java.util.Map;
 
 import gateway.controller.AdminController;
+import gateway.controller.util.ContentIndex;
+import gateway.controller.util.FileCache;
+import gateway.controller.util.FileMetadataCache;
+import gateway.controller.util.FileRedirector;
+import gateway.controller.util.IdempotencyStore;
+import gateway.controller.util.JobOutbox;
+import gateway.controller.util.JobRequestCoalescer;
+import gateway.controller.util.JobStatusBulkStreamer;
+import gateway.controller.util.JobStatusCache;
+import gateway.controller.util.JobStatusStream;
+import gateway.controller.util.JobStatusView;
+import gateway.controller.util.JobStatusWatcher;
+import gateway.controller.util.JobRequestPublisher;
+import gateway.controller.util.RemoteFileFetcher;
+import gateway.controller.util.ServiceAvailabilityCache;
+import gateway.controller.util.UploadCompressor;
+import gateway.controller.util.UuidPool;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
+import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.http.ResponseEntity;
 
@@ -34,6 +52,40 @@ import org.springframework.http.ResponseEntity;
  *
  */
 public class AdminTests {
+	@Mock
+	private ContentIndex contentIndex;
+	@Mock
+	private RemoteFileFetcher remoteFileFetcher;
+	@Mock
+	private FileCache fileCache;
+	@Mock
+	private FileMetadataCache fileMetadataCache;
+	@Mock
+	private FileRedirector fileRedirector;
+	@Mock
+	private UploadCompressor uploadCompressor;
+	@Mock
+	private UuidPool uuidPool;
+	@Mock
+	private JobRequestPublisher jobRequestPublisher;
+	@Mock
+	private JobOutbox jobOutbox;
+	@Mock
+	private JobRequestCoalescer jobRequestCoalescer;
+	@Mock
+	private IdempotencyStore idempotencyStore;
+	@Mock
+	private JobStatusCache jobStatusCache;
+	@Mock
+	private JobStatusWatcher jobStatusWatcher;
+	@Mock
+	private JobStatusStream jobStatusStream;
+	@Mock
+	private JobStatusBulkStreamer jobStatusBulkStreamer;
+	@Mock
+	private ServiceAvailabilityCache serviceAvailabilityCache;
+	@Mock
+	private JobStatusView jobStatusView;
 	@InjectMocks
 	private AdminController adminController;
 
@@ -68,5 +120,21 @@ public class AdminTests {
 		assertTrue(stats.containsKey("Access"));
 		assertTrue(stats.containsKey("JobManager"));
 		assertTrue(stats.containsKey("ServiceController"));
+		assertTrue(stats.containsKey("UploadDeduplication"));
+		assertTrue(stats.containsKey("UrlFetch"));
+		assertTrue(stats.containsKey("UploadCompression"));
+		assertTrue(stats.containsKey("FileCache"));
+		assertTrue(stats.containsKey("FileRedirect"));
+		assertTrue(stats.containsKey("UuidPool"));
+		assertTrue(stats.containsKey("JobRequestPublisher"));
+		assertTrue(stats.containsKey("JobOutbox"));
+		assertTrue(stats.containsKey("JobCoalescing"));
+		assertTrue(stats.containsKey("Idempotency"));
+		assertTrue(stats.containsKey("JobStatusCache"));
+		assertTrue(stats.containsKey("JobStatusWatch"));
+		assertTrue(stats.containsKey("JobStatusStream"));
+		assertTrue(stats.containsKey("JobStatusBulk"));
+		assertTrue(stats.containsKey("ServiceAvailabilityCache"));
+		assertTrue(stats.containsKey("JobStatusView"));
 	}
 }
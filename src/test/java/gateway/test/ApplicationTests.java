@@ -17,17 +17,30 @@ package gateway.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+
+import javax.servlet.Filter;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.MockitoAnnotations;
+import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.Queue;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.RestTemplate;
 
 import gateway.Application;
+import gateway.controller.util.IdempotencyStore;
 import messaging.job.JobMessageFactory;
 import springfox.documentation.spring.web.plugins.Docket;
 
@@ -66,6 +79,48 @@ public class ApplicationTests {
 		Queue queue = application.abortJobsQueue();
 		assertNotNull(queue);
 		assertEquals(queue.getName(), String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.ABORT_JOB_TOPIC_NAME, "unitTest"));
+		queue = application.requestJobsQueue();
+		assertEquals(queue.getName(), String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.REQUEST_JOB_TOPIC_NAME, "unitTest"));
+	}
+
+	@Test
+	public void testMetadataEtagFilter() throws Exception {
+		Filter filter = application.metadataEtagFilter().getFilter();
+
+		// Responses to GET requests are buffered to compute their ETag
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(new MockHttpServletRequest("GET", "/data/123456"), response, chain);
+		assertNotSame(response, chain.getResponse());
+
+		// Other responses are not
+		chain = new MockFilterChain();
+		filter.doFilter(new MockHttpServletRequest("POST", "/data/file"), response, chain);
+		assertSame(response, chain.getResponse());
+	}
+
+	@Test
+	public void testIdempotencyFilterOrder() {
+		// Runs after the Spring Security filter chain has authenticated the user
+		assertEquals(SecurityProperties.DEFAULT_FILTER_ORDER + 1, application.idempotencyFilter(new IdempotencyStore()).getOrder());
+	}
+
+	@Test
+	public void testIdempotencyFilterPatterns() {
+		// Every Job-creating POST is covered, including the batch and upload commit endpoints
+		Collection<String> patterns = application.idempotencyFilter(new IdempotencyStore()).getUrlPatterns();
+		assertTrue(patterns.contains("/job/batch"));
+		assertTrue(patterns.contains("/data/file/batch"));
+		assertTrue(patterns.contains("/data/upload/*"));
+	}
+
+	@Test
+	public void testJobEventBindings() {
+		Binding binding = application.createJobEventsBinding();
+		assertEquals(binding.getExchange(), JobMessageFactory.PIAZZA_EXCHANGE_NAME);
+		assertEquals(binding.getRoutingKey(), String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.CREATE_JOB_TOPIC_NAME, "unitTest"));
+		binding = application.updateJobEventsBinding();
+		assertEquals(binding.getRoutingKey(), String.format(JobMessageFactory.TOPIC_TEMPLATE, JobMessageFactory.UPDATE_JOB_TOPIC_NAME, "unitTest"));
 	}
 
 }
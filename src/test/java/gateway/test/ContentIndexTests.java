@@ -0,0 +1,108 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.ContentIndex;
+
+/**
+ * Tests the persistent upload Content Index
+ */
+public class ContentIndexTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File indexFile;
+
+	/**
+	 * Initialize the index location.
+	 */
+	@Before
+	public void setup() {
+		indexFile = new File(folder.getRoot(), "index/content-index.db");
+	}
+
+	/**
+	 * Tests that entries survive a restart of the index, including removals.
+	 */
+	@Test
+	public void testPersistence() {
+		// Populate
+		ContentIndex index = createIndex();
+		index.register("hash1", "bucket", "123-file.tif", 100);
+		index.register("hash2", "bucket", "456-file.tif", 200);
+		index.remove("hash2");
+		index.close();
+
+		// Reload and verify
+		index = createIndex();
+		assertEquals("123-file.tif", index.lookup("hash1").getFileKey());
+		assertEquals(100, index.lookup("hash1").getFileSize());
+		assertNull(index.lookup("hash2"));
+		index.close();
+	}
+
+	/**
+	 * Tests the reported statistics
+	 */
+	@Test
+	public void testStats() {
+		ContentIndex index = createIndex();
+		index.recordMiss();
+		index.recordHit(1024);
+		index.recordHit(1024);
+
+		Map<String, Object> stats = index.getStats();
+		assertTrue((Boolean) stats.get("enabled"));
+		assertEquals(2L, stats.get("hits"));
+		assertEquals(1L, stats.get("misses"));
+		assertEquals(2048L, stats.get("bytesSaved"));
+		index.close();
+	}
+
+	/**
+	 * Tests that the index stays disabled without a path for its journal
+	 */
+	@Test
+	public void testNoPath() {
+		ContentIndex index = new ContentIndex();
+		ReflectionTestUtils.setField(index, "enabled", true);
+		ReflectionTestUtils.setField(index, "indexPath", "");
+		index.init();
+		assertFalse(index.isEnabled());
+	}
+
+	private ContentIndex createIndex() {
+		ContentIndex index = new ContentIndex();
+		ReflectionTestUtils.setField(index, "enabled", true);
+		ReflectionTestUtils.setField(index, "indexPath", indexFile.getAbsolutePath());
+		index.init();
+		return index;
+	}
+}
@@ -17,12 +17,19 @@ package gateway.test;
 
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.InputStream;
+import java.net.URL;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.management.remote.JMXPrincipal;
 
@@ -31,19 +38,41 @@ import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.mock.web.MockMultipartHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import exception.InvalidInputException;
 import exception.PiazzaJobException;
 import gateway.controller.DataController;
+import gateway.controller.util.BoundedExecutor;
+import gateway.controller.util.FileBundleStreamer;
+import gateway.controller.util.FileCache;
+import gateway.controller.util.FileMetadataCache;
+import gateway.controller.util.FileRedirector;
+import gateway.controller.util.FileStreamer;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.UploadCompressor;
+import gateway.controller.util.UploadSession;
+import gateway.controller.util.UploadSessionManager;
 import model.data.DataResource;
 import model.data.type.GeoJsonDataType;
 import model.data.type.TextDataType;
@@ -77,6 +106,18 @@ public class DataTests {
 	private RestTemplate restTemplate;
 	@Mock
 	private AmazonS3 s3Client;
+	@Mock
+	private UploadSessionManager uploadSessionManager;
+	@Mock
+	private FileCache fileCache;
+	@Mock
+	private FileMetadataCache fileMetadataCache;
+	@Mock
+	private FileRedirector fileRedirector;
+	@Mock
+	private FileBundleStreamer fileBundleStreamer;
+	@Mock
+	private UploadCompressor uploadCompressor;
 	@InjectMocks
 	private DataController dataController;
 
@@ -220,6 +261,120 @@ public class DataTests {
 		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
 	}
 
+	/**
+	 * Test POST /data/file/batch
+	 * 
+	 * @throws Exception
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void testAddFileBatch() throws Exception {
+		BoundedExecutor blobWriteExecutor = new BoundedExecutor("blob-write", 2);
+		blobWriteExecutor.init();
+		ReflectionTestUtils.setField(dataController, "blobWriteExecutor", blobWriteExecutor);
+		ReflectionTestUtils.setField(dataController, "batchMaxFiles", 10);
+		when(gatewayUtil.sendJobRequest(any(PiazzaJobRequest.class), anyString())).thenReturn("123456");
+
+		// One file that can be loaded, and one that cannot be attached to Text data
+		IngestJob fileJob = new IngestJob();
+		fileJob.data = new DataResource();
+		fileJob.data.dataType = new GeoJsonDataType();
+		fileJob.host = true;
+		IngestJob textJob = new IngestJob();
+		textJob.data = mockData;
+		textJob.host = true;
+		MockMultipartHttpServletRequest request = new MockMultipartHttpServletRequest();
+		request.addParameter("data", new ObjectMapper().writeValueAsString(fileJob), new ObjectMapper().writeValueAsString(textJob));
+		request.addFile(new MockMultipartFile("file", "test.geojson", null, "Content".getBytes()));
+		request.addFile(new MockMultipartFile("file", "test.txt", null, "Content".getBytes()));
+
+		// Verify each file has its own result, in order
+		ResponseEntity entity = dataController.ingestDataFileBatch(request, user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.MULTI_STATUS));
+		List<PiazzaResponse> responses = (List<PiazzaResponse>) entity.getBody();
+		assertTrue(responses.size() == 2);
+		assertTrue(((JobResponse) responses.get(0)).data.getJobId().equals("123456"));
+		assertTrue(responses.get(1) instanceof ErrorResponse);
+
+		// Mismatched parts are rejected
+		request.addFile(new MockMultipartFile("file", "extra.geojson", null, "Content".getBytes()));
+		entity = dataController.ingestDataFileBatch(request, user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		blobWriteExecutor.shutdown();
+	}
+
+	/**
+	 * Test the resumable upload endpoints under /data/upload
+	 * 
+	 * @throws Exception
+	 */
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testResumableUpload() throws Exception {
+		IngestJob mockJob = new IngestJob();
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		mockJob.host = true;
+		UploadSession session = new UploadSession("123456", "test.geojson", "Test User", mockJob, "123456-test.geojson", "s3upload");
+		when(gatewayUtil.getPrincipalName(user)).thenReturn("Test User");
+		when(uploadSessionManager.createSession(any(IngestJob.class), eq("test.geojson"), eq("Test User"))).thenReturn(session);
+		when(uploadSessionManager.getSession("123456", "Test User")).thenReturn(session);
+		when(uploadSessionManager.uploadPart(eq(session), eq(1), any(InputStream.class), anyLong())).thenReturn(session);
+		when(uploadSessionManager.completeSession(session)).thenReturn(mockJob);
+
+		// Create the session. Text data cannot be uploaded as a file.
+		IngestJob textJob = new IngestJob();
+		textJob.data = mockData;
+		textJob.host = true;
+		ResponseEntity entity = dataController.createDataFileUpload(textJob, "test.geojson", user);
+		assertTrue(entity.getBody() instanceof ErrorResponse);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		entity = dataController.createDataFileUpload(mockJob, "test.geojson", user);
+		assertTrue(entity.getBody() instanceof UploadSession);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+
+		// Direct uploads are created the same way
+		when(uploadSessionManager.createDirectSession(any(IngestJob.class), eq("test.geojson"), eq(100L), eq("Test User")))
+				.thenReturn(session);
+		entity = dataController.createDirectDataFileUpload(mockJob, "test.geojson", 100L, user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+
+		// Upload a part
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setContent("Content".getBytes());
+		entity = dataController.uploadDataFilePart("123456", 1, request, user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+
+		// Unknown sessions are not found
+		entity = dataController.getDataFileUpload("Unknown", user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.NOT_FOUND));
+		entity = dataController.getDataFileUpload("123456", user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+
+		// A commit whose Job could not be sent keeps the session for a retry
+		when(gatewayUtil.sendJobRequest(any(PiazzaJobRequest.class), eq("123456"))).thenThrow(new PiazzaJobException("Unavailable"))
+				.thenReturn("123456");
+		ResponseEntity<PiazzaResponse> commit = dataController.commitDataFileUpload("123456", user);
+		assertTrue(commit.getBody() instanceof ErrorResponse);
+		verify(uploadSessionManager).reopenSession(session);
+		verify(uploadSessionManager, never()).finishSession(session);
+
+		// Commit
+		commit = dataController.commitDataFileUpload("123456", user);
+		assertTrue(commit.getStatusCode().equals(HttpStatus.CREATED));
+		assertTrue(((JobResponse) commit.getBody()).data.getJobId().equals("123456"));
+		verify(uploadSessionManager).finishSession(session);
+
+		// Missing parts are reported to the user
+		when(uploadSessionManager.completeSession(session)).thenThrow(new InvalidInputException("Part 2 has not been uploaded."));
+		commit = dataController.commitDataFileUpload("123456", user);
+		assertTrue(commit.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+
+		// Abort
+		ResponseEntity<PiazzaResponse> abort = dataController.abortDataFileUpload("123456", user);
+		assertTrue(abort.getBody() instanceof SuccessResponse);
+	}
+
 	/**
 	 * Test GET /data/{dataId}
 	 */
@@ -238,6 +393,8 @@ public class DataTests {
 		assertTrue(response instanceof ErrorResponse == false);
 		assertTrue(((DataResourceResponse) response).data.getDataId().equalsIgnoreCase(mockData.getDataId()));
 		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		// The metadata is remembered for a following download
+		verify(fileMetadataCache).put(mockData);
 
 		// Test an Exception
 		when(restTemplate.getForEntity(anyString(), eq(DataResourceResponse.class)))
@@ -264,6 +421,8 @@ public class DataTests {
 		// Verify
 		assertTrue(response instanceof ErrorResponse == false);
 		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		verify(fileCache).invalidate("123456");
+		verify(fileMetadataCache).invalidate("123456");
 
 		// Test an Exception
 		when(restTemplate.exchange(anyString(), any(), any(), eq(SuccessResponse.class)))
@@ -301,26 +460,104 @@ public class DataTests {
 	/**
 	 * Test GET /file/{dataId}
 	 */
+	@SuppressWarnings("unchecked")
 	@Test
 	public void testDownload() throws Exception {
 		// Mock
-		ResponseEntity<byte[]> mockResponse = new ResponseEntity<byte[]>("Content".getBytes(), HttpStatus.OK);
-		when(restTemplate.getForEntity(anyString(), eq(byte[].class))).thenReturn(mockResponse);
+		FileStreamer fileStreamer = new FileStreamer();
+		ReflectionTestUtils.setField(fileStreamer, "restTemplate", restTemplate);
+		ReflectionTestUtils.setField(fileStreamer, "fileCache", fileCache);
+		ReflectionTestUtils.setField(dataController, "fileStreamer", fileStreamer);
+		final MockClientHttpResponse mockResponse = new MockClientHttpResponse("Content".getBytes(), HttpStatus.OK);
+		mockResponse.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+		mockResponse.getHeaders().setContentLength(7);
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+				.thenAnswer(new Answer<Object>() {
+					@Override
+					public Object answer(InvocationOnMock invocation) throws Throwable {
+						return ((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(mockResponse);
+					}
+				});
 
 		// Test
-		ResponseEntity<?> entity = dataController.getFile("123456", "test.txt", user);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		ResponseEntity<?> entity = dataController.getFile("123456", "test.txt", new MockHttpServletRequest(), response, user);
 
-		// Verify
-		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
-		System.out.println(entity.getBody().toString());
+		// Verify the bytes were streamed to the response
+		assertTrue(entity == null);
+		assertTrue(response.getStatus() == 200);
+		assertTrue(response.getContentAsString().equals("Content"));
+		assertTrue(response.getHeader(HttpHeaders.CONTENT_LENGTH).equals("7"));
+		assertTrue(response.getContentType().startsWith(MediaType.TEXT_PLAIN_VALUE));
 
 		// Test an Exception
-		when(restTemplate.getForEntity(anyString(), eq(byte[].class))).thenThrow(new RestClientException(""));
-		try {
-			entity = dataController.getFile("123456", "test.txt", user);
-		} catch (Exception exception) {
-			assertTrue(exception.getMessage().contains("Error downloading file"));
-		}
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+				.thenThrow(new RestClientException(""));
+		entity = dataController.getFile("123456", "test.txt", new MockHttpServletRequest(), new MockHttpServletResponse(), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.INTERNAL_SERVER_ERROR));
+		assertTrue(((ErrorResponse) entity.getBody()).message.contains("Error downloading file"));
+	}
+
+	/**
+	 * Test GET /file/{dataId} redirected to a pre-signed URL
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testDownloadRedirect() throws Exception {
+		// Mock
+		when(fileRedirector.isEnabled()).thenReturn(true);
+		when(fileMetadataCache.getData("123456")).thenReturn(mockData);
+		when(fileRedirector.getRedirectUrl(mockData, "test.txt")).thenReturn(new URL("https://bucket.s3.amazonaws.com/123456-test.txt"));
+
+		// Test
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		ResponseEntity<?> entity = dataController.getFile("123456", "test.txt", new MockHttpServletRequest(), response, user);
+
+		// Verify the client was redirected, and nothing was streamed
+		assertTrue(entity.getStatusCode().equals(HttpStatus.FOUND));
+		assertTrue(entity.getHeaders().getLocation().toString().equals("https://bucket.s3.amazonaws.com/123456-test.txt"));
+		assertTrue(response.getContentAsByteArray().length == 0);
+
+		// Data that cannot be redirected is proxied
+		when(fileRedirector.getRedirectUrl(mockData, "test.txt")).thenReturn(null);
+		FileStreamer fileStreamer = new FileStreamer();
+		ReflectionTestUtils.setField(fileStreamer, "restTemplate", restTemplate);
+		ReflectionTestUtils.setField(fileStreamer, "fileCache", fileCache);
+		ReflectionTestUtils.setField(dataController, "fileStreamer", fileStreamer);
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+				.thenReturn(7L);
+		entity = dataController.getFile("123456", "test.txt", new MockHttpServletRequest(), new MockHttpServletResponse(), user);
+		assertTrue(entity == null);
+	}
 
+	/**
+	 * Test GET /file/bundle
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testDownloadBundle() throws Exception {
+		// Mock
+		ReflectionTestUtils.setField(dataController, "bundleMaxFiles", 2);
+
+		// Test
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		ResponseEntity<?> entity = dataController.getFileBundle(Arrays.asList("1", "2", "1"), null, response, user);
+
+		// Verify duplicates were removed and the archive was streamed
+		assertTrue(entity == null);
+		assertTrue(response.getContentType().equals("application/zip"));
+		assertTrue(response.getHeader(HttpHeaders.CONTENT_DISPOSITION)
+				.equals("attachment; filename=\"bundle.zip\"; filename*=UTF-8''bundle.zip"));
+		verify(fileBundleStreamer).streamBundle(eq(Arrays.asList("1", "2")), any(List.class), eq(response.getOutputStream()));
+
+		// Test that a requested name cannot add to the header
+		response = new MockHttpServletResponse();
+		dataController.getFileBundle(Arrays.asList("1"), "a b.zip\"; filename=x.exe", response, user);
+		assertTrue(response.getHeader(HttpHeaders.CONTENT_DISPOSITION)
+				.equals("attachment; filename=\"a b.zip_; filename=x.exe\"; filename*=UTF-8''a%20b.zip%22%3B%20filename%3Dx.exe"));
+
+		// Test too many files
+		entity = dataController.getFileBundle(Arrays.asList("1", "2", "3"), null, new MockHttpServletResponse(), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+
+import gateway.controller.util.FileBundleStreamer;
+import gateway.controller.util.FileMetadataCache;
+import gateway.controller.util.UploadCompressor;
+import model.data.DataResource;
+
+/**
+ * Tests streaming several files as a ZIP archive
+ */
+public class FileBundleStreamerTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@Mock
+	private FileMetadataCache fileMetadataCache;
+	@Mock
+	private UploadCompressor uploadCompressor;
+	@InjectMocks
+	private FileBundleStreamer fileBundleStreamer;
+
+	private byte[] largeContent;
+	private byte[] compressedContent;
+
+	/**
+	 * Initialize mock objects. The upstream serves files named by their URL; "missing" is not found, and "stored.json" is
+	 * returned as it was stored compressed.
+	 */
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(fileBundleStreamer, "parallelism", 2);
+		ReflectionTestUtils.setField(fileBundleStreamer, "readAhead", 2);
+		// Smaller than the files, so that the fetches wait on the archive
+		ReflectionTestUtils.setField(fileBundleStreamer, "bufferBytes", 64);
+		ReflectionTestUtils.setField(fileBundleStreamer, "idleTimeoutMillis", 60000L);
+		fileBundleStreamer.init();
+
+		largeContent = new byte[10000];
+		new Random(1).nextBytes(largeContent);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write("stored.json".getBytes());
+		}
+		compressedContent = compressed.toByteArray();
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+				.thenAnswer(new Answer<Object>() {
+					@Override
+					public Object answer(InvocationOnMock invocation) throws Throwable {
+						String url = (String) invocation.getArguments()[0];
+						if ("missing".equals(url)) {
+							throw new HttpClientErrorException(HttpStatus.NOT_FOUND);
+						}
+						byte[] body = url.endsWith(".png") ? largeContent : "stored.json".equals(url) ? compressedContent : url.getBytes();
+						MockClientHttpResponse upstream = new MockClientHttpResponse(body, HttpStatus.OK);
+						upstream.getHeaders().set(HttpHeaders.CONTENT_DISPOSITION, String.format("attachment; filename=%s", url));
+						return ((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(upstream);
+					}
+				});
+	}
+
+	@After
+	public void teardown() {
+		fileBundleStreamer.shutdown();
+	}
+
+	/**
+	 * Tests an archive of several files, in order
+	 */
+	@Test
+	public void testBundle() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		long bytes = fileBundleStreamer.streamBundle(Arrays.asList("1", "2", "3", "4"),
+				Arrays.asList("a.txt", "image.png", "missing", "a.txt"), output);
+		assertEquals(10010L, bytes);
+
+		Map<String, byte[]> entries = readEntries(output.toByteArray());
+		assertEquals(Arrays.asList("a.txt", "image.png", "3.error.txt", "4-a.txt"), Arrays.asList(entries.keySet().toArray()));
+		assertEquals("a.txt", new String(entries.get("a.txt")));
+		assertTrue(Arrays.equals(largeContent, entries.get("image.png")));
+		assertTrue(new String(entries.get("3.error.txt")).startsWith("404"));
+		assertEquals("a.txt", new String(entries.get("4-a.txt")));
+	}
+
+	/**
+	 * Tests an archive fetched by the request thread alone, while no pool thread is free to fetch ahead
+	 */
+	@Test
+	public void testBundleWithoutReadAhead() throws Exception {
+		ReflectionTestUtils.setField(fileBundleStreamer, "fetchPermits", new Semaphore(0));
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		long bytes = fileBundleStreamer.streamBundle(Arrays.asList("1", "2", "3", "4"),
+				Arrays.asList("a.txt", "image.png", "missing", "a.txt"), output);
+		assertEquals(10010L, bytes);
+
+		Map<String, byte[]> entries = readEntries(output.toByteArray());
+		assertEquals(Arrays.asList("a.txt", "image.png", "3.error.txt", "4-a.txt"), Arrays.asList(entries.keySet().toArray()));
+		assertTrue(Arrays.equals(largeContent, entries.get("image.png")));
+		assertTrue(new String(entries.get("3.error.txt")).startsWith("404"));
+	}
+
+	/**
+	 * Tests that files fetched ahead give up, and release their pool threads, when the client stops reading, and are
+	 * fetched again once it reads again
+	 */
+	@Test
+	public void testClientStalled() throws Exception {
+		ReflectionTestUtils.setField(fileBundleStreamer, "idleTimeoutMillis", 100L);
+		ByteArrayOutputStream output = new ByteArrayOutputStream() {
+			private boolean stalled = false;
+
+			@Override
+			public synchronized void write(byte[] bytes, int offset, int length) {
+				if (!stalled) {
+					stalled = true;
+					try {
+						Thread.sleep(500);
+					} catch (InterruptedException exception) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.write(bytes, offset, length);
+			}
+		};
+		fileBundleStreamer.streamBundle(Arrays.asList("1", "2"), Arrays.asList("a.txt", "image.png"), output);
+
+		Map<String, byte[]> entries = readEntries(output.toByteArray());
+		assertEquals("a.txt", new String(entries.get("a.txt")));
+		assertTrue(Arrays.equals(largeContent, entries.get("image.png")));
+		Semaphore fetchPermits = (Semaphore) ReflectionTestUtils.getField(fileBundleStreamer, "fetchPermits");
+		for (int attempt = 0; (attempt < 100) && (fetchPermits.availablePermits() < 2); attempt++) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, fetchPermits.availablePermits());
+	}
+
+	/**
+	 * Tests that files stored compressed are decoded into the archive
+	 */
+	@Test
+	public void testCompressedFile() throws Exception {
+		DataResource data = new DataResource();
+		when(fileMetadataCache.getData("5")).thenReturn(data);
+		when(uploadCompressor.getCodec(data)).thenReturn(UploadCompressor.CODEC_GZIP);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		fileBundleStreamer.streamBundle(Arrays.asList("5"), Arrays.asList("stored.json"), output);
+
+		Map<String, byte[]> entries = readEntries(output.toByteArray());
+		assertEquals("stored.json", new String(entries.get("stored.json")));
+	}
+
+	/**
+	 * Tests that the archive is abandoned when the client goes away
+	 */
+	@Test(expected = IOException.class)
+	public void testClientGone() throws Exception {
+		fileBundleStreamer.streamBundle(Arrays.asList("1", "2", "3"), Arrays.asList("1.png", "2.png", "3.png"),
+				new OutputStream() {
+					private int written = 0;
+
+					@Override
+					public void write(int value) throws IOException {
+						write(new byte[] { (byte) value }, 0, 1);
+					}
+
+					@Override
+					public void write(byte[] bytes, int offset, int length) throws IOException {
+						written += length;
+						if (written > 1000) {
+							throw new IOException("Connection reset");
+						}
+					}
+				});
+	}
+
+	private static Map<String, byte[]> readEntries(byte[] archive) throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				entries.put(entry.getName(), readAll(zip));
+			}
+		}
+		return entries;
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			output.write(buffer, 0, read);
+		}
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.FileCache;
+import gateway.controller.util.FileCache.CacheEntry;
+import gateway.controller.util.FileCache.PendingEntry;
+
+/**
+ * Tests the local disk cache of downloaded files
+ */
+public class FileCacheTests {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileCache fileCache;
+
+	/**
+	 * Initialize a cache that holds up to 20 bytes
+	 */
+	@Before
+	public void setup() throws IOException {
+		fileCache = new FileCache();
+		ReflectionTestUtils.setField(fileCache, "enabled", true);
+		ReflectionTestUtils.setField(fileCache, "cachePath", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(fileCache, "maxBytes", 20L);
+		ReflectionTestUtils.setField(fileCache, "maxEntryBytes", 10L);
+		ReflectionTestUtils.setField(fileCache, "ttlSeconds", 300L);
+		fileCache.init();
+	}
+
+	@After
+	public void teardown() {
+		fileCache.shutdown();
+	}
+
+	/**
+	 * Tests caching a file and serving it, in full and as a range
+	 */
+	@Test
+	public void testServe() throws IOException {
+		assertTrue(fileCache.lookup("123456", null) == null);
+		add("123456", "0123456789");
+
+		CacheEntry entry = fileCache.lookup("123456", null);
+		assertEquals(10L, entry.getSize());
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		assertEquals(10L, fileCache.serve(entry, new MockHttpServletRequest(), response));
+		assertEquals(200, response.getStatus());
+		assertEquals("0123456789", response.getContentAsString());
+		assertEquals(MediaType.TEXT_PLAIN_VALUE, response.getHeader(HttpHeaders.CONTENT_TYPE));
+
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.RANGE, "bytes=2-4");
+		response = new MockHttpServletResponse();
+		assertEquals(3L, fileCache.serve(entry, request, response));
+		assertEquals(206, response.getStatus());
+		assertEquals("234", response.getContentAsString());
+		assertEquals("bytes 2-4/10", response.getHeader(HttpHeaders.CONTENT_RANGE));
+
+		// Multiple ranges are left to the upstream
+		request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.RANGE, "bytes=0-1,4-5");
+		assertEquals(-1L, fileCache.serve(entry, request, new MockHttpServletResponse()));
+
+		assertEquals(2L, fileCache.getStats().get("hits"));
+		assertEquals(1L, fileCache.getStats().get("misses"));
+	}
+
+	/**
+	 * Tests that a cached file is handed to the container when it supports sendfile, and is not deleted immediately if
+	 * evicted
+	 */
+	@Test
+	public void testSendfile() throws IOException {
+		add("123456", "0123456789");
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+		request.addHeader(HttpHeaders.RANGE, "bytes=2-4");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		assertEquals(3L, fileCache.serve(fileCache.lookup("123456", null), request, response));
+		assertEquals(206, response.getStatus());
+		assertEquals("3", response.getHeader(HttpHeaders.CONTENT_LENGTH));
+		assertEquals(0, response.getContentAsByteArray().length);
+		assertEquals(2L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+		assertEquals(5L, request.getAttribute("org.apache.tomcat.sendfile.end"));
+		String path = (String) request.getAttribute("org.apache.tomcat.sendfile.filename");
+		assertEquals("0123456789", new String(Files.readAllBytes(Paths.get(path))));
+
+		// The container may not have opened the file yet
+		fileCache.invalidate("123456");
+		assertTrue(fileCache.lookup("123456", null) == null);
+		assertTrue(Files.exists(Paths.get(path)));
+	}
+
+	/**
+	 * Tests that files are not served after their time to live
+	 */
+	@Test
+	public void testExpiry() throws IOException {
+		ReflectionTestUtils.setField(fileCache, "ttlSeconds", 0L);
+		add("123456", "0123456789");
+		assertTrue(fileCache.lookup("123456", null) == null);
+		assertEquals(1L, fileCache.getStats().get("expirations"));
+		assertEquals(0L, fileCache.getStats().get("bytes"));
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	/**
+	 * Tests that a matching If-None-Match is answered from the cache without the file
+	 */
+	@Test
+	public void testNotModified() throws IOException {
+		// No ETag was cached for this entry
+		add("123456", "0123456789");
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v1\"");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		assertEquals(10L, fileCache.serve(fileCache.lookup("123456", null), request, response));
+
+		HttpHeaders headers = getHeaders(10);
+		headers.setETag("\"v1\"");
+		PendingEntry pending = fileCache.begin("654321", null, headers);
+		pending.write("0123456789".getBytes());
+		pending.commit();
+		response = new MockHttpServletResponse();
+		assertEquals(0L, fileCache.serve(fileCache.lookup("654321", null), request, response));
+		assertEquals(304, response.getStatus());
+		assertEquals("\"v1\"", response.getHeader(HttpHeaders.ETAG));
+		assertEquals(0, response.getContentAsByteArray().length);
+	}
+
+	/**
+	 * Tests that incomplete and oversized files are not cached
+	 */
+	@Test
+	public void testIncomplete() throws IOException {
+		PendingEntry pending = fileCache.begin("123456", null, getHeaders(10));
+		pending.write("01234".getBytes());
+		pending.commit();
+		assertTrue(fileCache.lookup("123456", null) == null);
+		assertTrue(fileCache.begin("123456", null, getHeaders(11)) == null);
+	}
+
+	/**
+	 * Tests that the least recently used files are evicted
+	 */
+	@Test
+	public void testEviction() throws IOException {
+		add("1", "0123456789");
+		add("2", "0123456789");
+		fileCache.lookup("1", null);
+		add("3", "0123456789");
+
+		assertTrue(fileCache.lookup("1", null) != null);
+		assertTrue(fileCache.lookup("2", null) == null);
+		assertTrue(fileCache.lookup("3", null) != null);
+		assertEquals(1L, fileCache.getStats().get("evictions"));
+		assertEquals(20L, fileCache.getStats().get("bytes"));
+	}
+
+	/**
+	 * Tests removing a deleted file, and that a download started before the delete is not cached
+	 */
+	@Test
+	public void testInvalidate() throws IOException {
+		add("123456", "0123456789");
+		PendingEntry pending = fileCache.begin("123456", "file.txt", getHeaders(10));
+		fileCache.invalidate("123456");
+		pending.write("0123456789".getBytes());
+		pending.commit();
+
+		assertTrue(fileCache.lookup("123456", null) == null);
+		assertTrue(fileCache.lookup("123456", "file.txt") == null);
+		assertEquals(0, fileCache.getStats().get("entries"));
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	private void add(String dataId, String content) throws IOException {
+		PendingEntry pending = fileCache.begin(dataId, null, getHeaders(content.length()));
+		pending.write(content.getBytes());
+		pending.commit();
+	}
+
+	private static HttpHeaders getHeaders(long contentLength) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentLength(contentLength);
+		headers.setContentType(MediaType.TEXT_PLAIN);
+		return headers;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import gateway.controller.util.FileMetadataCache;
+import model.data.DataResource;
+import model.data.location.S3FileStore;
+import model.data.type.GeoJsonDataType;
+import model.data.type.TextDataType;
+import model.response.DataResourceResponse;
+
+/**
+ * Tests caching the metadata of file Data for downloads
+ */
+public class FileMetadataCacheTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@InjectMocks
+	private FileMetadataCache fileMetadataCache;
+
+	private DataResource mockData;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(fileMetadataCache, "ACCESS_URL", "http://access");
+		ReflectionTestUtils.setField(fileMetadataCache, "ttlMillis", 60000L);
+		ReflectionTestUtils.setField(fileMetadataCache, "maxEntries", 10);
+
+		mockData = new DataResource();
+		mockData.dataId = "123456";
+		GeoJsonDataType dataType = new GeoJsonDataType();
+		dataType.setLocation(new S3FileStore("bucket", "123456-file.geojson", 1000L, "s3.amazonaws.com"));
+		mockData.dataType = dataType;
+
+		when(restTemplate.getForEntity(anyString(), eq(DataResourceResponse.class)))
+				.thenReturn(new ResponseEntity<DataResourceResponse>(new DataResourceResponse(mockData), HttpStatus.OK));
+	}
+
+	/**
+	 * Tests that the metadata is fetched once, and served from the cache until it is invalidated
+	 */
+	@Test
+	public void testCache() {
+		assertSame(mockData, fileMetadataCache.getData("123456"));
+		assertSame(mockData, fileMetadataCache.getData("123456"));
+		verify(restTemplate, times(1)).getForEntity("http://access/data/123456", DataResourceResponse.class);
+
+		fileMetadataCache.invalidate("123456");
+		fileMetadataCache.getData("123456");
+		verify(restTemplate, times(2)).getForEntity("http://access/data/123456", DataResourceResponse.class);
+		assertEquals(1L, fileMetadataCache.getStats().get("hits"));
+		assertEquals(2L, fileMetadataCache.getStats().get("misses"));
+	}
+
+	/**
+	 * Tests metadata remembered from a metadata request, and the Data that is not cached
+	 */
+	@Test
+	public void testPut() {
+		fileMetadataCache.put(mockData);
+		assertSame(mockData, fileMetadataCache.getData("123456"));
+		verify(restTemplate, times(0)).getForEntity(anyString(), eq(DataResourceResponse.class));
+
+		// Data that is not a file
+		DataResource textData = new DataResource();
+		textData.dataId = "654321";
+		textData.dataType = new TextDataType();
+		fileMetadataCache.put(textData);
+		assertEquals(1, fileMetadataCache.getStats().get("entries"));
+
+		// Expired entries are fetched again
+		ReflectionTestUtils.setField(fileMetadataCache, "ttlMillis", -1L);
+		fileMetadataCache.invalidate("123456");
+		fileMetadataCache.getData("123456");
+		fileMetadataCache.getData("123456");
+		verify(restTemplate, times(2)).getForEntity(anyString(), eq(DataResourceResponse.class));
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+import java.net.URL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+
+import gateway.controller.util.FileRedirector;
+import model.data.DataResource;
+import model.data.location.S3FileStore;
+import model.data.type.GeoJsonDataType;
+import model.data.type.TextDataType;
+
+/**
+ * Tests issuing pre-signed download URLs
+ */
+public class FileRedirectorTests {
+	@Mock
+	private AmazonS3 s3Client;
+	@InjectMocks
+	private FileRedirector fileRedirector;
+
+	private DataResource mockData;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(fileRedirector, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(fileRedirector, "USE_KMS", false);
+		ReflectionTestUtils.setField(fileRedirector, "enabled", true);
+		ReflectionTestUtils.setField(fileRedirector, "urlSeconds", 300);
+
+		mockData = new DataResource();
+		mockData.dataId = "123456";
+		GeoJsonDataType dataType = new GeoJsonDataType();
+		dataType.setLocation(new S3FileStore("bucket", "123456-file.tif", 1000L, "s3.amazonaws.com"));
+		mockData.dataType = dataType;
+
+		when(s3Client.generatePresignedUrl(any(GeneratePresignedUrlRequest.class)))
+				.thenReturn(new URL("https://bucket.s3.amazonaws.com/123456-file.tif?Signature=abc"));
+	}
+
+	/**
+	 * Tests signing a URL for a file in the Piazza bucket
+	 */
+	@Test
+	public void testRedirect() {
+		URL url = fileRedirector.getRedirectUrl(mockData, "download.tif");
+		assertEquals("https://bucket.s3.amazonaws.com/123456-file.tif?Signature=abc", url.toString());
+
+		ArgumentCaptor<GeneratePresignedUrlRequest> captor = ArgumentCaptor.forClass(GeneratePresignedUrlRequest.class);
+		Mockito.verify(s3Client).generatePresignedUrl(captor.capture());
+		assertEquals(HttpMethod.GET, captor.getValue().getMethod());
+		assertEquals("123456-file.tif", captor.getValue().getKey());
+		assertEquals("attachment; filename=\"download.tif\"; filename*=UTF-8''download.tif", captor.getValue().getResponseHeaders().getContentDisposition());
+		assertEquals(1L, fileRedirector.getStats().get("redirects"));
+	}
+
+	/**
+	 * Tests the files that must be proxied instead
+	 */
+	@Test
+	public void testProxied() {
+		// Other buckets
+		((GeoJsonDataType) mockData.dataType).setLocation(new S3FileStore("other", "file.tif", 1000L, "s3.amazonaws.com"));
+		assertTrue(fileRedirector.getRedirectUrl(mockData, null) == null);
+
+		// Encrypted files
+		((GeoJsonDataType) mockData.dataType).setLocation(new S3FileStore("bucket", "123456-file.tif", 1000L, "s3.amazonaws.com"));
+		ReflectionTestUtils.setField(fileRedirector, "USE_KMS", true);
+		assertTrue(fileRedirector.getRedirectUrl(mockData, null) == null);
+		assertTrue(fileRedirector.isEnabled() == false);
+
+		// Data that is not a file
+		ReflectionTestUtils.setField(fileRedirector, "USE_KMS", false);
+		TextDataType textType = new TextDataType();
+		textType.content = "Content";
+		mockData.dataType = textType;
+		assertTrue(fileRedirector.getRedirectUrl(mockData, null) == null);
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+
+import gateway.controller.util.FileCache;
+import gateway.controller.util.FileStreamer;
+
+/**
+ * Tests streaming of file downloads, including range requests
+ */
+public class FileStreamerTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@Mock
+	private FileCache fileCache;
+	@InjectMocks
+	private FileStreamer fileStreamer;
+
+	private static final String CONTENT = "0123456789abcdefghij";
+	private MockClientHttpRequest upstreamRequest;
+	private MockClientHttpResponse upstreamResponse;
+
+	/**
+	 * Initialize mock objects. The upstream component returns the full file unless a test changes the response.
+	 */
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		upstreamRequest = new MockClientHttpRequest();
+		setUpstreamResponse(CONTENT.getBytes(), HttpStatus.OK);
+		when(restTemplate.execute(anyString(), eq(HttpMethod.GET), any(RequestCallback.class), any(ResponseExtractor.class)))
+				.thenAnswer(new Answer<Object>() {
+					@Override
+					public Object answer(InvocationOnMock invocation) throws Throwable {
+						((RequestCallback) invocation.getArguments()[2]).doWithRequest(upstreamRequest);
+						return ((ResponseExtractor<?>) invocation.getArguments()[3]).extractData(upstreamResponse);
+					}
+				});
+	}
+
+	/**
+	 * Tests a plain download
+	 */
+	@Test
+	public void testFullFile() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		long bytes = fileStreamer.streamFile("url", "123456", null, new MockHttpServletRequest(), response);
+		assertEquals(20, bytes);
+		assertEquals(200, response.getStatus());
+		assertEquals(CONTENT, response.getContentAsString());
+		assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+	}
+
+	/**
+	 * Tests a single range when the upstream component returns the full file
+	 */
+	@Test
+	public void testSingleRange() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.RANGE, "bytes=5-9");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileStreamer.streamFile("url", "123456", null, request, response);
+
+		// The range was requested upstream, and applied locally
+		assertEquals("bytes=5-9", upstreamRequest.getHeaders().getFirst(HttpHeaders.RANGE));
+		assertEquals(206, response.getStatus());
+		assertEquals("56789", response.getContentAsString());
+		assertEquals("bytes 5-9/20", response.getHeader(HttpHeaders.CONTENT_RANGE));
+		assertEquals("5", response.getHeader(HttpHeaders.CONTENT_LENGTH));
+	}
+
+	/**
+	 * Tests multiple ranges, out of order, returned as multipart/byteranges
+	 */
+	@Test
+	public void testMultipleRanges() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.RANGE, "bytes=15-16,0-1,-2");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileStreamer.streamFile("url", "123456", null, request, response);
+
+		assertEquals(206, response.getStatus());
+		assertTrue(response.getContentType().startsWith("multipart/byteranges"));
+		String body = response.getContentAsString();
+		assertTrue(body.contains("Content-Range: bytes 0-1/20\r\n\r\n01\r\n"));
+		assertTrue(body.contains("Content-Range: bytes 15-16/20\r\n\r\nfg\r\n"));
+		assertTrue(body.contains("Content-Range: bytes 18-19/20\r\n\r\nij\r\n"));
+		assertTrue(body.indexOf("0-1/20") < body.indexOf("15-16/20"));
+	}
+
+	/**
+	 * Tests If-Range, and ranges that cannot be satisfied
+	 */
+	@Test
+	public void testIfRangeAndUnsatisfiable() throws Exception {
+		upstreamResponse.getHeaders().setETag("\"v2\"");
+
+		// A stale validator returns the full file
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.RANGE, "bytes=0-4");
+		request.addHeader(HttpHeaders.IF_RANGE, "\"v1\"");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileStreamer.streamFile("url", "123456", null, request, response);
+		assertEquals(200, response.getStatus());
+		assertEquals(CONTENT, response.getContentAsString());
+
+		// A range past the end of the file
+		setUpstreamResponse(CONTENT.getBytes(), HttpStatus.OK);
+		request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.RANGE, "bytes=50-60");
+		response = new MockHttpServletResponse();
+		fileStreamer.streamFile("url", "123456", null, request, response);
+		assertEquals(416, response.getStatus());
+		assertEquals("bytes */20", response.getHeader(HttpHeaders.CONTENT_RANGE));
+	}
+
+	/**
+	 * Tests that a partial response from the upstream component is passed through
+	 */
+	@Test
+	public void testUpstreamPartialContent() throws Exception {
+		setUpstreamResponse("56789".getBytes(), HttpStatus.PARTIAL_CONTENT);
+		upstreamResponse.getHeaders().set(HttpHeaders.CONTENT_RANGE, "bytes 5-9/20");
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.RANGE, "bytes=5-9");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileStreamer.streamFile("url", "123456", null, request, response);
+
+		assertEquals(206, response.getStatus());
+		assertEquals("56789", response.getContentAsString());
+		assertEquals("bytes 5-9/20", response.getHeader(HttpHeaders.CONTENT_RANGE));
+	}
+
+	/**
+	 * Tests If-None-Match, both forwarded to the upstream component and checked locally
+	 */
+	@Test
+	public void testNotModified() throws Exception {
+		// The upstream component honors the validator
+		setUpstreamResponse(new byte[0], HttpStatus.NOT_MODIFIED);
+		upstreamResponse.getHeaders().setETag("\"v1\"");
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v1\"");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		fileStreamer.streamFile("url", "123456", null, request, response);
+		assertEquals("\"v1\"", upstreamRequest.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH));
+		assertEquals(304, response.getStatus());
+		assertEquals(0, response.getContentAsByteArray().length);
+
+		// The upstream component returns the full file
+		setUpstreamResponse(CONTENT.getBytes(), HttpStatus.OK);
+		upstreamResponse.getHeaders().setETag("\"v1\"");
+		request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v0\", W/\"v1\"");
+		response = new MockHttpServletResponse();
+		assertEquals(0, fileStreamer.streamFile("url", "123456", null, request, response));
+		assertEquals(304, response.getStatus());
+		assertEquals("\"v1\"", response.getHeader(HttpHeaders.ETAG));
+		assertEquals(0, response.getContentAsByteArray().length);
+
+		// A stale validator returns the full file
+		setUpstreamResponse(CONTENT.getBytes(), HttpStatus.OK);
+		upstreamResponse.getHeaders().setETag("\"v2\"");
+		response = new MockHttpServletResponse();
+		fileStreamer.streamFile("url", "123456", null, request, response);
+		assertEquals(200, response.getStatus());
+		assertEquals(CONTENT, response.getContentAsString());
+	}
+
+	/**
+	 * Tests quoting and encoding the file name of a download
+	 */
+	@Test
+	public void testContentDisposition() {
+		assertEquals("attachment; filename=\"file.txt\"; filename*=UTF-8''file.txt", FileStreamer.getContentDisposition("file.txt"));
+		assertEquals("attachment; filename=\"my _file_;_.txt\"; filename*=UTF-8''my%20%22file%22%3B%0D.txt",
+				FileStreamer.getContentDisposition("my \"file\";\r.txt"));
+		assertEquals("attachment; filename=\"caf_.txt\"; filename*=UTF-8''caf%C3%A9.txt", FileStreamer.getContentDisposition("caf\u00e9.txt"));
+	}
+
+	private void setUpstreamResponse(byte[] body, HttpStatus status) {
+		upstreamResponse = new MockClientHttpResponse(body, status);
+		upstreamResponse.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+		upstreamResponse.getHeaders().setContentLength(body.length);
+	}
+}
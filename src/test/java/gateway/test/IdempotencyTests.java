@@ -0,0 +1,186 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.remote.JMXPrincipal;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.IdempotencyFilter;
+import gateway.controller.util.IdempotencyStore;
+import gateway.controller.util.IdempotencyStore.Claim;
+import gateway.controller.util.IdempotencyStore.StoredResponse;
+
+/**
+ * Tests answering repeated Job-creating requests that carry an Idempotency-Key
+ */
+public class IdempotencyTests {
+	private IdempotencyStore idempotencyStore;
+	private IdempotencyFilter idempotencyFilter;
+	private AtomicInteger jobsCreated = new AtomicInteger();
+
+	/**
+	 * Initialize the store and filter.
+	 */
+	@Before
+	public void setup() {
+		idempotencyStore = new IdempotencyStore();
+		ReflectionTestUtils.setField(idempotencyStore, "ttlMinutes", 60L);
+		ReflectionTestUtils.setField(idempotencyStore, "maxEntries", 2);
+		ReflectionTestUtils.setField(idempotencyStore, "waitSeconds", 5L);
+		idempotencyFilter = new IdempotencyFilter(idempotencyStore);
+	}
+
+	/**
+	 * Tests that a repeated request receives the original response without creating another Job
+	 */
+	@Test
+	public void testReplay() throws Exception {
+		MockHttpServletResponse first = post("/job", "tester", "key1", new CreateJob(HttpStatus.CREATED));
+		MockHttpServletResponse repeat = post("/job", "tester", "key1", new CreateJob(HttpStatus.CREATED));
+		assertEquals(1, jobsCreated.get());
+		assertEquals(201, repeat.getStatus());
+		assertEquals(first.getContentAsString(), repeat.getContentAsString());
+		assertEquals("true", repeat.getHeader(IdempotencyFilter.REPLAYED_HEADER));
+
+		// Keys belong to a user, and requests without a key are unaffected
+		post("/job", "other", "key1", new CreateJob(HttpStatus.CREATED));
+		post("/job", "tester", null, new CreateJob(HttpStatus.CREATED));
+		assertEquals(3, jobsCreated.get());
+	}
+
+	/**
+	 * Tests that a failed request releases its key, and that a key cannot be reused for another endpoint
+	 */
+	@Test
+	public void testFailureAndMismatch() throws Exception {
+		post("/data", "tester", "key1", new CreateJob(HttpStatus.INTERNAL_SERVER_ERROR));
+		MockHttpServletResponse retry = post("/data", "tester", "key1", new CreateJob(HttpStatus.CREATED));
+		assertEquals(2, jobsCreated.get());
+		assertEquals(201, retry.getStatus());
+
+		MockHttpServletResponse mismatch = post("/deployment", "tester", "key1", new CreateJob(HttpStatus.CREATED));
+		assertEquals(422, mismatch.getStatus());
+		assertEquals(2, jobsCreated.get());
+	}
+
+	/**
+	 * Tests that a repeat arriving while the original is in progress waits for its response
+	 */
+	@Test
+	public void testConcurrentRepeat() throws Exception {
+		final Claim original = idempotencyStore.claim("tester", "key1", "POST /job");
+		assertTrue(original.isNew());
+		final CountDownLatch started = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					started.await(5, TimeUnit.SECONDS);
+					Thread.sleep(50);
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+				}
+				idempotencyStore.complete(original, new StoredResponse(201, "application/json", "{\"jobId\":\"1\"}".getBytes()));
+			}
+		}).start();
+		Claim repeat = idempotencyStore.claim("tester", "key1", "POST /job");
+		assertFalse(repeat.isNew());
+		started.countDown();
+		assertEquals("{\"jobId\":\"1\"}", new String(idempotencyStore.await(repeat).getBody()));
+	}
+
+	/**
+	 * Tests that the store drops the oldest keys when full
+	 */
+	@Test
+	public void testBounded() throws Exception {
+		for (String key : new String[] { "key1", "key2", "key3" }) {
+			post("/job", "tester", key, new CreateJob(HttpStatus.CREATED));
+		}
+		assertEquals(2, idempotencyStore.getStats().get("entries"));
+		post("/job", "tester", "key1", new CreateJob(HttpStatus.CREATED));
+		assertEquals(4, jobsCreated.get());
+	}
+
+	/**
+	 * Tests that keys held by in-flight requests are not dropped when the store is full
+	 */
+	@Test
+	public void testInFlightNotEvicted() throws Exception {
+		Claim first = idempotencyStore.claim("tester", "key1", "POST /job");
+		idempotencyStore.claim("tester", "key2", "POST /job");
+		idempotencyStore.claim("tester", "key3", "POST /job");
+		assertEquals(3, idempotencyStore.getStats().get("entries"));
+		assertEquals(0L, idempotencyStore.getStats().get("evictions"));
+		assertFalse(idempotencyStore.claim("tester", "key1", "POST /job").isNew());
+
+		// Once completed, the oldest key can make room for a new one
+		idempotencyStore.complete(first, new StoredResponse(201, "application/json", new byte[0]));
+		assertTrue(idempotencyStore.claim("tester", "key4", "POST /job").isNew());
+		assertEquals(1L, idempotencyStore.getStats().get("evictions"));
+		assertTrue(idempotencyStore.claim("tester", "key1", "POST /job").isNew());
+	}
+
+	private MockHttpServletResponse post(String path, String user, String key, FilterChain chain) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", path);
+		request.setUserPrincipal(new JMXPrincipal(user));
+		if (key != null) {
+			request.addHeader(IdempotencyFilter.IDEMPOTENCY_KEY_HEADER, key);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		idempotencyFilter.doFilter(request, response, chain);
+		return response;
+	}
+
+	/**
+	 * Stands in for a controller that creates a Job
+	 */
+	private class CreateJob implements FilterChain {
+		private final HttpStatus status;
+
+		private CreateJob(HttpStatus status) {
+			this.status = status;
+		}
+
+		@Override
+		public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+			int jobId = jobsCreated.incrementAndGet();
+			((HttpServletResponse) response).setStatus(status.value());
+			response.setContentType("application/json");
+			response.getWriter().write(String.format("{\"type\":\"job\",\"data\":{\"jobId\":\"%s\"}}", jobId));
+			response.getWriter().flush();
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.util.JobOutbox;
+import model.job.type.AbortJob;
+import model.request.PiazzaJobRequest;
+import model.response.ErrorResponse;
+import model.response.JobResponse;
+import model.response.PiazzaResponse;
+import util.PiazzaLogger;
+
+/**
+ * Tests holding Job Requests in the local outbox and delivering them to the Job Manager
+ */
+public class JobOutboxTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@Mock
+	private PiazzaLogger logger;
+	@Spy
+	private ObjectMapper objectMapper;
+	@InjectMocks
+	private JobOutbox jobOutbox;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private PiazzaJobRequest mockRequest;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		configure(jobOutbox);
+		mockRequest = new PiazzaJobRequest();
+		mockRequest.createdBy = "tester";
+		mockRequest.jobType = new AbortJob("123456");
+	}
+
+	@After
+	public void teardown() {
+		jobOutbox.shutdown();
+	}
+
+	/**
+	 * Tests that requests are delivered in order once the Job Manager is available, and the journal is then emptied
+	 */
+	@Test
+	public void testDeliverInOrder() throws Exception {
+		when(restTemplate.postForEntity(anyString(), any(), eq(PiazzaResponse.class)))
+				.thenThrow(new ResourceAccessException("Connection refused"))
+				.thenReturn(new ResponseEntity<PiazzaResponse>(new JobResponse("123456"), HttpStatus.OK));
+		jobOutbox.init();
+		for (String jobId : new String[] { "1", "2", "3" }) {
+			jobOutbox.append(mockRequest, jobId);
+		}
+		assertTrue(jobOutbox.hasPending());
+
+		waitFor(jobOutbox, "dispatched", 3L);
+		ArgumentCaptor<String> urls = ArgumentCaptor.forClass(String.class);
+		verify(restTemplate, times(4)).postForEntity(urls.capture(), any(), eq(PiazzaResponse.class));
+		List<String> calls = urls.getAllValues();
+		assertTrue(calls.get(0).endsWith("jobId=1"));
+		assertTrue(calls.get(1).endsWith("jobId=1"));
+		assertTrue(calls.get(2).endsWith("jobId=2"));
+		assertTrue(calls.get(3).endsWith("jobId=3"));
+		assertEquals(1L, jobOutbox.getStats().get("retries"));
+		waitFor(jobOutbox, "journalBytes", 0L);
+		assertFalse(jobOutbox.hasPending());
+	}
+
+	/**
+	 * Tests that undelivered requests are recovered after a restart, ignoring a record that was only partly written
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+		when(restTemplate.postForEntity(anyString(), any(), eq(PiazzaResponse.class)))
+				.thenThrow(new ResourceAccessException("Connection refused"));
+		ReflectionTestUtils.setField(jobOutbox, "retryInitialMillis", 60000L);
+		jobOutbox.init();
+		jobOutbox.append(mockRequest, "1");
+		jobOutbox.append(mockRequest, "2");
+		jobOutbox.shutdown();
+		Files.write(new File(folder.getRoot(), "requests.journal").toPath(), new byte[] { 0, 0, 1, 0, 42 },
+				StandardOpenOption.APPEND);
+
+		when(restTemplate.postForEntity(anyString(), any(), eq(PiazzaResponse.class)))
+				.thenReturn(new ResponseEntity<PiazzaResponse>(new JobResponse("123456"), HttpStatus.OK));
+		JobOutbox recovered = new JobOutbox();
+		ReflectionTestUtils.setField(recovered, "restTemplate", restTemplate);
+		ReflectionTestUtils.setField(recovered, "logger", logger);
+		ReflectionTestUtils.setField(recovered, "objectMapper", objectMapper);
+		configure(recovered);
+		try {
+			recovered.init();
+			waitFor(recovered, "dispatched", 2L);
+			assertEquals(0, recovered.getStats().get("pending"));
+		} finally {
+			recovered.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that a request the Job Manager rejects is not sent again
+	 */
+	@Test
+	public void testRejected() throws Exception {
+		when(restTemplate.postForEntity(anyString(), any(), eq(PiazzaResponse.class)))
+				.thenReturn(new ResponseEntity<PiazzaResponse>(new ErrorResponse("Invalid", "Job Manager"), HttpStatus.OK));
+		jobOutbox.init();
+		jobOutbox.append(mockRequest, "1");
+		waitFor(jobOutbox, "rejected", 1L);
+		verify(restTemplate, times(1)).postForEntity(anyString(), any(), eq(PiazzaResponse.class));
+	}
+
+	/**
+	 * Tests that a request that keeps failing is given up on after the maximum attempts, while an unavailable Job Manager
+	 * does not count towards them
+	 */
+	@Test
+	public void testAbandoned() throws Exception {
+		when(restTemplate.postForEntity(anyString(), any(), eq(PiazzaResponse.class)))
+				.thenThrow(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE))
+				.thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR))
+				.thenThrow(new ResourceAccessException("Connection refused"))
+				.thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR))
+				.thenReturn(new ResponseEntity<PiazzaResponse>(new JobResponse("123456"), HttpStatus.OK));
+		jobOutbox.init();
+		jobOutbox.append(mockRequest, "1");
+		jobOutbox.append(mockRequest, "2");
+
+		waitFor(jobOutbox, "dispatched", 1L);
+		assertEquals(1L, jobOutbox.getStats().get("abandoned"));
+		ArgumentCaptor<String> urls = ArgumentCaptor.forClass(String.class);
+		verify(restTemplate, times(5)).postForEntity(urls.capture(), any(), eq(PiazzaResponse.class));
+		assertTrue(urls.getAllValues().get(3).endsWith("jobId=1"));
+		assertTrue(urls.getAllValues().get(4).endsWith("jobId=2"));
+	}
+
+	/**
+	 * Tests that the outbox stays disabled without a path for its journal
+	 */
+	@Test
+	public void testNoPath() {
+		ReflectionTestUtils.setField(jobOutbox, "outboxPath", "");
+		jobOutbox.init();
+		assertFalse(jobOutbox.isEnabled());
+	}
+
+	/**
+	 * Tests that a request is withdrawn and not accepted if it cannot be written in time, and rejected once the outbox
+	 * is shutting down
+	 */
+	@Test
+	public void testAppendTimeout() throws Exception {
+		// Not started, so nothing writes the journal
+		ReflectionTestUtils.setField(jobOutbox, "appendTimeoutMillis", 50L);
+		try {
+			jobOutbox.append(mockRequest, "1");
+			assertTrue(false);
+		} catch (IOException exception) {
+			assertTrue(exception.getMessage().contains("not accepted"));
+		}
+		assertEquals(1L, jobOutbox.getStats().get("timedOut"));
+		assertEquals(0L, jobOutbox.getStats().get("accepted"));
+
+		jobOutbox.shutdown();
+		try {
+			jobOutbox.append(mockRequest, "2");
+			assertTrue(false);
+		} catch (IOException exception) {
+			assertTrue(exception.getMessage().contains("shutting down"));
+		}
+	}
+
+	private void configure(JobOutbox outbox) {
+		ReflectionTestUtils.setField(outbox, "enabled", true);
+		ReflectionTestUtils.setField(outbox, "outboxPath", folder.getRoot().getAbsolutePath());
+		ReflectionTestUtils.setField(outbox, "retryInitialMillis", 10L);
+		ReflectionTestUtils.setField(outbox, "retryMaxMillis", 100L);
+		ReflectionTestUtils.setField(outbox, "appendTimeoutMillis", 5000L);
+		ReflectionTestUtils.setField(outbox, "maxAttempts", 2);
+		ReflectionTestUtils.setField(outbox, "JOBMANAGER_URL", "http://jobmanager");
+	}
+
+	private static void waitFor(JobOutbox outbox, String stat, Object expected) throws InterruptedException {
+		for (int attempt = 0; (attempt < 500) && !expected.equals(outbox.getStats().get(stat)); attempt++) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, outbox.getStats().get(stat));
+	}
+}
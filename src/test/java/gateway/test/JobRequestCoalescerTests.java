@@ -0,0 +1,161 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import gateway.controller.util.JobRequestCoalescer;
+import model.job.type.AbortJob;
+import model.request.PiazzaJobRequest;
+import model.response.ErrorResponse;
+import model.response.JobResponse;
+import model.response.PiazzaResponse;
+
+/**
+ * Tests coalescing concurrent Job Requests into batches sent by a pool of senders
+ */
+public class JobRequestCoalescerTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@InjectMocks
+	private JobRequestCoalescer jobRequestCoalescer;
+
+	private PiazzaJobRequest mockRequest;
+	/** The sender threads that sent each Job */
+	private Map<String, String> senderThreads = new ConcurrentHashMap<String, String>();
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "enabled", true);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "maxBatch", 5);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "lingerMillis", 50L);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "senders", 2);
+		ReflectionTestUtils.setField(jobRequestCoalescer, "JOBMANAGER_URL", "http://jobmanager");
+		jobRequestCoalescer.init();
+
+		mockRequest = new PiazzaJobRequest();
+		mockRequest.createdBy = "tester";
+		mockRequest.jobType = new AbortJob("123456");
+	}
+
+	@After
+	public void teardown() {
+		jobRequestCoalescer.shutdown();
+	}
+
+	/**
+	 * Tests that concurrent requests are sent in batches by the senders, and that each caller receives its own response
+	 */
+	@Test
+	public void testCoalesce() throws Exception {
+		final Pattern jobIdPattern = Pattern.compile("^http://jobmanager/requestJob\\?jobId=(.*)$");
+		when(restTemplate.postForEntity(anyString(), any(), eq(PiazzaResponse.class)))
+				.thenAnswer(new Answer<ResponseEntity<PiazzaResponse>>() {
+					@Override
+					public ResponseEntity<PiazzaResponse> answer(InvocationOnMock invocation) throws Throwable {
+						Matcher matcher = jobIdPattern.matcher((String) invocation.getArguments()[0]);
+						String jobId = matcher.matches() ? matcher.group(1) : null;
+						senderThreads.put(jobId, Thread.currentThread().getName());
+						PiazzaResponse response = "bad".equals(jobId) ? new ErrorResponse("Invalid Job", "Job Manager")
+								: new JobResponse(jobId);
+						return new ResponseEntity<PiazzaResponse>(response, HttpStatus.OK);
+					}
+				});
+
+		ExecutorService executor = Executors.newFixedThreadPool(12);
+		List<Future<PiazzaResponse>> results = new ArrayList<Future<PiazzaResponse>>();
+		for (int i = 0; i < 12; i++) {
+			final String jobId = i == 7 ? "bad" : Integer.toString(i);
+			results.add(executor.submit(new Callable<PiazzaResponse>() {
+				@Override
+				public PiazzaResponse call() throws Exception {
+					return jobRequestCoalescer.send(mockRequest, jobId);
+				}
+			}));
+		}
+		for (int i = 0; i < 12; i++) {
+			PiazzaResponse response = results.get(i).get();
+			if (i == 7) {
+				assertTrue(response instanceof ErrorResponse);
+			} else {
+				assertEquals(Integer.toString(i), ((JobResponse) response).data.getJobId());
+			}
+		}
+		executor.shutdown();
+
+		// Every Job was sent on its own by one of the senders
+		assertEquals(12, senderThreads.size());
+		for (String thread : senderThreads.values()) {
+			assertTrue(thread.startsWith("job-coalesce-send-"));
+		}
+		assertEquals(12L, jobRequestCoalescer.getStats().get("jobs"));
+		long batches = (Long) jobRequestCoalescer.getStats().get("batches");
+		assertTrue((batches >= 3) && (batches < 12));
+	}
+
+	/**
+	 * Tests that a failed request fails only its own Job, with the original error
+	 */
+	@Test
+	public void testJobFailure() throws Exception {
+		when(restTemplate.postForEntity(eq("http://jobmanager/requestJob?jobId=123456"), any(), eq(PiazzaResponse.class)))
+				.thenThrow(new ResourceAccessException("Connection refused"));
+		when(restTemplate.postForEntity(eq("http://jobmanager/requestJob?jobId=654321"), any(), eq(PiazzaResponse.class)))
+				.thenReturn(new ResponseEntity<PiazzaResponse>(new JobResponse("654321"), HttpStatus.OK));
+		try {
+			jobRequestCoalescer.send(mockRequest, "123456");
+			assertTrue(false);
+		} catch (ResourceAccessException exception) {
+			assertTrue(exception.getMessage().contains("Connection refused"));
+		}
+		assertEquals("654321", ((JobResponse) jobRequestCoalescer.send(mockRequest, "654321")).data.getJobId());
+		assertEquals(1L, jobRequestCoalescer.getStats().get("failedJobs"));
+	}
+}
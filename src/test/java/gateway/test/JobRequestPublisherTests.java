@@ -0,0 +1,148 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import exception.PiazzaJobException;
+import gateway.controller.util.JobRequestPublisher;
+import messaging.job.JobMessageFactory;
+import model.job.type.AbortJob;
+import model.request.PiazzaJobRequest;
+
+/**
+ * Tests publishing Job Requests to the message broker with publisher confirms
+ */
+public class JobRequestPublisherTests {
+	@Mock
+	private Queue requestJobsQueue;
+	@Spy
+	private ObjectMapper objectMapper;
+	@Mock
+	private RabbitTemplate template;
+	@InjectMocks
+	private JobRequestPublisher jobRequestPublisher;
+
+	private PiazzaJobRequest mockRequest;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(jobRequestPublisher, "enabled", true);
+		ReflectionTestUtils.setField(jobRequestPublisher, "confirmTimeoutMillis", 1000L);
+		ReflectionTestUtils.setField(jobRequestPublisher, "template", template);
+		when(requestJobsQueue.getName()).thenReturn("Request-Job-unitTest");
+
+		mockRequest = new PiazzaJobRequest();
+		mockRequest.createdBy = "tester";
+		mockRequest.jobType = new AbortJob("123456");
+	}
+
+	/**
+	 * Tests a request that the broker confirms
+	 */
+	@Test
+	public void testConfirmed() throws Exception {
+		brokerReplies(true, false);
+		jobRequestPublisher.publish(mockRequest, "123456");
+		assertEquals(1L, jobRequestPublisher.getStats().get("confirmed"));
+		assertEquals(0, jobRequestPublisher.getStats().get("pending"));
+	}
+
+	/**
+	 * Tests a request that the broker rejects
+	 */
+	@Test(expected = PiazzaJobException.class)
+	public void testRejected() throws Exception {
+		brokerReplies(false, false);
+		jobRequestPublisher.publish(mockRequest, "123456");
+	}
+
+	/**
+	 * Tests a request that could not be routed to the queue
+	 */
+	@Test(expected = PiazzaJobException.class)
+	public void testReturned() throws Exception {
+		brokerReplies(true, true);
+		jobRequestPublisher.publish(mockRequest, "123456");
+	}
+
+	/**
+	 * Tests a request that the broker never confirms
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+		ReflectionTestUtils.setField(jobRequestPublisher, "confirmTimeoutMillis", 10L);
+		try {
+			jobRequestPublisher.publish(mockRequest, "123456");
+			assertTrue(false);
+		} catch (PiazzaJobException exception) {
+			assertTrue(exception.getMessage().contains("did not confirm"));
+		}
+		assertEquals(1L, jobRequestPublisher.getStats().get("timedOut"));
+		assertEquals(0, jobRequestPublisher.getStats().get("pending"));
+	}
+
+	/**
+	 * Answers each publish from a separate thread, as the broker connection would.
+	 */
+	private void brokerReplies(final boolean ack, final boolean returned) {
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				final Message message = (Message) invocation.getArguments()[2];
+				final CorrelationData correlation = (CorrelationData) invocation.getArguments()[3];
+				assertEquals("123456", message.getMessageProperties().getHeaders().get(JobRequestPublisher.JOB_ID_HEADER));
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						if (returned) {
+							jobRequestPublisher.returnedMessage(message, 312, "NO_ROUTE", JobMessageFactory.PIAZZA_EXCHANGE_NAME,
+									"Request-Job-unitTest");
+						}
+						jobRequestPublisher.confirm(correlation, ack, ack ? null : "Rejected");
+					}
+				}).start();
+				return null;
+			}
+		}).when(template).send(eq(JobMessageFactory.PIAZZA_EXCHANGE_NAME), anyString(), any(Message.class), any(CorrelationData.class));
+	}
+}
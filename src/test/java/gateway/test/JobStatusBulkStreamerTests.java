@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.JobStatusBulkStreamer;
+import gateway.controller.util.JobStatusCache;
+import gateway.controller.util.JobStatusView;
+import model.job.Job;
+import model.response.ErrorResponse;
+import model.response.JobStatusResponse;
+import model.status.StatusUpdate;
+
+/**
+ * Tests streaming the Status of many Jobs
+ */
+public class JobStatusBulkStreamerTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@Spy
+	private ObjectMapper objectMapper;
+	@Spy
+	private JobStatusCache jobStatusCache;
+	@Mock
+	private JobStatusView jobStatusView;
+	@InjectMocks
+	private JobStatusBulkStreamer jobStatusBulkStreamer;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(jobStatusBulkStreamer, "parallelism", 4);
+		ReflectionTestUtils.setField(jobStatusBulkStreamer, "fanOut", 2);
+		ReflectionTestUtils.setField(jobStatusBulkStreamer, "JOBMANAGER_URL", "http://jobmanager");
+		jobStatusBulkStreamer.init();
+	}
+
+	@After
+	public void teardown() {
+		jobStatusBulkStreamer.shutdown();
+	}
+
+	/**
+	 * Tests that each Job is mapped to its Status, or to its error
+	 */
+	@Test
+	public void testStreamStatuses() throws Exception {
+		// Mock
+		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class))).thenAnswer(new Answer<ResponseEntity<JobStatusResponse>>() {
+			@Override
+			public ResponseEntity<JobStatusResponse> answer(InvocationOnMock invocation) throws Throwable {
+				String url = (String) invocation.getArguments()[0];
+				String jobId = url.substring(url.lastIndexOf('/') + 1);
+				if ("missing".equals(jobId)) {
+					throw new HttpClientErrorException(HttpStatus.NOT_FOUND, "Not Found");
+				}
+				Job job = new Job();
+				job.setJobId(jobId);
+				job.setStatus(StatusUpdate.STATUS_RUNNING);
+				return new ResponseEntity<JobStatusResponse>(new JobStatusResponse(job), HttpStatus.OK);
+			}
+		});
+		when(gatewayUtil.getErrorResponse(anyString())).thenReturn(new ErrorResponse("Job not found", "Job Manager"));
+		List<String> jobIds = new ArrayList<String>();
+		for (int i = 0; i < 120; i++) {
+			jobIds.add(String.format("job%s", i));
+		}
+		jobIds.add("missing");
+
+		// Test
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int failed = jobStatusBulkStreamer.streamStatuses(jobIds, output);
+
+		// Verify
+		assertEquals(1, failed);
+		JsonNode data = new ObjectMapper().readTree(output.toByteArray()).get("data");
+		assertEquals(121, data.size());
+		assertEquals("job7", data.get("job7").get("data").get("jobId").asText());
+		assertEquals(StatusUpdate.STATUS_RUNNING, data.get("job7").get("data").get("status").asText());
+		assertEquals("Job not found", data.get("missing").get("message").asText());
+		assertTrue(jobStatusBulkStreamer.getStats().get("errors").equals(1L));
+	}
+
+	/**
+	 * Tests that finished Jobs held by the Job events view are not fetched from the Job Manager
+	 */
+	@Test
+	public void testStatusFromView() throws Exception {
+		// Mock
+		Job finished = new Job();
+		finished.setJobId("finished");
+		finished.setStatus(StatusUpdate.STATUS_SUCCESS);
+		when(jobStatusView.getStatus("finished")).thenReturn(new JobStatusResponse(finished));
+		Job running = new Job();
+		running.setJobId("running");
+		running.setStatus(StatusUpdate.STATUS_RUNNING);
+		when(restTemplate.getForEntity(contains("running"), eq(JobStatusResponse.class)))
+				.thenReturn(new ResponseEntity<JobStatusResponse>(new JobStatusResponse(running), HttpStatus.OK));
+		List<String> jobIds = new ArrayList<String>();
+		jobIds.add("finished");
+		jobIds.add("running");
+
+		// Test
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		int failed = jobStatusBulkStreamer.streamStatuses(jobIds, output);
+
+		// Verify
+		assertEquals(0, failed);
+		JsonNode data = new ObjectMapper().readTree(output.toByteArray()).get("data");
+		assertEquals(StatusUpdate.STATUS_SUCCESS, data.get("finished").get("data").get("status").asText());
+		assertEquals(StatusUpdate.STATUS_RUNNING, data.get("running").get("data").get("status").asText());
+		Mockito.verify(restTemplate, Mockito.times(1)).getForEntity(anyString(), eq(JobStatusResponse.class));
+	}
+}
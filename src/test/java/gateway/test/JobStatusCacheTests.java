@@ -0,0 +1,150 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.JobStatusCache;
+import model.job.Job;
+import model.response.JobStatusResponse;
+import model.status.StatusUpdate;
+
+/**
+ * Tests caching and coalescing of Job Status requests
+ */
+public class JobStatusCacheTests {
+	private JobStatusCache jobStatusCache;
+	private AtomicInteger fetches = new AtomicInteger();
+
+	/**
+	 * Initialize the cache.
+	 */
+	@Before
+	public void setup() {
+		jobStatusCache = new JobStatusCache();
+		ReflectionTestUtils.setField(jobStatusCache, "enabled", true);
+		ReflectionTestUtils.setField(jobStatusCache, "ttlMillis", 0L);
+		ReflectionTestUtils.setField(jobStatusCache, "terminalTtlMillis", 60000L);
+		ReflectionTestUtils.setField(jobStatusCache, "maxEntries", 10);
+	}
+
+	/**
+	 * Tests that concurrent requests for the same Job share one fetch
+	 */
+	@Test
+	public void testCoalesce() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<JobStatusResponse> fetch = new Callable<JobStatusResponse>() {
+			@Override
+			public JobStatusResponse call() throws Exception {
+				fetches.incrementAndGet();
+				release.await(5, TimeUnit.SECONDS);
+				return status(StatusUpdate.STATUS_RUNNING);
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(5);
+		List<Future<JobStatusResponse>> results = new ArrayList<Future<JobStatusResponse>>();
+		for (int i = 0; i < 5; i++) {
+			results.add(executor.submit(new Callable<JobStatusResponse>() {
+				@Override
+				public JobStatusResponse call() throws Exception {
+					return jobStatusCache.getStatus("123456", fetch);
+				}
+			}));
+		}
+		Thread.sleep(100);
+		release.countDown();
+		for (Future<JobStatusResponse> result : results) {
+			assertEquals(StatusUpdate.STATUS_RUNNING, result.get().data.status);
+		}
+		executor.shutdown();
+		assertEquals(1, fetches.get());
+		assertEquals(4L, jobStatusCache.getStats().get("coalesced"));
+	}
+
+	/**
+	 * Tests that a running Job is fetched again after the short TTL, and a finished Job is kept
+	 */
+	@Test
+	public void testTerminalStatus() throws Exception {
+		jobStatusCache.getStatus("123456", new CountingFetch(StatusUpdate.STATUS_RUNNING));
+		jobStatusCache.getStatus("123456", new CountingFetch(StatusUpdate.STATUS_SUCCESS));
+		jobStatusCache.getStatus("123456", new CountingFetch(StatusUpdate.STATUS_SUCCESS));
+		assertEquals(2, fetches.get());
+
+		jobStatusCache.invalidate("123456");
+		jobStatusCache.getStatus("123456", new CountingFetch(StatusUpdate.STATUS_SUCCESS));
+		assertEquals(3, fetches.get());
+	}
+
+	/**
+	 * Tests that a failed fetch is not cached
+	 */
+	@Test
+	public void testFailure() throws Exception {
+		ReflectionTestUtils.setField(jobStatusCache, "ttlMillis", 60000L);
+		try {
+			jobStatusCache.getStatus("123456", new Callable<JobStatusResponse>() {
+				@Override
+				public JobStatusResponse call() {
+					throw new IllegalStateException("Job Manager unavailable");
+				}
+			});
+			assertTrue(false);
+		} catch (IllegalStateException exception) {
+			assertEquals("Job Manager unavailable", exception.getMessage());
+		}
+		assertEquals(StatusUpdate.STATUS_RUNNING,
+				jobStatusCache.getStatus("123456", new CountingFetch(StatusUpdate.STATUS_RUNNING)).data.status);
+		assertEquals(1, fetches.get());
+	}
+
+	private static JobStatusResponse status(String status) {
+		Job job = new Job();
+		job.setJobId("123456");
+		job.setStatus(status);
+		return new JobStatusResponse(job);
+	}
+
+	private class CountingFetch implements Callable<JobStatusResponse> {
+		private final String status;
+
+		private CountingFetch(String status) {
+			this.status = status;
+		}
+
+		@Override
+		public JobStatusResponse call() {
+			fetches.incrementAndGet();
+			return status(status);
+		}
+	}
+}
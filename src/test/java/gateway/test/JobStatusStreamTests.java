@@ -0,0 +1,159 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.JobStatusCache;
+import gateway.controller.util.JobStatusStream;
+import model.job.Job;
+import model.response.ErrorResponse;
+import model.response.JobStatusResponse;
+import model.status.StatusUpdate;
+
+/**
+ * Tests streaming Job Status transitions to subscribers
+ */
+public class JobStatusStreamTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@Spy
+	private JobStatusCache jobStatusCache;
+	@InjectMocks
+	private JobStatusStream jobStatusStream;
+
+	/**
+	 * Initialize mock objects and start the stream.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(jobStatusStream, "pollEnabled", true);
+		ReflectionTestUtils.setField(jobStatusStream, "pollIntervalMillis", 20L);
+		ReflectionTestUtils.setField(jobStatusStream, "pollParallelism", 2);
+		ReflectionTestUtils.setField(jobStatusStream, "senders", 2);
+		ReflectionTestUtils.setField(jobStatusStream, "bufferSize", 16);
+		ReflectionTestUtils.setField(jobStatusStream, "heartbeatSeconds", 15L);
+		ReflectionTestUtils.setField(jobStatusStream, "maxSubscribers", 2);
+		ReflectionTestUtils.setField(jobStatusStream, "timeoutMinutes", 1L);
+		ReflectionTestUtils.setField(jobStatusStream, "JOBMANAGER_URL", "http://jobmanager");
+		jobStatusStream.init();
+	}
+
+	@After
+	public void teardown() {
+		jobStatusStream.shutdown();
+	}
+
+	/**
+	 * Tests that polled Status transitions are sent once each, and that the stream closes once its Jobs are finished
+	 */
+	@Test
+	public void testPolledTransitions() throws Exception {
+		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class))).thenReturn(status(StatusUpdate.STATUS_RUNNING),
+				status(StatusUpdate.STATUS_RUNNING), status(StatusUpdate.STATUS_RUNNING), status(StatusUpdate.STATUS_SUCCESS));
+
+		assertNotNull(jobStatusStream.subscribe("tester", Arrays.asList("123456"), false));
+		assertNotNull(jobStatusStream.subscribe("tester", Arrays.asList("123456"), false));
+		// Subscribers beyond the limit are turned away
+		assertNull(jobStatusStream.subscribe("tester", Arrays.asList("654321"), false));
+
+		waitForStat("subscribers", 0);
+		// Running, then Success, for each of the two subscribers
+		assertEquals(4L, jobStatusStream.getStats().get("published"));
+		waitForStat("sent", 4L);
+		assertEquals(0, jobStatusStream.getStats().get("jobs"));
+	}
+
+	/**
+	 * Tests following the Jobs a user submits, with updates published by another source
+	 */
+	@Test
+	public void testOwnJobs() throws Exception {
+		ReflectionTestUtils.setField(jobStatusStream, "pollEnabled", false);
+		assertNotNull(jobStatusStream.subscribe("tester", Collections.<String> emptyList(), true));
+
+		// Jobs of other users, and Jobs not followed, are not sent
+		jobStatusStream.jobSubmitted("other", "654321");
+		jobStatusStream.publish(status("654321", StatusUpdate.STATUS_RUNNING));
+		jobStatusStream.jobSubmitted("tester", "123456");
+		jobStatusStream.publish(status("123456", StatusUpdate.STATUS_RUNNING));
+		jobStatusStream.publish(status("123456", StatusUpdate.STATUS_RUNNING));
+		jobStatusStream.publish(status("123456", StatusUpdate.STATUS_SUCCESS));
+		assertEquals(2L, jobStatusStream.getStats().get("published"));
+
+		// The stream stays open for the next Job
+		assertEquals(1, jobStatusStream.getStats().get("subscribers"));
+		assertEquals(0, jobStatusStream.getStats().get("jobs"));
+		waitForStat("sent", 2L);
+	}
+
+	/**
+	 * Tests that a Job that cannot be read is reported and no longer followed
+	 */
+	@Test
+	public void testJobNotFound() throws Exception {
+		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class)))
+				.thenThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND, "Not Found"));
+		when(gatewayUtil.getErrorResponse(anyString())).thenReturn(new ErrorResponse("Job not found", "Job Manager"));
+
+		jobStatusStream.subscribe("tester", Arrays.asList("123456"), false);
+		waitForStat("subscribers", 0);
+		assertEquals(1L, jobStatusStream.getStats().get("sent"));
+	}
+
+	private static JobStatusResponse status(String jobId, String status) {
+		Job job = new Job();
+		job.setJobId(jobId);
+		job.setStatus(status);
+		return new JobStatusResponse(job);
+	}
+
+	private static ResponseEntity<JobStatusResponse> status(String status) {
+		return new ResponseEntity<JobStatusResponse>(status("123456", status), HttpStatus.OK);
+	}
+
+	private void waitForStat(String name, Object expected) throws InterruptedException {
+		for (int attempt = 0; (attempt < 500) && !expected.equals(jobStatusStream.getStats().get(name)); attempt++) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, jobStatusStream.getStats().get(name));
+	}
+}
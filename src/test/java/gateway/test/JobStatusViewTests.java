@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import gateway.controller.util.JobStatusStream;
+import gateway.controller.util.JobStatusView;
+import messaging.job.JobMessageFactory;
+import model.response.JobStatusResponse;
+import model.status.StatusUpdate;
+
+/**
+ * Tests the view of Job Status built from Job lifecycle events
+ */
+public class JobStatusViewTests {
+	@Spy
+	private ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+	@Mock
+	private ConnectionFactory connectionFactory;
+	@Mock
+	private JobStatusStream jobStatusStream;
+	@InjectMocks
+	private JobStatusView jobStatusView;
+
+	private ConnectionListener connectionListener;
+
+	/**
+	 * Initialize mock objects, and open the connection the events are received on.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(jobStatusView, "enabled", true);
+		ReflectionTestUtils.setField(jobStatusView, "maxEntries", 2);
+		ReflectionTestUtils.setField(jobStatusView, "maxAgeMinutes", 30L);
+		ReflectionTestUtils.setField(jobStatusView, "SPACE", "unitTest");
+		jobStatusView.init();
+		ArgumentCaptor<ConnectionListener> captor = ArgumentCaptor.forClass(ConnectionListener.class);
+		verify(connectionFactory).addConnectionListener(captor.capture());
+		connectionListener = captor.getValue();
+		connectionListener.onCreate(null);
+	}
+
+	/**
+	 * Tests that created Jobs are served once finished, with their updates applied
+	 */
+	@Test
+	public void testEvents() throws Exception {
+		// Updates to Jobs that were not created while consuming are ignored
+		jobStatusView.onMessage(update("123456", StatusUpdate.STATUS_RUNNING));
+		assertNull(jobStatusView.getStatus("123456"));
+
+		// Unfinished Jobs are left to the Job Manager
+		jobStatusView.onMessage(create("123456"));
+		assertNull(jobStatusView.getStatus("123456"));
+		jobStatusView.onMessage(update("123456", StatusUpdate.STATUS_RUNNING));
+		assertNull(jobStatusView.getStatus("123456"));
+		jobStatusView.onMessage(update("123456", StatusUpdate.STATUS_SUCCESS));
+		// A late update does not reopen the Job
+		jobStatusView.onMessage(update("123456", StatusUpdate.STATUS_RUNNING));
+		assertEquals(StatusUpdate.STATUS_SUCCESS, jobStatusView.getStatus("123456").data.status);
+		verify(jobStatusStream, times(3)).publish(any(JobStatusResponse.class));
+
+		// The Jobs updated least recently are removed beyond the maximum
+		jobStatusView.onMessage(create("234567"));
+		jobStatusView.onMessage(create("345678"));
+		assertNull(jobStatusView.getStatus("123456"));
+		jobStatusView.onMessage(update("345678", StatusUpdate.STATUS_ERROR));
+		assertEquals(StatusUpdate.STATUS_ERROR, jobStatusView.getStatus("345678").data.status);
+	}
+
+	/**
+	 * Tests that the view is not served once events may have been missed
+	 */
+	@Test
+	public void testConnectionClosed() throws Exception {
+		jobStatusView.onMessage(create("123456"));
+		jobStatusView.onMessage(update("123456", StatusUpdate.STATUS_SUCCESS));
+		assertEquals(StatusUpdate.STATUS_SUCCESS, jobStatusView.getStatus("123456").data.status);
+		connectionListener.onClose((Connection) null);
+		assertNull(jobStatusView.getStatus("123456"));
+
+		// Jobs from before the connection closed are not served after it is restored
+		connectionListener.onCreate(null);
+		assertNull(jobStatusView.getStatus("123456"));
+		assertEquals(1L, jobStatusView.getStats().get("resets"));
+	}
+
+	private Message create(String jobId) {
+		String event = String.format("{\"jobId\": \"%s\", \"createdBy\": \"Test User\", \"status\": \"%s\"}", jobId,
+				StatusUpdate.STATUS_SUBMITTED);
+		return message(JobMessageFactory.CREATE_JOB_TOPIC_NAME, event.getBytes());
+	}
+
+	private Message update(String jobId, String status) {
+		String event = String.format("{\"jobId\": \"%s\", \"status\": \"%s\"}", jobId, status);
+		return message(JobMessageFactory.UPDATE_JOB_TOPIC_NAME, event.getBytes());
+	}
+
+	private static Message message(String topic, byte[] body) {
+		MessageProperties properties = new MessageProperties();
+		properties.setReceivedRoutingKey(String.format(JobMessageFactory.TOPIC_TEMPLATE, topic, "unitTest"));
+		return new Message(body, properties);
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.JobStatusCache;
+import gateway.controller.util.JobStatusWatcher;
+import model.job.Job;
+import model.response.ErrorResponse;
+import model.response.JobStatusResponse;
+import model.response.PiazzaResponse;
+import model.status.StatusUpdate;
+
+/**
+ * Tests waiting on Job Status changes with shared status checks
+ */
+public class JobStatusWatcherTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@Spy
+	private JobStatusCache jobStatusCache;
+	@InjectMocks
+	private JobStatusWatcher jobStatusWatcher;
+
+	/**
+	 * Initialize mock objects and start the checks.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(jobStatusWatcher, "intervalMillis", 20L);
+		ReflectionTestUtils.setField(jobStatusWatcher, "parallelism", 2);
+		ReflectionTestUtils.setField(jobStatusWatcher, "maxWaiters", 3);
+		ReflectionTestUtils.setField(jobStatusWatcher, "JOBMANAGER_URL", "http://jobmanager");
+		jobStatusWatcher.init();
+	}
+
+	@After
+	public void teardown() {
+		jobStatusWatcher.shutdown();
+	}
+
+	/**
+	 * Tests that waiters are answered when the status changes, sharing a single fetch per check
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testChange() throws Exception {
+		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class))).thenReturn(status(StatusUpdate.STATUS_RUNNING),
+				status(StatusUpdate.STATUS_RUNNING), status(StatusUpdate.STATUS_SUCCESS));
+
+		List<DeferredResult<ResponseEntity<PiazzaResponse>>> results = new ArrayList<DeferredResult<ResponseEntity<PiazzaResponse>>>();
+		results.add(jobStatusWatcher.watch("123456", StatusUpdate.STATUS_RUNNING, 5000));
+		results.add(jobStatusWatcher.watch("123456", null, 5000));
+		results.add(jobStatusWatcher.watch("123456", StatusUpdate.STATUS_RUNNING, 5000));
+
+		// Waiters beyond the limit are turned away
+		DeferredResult<ResponseEntity<PiazzaResponse>> rejected = jobStatusWatcher.watch("654321", null, 5000);
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ((ResponseEntity<PiazzaResponse>) rejected.getResult()).getStatusCode());
+
+		for (DeferredResult<ResponseEntity<PiazzaResponse>> result : results) {
+			waitFor(result);
+			ResponseEntity<PiazzaResponse> response = (ResponseEntity<PiazzaResponse>) result.getResult();
+			assertEquals(HttpStatus.OK, response.getStatusCode());
+			assertEquals(StatusUpdate.STATUS_SUCCESS, ((JobStatusResponse) response.getBody()).data.status);
+		}
+		assertTrue((Long) jobStatusWatcher.getStats().get("fetches") <= (Long) jobStatusWatcher.getStats().get("checks"));
+	}
+
+	/**
+	 * Tests that waiters on a Job that does not exist are answered with the error
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testNotFound() throws Exception {
+		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class)))
+				.thenThrow(new HttpClientErrorException(HttpStatus.NOT_FOUND, "Not Found"));
+		when(gatewayUtil.getErrorResponse(anyString())).thenReturn(new ErrorResponse("Job not found", "Job Manager"));
+
+		DeferredResult<ResponseEntity<PiazzaResponse>> result = jobStatusWatcher.watch("123456", null, 5000);
+		waitFor(result);
+		ResponseEntity<PiazzaResponse> response = (ResponseEntity<PiazzaResponse>) result.getResult();
+		assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+		assertTrue(response.getBody() instanceof ErrorResponse);
+	}
+
+	private static ResponseEntity<JobStatusResponse> status(String status) {
+		Job job = new Job();
+		job.setJobId("123456");
+		job.setStatus(status);
+		return new ResponseEntity<JobStatusResponse>(new JobStatusResponse(job), HttpStatus.OK);
+	}
+
+	private static void waitFor(DeferredResult<?> result) throws InterruptedException {
+		for (int attempt = 0; (attempt < 500) && !result.hasResult(); attempt++) {
+			Thread.sleep(10);
+		}
+		assertTrue(result.hasResult());
+	}
+}
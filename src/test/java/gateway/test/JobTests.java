@@ -21,9 +21,16 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.when;
 
+import java.io.OutputStream;
 import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 import javax.management.remote.JMXPrincipal;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
 
 import org.joda.time.DateTime;
 import org.junit.Before;
@@ -37,15 +44,26 @@ import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import exception.PiazzaJobException;
 import gateway.controller.JobController;
 import gateway.controller.ServiceController;
+import gateway.controller.util.BoundedExecutor;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.JobStatusBulkStreamer;
+import gateway.controller.util.JobStatusCache;
+import gateway.controller.util.JobStatusStream;
+import gateway.controller.util.JobStatusView;
+import gateway.controller.util.JobStatusWatcher;
+import gateway.controller.util.ServiceAvailabilityCache;
 import model.job.Job;
 import model.job.JobProgress;
 import model.job.metadata.ResourceMetadata;
@@ -87,6 +105,22 @@ public class JobTests {
 	private Queue abortJobsQueue;
 	@Mock
 	private ServiceController serviceController;
+	@Spy
+	private BoundedExecutor jobSubmitExecutor = new BoundedExecutor("job-submit", 2);
+	@Spy
+	private JobStatusCache jobStatusCache;
+	@Mock
+	private JobStatusWatcher jobStatusWatcher;
+	@Mock
+	private JobStatusStream jobStatusStream;
+	@Mock
+	private JobStatusBulkStreamer jobStatusBulkStreamer;
+	@Mock
+	private ServiceAvailabilityCache serviceAvailabilityCache;
+	@Mock
+	private JobStatusView jobStatusView;
+	@Mock
+	private Validator validator;
 	@InjectMocks
 	private JobController jobController;
 
@@ -114,6 +148,8 @@ public class JobTests {
 		user = new JMXPrincipal("Test User");
 
 		when(gatewayUtil.getErrorResponse(anyString())).thenCallRealMethod();
+		ReflectionTestUtils.setField(jobController, "batchMaxJobs", 3);
+		jobSubmitExecutor.init();
 	}
 
 	/**
@@ -146,6 +182,134 @@ public class JobTests {
 		assertTrue(entity.getStatusCode().equals(HttpStatus.INTERNAL_SERVER_ERROR));
 	}
 
+	/**
+	 * Test GET /job/{jobId} with the status cache, and that aborting the Job removes its cached status
+	 */
+	@Test
+	public void testGetStatusCached() {
+		// Mock
+		ReflectionTestUtils.setField(jobStatusCache, "enabled", true);
+		ReflectionTestUtils.setField(jobStatusCache, "ttlMillis", 60000L);
+		ReflectionTestUtils.setField(jobStatusCache, "maxEntries", 10);
+		when(restTemplate.getForEntity(anyString(), eq(JobStatusResponse.class)))
+				.thenReturn(new ResponseEntity<JobStatusResponse>(new JobStatusResponse(mockJob), HttpStatus.OK));
+		when(restTemplate.postForEntity(anyString(), any(), eq(SuccessResponse.class)))
+				.thenReturn(new ResponseEntity<SuccessResponse>(new SuccessResponse("Deleted", "Job Manager"), HttpStatus.OK));
+		when(abortJobsQueue.getName()).thenReturn("AbortJobQueue");
+
+		// Test
+		jobController.getJobStatus("123456", user);
+		ResponseEntity<PiazzaResponse> entity = jobController.getJobStatus("123456", user);
+
+		// Verify
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		assertTrue(((JobStatusResponse) entity.getBody()).data.jobId.equals("123456"));
+		Mockito.verify(restTemplate, Mockito.times(1)).getForEntity(anyString(), eq(JobStatusResponse.class));
+
+		// Test that the abort invalidates the status
+		jobController.abortJob("123456", "Not Needed", user);
+		jobController.getJobStatus("123456", user);
+		Mockito.verify(restTemplate, Mockito.times(2)).getForEntity(anyString(), eq(JobStatusResponse.class));
+	}
+
+	/**
+	 * Test GET /job/{jobId} answered from the Job events, without the Job Manager
+	 */
+	@Test
+	public void testGetStatusFromView() {
+		// Mock
+		when(jobStatusView.getStatus("123456")).thenReturn(new JobStatusResponse(mockJob));
+
+		// Test
+		ResponseEntity<PiazzaResponse> entity = jobController.getJobStatus("123456", user);
+
+		// Verify
+		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
+		assertTrue(((JobStatusResponse) entity.getBody()).data.jobId.equals("123456"));
+		Mockito.verify(restTemplate, Mockito.never()).getForEntity(anyString(), eq(JobStatusResponse.class));
+	}
+
+	/**
+	 * Test GET /job/{jobId}?waitFor=change
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testWaitForStatus() {
+		// Mock
+		ReflectionTestUtils.setField(jobController, "watchMaxTimeoutSeconds", 60L);
+		DeferredResult<ResponseEntity<PiazzaResponse>> mockResult = new DeferredResult<ResponseEntity<PiazzaResponse>>();
+		when(jobStatusWatcher.watch("123456", StatusUpdate.STATUS_RUNNING, 60000L)).thenReturn(mockResult);
+
+		// Test
+		DeferredResult<ResponseEntity<PiazzaResponse>> result = jobController.waitForJobStatus("123456", "change",
+				StatusUpdate.STATUS_RUNNING, "300s", user);
+
+		// Verify the timeout is capped
+		assertTrue(result == mockResult);
+
+		// Test invalid parameters
+		result = jobController.waitForJobStatus("123456", "complete", null, "30s", user);
+		assertTrue(((ResponseEntity<PiazzaResponse>) result.getResult()).getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		result = jobController.waitForJobStatus("123456", "change", null, "soon", user);
+		assertTrue(((ResponseEntity<PiazzaResponse>) result.getResult()).getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Test GET and POST /job/status
+	 */
+	@Test
+	public void testBulkStatus() throws Exception {
+		// Mock
+		ReflectionTestUtils.setField(jobController, "bulkMaxJobs", 2);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		// Test, with a duplicate Id
+		ResponseEntity<?> entity = jobController.getJobStatuses(Arrays.asList("123456", "654321", "123456"), user, response);
+
+		// Verify
+		assertTrue(entity == null);
+		Mockito.verify(jobStatusBulkStreamer).streamStatuses(Mockito.eq(Arrays.asList("123456", "654321")), Mockito.any(OutputStream.class));
+
+		// Test too many Jobs, and none
+		entity = jobController.queryJobStatuses(Arrays.asList("1", "2", "3"), user, new MockHttpServletResponse());
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+		entity = jobController.queryJobStatuses(null, user, new MockHttpServletResponse());
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+	}
+
+	/**
+	 * Test GET /job/stream
+	 */
+	@Test
+	public void testStreamStatus() {
+		// Mock
+		ReflectionTestUtils.setField(jobController, "streamMaxJobs", 2);
+		List<String> jobIds = Arrays.asList("123456", "654321");
+		SseEmitter mockEmitter = new SseEmitter();
+		when(jobStatusStream.subscribe(Mockito.anyString(), Mockito.eq(jobIds), Mockito.eq(false))).thenReturn(mockEmitter);
+
+		// Test
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		SseEmitter emitter = jobController.streamJobStatus(jobIds, false, user, response);
+
+		// Verify
+		assertTrue(emitter == mockEmitter);
+		assertTrue(response.getStatus() == HttpStatus.OK.value());
+
+		// Test nothing to follow, and too many Jobs
+		response = new MockHttpServletResponse();
+		jobController.streamJobStatus(null, false, user, response);
+		assertTrue(response.getStatus() == HttpStatus.BAD_REQUEST.value());
+		response = new MockHttpServletResponse();
+		jobController.streamJobStatus(Arrays.asList("1", "2", "3"), true, user, response);
+		assertTrue(response.getStatus() == HttpStatus.BAD_REQUEST.value());
+
+		// Test too many subscribers
+		response = new MockHttpServletResponse();
+		jobController.streamJobStatus(null, true, user, response);
+		assertTrue(response.getStatus() == HttpStatus.SERVICE_UNAVAILABLE.value());
+	}
+
 	/**
 	 * Test DELETE /job/{jobId}
 	 */
@@ -230,4 +394,88 @@ public class JobTests {
 		ErrorResponse error = (ErrorResponse) entity.getBody();
 		assertTrue(error.message.contains("REST Broke"));
 	}
+
+	/**
+	 * Test POST /job/batch
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testExecuteBatch() throws Exception {
+		// Mock two Services, one of which is Offline
+		ServiceResponse onlineResponse = new ServiceResponse();
+		onlineResponse.data = new Service();
+		onlineResponse.data.setResourceMetadata(new ResourceMetadata());
+		onlineResponse.data.getResourceMetadata().availability = "ONLINE";
+		ServiceResponse offlineResponse = new ServiceResponse();
+		offlineResponse.data = new Service();
+		offlineResponse.data.setResourceMetadata(new ResourceMetadata());
+		offlineResponse.data.getResourceMetadata().availability = ResourceMetadata.STATUS_TYPE.OFFLINE.toString();
+		when(serviceController.getService("online", user)).thenReturn(new ResponseEntity<PiazzaResponse>(onlineResponse, HttpStatus.OK));
+		when(serviceController.getService("offline", user))
+				.thenReturn(new ResponseEntity<PiazzaResponse>(offlineResponse, HttpStatus.OK));
+		when(gatewayUtil.sendJobRequest(any(PiazzaJobRequest.class), anyString())).thenReturn("jobId");
+
+		// Test
+		ResponseEntity<?> entity = jobController.executeServiceBatch(
+				Arrays.asList(getExecuteJob("1", "online"), getExecuteJob("2", "online"), getExecuteJob("3", "offline")), user);
+
+		// Verify each Service was checked once, and only the Offline Job failed
+		assertTrue(entity.getStatusCode().equals(HttpStatus.MULTI_STATUS));
+		List<PiazzaResponse> responses = (List<PiazzaResponse>) entity.getBody();
+		assertTrue(responses.get(0) instanceof JobResponse);
+		assertTrue(responses.get(1) instanceof JobResponse);
+		assertTrue(((ErrorResponse) responses.get(2)).message.contains("Offline"));
+		Mockito.verify(serviceController, Mockito.times(1)).getService("online", user);
+		Mockito.verify(gatewayUtil, Mockito.times(2)).sendJobRequest(any(PiazzaJobRequest.class), anyString());
+
+		// Test all created
+		entity = jobController.executeServiceBatch(Arrays.asList(getExecuteJob("1", "online")), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.CREATED));
+
+		// Test too many Jobs
+		entity = jobController.executeServiceBatch(Arrays.asList(getExecuteJob("1", "online"), getExecuteJob("2", "online"),
+				getExecuteJob("3", "online"), getExecuteJob("4", "online")), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.BAD_REQUEST));
+
+		// Test availability served by the cache, without the Service Controller
+		when(serviceAvailabilityCache.isEnabled()).thenReturn(true);
+		when(serviceAvailabilityCache.isOffline("offline")).thenReturn(true);
+		entity = jobController.executeServiceBatch(Arrays.asList(getExecuteJob("1", "online"), getExecuteJob("2", "offline")), user);
+		assertTrue(entity.getStatusCode().equals(HttpStatus.MULTI_STATUS));
+		Mockito.verify(serviceController, Mockito.times(1)).getService("offline", user);
+	}
+
+	/**
+	 * Test POST /job/batch with an item that fails bean validation
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testExecuteBatchInvalid() throws Exception {
+		// Mock one Job that fails validation
+		ExecuteServiceJob validJob = getExecuteJob("1", "online");
+		ExecuteServiceJob invalidJob = getExecuteJob("2", "online");
+		ConstraintViolation<ExecuteServiceJob> violation = Mockito.mock(ConstraintViolation.class);
+		when(violation.getMessage()).thenReturn("may not be null");
+		Set<ConstraintViolation<ExecuteServiceJob>> violations = Collections.singleton(violation);
+		when(validator.validate(invalidJob)).thenReturn(violations);
+		when(gatewayUtil.sendJobRequest(any(PiazzaJobRequest.class), anyString())).thenReturn("jobId");
+
+		// Test
+		ResponseEntity<?> entity = jobController.executeServiceBatch(Arrays.asList(validJob, invalidJob, null), user);
+
+		// Verify only the valid Job was sent, and the others report their errors in place
+		assertTrue(entity.getStatusCode().equals(HttpStatus.MULTI_STATUS));
+		List<PiazzaResponse> responses = (List<PiazzaResponse>) entity.getBody();
+		assertTrue(responses.get(0) instanceof JobResponse);
+		assertTrue(((ErrorResponse) responses.get(1)).message.contains("may not be null"));
+		assertTrue(responses.get(2) instanceof ErrorResponse);
+		Mockito.verify(gatewayUtil, Mockito.times(1)).sendJobRequest(any(PiazzaJobRequest.class), anyString());
+	}
+
+	private static ExecuteServiceJob getExecuteJob(String jobId, String serviceId) {
+		ExecuteServiceJob executeJob = new ExecuteServiceJob(jobId);
+		executeJob.data = new ExecuteServiceData();
+		executeJob.data.setServiceId(serviceId);
+		return executeJob;
+	}
 }
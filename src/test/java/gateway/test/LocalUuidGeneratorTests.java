@@ -0,0 +1,97 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.LocalUuidGenerator;
+
+/**
+ * Tests the local generation of time-ordered UUIDs
+ */
+public class LocalUuidGeneratorTests {
+	private LocalUuidGenerator generator;
+
+	@Before
+	public void setup() {
+		generator = new LocalUuidGenerator();
+		ReflectionTestUtils.setField(generator, "configuredNode", "12345");
+		generator.init();
+	}
+
+	/**
+	 * Tests the layout of a generated UUID
+	 */
+	@Test
+	public void testFormat() {
+		long before = System.currentTimeMillis();
+		UUID uuid = generator.generate();
+		assertEquals(7, uuid.version());
+		assertEquals(2, uuid.variant());
+		long millis = uuid.getMostSignificantBits() >>> 16;
+		assertTrue((millis >= before) && (millis <= System.currentTimeMillis()));
+		assertEquals(12345L, (uuid.getLeastSignificantBits() >>> 32) & 0x3FFFFFFFL);
+		assertEquals(7, UUID.fromString(generator.getUuid()).version());
+	}
+
+	/**
+	 * Tests that UUIDs are unique across threads, and ordered within a thread, including when more than 4096 are
+	 * created in one millisecond
+	 */
+	@Test
+	public void testUnique() throws Exception {
+		final Set<UUID> uuids = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int thread = 0; thread < 8; thread++) {
+			results.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					boolean ordered = true;
+					UUID previous = null;
+					for (int i = 0; i < 50000; i++) {
+						UUID uuid = generator.generate();
+						ordered &= (previous == null) || (Long.compareUnsigned(uuid.getMostSignificantBits(),
+								previous.getMostSignificantBits()) > 0);
+						previous = uuid;
+						uuids.add(uuid);
+					}
+					return ordered;
+				}
+			}));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get());
+		}
+		executor.shutdown();
+		assertEquals(400000, uuids.size());
+	}
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import exception.InvalidInputException;
+import gateway.controller.util.ContentIndex;
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.RemoteFileFetcher;
+import model.data.DataResource;
+import model.data.type.GeoJsonDataType;
+import model.job.type.IngestJob;
+import util.PiazzaLogger;
+
+/**
+ * Tests fetching remote files into S3, against a local HTTP server
+ */
+public class RemoteFileFetcherTests {
+	@Mock
+	private AmazonS3 s3Client;
+	@Mock
+	private ContentIndex contentIndex;
+	@Mock
+	private PiazzaLogger logger;
+	@InjectMocks
+	private RemoteFileFetcher remoteFileFetcher;
+
+	private static final int PART_SIZE = 1000;
+	private HttpServer server;
+	private byte[] content;
+	private String sourceUrl;
+	private IngestJob mockJob;
+	private Map<Integer, byte[]> uploadedParts = new ConcurrentHashMap<Integer, byte[]>();
+	private byte[] uploadedObject;
+
+	/**
+	 * Start the local server and initialize mock objects.
+	 */
+	@Before
+	public void setup() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(remoteFileFetcher, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(remoteFileFetcher, "AMAZONS3_DOMAIN", "s3.amazonaws.com");
+		ReflectionTestUtils.setField(remoteFileFetcher, "USE_KMS", false);
+		ReflectionTestUtils.setField(remoteFileFetcher, "enabled", true);
+		ReflectionTestUtils.setField(remoteFileFetcher, "maxConcurrent", 2);
+		ReflectionTestUtils.setField(remoteFileFetcher, "partSize", PART_SIZE);
+		ReflectionTestUtils.setField(remoteFileFetcher, "parallelRanges", 1);
+		ReflectionTestUtils.setField(remoteFileFetcher, "allowedHosts", "");
+		// The local server is on the loopback address
+		ReflectionTestUtils.setField(remoteFileFetcher, "allowPrivateAddresses", true);
+		ReflectionTestUtils.setField(remoteFileFetcher, "connectTimeoutMillis", 5000);
+		ReflectionTestUtils.setField(remoteFileFetcher, "readTimeoutMillis", 5000);
+		remoteFileFetcher.init();
+
+		content = new byte[3500];
+		new Random(1).nextBytes(content);
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/file.tif", new RangeHandler());
+		server.createContext("/redirect", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Location", sourceUrl);
+				exchange.sendResponseHeaders(302, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		sourceUrl = String.format("http://localhost:%s/file.tif", server.getAddress().getPort());
+
+		mockJob = new IngestJob();
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		mockJob.host = true;
+
+		// Capture everything written to S3
+		InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+		initiateResult.setUploadId("s3upload");
+		when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+		when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(new Answer<UploadPartResult>() {
+			@Override
+			public UploadPartResult answer(InvocationOnMock invocation) throws Throwable {
+				UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+				uploadedParts.put(request.getPartNumber(), readAll(request.getInputStream()));
+				UploadPartResult result = new UploadPartResult();
+				result.setPartNumber(request.getPartNumber());
+				result.setETag("etag" + request.getPartNumber());
+				return result;
+			}
+		});
+		when(s3Client.putObject(eq("bucket"), anyString(), any(InputStream.class), any(ObjectMetadata.class)))
+				.thenAnswer(new Answer<PutObjectResult>() {
+					@Override
+					public PutObjectResult answer(InvocationOnMock invocation) throws Throwable {
+						uploadedObject = readAll((InputStream) invocation.getArguments()[2]);
+						return new PutObjectResult();
+					}
+				});
+	}
+
+	@After
+	public void teardown() {
+		server.stop(0);
+		remoteFileFetcher.shutdown();
+	}
+
+	/**
+	 * Tests fetching a file with a single request, written as several parts
+	 */
+	@Test
+	public void testSequentialFetch() throws Exception {
+		remoteFileFetcher.fetchS3File("123456", mockJob, sourceUrl, sha256(content));
+		assertEquals(4, uploadedParts.size());
+		assertArrayEquals(content, assembleParts());
+		assertEquals(3500L, remoteFileFetcher.getStats().get("bytesFetched"));
+	}
+
+	/**
+	 * Tests fetching a file as parallel ranged requests
+	 */
+	@Test
+	public void testRangedFetch() throws Exception {
+		ReflectionTestUtils.setField(remoteFileFetcher, "parallelRanges", 2);
+		ReflectionTestUtils.setField(remoteFileFetcher, "parallelThreshold", 0L);
+		remoteFileFetcher.fetchS3File("123456", mockJob, sourceUrl, sha256(content));
+		assertEquals(4, uploadedParts.size());
+		assertArrayEquals(content, assembleParts());
+		assertEquals(1L, remoteFileFetcher.getStats().get("rangedFetches"));
+	}
+
+	/**
+	 * Tests a file that fits in a single part, and a checksum that does not match
+	 */
+	@Test
+	public void testSmallFileChecksum() throws Exception {
+		content = "Content".getBytes();
+		remoteFileFetcher.fetchS3File("123456", mockJob, sourceUrl, null);
+		assertArrayEquals(content, uploadedObject);
+
+		try {
+			remoteFileFetcher.fetchS3File("123456", mockJob, sourceUrl, sha256("Other".getBytes()));
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("does not match"));
+		}
+		verify(s3Client).deleteObject("bucket", "123456-file.tif");
+	}
+
+	/**
+	 * Tests that only HTTP URLs are fetched
+	 */
+	@Test(expected = InvalidInputException.class)
+	public void testInvalidUrl() throws Exception {
+		remoteFileFetcher.fetchS3File("123456", mockJob, "file:///etc/passwd", null);
+	}
+
+	/**
+	 * Tests that internal addresses are not fetched from
+	 */
+	@Test
+	public void testInternalAddress() throws Exception {
+		ReflectionTestUtils.setField(remoteFileFetcher, "allowPrivateAddresses", false);
+		for (String url : new String[] { sourceUrl, "http://169.254.169.254/latest/meta-data/", "http://10.0.0.1/file.tif",
+				"http://[::1]/file.tif" }) {
+			try {
+				remoteFileFetcher.fetchS3File("123456", mockJob, url, null);
+				assertTrue(false);
+			} catch (InvalidInputException exception) {
+				assertTrue(exception.getMessage().contains("internal address"));
+			}
+		}
+	}
+
+	/**
+	 * Tests that only hosts on the allowlist are fetched from
+	 */
+	@Test
+	public void testHostAllowlist() throws Exception {
+		remoteFileFetcher.shutdown();
+		ReflectionTestUtils.setField(remoteFileFetcher, "allowedHosts", "data.example.com, .example.org");
+		remoteFileFetcher.init();
+		try {
+			remoteFileFetcher.fetchS3File("123456", mockJob, sourceUrl, null);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("cannot be loaded from the host localhost"));
+		}
+
+		remoteFileFetcher.shutdown();
+		ReflectionTestUtils.setField(remoteFileFetcher, "allowedHosts", "localhost");
+		remoteFileFetcher.init();
+		remoteFileFetcher.fetchS3File("123456", mockJob, sourceUrl, null);
+		assertEquals(4, uploadedParts.size());
+	}
+
+	/**
+	 * Tests that redirects are not followed, since their target has not been validated
+	 */
+	@Test
+	public void testRedirectNotFollowed() throws Exception {
+		try {
+			remoteFileFetcher.fetchS3File("123456", mockJob, sourceUrl.replace("/file.tif", "/redirect"), null);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("redirect"));
+		}
+		assertTrue(uploadedParts.isEmpty());
+	}
+
+	private byte[] assembleParts() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (byte[] part : new TreeMap<Integer, byte[]>(uploadedParts).values()) {
+			output.write(part);
+		}
+		return output.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = input.read(buffer)) != -1) {
+			output.write(buffer, 0, read);
+		}
+		return output.toByteArray();
+	}
+
+	private static String sha256(byte[] bytes) throws Exception {
+		return GatewayUtil.toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+	}
+
+	/**
+	 * Serves the content, honoring single byte ranges.
+	 */
+	private class RangeHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Content-Length", Integer.toString(content.length));
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+				return;
+			}
+			int start = 0;
+			int end = content.length - 1;
+			int status = 200;
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			if (range != null) {
+				String[] bounds = range.substring("bytes=".length()).split("-");
+				start = Integer.parseInt(bounds[0]);
+				end = Integer.parseInt(bounds[1]);
+				status = 206;
+			}
+			exchange.sendResponseHeaders(status, end - start + 1);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(content, start, end - start + 1);
+			}
+		}
+	}
+}
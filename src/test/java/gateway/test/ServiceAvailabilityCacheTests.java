@@ -0,0 +1,134 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import gateway.controller.util.ServiceAvailabilityCache;
+import model.job.metadata.ResourceMetadata;
+import model.response.ServiceResponse;
+import model.service.metadata.Service;
+
+/**
+ * Tests the cache of Service availability
+ */
+public class ServiceAvailabilityCacheTests {
+	@Mock
+	private RestTemplate restTemplate;
+	@InjectMocks
+	private ServiceAvailabilityCache serviceAvailabilityCache;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(serviceAvailabilityCache, "enabled", true);
+		ReflectionTestUtils.setField(serviceAvailabilityCache, "ttlMillis", 60000L);
+		ReflectionTestUtils.setField(serviceAvailabilityCache, "maxStaleMillis", 120000L);
+		ReflectionTestUtils.setField(serviceAvailabilityCache, "maxEntries", 10);
+		ReflectionTestUtils.setField(serviceAvailabilityCache, "SERVICECONTROLLER_URL", "http://servicecontroller");
+		serviceAvailabilityCache.init();
+	}
+
+	@After
+	public void teardown() {
+		serviceAvailabilityCache.shutdown();
+	}
+
+	/**
+	 * Tests that repeated checks are served from the cache until the Service is invalidated
+	 */
+	@Test
+	public void testCachedAvailability() throws Exception {
+		when(restTemplate.getForEntity(anyString(), eq(ServiceResponse.class))).thenReturn(service("ONLINE"),
+				service(ResourceMetadata.STATUS_TYPE.OFFLINE.toString()));
+
+		assertFalse(serviceAvailabilityCache.isOffline("123456"));
+		assertFalse(serviceAvailabilityCache.isOffline("123456"));
+		verify(restTemplate, times(1)).getForEntity(anyString(), eq(ServiceResponse.class));
+		assertEquals(1L, serviceAvailabilityCache.getStats().get("hits"));
+
+		// An update takes effect on the next check
+		serviceAvailabilityCache.invalidate("123456");
+		assertTrue(serviceAvailabilityCache.isOffline("123456"));
+	}
+
+	/**
+	 * Tests that an availability older than the TTL is served while it is refreshed in the background
+	 */
+	@Test
+	public void testBackgroundRefresh() throws Exception {
+		ReflectionTestUtils.setField(serviceAvailabilityCache, "ttlMillis", 0L);
+		when(restTemplate.getForEntity(anyString(), eq(ServiceResponse.class))).thenReturn(service("ONLINE"),
+				service(ResourceMetadata.STATUS_TYPE.OFFLINE.toString()));
+
+		assertFalse(serviceAvailabilityCache.isOffline("123456"));
+		Thread.sleep(5);
+		// Served from the cache, while the refresh is started
+		assertFalse(serviceAvailabilityCache.isOffline("123456"));
+		for (int attempt = 0; (attempt < 500) && serviceAvailabilityCache.getStats().get("refreshes").equals(0L); attempt++) {
+			Thread.sleep(10);
+		}
+		assertEquals(1L, serviceAvailabilityCache.getStats().get("refreshes"));
+		assertTrue(serviceAvailabilityCache.isOffline("123456"));
+		assertEquals(1L, serviceAvailabilityCache.getStats().get("misses"));
+	}
+
+	/**
+	 * Tests that failures are not cached
+	 */
+	@Test
+	public void testFailure() throws Exception {
+		when(restTemplate.getForEntity(anyString(), eq(ServiceResponse.class)))
+				.thenThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR)).thenReturn(service("ONLINE"));
+		try {
+			serviceAvailabilityCache.isOffline("123456");
+			assertTrue(false);
+		} catch (HttpServerErrorException exception) {
+			assertEquals(0, serviceAvailabilityCache.getStats().get("entries"));
+		}
+		assertFalse(serviceAvailabilityCache.isOffline("123456"));
+	}
+
+	private static ResponseEntity<ServiceResponse> service(String availability) {
+		ServiceResponse response = new ServiceResponse();
+		response.data = new Service();
+		response.data.setResourceMetadata(new ResourceMetadata());
+		response.data.getResourceMetadata().availability = availability;
+		return new ResponseEntity<ServiceResponse>(response, HttpStatus.OK);
+	}
+}
@@ -34,6 +34,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
@@ -44,6 +45,7 @@ import org.springframework.web.client.RestTemplate;
 
 import gateway.controller.ServiceController;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.ServiceAvailabilityCache;
 import model.job.metadata.ResourceMetadata;
 import model.response.ErrorResponse;
 import model.response.Pagination;
@@ -73,6 +75,8 @@ public class ServiceTests {
 	private GatewayUtil gatewayUtil;
 	@Mock
 	private RestTemplate restTemplate;
+	@Mock
+	private ServiceAvailabilityCache serviceAvailabilityCache;
 	@InjectMocks
 	private ServiceController serviceController;
 
@@ -171,6 +175,7 @@ public class ServiceTests {
 		// Verify
 		assertTrue(entity.getStatusCode().equals(HttpStatus.OK));
 		assertTrue(response.data.getMessage().contains("Deleted"));
+		Mockito.verify(serviceAvailabilityCache).invalidate("123456");
 
 		// Test Exception
 		when(restTemplate.exchange(anyString(), eq(HttpMethod.DELETE), eq(null), eq(SuccessResponse.class)))
@@ -195,6 +200,7 @@ public class ServiceTests {
 
 		// Verify
 		assertTrue(entity.getBody() instanceof SuccessResponse);
+		Mockito.verify(serviceAvailabilityCache).invalidate("123456");
 
 		// Test Exception
 		doThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR)).when(restTemplate).exchange(any(String.class),
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import gateway.controller.util.UploadCompressor;
+import model.data.DataResource;
+import model.data.location.S3FileStore;
+import model.data.type.GeoJsonDataType;
+
+/**
+ * Tests compression of stored uploads, and decompression on download
+ */
+public class UploadCompressorTests {
+	@Mock
+	private AmazonS3 s3Client;
+	@InjectMocks
+	private UploadCompressor uploadCompressor;
+
+	private static final String CONTENT = "{\"type\":\"FeatureCollection\",\"features\":[{\"type\":\"Feature\",\"geometry\":null}]}";
+	private DataResource mockData;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(uploadCompressor, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(uploadCompressor, "enabled", true);
+		ReflectionTestUtils.setField(uploadCompressor, "extensions", "geojson, json");
+		ReflectionTestUtils.setField(uploadCompressor, "level", 6);
+		ReflectionTestUtils.setField(uploadCompressor, "minRatio", 0.9);
+		ReflectionTestUtils.setField(uploadCompressor, "codecCacheEntries", 10);
+		uploadCompressor.init();
+
+		mockData = new DataResource();
+		mockData.dataId = "123456";
+		GeoJsonDataType dataType = new GeoJsonDataType();
+		dataType.setLocation(new S3FileStore("bucket", "123456-test.geojson", 1000L, "s3.amazonaws.com"));
+		mockData.dataType = dataType;
+	}
+
+	/**
+	 * Tests the file types that are compressed
+	 */
+	@Test
+	public void testShouldCompress() {
+		assertTrue(uploadCompressor.shouldCompress("test.GeoJSON"));
+		assertTrue(uploadCompressor.shouldCompress("test.tif") == false);
+		assertTrue(uploadCompressor.shouldCompress("geojson") == false);
+		ReflectionTestUtils.setField(uploadCompressor, "enabled", false);
+		assertTrue(uploadCompressor.shouldCompress("test.geojson") == false);
+	}
+
+	/**
+	 * Tests compressing a file, and leaving a file that does not compress well as it is
+	 */
+	@Test
+	public void testCompressToFile() throws Exception {
+		byte[] content = repeat(CONTENT, 100).getBytes();
+		ObjectMetadata metadata = new ObjectMetadata();
+		Path compressed = uploadCompressor.compressToFile(new ByteArrayInputStream(content), content.length, metadata);
+		try {
+			assertTrue(Files.size(compressed) < content.length / 5);
+			assertEquals(Files.size(compressed), metadata.getContentLength());
+			assertEquals("gzip", metadata.getContentEncoding());
+			assertEquals(Integer.toString(content.length), metadata.getUserMetaDataOf(UploadCompressor.ORIGINAL_LENGTH_METADATA));
+		} finally {
+			Files.deleteIfExists(compressed);
+		}
+
+		byte[] random = new byte[10000];
+		new Random(1).nextBytes(random);
+		metadata = new ObjectMetadata();
+		assertTrue(uploadCompressor.compressToFile(new ByteArrayInputStream(random), random.length, metadata) == null);
+		assertTrue(metadata.getContentEncoding() == null);
+	}
+
+	/**
+	 * Tests the Accept-Encoding negotiation
+	 */
+	@Test
+	public void testAccepted() {
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		assertTrue(UploadCompressor.isAccepted(request, "gzip") == false);
+		request.addHeader(HttpHeaders.ACCEPT_ENCODING, "deflate, GZIP;q=0.8");
+		assertTrue(UploadCompressor.isAccepted(request, "gzip"));
+		request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0");
+		assertTrue(UploadCompressor.isAccepted(request, "gzip") == false);
+	}
+
+	/**
+	 * Tests downloading a compressed file, both as stored and decompressed
+	 */
+	@Test
+	public void testStreamFile() throws Exception {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		uploadCompressor.compress(new ByteArrayInputStream(CONTENT.getBytes()), compressed);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(compressed.size());
+		metadata.addUserMetadata(UploadCompressor.CODEC_METADATA, "gzip");
+		metadata.addUserMetadata(UploadCompressor.ORIGINAL_LENGTH_METADATA, Integer.toString(CONTENT.length()));
+		when(s3Client.getObjectMetadata("bucket", "123456-test.geojson")).thenReturn(metadata);
+		assertEquals("gzip", uploadCompressor.getCodec(mockData));
+
+		// Decompressed for clients that do not accept gzip
+		when(s3Client.getObject("bucket", "123456-test.geojson")).thenReturn(getObject(compressed.toByteArray(), metadata));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		uploadCompressor.streamFile(mockData, "test.geojson", new MockHttpServletRequest(), response);
+		assertEquals(CONTENT, response.getContentAsString());
+		assertEquals(Integer.toString(CONTENT.length()), response.getHeader(HttpHeaders.CONTENT_LENGTH));
+		assertTrue(response.getHeader(HttpHeaders.CONTENT_ENCODING) == null);
+		assertEquals("attachment; filename=\"test.geojson\"; filename*=UTF-8''test.geojson",
+				response.getHeader(HttpHeaders.CONTENT_DISPOSITION));
+
+		// Passed through as stored otherwise
+		when(s3Client.getObject("bucket", "123456-test.geojson")).thenReturn(getObject(compressed.toByteArray(), metadata));
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+		response = new MockHttpServletResponse();
+		uploadCompressor.streamFile(mockData, null, request, response);
+		assertTrue(Arrays.equals(compressed.toByteArray(), response.getContentAsByteArray()));
+		assertEquals("gzip", response.getHeader(HttpHeaders.CONTENT_ENCODING));
+	}
+
+	/**
+	 * Tests that stored files are decoded by their codec when compression is disabled, and that the codec of each
+	 * object is only looked up once
+	 */
+	@Test
+	public void testCodecDisabled() {
+		ReflectionTestUtils.setField(uploadCompressor, "enabled", false);
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.addUserMetadata(UploadCompressor.CODEC_METADATA, "gzip");
+		when(s3Client.getObjectMetadata("bucket", "123456-test.geojson")).thenReturn(metadata);
+		assertEquals("gzip", uploadCompressor.getCodec(mockData));
+		assertEquals("gzip", uploadCompressor.getCodec(mockData));
+		verify(s3Client, times(1)).getObjectMetadata("bucket", "123456-test.geojson");
+
+		// Uncompressed files are remembered too
+		((GeoJsonDataType) mockData.dataType).setLocation(new S3FileStore("bucket", "654321-test.tif", 1000L, "s3.amazonaws.com"));
+		when(s3Client.getObjectMetadata("bucket", "654321-test.tif")).thenReturn(new ObjectMetadata());
+		assertTrue(uploadCompressor.getCodec(mockData) == null);
+		assertTrue(uploadCompressor.getCodec(mockData) == null);
+		verify(s3Client, times(1)).getObjectMetadata("bucket", "654321-test.tif");
+	}
+
+	private static S3Object getObject(byte[] content, ObjectMetadata metadata) {
+		S3Object object = new S3Object();
+		object.setObjectContent(new ByteArrayInputStream(content));
+		object.setObjectMetadata(metadata);
+		return object;
+	}
+
+	private static String repeat(String value, int count) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+}
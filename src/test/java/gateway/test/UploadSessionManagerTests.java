@@ -0,0 +1,319 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import exception.InvalidInputException;
+import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.UploadSession;
+import gateway.controller.util.UploadSessionManager;
+import model.data.DataResource;
+import model.data.type.GeoJsonDataType;
+import model.job.type.IngestJob;
+import util.PiazzaLogger;
+
+/**
+ * Tests the resumable upload session manager
+ */
+public class UploadSessionManagerTests {
+	@Mock
+	private AmazonS3 s3Client;
+	@Mock
+	private GatewayUtil gatewayUtil;
+	@Mock
+	private PiazzaLogger logger;
+	@InjectMocks
+	private UploadSessionManager uploadSessionManager;
+
+	private IngestJob mockJob;
+
+	/**
+	 * Initialize mock objects.
+	 */
+	@Before
+	public void setup() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(uploadSessionManager, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(uploadSessionManager, "AMAZONS3_DOMAIN", "s3.amazonaws.com");
+		ReflectionTestUtils.setField(uploadSessionManager, "USE_KMS", false);
+		ReflectionTestUtils.setField(uploadSessionManager, "presignedUrlMinutes", 60);
+
+		mockJob = new IngestJob();
+		mockJob.data = new DataResource();
+		mockJob.data.dataType = new GeoJsonDataType();
+		mockJob.host = true;
+
+		when(gatewayUtil.getUuid()).thenReturn("123456");
+		InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+		initiateResult.setUploadId("s3upload");
+		when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+		when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(new Answer<UploadPartResult>() {
+			@Override
+			public UploadPartResult answer(InvocationOnMock invocation) throws Throwable {
+				UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+				UploadPartResult result = new UploadPartResult();
+				result.setPartNumber(request.getPartNumber());
+				result.setETag("etag" + request.getPartNumber());
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * Tests uploading parts out of order and committing the upload
+	 */
+	@Test
+	public void testUploadAndComplete() throws Exception {
+		UploadSession session = uploadSessionManager.createSession(mockJob, "test.geojson", "Test User");
+		assertEquals("123456", session.getUploadId());
+		assertEquals(session, uploadSessionManager.getSession("123456", "Test User"));
+		assertNull(uploadSessionManager.getSession("123456", "Other User"));
+
+		// Upload the parts out of order
+		uploadSessionManager.uploadPart(session, 2, new ByteArrayInputStream(new byte[10]), 10);
+		uploadSessionManager.uploadPart(session, 1, new ByteArrayInputStream(new byte[10]), UploadSessionManager.MIN_PART_SIZE);
+		assertEquals(UploadSessionManager.MIN_PART_SIZE + 10, session.getReceivedBytes());
+
+		// Commit, and verify the parts were assembled in order
+		IngestJob job = uploadSessionManager.completeSession(session);
+		ArgumentCaptor<CompleteMultipartUploadRequest> captor = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		verify(s3Client).completeMultipartUpload(captor.capture());
+		assertEquals(1, captor.getValue().getPartETags().get(0).getPartNumber());
+		assertEquals(2, captor.getValue().getPartETags().get(1).getPartNumber());
+		assertEquals(mockJob, job);
+
+		// No parts are accepted once the file is assembled, even if the commit is retried
+		assertEquals(1, uploadSessionManager.getSessionCount());
+		uploadSessionManager.reopenSession(session);
+		try {
+			uploadSessionManager.uploadPart(session, 3, new ByteArrayInputStream(new byte[10]), 10);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("already been committed"));
+		}
+		uploadSessionManager.completeSession(session);
+		verify(s3Client, times(1)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+		// The session is removed once the Ingest Job is accepted
+		uploadSessionManager.finishSession(session);
+		assertEquals(0, uploadSessionManager.getSessionCount());
+	}
+
+	/**
+	 * Tests that an assembled file is deleted if its session is aborted rather than committed
+	 */
+	@Test
+	public void testAbortAssembled() throws Exception {
+		UploadSession session = uploadSessionManager.createSession(mockJob, "test.geojson", "Test User");
+		uploadSessionManager.uploadPart(session, 1, new ByteArrayInputStream(new byte[10]), 10);
+		uploadSessionManager.completeSession(session);
+		uploadSessionManager.reopenSession(session);
+		uploadSessionManager.abortSession(session);
+		verify(s3Client).deleteObject("bucket", "123456-test.geojson");
+		verify(s3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+		assertEquals(0, uploadSessionManager.getSessionCount());
+	}
+
+	/**
+	 * Tests that missing or undersized parts prevent the commit, and that the client can then recover
+	 */
+	@Test
+	public void testIncompleteUpload() throws Exception {
+		UploadSession session = uploadSessionManager.createSession(mockJob, "test.geojson", "Test User");
+		uploadSessionManager.uploadPart(session, 2, new ByteArrayInputStream(new byte[10]), 10);
+		try {
+			uploadSessionManager.completeSession(session);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("Part 1"));
+		}
+
+		// Part 1 is too small
+		uploadSessionManager.uploadPart(session, 1, new ByteArrayInputStream(new byte[10]), 10);
+		try {
+			uploadSessionManager.completeSession(session);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("minimum"));
+		}
+
+		// The session remains open and can be aborted
+		assertEquals(1, uploadSessionManager.getSessionCount());
+		uploadSessionManager.abortSession(session);
+		assertEquals(0, uploadSessionManager.getSessionCount());
+	}
+
+	/**
+	 * Tests a direct upload, where the client writes the file to S3 with a pre-signed URL
+	 */
+	@Test
+	public void testDirectUpload() throws Exception {
+		when(s3Client.generatePresignedUrl(any(GeneratePresignedUrlRequest.class)))
+				.thenReturn(new URL("http://localhost:9000/bucket/uploads/123456-test.geojson?X-Amz-Signature=sig"));
+		UploadSession session = uploadSessionManager.createDirectSession(mockJob, "test.geojson", 100, "Test User");
+		assertTrue(session.isDirectUpload());
+		assertTrue(session.getUploadUrl().contains("123456-test.geojson"));
+		ArgumentCaptor<GeneratePresignedUrlRequest> urlCaptor = ArgumentCaptor.forClass(GeneratePresignedUrlRequest.class);
+		verify(s3Client).generatePresignedUrl(urlCaptor.capture());
+		assertEquals("uploads/123456-test.geojson", urlCaptor.getValue().getKey());
+
+		// Chunks are not accepted for direct uploads
+		try {
+			uploadSessionManager.uploadPart(session, 1, new ByteArrayInputStream(new byte[10]), 10);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("direct upload"));
+		}
+
+		// The client has not uploaded the file yet
+		when(s3Client.doesObjectExist("bucket", "uploads/123456-test.geojson")).thenReturn(false);
+		try {
+			uploadSessionManager.completeSession(session);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("not been uploaded"));
+		}
+
+		// The client has uploaded a file of the wrong size
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(50);
+		metadata.setHeader("ETag", "etag");
+		when(s3Client.doesObjectExist("bucket", "uploads/123456-test.geojson")).thenReturn(true);
+		when(s3Client.getObjectMetadata(eq("bucket"), eq("uploads/123456-test.geojson"))).thenReturn(metadata);
+		try {
+			uploadSessionManager.completeSession(session);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("declared"));
+		}
+
+		// The client has uploaded the file correctly, but writes to it again before it is copied
+		metadata.setContentLength(100);
+		when(s3Client.copyObject(any(CopyObjectRequest.class))).thenReturn(null);
+		try {
+			uploadSessionManager.completeSession(session);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("changed"));
+		}
+
+		// The verified version of the file is copied to a key that the upload URL cannot write to
+		when(s3Client.copyObject(any(CopyObjectRequest.class))).thenReturn(new CopyObjectResult());
+		IngestJob job = uploadSessionManager.completeSession(session);
+		assertEquals(mockJob, job);
+		ArgumentCaptor<CopyObjectRequest> copyCaptor = ArgumentCaptor.forClass(CopyObjectRequest.class);
+		verify(s3Client, times(2)).copyObject(copyCaptor.capture());
+		assertEquals("uploads/123456-test.geojson", copyCaptor.getValue().getSourceKey());
+		assertEquals("123456-test.geojson", copyCaptor.getValue().getDestinationKey());
+		assertEquals("etag", copyCaptor.getValue().getMatchingETagConstraints().get(0));
+		verify(s3Client).deleteObject("bucket", "uploads/123456-test.geojson");
+		uploadSessionManager.finishSession(session);
+		assertEquals(0, uploadSessionManager.getSessionCount());
+	}
+
+	/**
+	 * Tests a direct upload too large to copy in one request, which is copied in parts
+	 */
+	@Test
+	public void testLargeDirectUpload() throws Exception {
+		long size = 6L * 1024 * 1024 * 1024;
+		when(s3Client.generatePresignedUrl(any(GeneratePresignedUrlRequest.class)))
+				.thenReturn(new URL("http://localhost:9000/bucket/uploads/123456-test.tif?X-Amz-Signature=sig"));
+		UploadSession session = uploadSessionManager.createDirectSession(mockJob, "test.tif", size, "Test User");
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(size);
+		metadata.setHeader("ETag", "etag");
+		when(s3Client.doesObjectExist("bucket", "uploads/123456-test.tif")).thenReturn(true);
+		when(s3Client.getObjectMetadata(eq("bucket"), eq("uploads/123456-test.tif"))).thenReturn(metadata);
+		InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+		initiated.setUploadId("copy");
+		when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+
+		// The client writes to the file again partway through the copy
+		when(s3Client.copyPart(any(CopyPartRequest.class))).thenReturn(new CopyPartResult()).thenReturn(null);
+		try {
+			uploadSessionManager.completeSession(session);
+			assertTrue(false);
+		} catch (InvalidInputException exception) {
+			assertTrue(exception.getMessage().contains("changed"));
+		}
+		verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+		verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+		// Every part is copied from the verified version of the file
+		when(s3Client.copyPart(any(CopyPartRequest.class))).thenReturn(new CopyPartResult());
+		uploadSessionManager.completeSession(session);
+		ArgumentCaptor<CopyPartRequest> partCaptor = ArgumentCaptor.forClass(CopyPartRequest.class);
+		verify(s3Client, times(14)).copyPart(partCaptor.capture());
+		CopyPartRequest lastPart = partCaptor.getValue();
+		assertEquals(12, lastPart.getPartNumber());
+		assertEquals(Long.valueOf(size - 1), lastPart.getLastByte());
+		assertEquals("uploads/123456-test.tif", lastPart.getSourceKey());
+		assertEquals("123456-test.tif", lastPart.getDestinationKey());
+		assertEquals("etag", lastPart.getMatchingETagConstraints().get(0));
+		ArgumentCaptor<CompleteMultipartUploadRequest> completeCaptor = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		verify(s3Client).completeMultipartUpload(completeCaptor.capture());
+		assertEquals("copy", completeCaptor.getValue().getUploadId());
+		assertEquals(12, completeCaptor.getValue().getPartETags().size());
+		verify(s3Client, never()).copyObject(any(CopyObjectRequest.class));
+		verify(s3Client).deleteObject("bucket", "uploads/123456-test.tif");
+	}
+
+	/**
+	 * Tests that resumable uploads are rejected when KMS is enabled
+	 */
+	@Test(expected = InvalidInputException.class)
+	public void testKmsRejected() throws Exception {
+		ReflectionTestUtils.setField(uploadSessionManager, "USE_KMS", true);
+		uploadSessionManager.createSession(mockJob, "test.geojson", "Test User");
+	}
+}
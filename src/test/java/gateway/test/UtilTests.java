@@ -17,6 +17,9 @@ package gateway.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
 
 import javax.management.remote.JMXPrincipal;
 
@@ -28,12 +31,31 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 
+import exception.PiazzaJobException;
+import gateway.controller.util.ContentIndex;
 import gateway.controller.util.GatewayUtil;
+import gateway.controller.util.JobOutbox;
+import gateway.controller.util.JobRequestCoalescer;
+import gateway.controller.util.JobRequestPublisher;
+import gateway.controller.util.JobStatusStream;
+import gateway.controller.util.LocalUuidGenerator;
+import gateway.controller.util.UploadCompressor;
+import gateway.controller.util.UuidPool;
+import model.data.DataResource;
+import model.data.FileRepresentation;
+import model.data.location.S3FileStore;
+import model.data.type.GeoJsonDataType;
 import model.job.type.AbortJob;
+import model.job.type.IngestJob;
 import model.request.PiazzaJobRequest;
 import model.response.JobResponse;
 import model.response.PiazzaResponse;
@@ -55,6 +77,22 @@ public class UtilTests {
 	private RestTemplate restTemplate;
 	@Mock
 	private AmazonS3 s3Client;
+	@Mock
+	private ContentIndex contentIndex;
+	@Mock
+	private UploadCompressor uploadCompressor;
+	@Mock
+	private UuidPool uuidPool;
+	@Mock
+	private LocalUuidGenerator localUuidGenerator;
+	@Mock
+	private JobRequestPublisher jobRequestPublisher;
+	@Mock
+	private JobOutbox jobOutbox;
+	@Mock
+	private JobRequestCoalescer jobRequestCoalescer;
+	@Mock
+	private JobStatusStream jobStatusStream;
 
 	@InjectMocks
 	private GatewayUtil gatewayUtil;
@@ -65,6 +103,9 @@ public class UtilTests {
 	@Before
 	public void setup() {
 		MockitoAnnotations.initMocks(this);
+
+		ReflectionTestUtils.setField(gatewayUtil, "AMAZONS3_BUCKET_NAME", "bucket");
+		ReflectionTestUtils.setField(gatewayUtil, "AMAZONS3_DOMAIN", "s3.amazonaws.com");
 	}
 
 	/**
@@ -93,6 +134,64 @@ public class UtilTests {
 
 		// Verify
 		assertEquals(jobId, "123456");
+		Mockito.verify(jobStatusStream).jobSubmitted("tester", "123456");
+
+		// Test publishing to the message broker instead
+		Mockito.when(jobRequestPublisher.isEnabled()).thenReturn(true);
+		jobId = gatewayUtil.sendJobRequest(mockRequest, "654321");
+		assertEquals(jobId, "654321");
+		Mockito.verify(jobRequestPublisher).publish(mockRequest, "654321");
+		Mockito.when(jobRequestPublisher.isEnabled()).thenReturn(false);
+
+		// Test sending through the coalescer
+		Mockito.when(jobRequestCoalescer.isEnabled()).thenReturn(true);
+		Mockito.when(jobRequestCoalescer.send(mockRequest, "789012")).thenReturn(new JobResponse("789012"));
+		assertEquals("789012", gatewayUtil.sendJobRequest(mockRequest, "789012"));
+	}
+
+	/**
+	 * Tests holding a Job Request in the outbox while the Job Manager is unavailable
+	 */
+	@Test
+	public void testJobRequestOutbox() throws Exception {
+		// Mock
+		PiazzaJobRequest mockRequest = new PiazzaJobRequest();
+		mockRequest.createdBy = "tester";
+		mockRequest.jobType = new AbortJob("123456");
+		Mockito.doThrow(new ResourceAccessException("Connection refused")).when(restTemplate).postForEntity(Mockito.anyString(),
+				Mockito.any(), Mockito.eq(PiazzaResponse.class));
+
+		// Test without the outbox
+		try {
+			gatewayUtil.sendJobRequest(mockRequest, "123456");
+			assertTrue(false);
+		} catch (PiazzaJobException exception) {
+			assertTrue(exception.getMessage().contains("Connection refused"));
+		}
+
+		// Test with the outbox
+		Mockito.when(jobOutbox.isEnabled()).thenReturn(true);
+		assertEquals("123456", gatewayUtil.sendJobRequest(mockRequest, "123456"));
+		Mockito.verify(jobOutbox).append(mockRequest, "123456");
+
+		// Later requests queue behind it, without trying the Job Manager
+		Mockito.when(jobOutbox.hasPending()).thenReturn(true);
+		assertEquals("654321", gatewayUtil.sendJobRequest(mockRequest, "654321"));
+		Mockito.verify(jobOutbox).append(mockRequest, "654321");
+		Mockito.verify(restTemplate, Mockito.times(2)).postForEntity(Mockito.anyString(), Mockito.any(),
+				Mockito.eq(PiazzaResponse.class));
+
+		// Requests the Job Manager failed to process are not held
+		Mockito.when(jobOutbox.hasPending()).thenReturn(false);
+		Mockito.doThrow(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR)).when(restTemplate)
+				.postForEntity(Mockito.anyString(), Mockito.any(), Mockito.eq(PiazzaResponse.class));
+		try {
+			gatewayUtil.sendJobRequest(mockRequest, "987654");
+			assertTrue(false);
+		} catch (PiazzaJobException exception) {
+			assertTrue(exception.getMessage().contains("500"));
+		}
+		Mockito.verify(jobOutbox, Mockito.never()).append(mockRequest, "987654");
 	}
 
 	/**
@@ -127,4 +226,48 @@ public class UtilTests {
 		assertEquals("bar foo baz ", gatewayUtil.joinValidationErrors("bar", null, "foo", null, "baz"));
 	}
 
+	/**
+	 * Tests the streaming digest of uploaded files
+	 */
+	@Test
+	public void testSha256() throws Exception {
+		MockMultipartFile file = new MockMultipartFile("file", "abc".getBytes());
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", gatewayUtil.computeSha256(file));
+	}
+
+	/**
+	 * Tests that uploads are written to S3 and registered in the Content Index, and that repeated uploads of the same
+	 * content are copied from the existing S3 file instead.
+	 */
+	@Test
+	public void testPushDeduplicatedFile() throws Exception {
+		// Mock
+		MockMultipartFile file = new MockMultipartFile("file", "test.geojson", "application/json", "Content".getBytes());
+		String hash = gatewayUtil.computeSha256(file);
+		IngestJob job = new IngestJob();
+		job.data = new DataResource();
+		job.data.dataType = new GeoJsonDataType();
+		when(contentIndex.isEnabled()).thenReturn(true);
+
+		// Test the first upload
+		gatewayUtil.pushS3File("123456", job, file);
+
+		// Verify
+		Mockito.verify(s3Client).putObject(Mockito.eq("bucket"), Mockito.eq("123456-test.geojson"), Mockito.any(InputStream.class),
+				Mockito.any(ObjectMetadata.class));
+		Mockito.verify(contentIndex).register(hash, "bucket", "123456-test.geojson", file.getSize());
+
+		// Test the repeated upload
+		when(contentIndex.lookup(hash)).thenReturn(new ContentIndex.IndexEntry("bucket", "123456-test.geojson", file.getSize()));
+		when(s3Client.doesObjectExist("bucket", "123456-test.geojson")).thenReturn(true);
+		gatewayUtil.pushS3File("654321", job, file);
+
+		// Verify the second file was never written, but copied to its own key
+		Mockito.verify(s3Client, Mockito.never()).putObject(Mockito.eq("bucket"), Mockito.eq("654321-test.geojson"),
+				Mockito.any(InputStream.class), Mockito.any(ObjectMetadata.class));
+		Mockito.verify(s3Client).copyObject("bucket", "123456-test.geojson", "bucket", "654321-test.geojson");
+		Mockito.verify(contentIndex).recordHit(file.getSize());
+		assertEquals("654321-test.geojson",
+				((S3FileStore) ((FileRepresentation) job.getData().getDataType()).getLocation()).getFileName());
+	}
 }
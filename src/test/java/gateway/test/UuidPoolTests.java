@@ -0,0 +1,110 @@
+/**
+ * Copyright 2016, RadiantBlue Technologies, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package gateway.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import gateway.controller.util.UuidPool;
+import util.UUIDFactory;
+
+/**
+ * Tests the pool of prefetched UUIDs
+ */
+public class UuidPoolTests {
+	@Mock
+	private UUIDFactory uuidFactory;
+	@InjectMocks
+	private UuidPool uuidPool;
+
+	private final AtomicInteger generated = new AtomicInteger();
+
+	/**
+	 * Initialize mock objects. The UUID Factory returns sequential Ids.
+	 */
+	@Before
+	public void setup() {
+		MockitoAnnotations.initMocks(this);
+		ReflectionTestUtils.setField(uuidPool, "enabled", true);
+		ReflectionTestUtils.setField(uuidPool, "lowWatermark", 2);
+		ReflectionTestUtils.setField(uuidPool, "highWatermark", 5);
+		when(uuidFactory.getUUID()).thenAnswer(new Answer<String>() {
+			@Override
+			public String answer(InvocationOnMock invocation) {
+				return Integer.toString(generated.incrementAndGet());
+			}
+		});
+	}
+
+	@After
+	public void teardown() {
+		uuidPool.shutdown();
+	}
+
+	/**
+	 * Tests taking Ids from the pool as it is refilled
+	 */
+	@Test
+	public void testTake() throws Exception {
+		uuidPool.init();
+		waitForDepth(5);
+
+		Set<String> uuids = new HashSet<String>();
+		for (int i = 0; i < 20; i++) {
+			uuids.add(uuidPool.take());
+		}
+		// Every Id is unique, and the pool is topped up again
+		assertEquals(20, uuids.size());
+		waitForDepth(5);
+		assertTrue((Long) uuidPool.getStats().get("hits") > 0);
+		assertTrue((Long) uuidPool.getStats().get("refills") > 1);
+	}
+
+	/**
+	 * Tests fetching directly when the pool is empty
+	 */
+	@Test
+	public void testFallback() {
+		// Not started, so nothing has been prefetched
+		assertEquals("1", uuidPool.take());
+		assertEquals(1L, uuidPool.getStats().get("misses"));
+
+		ReflectionTestUtils.setField(uuidPool, "enabled", false);
+		assertEquals("2", uuidPool.take());
+	}
+
+	private void waitForDepth(int depth) throws InterruptedException {
+		for (int i = 0; (i < 100) && ((Integer) uuidPool.getStats().get("depth") < depth); i++) {
+			Thread.sleep(50);
+		}
+		assertEquals(depth, uuidPool.getStats().get("depth"));
+	}
+}